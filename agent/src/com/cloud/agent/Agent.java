@@ -117,6 +117,8 @@ public class Agent implements HandlerFactory, IAgentControl {
     long                        _lastPingResponseTime = 0;
     long                        _pingInterval         = 0;
     AtomicInteger               _inProgress           = new AtomicInteger();
+    // Whether the management server we are connected to can parse the binary wire format
+    volatile boolean            _serverAcceptsBinary  = false;
 
     StartupTask                 _startup              = null;
     long  _startupWaitDefault = 180000;
@@ -202,6 +204,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
     protected void setLink(final Link link) {
         _link = link;
+        _serverAcceptsBinary = false;
     }
 
     public ServerResource getResource() {
@@ -566,6 +569,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     }
 
     public void processResponse(final Response response, final Link link) {
+        _serverAcceptsBinary = response.peerAcceptsBinary();
         final Answer answer = response.getAnswer();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Received response: " + response.toString());
@@ -610,6 +614,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            request.setBinaryEncoding(_serverAcceptsBinary);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
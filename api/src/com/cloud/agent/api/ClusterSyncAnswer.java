@@ -17,6 +17,7 @@
 package com.cloud.agent.api;
 
 import java.util.HashMap;
+import java.util.Map;
 
 import com.cloud.utils.Pair;
 import com.cloud.vm.VirtualMachine.State;
@@ -24,6 +25,9 @@ import com.cloud.vm.VirtualMachine.State;
 public class ClusterSyncAnswer extends Answer {
     private long _clusterId;
     private HashMap<String, Pair<String, State>> _newStates;
+    private long _generation;
+    private boolean _full;
+    private long _checksum;
     private boolean _isExecuted=false;
  
     // this is here because a cron command answer is being sent twice
@@ -43,6 +47,18 @@ public class ClusterSyncAnswer extends Answer {
         _newStates = newStates;
         result = true;
     }
+
+    /**
+     * @param generation number of this answer, 0 if the resource doesn't number them
+     * @param full true if newStates holds every vm in the cluster, false if only the changed ones
+     * @param checksum checksum of the vm states the resource has reported once this answer is applied
+     */
+    public ClusterSyncAnswer(long clusterId, HashMap<String, Pair<String, State>> newStates, long generation, boolean full, long checksum) {
+        this(clusterId, newStates);
+        _generation = generation;
+        _full = full;
+        _checksum = checksum;
+    }
     
     public long getClusterId() {
         return _clusterId;
@@ -52,4 +68,59 @@ public class ClusterSyncAnswer extends Answer {
         return _newStates;
     }   
 
+    public long getGeneration() {
+        return _generation;
+    }
+
+    public boolean isFull() {
+        return _full;
+    }
+
+    public long getChecksum() {
+        return _checksum;
+    }
+
+    /**
+     * Brings a copy of the cluster's vm states up to date with this answer.
+     */
+    public void applyTo(Map<String, Pair<String, State>> states) {
+        apply(states, _newStates, _full);
+    }
+
+    /**
+     * Applies reported vm states to a copy of the cluster's vm states.  Stopped vms are
+     * left out of the copy, they are not running anywhere in the cluster.
+     */
+    public static void apply(Map<String, Pair<String, State>> states, Map<String, Pair<String, State>> newStates, boolean full) {
+        if (full) {
+            states.clear();
+        }
+        if (newStates == null) {
+            return;
+        }
+        for (Map.Entry<String, Pair<String, State>> entry : newStates.entrySet()) {
+            if (entry.getValue().second() == State.Stopped) {
+                states.remove(entry.getKey());
+            } else {
+                states.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Checksum of a copy of the cluster's vm states, the same whatever the order of the
+     * entries so both ends can compute it over a plain map.
+     */
+    public static long checksum(Map<String, Pair<String, State>> states) {
+        long checksum = states.size();
+        for (Map.Entry<String, Pair<String, State>> entry : states.entrySet()) {
+            String host = entry.getValue().first();
+            long h = entry.getKey().hashCode();
+            h = h * 31 + (host == null ? 0 : host.hashCode());
+            h = h * 31 + entry.getValue().second().name().hashCode();
+            h *= 0x9E3779B97F4A7C15L;
+            checksum += h ^ (h >>> 29);
+        }
+        return checksum;
+    }
 }
\ No newline at end of file
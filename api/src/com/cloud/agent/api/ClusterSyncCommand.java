@@ -17,10 +17,20 @@
 package com.cloud.agent.api;
 
 
+/**
+ * ClusterSyncCommand is sent once and run again by the resource every interval.  The
+ * management server updates it in place with the generation of the last answer it has
+ * applied, so the resource can let go of the changes up to it, and asks for a full sync
+ * through it when its copy of the cluster's vm states is out of step.
+ */
 public class ClusterSyncCommand extends Command implements CronCommand {
     int _interval;
 
     long _clusterId;
+
+    volatile long _ackedGeneration;
+
+    volatile boolean _fullSync;
     
     public ClusterSyncCommand() {
     }
@@ -39,6 +49,22 @@ public class ClusterSyncCommand extends Command implements CronCommand {
         return _clusterId;
     }
 
+    public long getAckedGeneration() {
+        return _ackedGeneration;
+    }
+
+    public void setAckedGeneration(long generation) {
+        _ackedGeneration = generation;
+    }
+
+    public boolean isFullSync() {
+        return _fullSync;
+    }
+
+    public void setFullSync(boolean fullSync) {
+        _fullSync = fullSync;
+    }
+
     @Override
     public boolean executeInSequence() {
         return false;
@@ -16,9 +16,15 @@
 // under the License.
 package com.cloud.agent.api;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -80,6 +86,11 @@ public class SecurityGroupRulesCmd extends Command {
     Long msId;
     IpPortAndProto [] ingressRuleSet;
     IpPortAndProto [] egressRuleSet;
+    @LogLevel(Log4jLevel.Trace)
+    String compactRuleSet;
+    // expanded from compactRuleSet on first use, never serialized
+    transient IpPortAndProto [] expandedIngressRuleSet;
+    transient IpPortAndProto [] expandedEgressRuleSet;
 
     public SecurityGroupRulesCmd() {
         super();
@@ -110,6 +121,10 @@ public class SecurityGroupRulesCmd extends Command {
 
 
     public IpPortAndProto[] getIngressRuleSet() {
+        if (ingressRuleSet == null && compactRuleSet != null) {
+            expandCompactRuleSet();
+            return expandedIngressRuleSet;
+        }
         return ingressRuleSet;
     }
 
@@ -119,6 +134,10 @@ public class SecurityGroupRulesCmd extends Command {
     }
 
     public IpPortAndProto[] getEgressRuleSet() {
+        if (egressRuleSet == null && compactRuleSet != null) {
+            expandCompactRuleSet();
+            return expandedEgressRuleSet;
+        }
         return egressRuleSet;
     }
 
@@ -225,6 +244,124 @@ public class SecurityGroupRulesCmd extends Command {
         return Base64.encodeBase64String(out.toByteArray());
     }
 
+    /*
+     * Ipset oriented form of the rules: every distinct list of cidrs is written once as a set,
+     * "S:<index>:<cidr>,<cidr>,", and the rules refer to it, "I:<proto>:<start>:<end>:<index>".
+     * Rules that allow the same group on several ports then share one set, both on the wire
+     * and on the host. Entries are separated by ';'.
+     */
+    public String stringifyIpsetRules() {
+        StringBuilder setBuilder = new StringBuilder();
+        StringBuilder ruleBuilder = new StringBuilder();
+        Map<String, Integer> sets = new HashMap<String, Integer>();
+        appendIpsetRules("I:", getIngressRuleSet(), sets, setBuilder, ruleBuilder);
+        appendIpsetRules("E:", getEgressRuleSet(), sets, setBuilder, ruleBuilder);
+        return setBuilder.append(ruleBuilder).toString();
+    }
+
+    private void appendIpsetRules(String type, IpPortAndProto[] ruleSet, Map<String, Integer> sets, StringBuilder setBuilder, StringBuilder ruleBuilder) {
+        for (IpPortAndProto ipPandP : ruleSet) {
+            StringBuilder cidrs = new StringBuilder();
+            for (String cidr : ipPandP.getAllowedCidrs()) {
+                cidrs.append(cidr).append(",");
+            }
+            Integer index = sets.get(cidrs.toString());
+            if (index == null) {
+                index = sets.size();
+                sets.put(cidrs.toString(), index);
+                setBuilder.append("S:").append(index).append(":").append(cidrs).append(";");
+            }
+            ruleBuilder.append(type).append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":").append(index).append(";");
+        }
+    }
+
+    /**
+     * @return the ipset oriented rules, zlib compressed and base64 encoded
+     */
+    public String getCompactRuleSet() {
+        if (compactRuleSet != null) {
+            return compactRuleSet;
+        }
+        return deflate(stringifyIpsetRules());
+    }
+
+    /**
+     * Replaces the rule arrays with their compact form, which is what gets serialized to the
+     * agent. Agents expand it again the first time the rule arrays are asked for, so only
+     * agents that know about the compact form can be sent a compacted command.
+     */
+    public void compactRuleSets() {
+        String compact = getCompactRuleSet();
+        if (compact != null) {
+            compactRuleSet = compact;
+            expandedIngressRuleSet = ingressRuleSet;
+            expandedEgressRuleSet = egressRuleSet;
+            ingressRuleSet = null;
+            egressRuleSet = null;
+        }
+    }
+
+    private synchronized void expandCompactRuleSet() {
+        if (expandedIngressRuleSet != null) {
+            return;
+        }
+        String rules = inflate(compactRuleSet);
+        if (rules == null) {
+            throw new IllegalArgumentException("Unable to decompress security group rules for " + vmName);
+        }
+        Map<String, String[]> sets = new HashMap<String, String[]>();
+        List<IpPortAndProto> ingress = new ArrayList<IpPortAndProto>();
+        List<IpPortAndProto> egress = new ArrayList<IpPortAndProto>();
+        for (String entry : rules.split(";")) {
+            if (entry.length() == 0) {
+                continue;
+            }
+            String[] tokens = entry.split(":");
+            if (tokens[0].equals("S")) {
+                sets.put(tokens[1], tokens.length > 2 ? tokens[2].split(",") : new String[0]);
+            } else {
+                IpPortAndProto ipPandP = new IpPortAndProto(tokens[1], Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]), sets.get(tokens[4]));
+                if (tokens[0].equals("E")) {
+                    egress.add(ipPandP);
+                } else {
+                    ingress.add(ipPandP);
+                }
+            }
+        }
+        expandedEgressRuleSet = egress.toArray(new IpPortAndProto[egress.size()]);
+        expandedIngressRuleSet = ingress.toArray(new IpPortAndProto[ingress.size()]);
+    }
+
+    private static String deflate(String rules) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            DeflaterOutputStream dzip = new DeflaterOutputStream(out);
+            dzip.write(rules.getBytes());
+            dzip.close();
+        } catch (IOException e) {
+            s_logger.warn("Exception while compressing security group rules");
+            return null;
+        }
+        return new String(Base64.encodeBase64(out.toByteArray()));
+    }
+
+    private static String inflate(String compressed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(Base64.decodeBase64(compressed.getBytes())));
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            in.close();
+        } catch (IOException e) {
+            s_logger.warn("Exception while decompressing security group rules");
+            return null;
+        }
+        return new String(out.toByteArray());
+    }
+
     public String getSignature() {
         return signature;
     }
@@ -247,10 +384,10 @@ public class SecurityGroupRulesCmd extends Command {
     public int getTotalNumCidrs() {
         //useful for logging
         int count = 0;
-        for (IpPortAndProto i: ingressRuleSet) {
+        for (IpPortAndProto i: getIngressRuleSet()) {
             count += i.allowedCidrs.length;
         }
-        for (IpPortAndProto i: egressRuleSet) {
+        for (IpPortAndProto i: getEgressRuleSet()) {
             count += i.allowedCidrs.length;
         }
         return count;
@@ -0,0 +1,122 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api.routing;
+
+import java.util.Arrays;
+
+import com.cloud.agent.api.Answer;
+
+/**
+ * Answer to a batch of router configuration entries with the result of each of them, null for
+ * the entries the router applied.
+ */
+public class BatchConfigAnswer extends Answer {
+    public static final String errorResult = "Failed";
+
+    String[] results;
+
+    protected BatchConfigAnswer() {
+        super();
+    }
+
+    public BatchConfigAnswer(BatchConfigCommand cmd, String[] config, String output) {
+        super(cmd);
+        results = parseResults(config.length, output);
+        summarize(config);
+    }
+
+    /**
+     * Answer to a batch whose entries were applied one at a time, with a result for each entry
+     * command rather than for each configuration line.
+     */
+    public BatchConfigAnswer(BatchConfigCommand cmd, Answer[] answers) {
+        super(cmd);
+        results = new String[answers.length];
+        for (int i = 0; i < answers.length; i++) {
+            if (!answers[i].getResult()) {
+                results[i] = answers[i].getDetails() != null ? answers[i].getDetails() : errorResult;
+            }
+        }
+        summarize(null);
+    }
+
+    private void summarize(String[] config) {
+        StringBuilder failed = new StringBuilder();
+        int failures = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                if (failures < 10) {
+                    failed.append(failures == 0 ? ": " : ", ");
+                    if (config != null) {
+                        failed.append(getEntryName(config[i])).append(" (").append(results[i]).append(")");
+                    } else {
+                        failed.append(results[i]);
+                    }
+                }
+                failures++;
+            }
+        }
+        if (failures > 0) {
+            result = false;
+            details = failures + " of " + results.length + " entries failed" + failed + (failures > 10 ? ", ..." : "");
+        }
+    }
+
+    public String[] getResults() {
+        return results;
+    }
+
+    /**
+     * Reads the "<entry index> <exit status>" lines batch_config.sh prints, the entries it didn't
+     * report on failed.
+     */
+    public static String[] parseResults(int entries, String output) {
+        String[] results = new String[entries];
+        Arrays.fill(results, errorResult);
+        if (output == null) {
+            return results;
+        }
+        for (String line : output.split("\n")) {
+            String[] status = line.trim().split(" ");
+            if (status.length != 2) {
+                continue;
+            }
+            try {
+                int index = Integer.parseInt(status[0]);
+                if (index >= 0 && index < entries) {
+                    results[index] = "0".equals(status[1]) ? null : errorResult + " with exit status " + status[1];
+                }
+            } catch (NumberFormatException e) {
+                // not a status line
+            }
+        }
+        return results;
+    }
+
+    // the type and the first fields of an entry tell which it is, the rest may be long contents
+    private static String getEntryName(String line) {
+        String[] fields = line.split(" ", 5);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(fields.length, 4); i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(fields[i]);
+        }
+        return sb.toString();
+    }
+}
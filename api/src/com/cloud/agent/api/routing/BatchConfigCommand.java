@@ -0,0 +1,65 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api.routing;
+
+/**
+ * A batch of router configuration entries shipped to the router as one file and applied by one
+ * run of batch_config.sh, which prints the exit status of every entry.  Each line of the file is
+ * an entry, its type followed by its fields, with "-" for the fields that are not set.
+ */
+public abstract class BatchConfigCommand extends NetworkElementCommand {
+    public static final String SCRIPT = "batch_config.sh";
+
+    protected BatchConfigCommand() {
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+
+    /**
+     * @return the configuration lines, in the order the router applies them
+     */
+    public abstract String[] generateConfig();
+
+    /**
+     * @return a command of its own for each entry, with the access details of the batch, for
+     *         routers without batch_config.sh to apply the entries one at a time
+     */
+    public abstract NetworkElementCommand[] getEntryCommands();
+
+    protected <T extends NetworkElementCommand> T withAccessDetails(T entry) {
+        entry.accessDetails.putAll(accessDetails);
+        return entry;
+    }
+
+    public static String toFile(String[] config) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : config) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    protected static String field(String value) {
+        if (value == null || value.isEmpty()) {
+            return "-";
+        }
+        return value;
+    }
+}
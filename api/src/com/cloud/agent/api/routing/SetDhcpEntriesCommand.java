@@ -0,0 +1,58 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api.routing;
+
+import java.util.List;
+
+/**
+ * The dhcp entries of many guest vms, for the router to write its hosts files and restart
+ * dnsmasq once for all of them.
+ */
+public class SetDhcpEntriesCommand extends BatchConfigCommand {
+    DhcpEntryCommand[] entries;
+
+    protected SetDhcpEntriesCommand() {
+    }
+
+    public SetDhcpEntriesCommand(List<DhcpEntryCommand> entries) {
+        this.entries = entries.toArray(new DhcpEntryCommand[entries.size()]);
+    }
+
+    public DhcpEntryCommand[] getEntries() {
+        return entries;
+    }
+
+    @Override
+    public DhcpEntryCommand[] getEntryCommands() {
+        for (DhcpEntryCommand entry : entries) {
+            withAccessDetails(entry);
+        }
+        return entries;
+    }
+
+    @Override
+    public String[] generateConfig() {
+        String[] config = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            DhcpEntryCommand entry = entries[i];
+            // dhcp <mac> <ip> <host> <default router> <dns> <static routes>
+            config[i] = "dhcp " + entry.getVmMac() + " " + entry.getVmIpAddress() + " " + entry.getVmName() + " " + field(entry.getDefaultRouter())
+                    + " " + field(entry.getDefaultDns()) + " " + field(entry.getStaticRoutes());
+        }
+        return config;
+    }
+}
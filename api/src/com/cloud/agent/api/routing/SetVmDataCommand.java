@@ -0,0 +1,71 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.cloud.agent.api.LogLevel;
+import com.cloud.agent.api.LogLevel.Log4jLevel;
+
+/**
+ * The user data and meta data of many guest vms, an entry for each of their files.
+ */
+public class SetVmDataCommand extends BatchConfigCommand {
+    @LogLevel(Log4jLevel.Trace)
+    VmDataCommand[] entries;
+
+    protected SetVmDataCommand() {
+    }
+
+    public SetVmDataCommand(List<VmDataCommand> entries) {
+        this.entries = entries.toArray(new VmDataCommand[entries.size()]);
+    }
+
+    public VmDataCommand[] getEntries() {
+        return entries;
+    }
+
+    @Override
+    public VmDataCommand[] getEntryCommands() {
+        for (VmDataCommand entry : entries) {
+            withAccessDetails(entry);
+        }
+        return entries;
+    }
+
+    @Override
+    public String[] generateConfig() {
+        List<String> config = new ArrayList<String>();
+        for (VmDataCommand entry : entries) {
+            for (String[] vmData : entry.getVmData()) {
+                String folder = vmData[0];
+                String contents = vmData[2];
+                if (contents != null) {
+                    // the contents go base64 encoded on one line, userdata is supplied in url-safe unchunked mode
+                    byte[] bytes = folder.equals("userdata") ? Base64.decodeBase64(contents) : contents.getBytes();
+                    contents = new String(Base64.encodeBase64(bytes));
+                }
+                // vmdata <vm ip> <folder> <file> <base64 contents>
+                config.add("vmdata " + entry.getVmIpAddress() + " " + folder + " " + vmData[1] + " " + field(contents));
+            }
+        }
+        return config.toArray(new String[config.size()]);
+    }
+}
@@ -33,6 +33,7 @@ public class DownloadAnswer extends Answer  {
 	private long templateSize = 0L;
 	private long templatePhySicalSize = 0L;
 	private String checkSum;
+	private long throughput = 0L;
 	
 	public String getCheckSum() {
 		return checkSum;
@@ -137,5 +138,15 @@ public class DownloadAnswer extends Answer  {
     public long getTemplatePhySicalSize() {
         return templatePhySicalSize;
     }
+
+    /**
+     * @return bytes per second the download has been running at
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+    public void setThroughput(long throughput) {
+        this.throughput = throughput;
+    }
 	
 }
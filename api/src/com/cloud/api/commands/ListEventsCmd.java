@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 
 import com.cloud.api.ApiConstants;
@@ -30,6 +31,8 @@ import com.cloud.api.Parameter;
 import com.cloud.api.response.EventResponse;
 import com.cloud.api.response.ListResponse;
 import com.cloud.event.Event;
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.utils.Pair;
 
 @Implementation(description="A command to list events.", responseObject=EventResponse.class)
 public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
@@ -63,6 +66,9 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
     @Parameter(name=ApiConstants.TYPE, type=CommandType.STRING, description="the event type (see event types)")
     private String type;
 
+    @Parameter(name=ApiConstants.CONTINUATION_TOKEN, type=CommandType.STRING, description="lists the page after the one that returned this nexttoken")
+    private String continuationToken;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -95,6 +101,27 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
         return type;
     }
 
+    /**
+     * @return id of the last event of the previous page, null unless a continuation token was given
+     */
+    public Long getContinuationId() {
+        if (continuationToken == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(new String(Base64.decodeBase64(continuationToken)));
+        } catch (NumberFormatException e) {
+            throw new InvalidParameterValueException("Invalid continuation token: " + continuationToken);
+        }
+    }
+
+    /**
+     * @return token that lists the events after the one with the given id
+     */
+    public static String getContinuationToken(long lastId) {
+        return Base64.encodeBase64URLSafeString(Long.toString(lastId).getBytes());
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
@@ -106,14 +133,18 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
 
     @Override
     public void execute(){
-        List<? extends Event> result = _mgr.searchForEvents(this);
+        Pair<List<? extends Event>, Long> result = _mgr.searchForEvents(this);
         ListResponse<EventResponse> response = new ListResponse<EventResponse>();
         List<EventResponse> eventResponses = new ArrayList<EventResponse>();
-        for (Event event : result) {
+        for (Event event : result.first()) {
             eventResponses.add(_responseGenerator.createEventResponse(event));
         }
 
         response.setResponses(eventResponses);
+        // a full page may have more events after it
+        if (result.second() != null) {
+            response.setNextToken(getContinuationToken(result.second()));
+        }
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
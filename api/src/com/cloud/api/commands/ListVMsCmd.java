@@ -28,6 +28,7 @@ import com.cloud.api.BaseListTaggedResourcesCmd;
 import com.cloud.api.IdentityMapper;
 import com.cloud.api.Implementation;
 import com.cloud.api.Parameter;
+import com.cloud.api.response.ChunkedResponseSource;
 import com.cloud.api.response.ListResponse;
 import com.cloud.api.response.UserVmResponse;
 import com.cloud.async.AsyncJob;
@@ -201,15 +202,17 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
     public void execute(){
         Pair<List<? extends UserVm>, Integer> result = _userVmService.searchForUserVMs(this);
         ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
-        EnumSet<VMDetails> details = getDetails();
-        List<UserVmResponse> vmResponses;
-        if (details.contains(VMDetails.all)){ // for all use optimized version
-            vmResponses = _responseGenerator.createUserVmResponse("virtualmachine", result.first().toArray(new UserVm[result.first().size()]));
-        }
-        else {
-        	 vmResponses = _responseGenerator.createUserVmResponse("virtualmachine", getDetails(), result.first().toArray(new UserVm[result.first().size()]));
-        }
-        response.setResponses(vmResponses, result.second());
+        final EnumSet<VMDetails> details = getDetails();
+        // responses are created a chunk at a time while they are written out
+        response.setResponseSource(new ChunkedResponseSource<UserVm, UserVmResponse>(result.first()) {
+            @Override
+            protected List<UserVmResponse> createResponses(List<? extends UserVm> vms) {
+                if (details.contains(VMDetails.all)){ // for all use optimized version
+                    return _responseGenerator.createUserVmResponse("virtualmachine", vms.toArray(new UserVm[vms.size()]));
+                }
+                return _responseGenerator.createUserVmResponse("virtualmachine", details, vms.toArray(new UserVm[vms.size()]));
+            }
+        }, result.first().size(), result.second());
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
@@ -0,0 +1,83 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.cloud.api.ResponseObject;
+
+/**
+ * ChunkedResponseSource creates response objects a chunk of items at a time
+ * while it is iterated over.  It's meant to be handed to
+ * ListResponse.setResponseSource() so only one chunk of responses is alive
+ * while a list is being written out, no matter how large the page is.
+ * Chunks keep the lookups that the response generator batches per call.
+ */
+public abstract class ChunkedResponseSource<S, T extends ResponseObject> implements Iterable<T> {
+    public static final int DEFAULT_CHUNK_SIZE = 200;
+
+    private final List<? extends S> _items;
+    private final int _chunkSize;
+
+    public ChunkedResponseSource(List<? extends S> items) {
+        this(items, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedResponseSource(List<? extends S> items, int chunkSize) {
+        _items = items;
+        _chunkSize = chunkSize;
+    }
+
+    /**
+     * Creates the responses for one chunk of the items.
+     */
+    protected abstract List<T> createResponses(List<? extends S> chunk);
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            int _next = 0;
+            Iterator<T> _chunk = Collections.<T>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!_chunk.hasNext() && _next < _items.size()) {
+                    int end = Math.min(_next + _chunkSize, _items.size());
+                    _chunk = createResponses(_items.subList(_next, end)).iterator();
+                    _next = end;
+                }
+                return _chunk.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return _chunk.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
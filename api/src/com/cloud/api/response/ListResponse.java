@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.api.response;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import com.cloud.api.ResponseObject;
@@ -23,17 +25,68 @@ import com.cloud.api.ResponseObject;
 public class ListResponse<T extends ResponseObject> extends BaseResponse {
     List<T> responses;
     private transient Integer count;
+    private transient Iterable<T> source;
+    private transient int sourceSize;
+    private transient String nextToken;
 
+    /**
+     * Response objects from a source set with setResponseSource() are all
+     * created here, so serializers should use getResponseIterator() instead.
+     */
     public List<T> getResponses() {
+        if (responses == null && source != null) {
+            responses = new ArrayList<T>();
+            for (T response : source) {
+                responses.add(response);
+            }
+            source = null;
+        }
         return responses;
     }
 
+    /**
+     * Sets a source that creates the response objects as they are iterated
+     * over so a large list can be written out without holding all of them.
+     * @param source source of the response objects, iterated over only once.
+     * @param size number of objects the source creates.
+     * @param count total number of objects in the list.
+     */
+    public void setResponseSource(Iterable<T> source, int size, Integer count) {
+        this.source = source;
+        this.sourceSize = size;
+        this.responses = null;
+        this.count = count;
+    }
+
+    public boolean hasResponseSource() {
+        return source != null;
+    }
+
+    /**
+     * @return number of objects in this response without creating them, null if there are none set.
+     */
+    public Integer getResponseSize() {
+        if (source != null) {
+            return sourceSize;
+        }
+        return responses != null ? responses.size() : null;
+    }
+
+    public Iterator<T> getResponseIterator() {
+        if (source != null) {
+            return source.iterator();
+        }
+        return responses != null ? responses.iterator() : null;
+    }
+
     public void setResponses(List<T> responses) {
         this.responses = responses;
+        this.source = null;
     }
     
     public void setResponses(List<T> responses, Integer count) {
         this.responses = responses;
+        this.source = null;
         this.count = count;
     }
     
@@ -49,4 +102,15 @@ public class ListResponse<T extends ResponseObject> extends BaseResponse {
         
         return null;
     }
+
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    /**
+     * @param nextToken continuation token for the page after this one, null on the last page.
+     */
+    public void setNextToken(String nextToken) {
+        this.nextToken = nextToken;
+    }
 }
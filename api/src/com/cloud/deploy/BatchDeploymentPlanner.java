@@ -0,0 +1,44 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.List;
+
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachineProfile;
+
+/**
+ * A deployment planner that can place many virtual machines in one pass.
+ */
+public interface BatchDeploymentPlanner extends DeploymentPlanner {
+    /**
+     * planBatch is called to determine where each of a number of virtual machines should be running.
+     * Virtual machines that can share a placement are planned together against the same list of
+     * clusters and hosts, and the capacity of every destination returned is held for its virtual
+     * machine until the virtual machine starts there.
+     *
+     * @param vms
+     *            virtual machines.
+     * @param plan
+     *            deployment plan that tells you where they are being deployed to.
+     * @param avoid
+     *            avoid these data centers, pods, clusters, or hosts.
+     * @return DeployDestination for each virtual machine, in the same order; null for the ones that
+     *         could not be placed.
+     */
+    List<DeployDestination> planBatch(List<? extends VirtualMachineProfile<? extends VirtualMachine>> vms, DeploymentPlan plan, ExcludeList avoid);
+}
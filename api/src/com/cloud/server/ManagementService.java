@@ -172,9 +172,11 @@ public interface ManagementService {
      * "endDate"
      * 
      * @param c
-     * @return List of Events.
+     * @return List of Events, and the id of the last event fetched for the page when the page was full, the one to
+     *         continue after. Events pending past a duration are filtered from the fetched page, so the list can be
+     *         shorter than the page even when there are more.
      */
-    List<? extends Event> searchForEvents(ListEventsCmd c);
+    Pair<List<? extends Event>, Long> searchForEvents(ListEventsCmd c);
 
     /**
      * Obtains a list of routers by the specified search criteria. Can search by: "userId", "name", "state",
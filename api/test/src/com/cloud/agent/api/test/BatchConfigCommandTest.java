@@ -0,0 +1,113 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package src.com.cloud.agent.api.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.routing.BatchConfigAnswer;
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SetDhcpEntriesCommand;
+import com.cloud.agent.api.routing.SetVmDataCommand;
+import com.cloud.agent.api.routing.VmDataCommand;
+
+public class BatchConfigCommandTest {
+
+    SetDhcpEntriesCommand dhcpEntries() {
+        List<DhcpEntryCommand> entries = new ArrayList<DhcpEntryCommand>();
+        DhcpEntryCommand entry = new DhcpEntryCommand("02:00:4c:5f:00:01", "10.1.1.2", "vm-1");
+        entry.setDefaultRouter("10.1.1.1");
+        entry.setDefaultDns("10.1.1.1");
+        entries.add(entry);
+        entries.add(new DhcpEntryCommand("02:00:4c:5f:00:02", "10.1.1.3", "vm-2"));
+        return new SetDhcpEntriesCommand(entries);
+    }
+
+    @Test
+    public void testDhcpConfig() {
+        SetDhcpEntriesCommand cmd = dhcpEntries();
+        assertTrue(cmd.executeInSequence());
+        assertArrayEquals(new String[] { "dhcp 02:00:4c:5f:00:01 10.1.1.2 vm-1 10.1.1.1 10.1.1.1 -", "dhcp 02:00:4c:5f:00:02 10.1.1.3 vm-2 - - -" },
+                cmd.generateConfig());
+    }
+
+    @Test
+    public void testVmDataConfig() {
+        VmDataCommand vmData = new VmDataCommand("10.1.1.2", "vm-1");
+        // user data comes url-safe base64 encoded, the router gets it standard encoded
+        vmData.addVmData("userdata", "user-data", "Pz8-");
+        vmData.addVmData("metadata", "public-keys", "ssh-rsa AAAA user@host");
+        vmData.addVmData("metadata", "public-hostname", null);
+        List<VmDataCommand> entries = new ArrayList<VmDataCommand>();
+        entries.add(vmData);
+
+        String[] config = new SetVmDataCommand(entries).generateConfig();
+        assertArrayEquals(new String[] { "vmdata 10.1.1.2 userdata user-data Pz8+", "vmdata 10.1.1.2 metadata public-keys c3NoLXJzYSBBQUFBIHVzZXJAaG9zdA==",
+                "vmdata 10.1.1.2 metadata public-hostname -" }, config);
+    }
+
+    @Test
+    public void testAnswer() {
+        SetDhcpEntriesCommand cmd = dhcpEntries();
+        String[] config = cmd.generateConfig();
+
+        BatchConfigAnswer answer = new BatchConfigAnswer(cmd, config, "0 0\n1 0\n");
+        assertTrue(answer.getResult());
+        assertNull(answer.getDetails());
+        assertArrayEquals(new String[] { null, null }, answer.getResults());
+
+        // entries the script failed or never reported on fail on their own
+        answer = new BatchConfigAnswer(cmd, config, "+ set -x noise\n0 3\n");
+        assertFalse(answer.getResult());
+        assertEquals(BatchConfigAnswer.errorResult + " with exit status 3", answer.getResults()[0]);
+        assertEquals(BatchConfigAnswer.errorResult, answer.getResults()[1]);
+        assertEquals("2 of 2 entries failed: dhcp 02:00:4c:5f:00:01 10.1.1.2 vm-1 (Failed with exit status 3), dhcp 02:00:4c:5f:00:02 10.1.1.3 vm-2 (Failed)",
+                answer.getDetails());
+
+        assertArrayEquals(new String[] { BatchConfigAnswer.errorResult }, BatchConfigAnswer.parseResults(1, null));
+    }
+
+    @Test
+    public void testEntryCommands() {
+        SetDhcpEntriesCommand cmd = dhcpEntries();
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_IP, "169.254.1.1");
+
+        DhcpEntryCommand[] entries = cmd.getEntryCommands();
+        assertEquals(2, entries.length);
+        assertEquals("vm-2", entries[1].getVmName());
+        for (DhcpEntryCommand entry : entries) {
+            assertEquals("169.254.1.1", entry.getAccessDetail(NetworkElementCommand.ROUTER_IP));
+        }
+
+        // applied one at a time, the results are those of the entry commands
+        Answer[] answers = new Answer[] { new Answer(entries[0]), new Answer(entries[1], false, "edithosts.sh failed") };
+        BatchConfigAnswer answer = new BatchConfigAnswer(cmd, answers);
+        assertFalse(answer.getResult());
+        assertArrayEquals(new String[] { null, "edithosts.sh failed" }, answer.getResults());
+        assertEquals("1 of 2 entries failed: edithosts.sh failed", answer.getDetails());
+    }
+}
@@ -0,0 +1,72 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package src.com.cloud.agent.api.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.ClusterSyncAnswer;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+
+public class ClusterSyncAnswerTest {
+
+    static HashMap<String, Pair<String, State>> states(Object... nameHostState) {
+        HashMap<String, Pair<String, State>> states = new LinkedHashMap<String, Pair<String, State>>();
+        for (int i = 0; i < nameHostState.length; i += 3) {
+            states.put((String)nameHostState[i], new Pair<String, State>((String)nameHostState[i + 1], (State)nameHostState[i + 2]));
+        }
+        return states;
+    }
+
+    @Test
+    public void testApplyDelta() {
+        HashMap<String, Pair<String, State>> copy = states("i-2-3-VM", "host1", State.Running, "r-4-VM", "host2", State.Running);
+        ClusterSyncAnswer answer = new ClusterSyncAnswer(1, states("i-2-3-VM", "host1", State.Stopped, "i-2-5-VM", "host2", State.Running), 7, false, 0);
+        answer.applyTo(copy);
+        assertEquals(states("r-4-VM", "host2", State.Running, "i-2-5-VM", "host2", State.Running), copy);
+    }
+
+    @Test
+    public void testApplyFull() {
+        HashMap<String, Pair<String, State>> copy = states("i-2-3-VM", "host1", State.Running);
+        ClusterSyncAnswer answer = new ClusterSyncAnswer(1, states("r-4-VM", "host2", State.Running), 8, true, 0);
+        answer.applyTo(copy);
+        assertEquals(states("r-4-VM", "host2", State.Running), copy);
+    }
+
+    @Test
+    public void testChecksum() {
+        HashMap<String, Pair<String, State>> a = states("i-2-3-VM", "host1", State.Running, "r-4-VM", "host2", State.Running);
+        HashMap<String, Pair<String, State>> b = states("r-4-VM", "host2", State.Running, "i-2-3-VM", "host1", State.Running);
+        assertEquals(ClusterSyncAnswer.checksum(a), ClusterSyncAnswer.checksum(b));
+
+        // a missed move or state change shows up
+        assertFalse(ClusterSyncAnswer.checksum(a) == ClusterSyncAnswer.checksum(states("i-2-3-VM", "host2", State.Running, "r-4-VM", "host2",
+                State.Running)));
+        assertFalse(ClusterSyncAnswer.checksum(a) == ClusterSyncAnswer.checksum(states("i-2-3-VM", "host1", State.Migrating, "r-4-VM", "host2",
+                State.Running)));
+        assertFalse(ClusterSyncAnswer.checksum(a) == ClusterSyncAnswer.checksum(states("r-4-VM", "host2", State.Running)));
+        assertTrue(ClusterSyncAnswer.checksum(new HashMap<String, Pair<String, State>>()) == 0);
+    }
+}
@@ -0,0 +1,121 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package src.com.cloud.agent.api.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.utils.net.NetUtils;
+import com.google.gson.Gson;
+
+public class SecurityGroupRulesCmdTest {
+    Gson gson = new Gson();
+
+    // members of a large group, handed out mostly sequentially from a /16 with a few gaps
+    private String[] memberCidrs(int count) {
+        List<String> cidrs = new ArrayList<String>();
+        for (int i = 0; cidrs.size() < count; i++) {
+            if (i % 97 == 13) {
+                continue;
+            }
+            cidrs.add("10.1." + ((i >> 8) & 0xff) + "." + (i & 0xff) + "/32");
+        }
+        return cidrs.toArray(new String[cidrs.size()]);
+    }
+
+    private SecurityGroupRulesCmd createCmd(String[] members) {
+        IpPortAndProto[] ingress = new IpPortAndProto[] {
+                new IpPortAndProto("tcp", 22, 22, new String[] { "0.0.0.0/0" }),
+                new IpPortAndProto("tcp", 80, 80, members),
+                new IpPortAndProto("tcp", 443, 443, members),
+                new IpPortAndProto("icmp", -1, -1, members) };
+        IpPortAndProto[] egress = new IpPortAndProto[] { new IpPortAndProto("all", 0, 0, new String[] { "0.0.0.0/0" }) };
+        return new SecurityGroupRulesCmd("10.1.0.5", "02:00:00:00:00:01", "i-2-5-VM", 5L, null, 7L, ingress, egress);
+    }
+
+    private void assertSameRules(IpPortAndProto[] expected, IpPortAndProto[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getProto(), actual[i].getProto());
+            assertEquals(expected[i].getStartPort(), actual[i].getStartPort());
+            assertEquals(expected[i].getEndPort(), actual[i].getEndPort());
+            assertArrayEquals(expected[i].getAllowedCidrs(), actual[i].getAllowedCidrs());
+        }
+    }
+
+    @Test
+    public void testCompactRuleSetRoundTrip() {
+        SecurityGroupRulesCmd original = createCmd(memberCidrs(50));
+        SecurityGroupRulesCmd compacted = createCmd(memberCidrs(50));
+        compacted.compactRuleSets();
+
+        SecurityGroupRulesCmd received = gson.fromJson(gson.toJson(compacted), SecurityGroupRulesCmd.class);
+        assertSameRules(original.getIngressRuleSet(), received.getIngressRuleSet());
+        assertSameRules(original.getEgressRuleSet(), received.getEgressRuleSet());
+        assertEquals(original.getSignature(), received.getSignature());
+        assertEquals(original.stringifyRules(), received.stringifyRules());
+        assertEquals(original.getTotalNumCidrs(), received.getTotalNumCidrs());
+    }
+
+    @Test
+    public void testCompactedCmdDoesNotSerializeRuleArrays() {
+        SecurityGroupRulesCmd cmd = createCmd(memberCidrs(50));
+        cmd.compactRuleSets();
+        // reading the rules back on the sender must not put the arrays back on the wire
+        assertEquals(4, cmd.getIngressRuleSet().length);
+        String json = gson.toJson(cmd);
+        assertTrue(!json.contains("allowedCidrs"));
+        assertEquals(4, gson.fromJson(json, SecurityGroupRulesCmd.class).getIngressRuleSet().length);
+    }
+
+    @Test
+    public void testIpsetRulesShareSets() {
+        String rules = createCmd(memberCidrs(10)).stringifyIpsetRules();
+        // 0.0.0.0/0 and the member list, each written once
+        assertEquals(2, rules.split("S:").length - 1);
+        assertTrue(rules.contains("I:tcp:80:80:1;I:tcp:443:443:1;I:icmp:-1:-1:1;"));
+        assertTrue(rules.contains("E:all:0:0:0;"));
+    }
+
+    // the payload sent for a large group shrinks with each step
+    @Test
+    public void testPayloadSize() {
+        for (int members : new int[] { 100, 1000, 4000, 10000 }) {
+            String[] cidrs = memberCidrs(members);
+            List<String> aggregated = NetUtils.aggregateCidrs(Arrays.asList(cidrs));
+            String[] aggregatedCidrs = aggregated.toArray(new String[aggregated.size()]);
+
+            int plain = gson.toJson(createCmd(cidrs)).length();
+            int coalesced = gson.toJson(createCmd(aggregatedCidrs)).length();
+            SecurityGroupRulesCmd compact = createCmd(aggregatedCidrs);
+            compact.compactRuleSets();
+            int compacted = gson.toJson(compact).length();
+
+            assertTrue(coalesced < plain);
+            assertTrue(compacted < coalesced);
+        }
+    }
+}
@@ -16,68 +16,253 @@
 // under the License.
 package com.cloud.consoleproxy;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.cloud.consoleproxy.util.Logger;
 
+/**
+ * AjaxFIFOImageCache keeps the jpeg updates of an ajax console session until the browser
+ * fetches them.  The update thread puts images while the http handlers read them, so it is
+ * built on concurrent collections instead of a lock.  Images are evicted in the order they
+ * were put, except that an image read since it was put goes to the back of the queue once
+ * more, which is close to LRU without reordering on every read.
+ *
+ * Each session is held to a number of images and a number of bytes, and the sessions of
+ * the proxy together to a memory cap.  When the proxy is over its cap the session holding
+ * the oldest image gives one up, whichever session did the put.  The image just put in a
+ * session is never evicted, the browser is about to ask for it.
+ */
 public class AjaxFIFOImageCache {
     private static final Logger s_logger = Logger.getLogger(AjaxFIFOImageCache.class);
-    
-    private List<Integer> fifoQueue;
-    private Map<Integer, byte[]> cache;
-    private int cacheSize;
-    private int nextKey = 0;
-    
+
+    public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+    public static final long DEFAULT_PROXY_MAX_BYTES = 128L * 1024 * 1024;
+
+    private static volatile long s_proxyMaxBytes = DEFAULT_PROXY_MAX_BYTES;
+    private static final AtomicLong s_proxyBytes = new AtomicLong();
+    private static final AtomicLong s_proxyHits = new AtomicLong();
+    private static final AtomicLong s_proxyMisses = new AtomicLong();
+    private static final AtomicLong s_proxyEvictions = new AtomicLong();
+    private static final AtomicLong s_nextSequence = new AtomicLong();
+    // the sessions holding images, a session leaves when it is cleared
+    private static final Set<AjaxFIFOImageCache> s_caches = Collections.newSetFromMap(new ConcurrentHashMap<AjaxFIFOImageCache, Boolean>());
+
+    private static class Entry {
+        final int key;
+        final byte[] image;
+        final long sequence = s_nextSequence.incrementAndGet();
+        volatile boolean referenced;
+
+        Entry(int key, byte[] image) {
+            this.key = key;
+            this.image = image;
+        }
+
+        int size() {
+            return image != null ? image.length : 0;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Entry> cache = new ConcurrentHashMap<Integer, Entry>();
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final int cacheSize;
+    private final int maxBytes;
+    private final AtomicInteger nextKey = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile Entry newest;
+
     public AjaxFIFOImageCache(int cacheSize) {
+        this(cacheSize, DEFAULT_MAX_BYTES);
+    }
+
+    public AjaxFIFOImageCache(int cacheSize, int maxBytes) {
         this.cacheSize = cacheSize;
-        fifoQueue = new ArrayList<Integer>();
-        cache = new HashMap<Integer, byte[]>();
-    }
-    
-    public synchronized void clear() {
-        fifoQueue.clear();
-        cache.clear();
-    }
-    
-    public synchronized int putImage(byte[] image) {
-        while(cache.size() >= cacheSize) {
-            Integer keyToRemove = fifoQueue.remove(0);
-            cache.remove(keyToRemove);
-            
-            if(s_logger.isTraceEnabled())
-                s_logger.trace("Remove image from cache, key: " + keyToRemove);
+        this.maxBytes = maxBytes;
+    }
+
+    public static void setProxyMaxBytes(long maxBytes) {
+        s_proxyMaxBytes = maxBytes;
+    }
+
+    public static long getProxyMaxBytes() {
+        return s_proxyMaxBytes;
+    }
+
+    public static long getProxyBytes() {
+        return s_proxyBytes.get();
+    }
+
+    public static long getProxyHits() {
+        return s_proxyHits.get();
+    }
+
+    public static long getProxyMisses() {
+        return s_proxyMisses.get();
+    }
+
+    public static long getProxyEvictions() {
+        return s_proxyEvictions.get();
+    }
+
+    public void clear() {
+        s_caches.remove(this);
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            if (cache.remove(entry.key, entry)) {
+                release(entry);
+            }
         }
-        
+    }
+
+    public int putImage(byte[] image) {
         int key = getNextKey();
-        
-        if(s_logger.isTraceEnabled())
+        Entry entry = new Entry(key, image);
+
+        if (s_logger.isTraceEnabled())
             s_logger.trace("Add image to cache, key: " + key);
-        
-        cache.put(key, image);
-        fifoQueue.add(key);
+
+        cache.put(key, entry);
+        queue.add(entry);
+        newest = entry;
+        s_caches.add(this);
+        bytes.addAndGet(entry.size());
+        s_proxyBytes.addAndGet(entry.size());
+
+        while (cache.size() > cacheSize || bytes.get() > maxBytes) {
+            if (!evict(entry))
+                break;
+        }
+        while (s_proxyBytes.get() > s_proxyMaxBytes) {
+            if (!evictFromProxy())
+                break;
+        }
         return key;
     }
-    
-    public synchronized byte[] getImage(int key) {
+
+    public byte[] getImage(int key) {
         if (key == 0) {
-            key = nextKey;
+            key = nextKey.get();
         }
-        if (cache.containsKey(key)) {
+        Entry entry = cache.get(key);
+        if (entry != null) {
             if (s_logger.isTraceEnabled())
                 s_logger.trace("Retrieve image from cache, key: " + key);
 
-            return cache.get(key);
+            entry.referenced = true;
+            hits.incrementAndGet();
+            s_proxyHits.incrementAndGet();
+            return entry.image;
         }
 
         if (s_logger.isTraceEnabled())
             s_logger.trace("Image is no long in cache, key: " + key);
+        misses.incrementAndGet();
+        s_proxyMisses.incrementAndGet();
         return null;
     }
 
-    public synchronized int getNextKey() {
-        return ++nextKey;
+    public int getNextKey() {
+        return nextKey.incrementAndGet();
+    }
+
+    public int getImageCount() {
+        return cache.size();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Evicts the oldest image that is not the newest one and was not read since it was put
+     * or last passed over.
+     *
+     * @return false if there is nothing left to evict
+     */
+    private boolean evict(Entry newest) {
+        // every image is passed over at most once, so two rounds of the queue will do
+        for (int i = 2 * (cacheSize + 1); i > 0; i--) {
+            Entry entry = queue.poll();
+            if (entry == null)
+                return false;
+
+            if (entry == newest || entry.referenced) {
+                entry.referenced = false;
+                queue.add(entry);
+                if (entry == newest && queue.size() == 1)
+                    return false;
+                continue;
+            }
+
+            if (cache.remove(entry.key, entry)) {
+                release(entry);
+                evictions.incrementAndGet();
+                s_proxyEvictions.incrementAndGet();
+
+                if (s_logger.isTraceEnabled())
+                    s_logger.trace("Remove image from cache, key: " + entry.key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evicts an image from the session whose queue starts with the oldest image of the proxy.
+     * A session left with only its newest image is passed over for the next oldest.
+     *
+     * @return false if no session has anything left to evict
+     */
+    private static boolean evictFromProxy() {
+        Set<AjaxFIFOImageCache> passed = null;
+        while (true) {
+            AjaxFIFOImageCache oldest = null;
+            long oldestSequence = Long.MAX_VALUE;
+            for (AjaxFIFOImageCache imageCache : s_caches) {
+                if (passed != null && passed.contains(imageCache))
+                    continue;
+
+                Entry head = imageCache.queue.peek();
+                if (head != null && head.sequence < oldestSequence) {
+                    oldest = imageCache;
+                    oldestSequence = head.sequence;
+                }
+            }
+            if (oldest == null)
+                return false;
+
+            if (oldest.evict(oldest.newest))
+                return true;
+
+            if (passed == null)
+                passed = new HashSet<AjaxFIFOImageCache>();
+            passed.add(oldest);
+        }
+    }
+
+    private void release(Entry entry) {
+        bytes.addAndGet(-entry.size());
+        s_proxyBytes.addAndGet(-entry.size());
     }
-}
\ No newline at end of file
+}
@@ -34,6 +34,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.xml.DOMConfigurator;
 
 import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.TileEncoder;
 import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpServer;
 
@@ -65,6 +66,8 @@ public class ConsoleProxy {
     static int httpCmdListenPort = 8001;
     static int reconnectMaxRetry = 5;
     static int readTimeoutSeconds = 90;
+    static int ajaxImageCacheSize = 2;
+    static int ajaxImageCacheMaxBytes = AjaxFIFOImageCache.DEFAULT_MAX_BYTES;
     static int keyboardType = KEYBOARD_RAW;
     static String factoryClzName;
     static boolean standaloneStart = false;
@@ -153,6 +156,36 @@ public class ConsoleProxy {
             readTimeoutSeconds = Integer.parseInt(s);
             s_logger.info("Setting readTimeoutSeconds=" + readTimeoutSeconds);
         }
+        
+        s = conf.getProperty("consoleproxy.ajaxImageCacheSize");
+        if (s!=null) {
+            ajaxImageCacheSize = Integer.parseInt(s);
+            s_logger.info("Setting ajaxImageCacheSize=" + ajaxImageCacheSize);
+        }
+        
+        s = conf.getProperty("consoleproxy.ajaxImageCacheMaxBytes");
+        if (s!=null) {
+            ajaxImageCacheMaxBytes = Integer.parseInt(s);
+            s_logger.info("Setting ajaxImageCacheMaxBytes=" + ajaxImageCacheMaxBytes);
+        }
+        
+        s = conf.getProperty("consoleproxy.ajaxImageCacheProxyMaxBytes");
+        if (s!=null) {
+            AjaxFIFOImageCache.setProxyMaxBytes(Long.parseLong(s));
+            s_logger.info("Setting ajaxImageCacheProxyMaxBytes=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.ajaxImageFormat");
+        if (s!=null) {
+            TileEncoder.setFormat(s);
+            s_logger.info("Setting ajaxImageFormat=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.imageEncoders");
+        if (s!=null) {
+            TileEncoder.setMaxEncoders(Integer.parseInt(s));
+            s_logger.info("Setting imageEncoders=" + s);
+        }
     }
     
     public static ConsoleProxyServerFactory getHttpServerFactory() {
@@ -455,6 +488,7 @@ public class ConsoleProxy {
     }
     
     public static void removeViewer(ConsoleProxyClient viewer) {
+        viewer.getAjaxImageCache().clear();
         synchronized (connectionMap) {
             for(Map.Entry<String, ConsoleProxyClient> entry : connectionMap.entrySet()) {
                 if(entry.getValue() == viewer) {
@@ -22,6 +22,7 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.consoleproxy.util.TileEncoder;
 import com.cloud.consoleproxy.util.TileInfo;
 import com.cloud.consoleproxy.util.TileTracker;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
@@ -44,7 +45,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     protected boolean dirtyFlag = false;
     protected Object tileDirtyEvent = new Object();
     protected TileTracker tracker;
-    protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
+    protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(ConsoleProxy.ajaxImageCacheSize, ConsoleProxy.ajaxImageCacheMaxBytes);
 
     protected ConsoleProxyClientParam clientParam;
     protected String clientToken;
@@ -159,33 +160,33 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     //
     // AJAX Image manipulation 
     //
-    public byte[] getFrameBufferJpeg() {
+    public byte[] getFrameBufferImageBits() {
         FrameBufferCanvas canvas = getFrameBufferCavas();
         if(canvas != null)
-            return canvas.getFrameBufferJpeg();
+            return canvas.getFrameBufferImageBits();
         
         return null;
     }
     
-    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
+    public byte[] getTilesMergedImageBits(List<TileInfo> tileList, int tileWidth, int tileHeight) {
         FrameBufferCanvas canvas = getFrameBufferCavas();
         if(canvas != null)
-            return canvas.getTilesMergedJpeg(tileList, tileWidth, tileHeight);
+            return canvas.getTilesMergedImageBits(tileList, tileWidth, tileHeight);
         return null;
     }
     
     private String prepareAjaxImage(List<TileInfo> tiles, boolean init) {
         byte[] imgBits;
         if(init)
-            imgBits = getFrameBufferJpeg();
+            imgBits = getFrameBufferImageBits();
         else 
-            imgBits = getTilesMergedJpeg(tiles, tracker.getTileWidth(), tracker.getTileHeight());
+            imgBits = getTilesMergedImageBits(tiles, tracker.getTileWidth(), tracker.getTileHeight());
         
         if(imgBits == null) {
-            s_logger.warn("Unable to generate jpeg image");
+            s_logger.warn("Unable to generate ajax image");
         } else {
             if(s_logger.isTraceEnabled())
-                s_logger.trace("Generated jpeg image size: " + imgBits.length);
+                s_logger.trace("Generated " + TileEncoder.getContentType(imgBits) + " image size: " + imgBits.length);
         }
         
         int key = ajaxImageCache.putImage(imgBits);
@@ -31,6 +31,7 @@ import com.google.gson.GsonBuilder;
 public class ConsoleProxyClientStatsCollector {
     
     ArrayList<ConsoleProxyConnection> connections;
+    ImageCacheStats imageCache;
     
     public ConsoleProxyClientStatsCollector() {
     }
@@ -67,10 +68,17 @@ public class ConsoleProxyClientStatsCollector {
                 conn.tag = client.getClientTag();
                 conn.createTime = client.getClientCreateTime();
                 conn.lastUsedTime = client.getClientLastFrontEndActivityTime();
+                
+                AjaxFIFOImageCache imageCache = client.getAjaxImageCache();
+                conn.imageCacheBytes = imageCache.getBytes();
+                conn.imageCacheHits = imageCache.getHits();
+                conn.imageCacheMisses = imageCache.getMisses();
+                conn.imageCacheEvictions = imageCache.getEvictions();
                 conns.add(conn);
             }
         }
         connections = conns;
+        imageCache = new ImageCacheStats();
     }
     
     public static class ConsoleProxyConnection {
@@ -81,8 +89,23 @@ public class ConsoleProxyClientStatsCollector {
         public String tag;
         public long createTime;
         public long lastUsedTime;
+        public long imageCacheBytes;
+        public long imageCacheHits;
+        public long imageCacheMisses;
+        public long imageCacheEvictions;
         
         public ConsoleProxyConnection() {
         }
     }
+    
+    /**
+     * Ajax image caches of all the sessions of the proxy, since it started
+     */
+    public static class ImageCacheStats {
+        public long bytes = AjaxFIFOImageCache.getProxyBytes();
+        public long maxBytes = AjaxFIFOImageCache.getProxyMaxBytes();
+        public long hits = AjaxFIFOImageCache.getProxyHits();
+        public long misses = AjaxFIFOImageCache.getProxyMisses();
+        public long evictions = AjaxFIFOImageCache.getProxyEvictions();
+    }
 }
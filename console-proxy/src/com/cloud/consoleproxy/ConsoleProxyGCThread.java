@@ -93,6 +93,7 @@ public class ConsoleProxyGCThread extends Thread {
                 // close the server connection
                 s_logger.info("Dropping " + client + " which has not been used for " + seconds_unused + " seconds");
                 client.closeClient();
+                client.getAjaxImageCache().clear();
             }
             
             if(bReportLoad) {
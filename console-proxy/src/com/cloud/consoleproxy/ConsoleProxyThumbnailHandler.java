@@ -22,12 +22,12 @@ import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.Logger;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -80,9 +80,7 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
             height = Math.min(height, 600);
             
             BufferedImage img = generateTextImage(width, height, "Cannot Connect");
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(img, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = ImageHelper.jpegFromImage(img);
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
@@ -142,9 +140,7 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
         if (!viewer.isHostConnected()) {
             // use generated image instead of static
             BufferedImage img = generateTextImage(width, height, "Connecting");
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(img, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = ImageHelper.jpegFromImage(img);
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
@@ -165,9 +161,7 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
                     BufferedImage.TYPE_3BYTE_BGR);
             Graphics2D bufImageGraphics = bufferedImage.createGraphics();
             bufImageGraphics.drawImage(scaledImage, 0, 0, null);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(bufferedImage, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = ImageHelper.jpegFromImage(bufferedImage);
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
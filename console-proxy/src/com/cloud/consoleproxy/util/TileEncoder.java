@@ -0,0 +1,264 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * TileEncoder encodes frame buffer updates for the ajax viewer.  Encoders keep their image
+ * writers and buffers between updates and are handed out from a pool shared by all the
+ * sessions of the proxy, so at most a fixed number of images are encoded at a time and a
+ * busy console waits its turn with the others.
+ *
+ * In auto format the dirty tiles are sent as lossless PNG when they hold only a few colors,
+ * as text consoles and most desktops do, and as JPEG otherwise.
+ */
+public class TileEncoder {
+    private static final Logger s_logger = Logger.getLogger(TileEncoder.class);
+
+    public static final String FORMAT_AUTO = "auto";
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_PNG = "png";
+
+    // screens with at most this many colors in the dirty tiles are sent as PNG
+    static final int MAX_PNG_COLORS = 64;
+
+    private static final byte[] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G' };
+
+    private static volatile String s_format = FORMAT_AUTO;
+    private static volatile Semaphore s_permits = new Semaphore(Runtime.getRuntime().availableProcessors(), true);
+    private static final ConcurrentLinkedQueue<TileEncoder> s_idle = new ConcurrentLinkedQueue<TileEncoder>();
+
+    private final ImageWriter jpegWriter;
+    private final ImageWriter pngWriter;
+    private final ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
+    private BufferedImage scratch;
+    private Graphics2D graphics;
+    private int[] pixels = new int[0];
+    private final int[] colors = new int[MAX_PNG_COLORS * 4];
+    private Semaphore permits;
+
+    TileEncoder() {
+        jpegWriter = getWriter("jpg");
+        pngWriter = getWriter("png");
+    }
+
+    private static ImageWriter getWriter(String formatName) {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext())
+            throw new IllegalStateException("No image writer for " + formatName);
+        return writers.next();
+    }
+
+    public static void setFormat(String format) {
+        s_format = format;
+    }
+
+    public static String getFormat() {
+        return s_format;
+    }
+
+    /**
+     * Sets how many images the proxy encodes at a time, the encoders already out keep working.
+     */
+    public static void setMaxEncoders(int maxEncoders) {
+        s_permits = new Semaphore(Math.max(1, maxEncoders), true);
+        s_idle.clear();
+    }
+
+    /**
+     * Waits for a free encoder, to be handed back with release().
+     */
+    public static TileEncoder acquire() {
+        Semaphore permits = s_permits;
+        permits.acquireUninterruptibly();
+        TileEncoder encoder = s_idle.poll();
+        if (encoder == null) {
+            try {
+                encoder = new TileEncoder();
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+        encoder.permits = permits;
+        return encoder;
+    }
+
+    public static void release(TileEncoder encoder) {
+        Semaphore permits = encoder.permits;
+        encoder.permits = null;
+        if (permits == s_permits)
+            s_idle.add(encoder);
+        permits.release();
+    }
+
+    /**
+     * @return content type of an image encoded by an encoder
+     */
+    public static String getContentType(byte[] imageBits) {
+        if (imageBits != null && imageBits.length >= PNG_SIGNATURE.length
+                && Arrays.equals(Arrays.copyOf(imageBits, PNG_SIGNATURE.length), PNG_SIGNATURE))
+            return "image/png";
+        return "image/jpeg";
+    }
+
+    public static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        TileEncoder encoder = acquire();
+        try {
+            return encoder.encode(image, false);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    /**
+     * Encodes the whole frame buffer.
+     */
+    public byte[] encodeFrameBuffer(BufferedImage frameBuffer) throws IOException {
+        int width = frameBuffer.getWidth();
+        int height = frameBuffer.getHeight();
+        BufferedImage image = getScratch(width, height);
+        boolean count = FORMAT_AUTO.equals(s_format);
+        int colorCount;
+        synchronized (frameBuffer) {
+            colorCount = copy(frameBuffer, new Rectangle(0, 0, width, height), 0, count, 0);
+        }
+        return encode(image, isLossless(colorCount));
+    }
+
+    /**
+     * Encodes the dirty tiles side by side in one strip, in the order of the list.
+     */
+    public byte[] encodeTiles(BufferedImage frameBuffer, List<TileInfo> tileList, int tileWidth, int tileHeight) throws IOException {
+        int width = Math.max(tileWidth, tileWidth * tileList.size());
+        BufferedImage image = getScratch(width, tileHeight);
+        boolean count = FORMAT_AUTO.equals(s_format);
+        int colorCount = 0;
+        synchronized (frameBuffer) {
+            int i = 0;
+            for (TileInfo tile : tileList) {
+                Rectangle rc = tile.getTileRect();
+                if (rc.width < tileWidth || rc.height < tileHeight) {
+                    // tiles at the right and bottom edges don't fill their slot
+                    graphics.setColor(Color.black);
+                    graphics.fillRect(i * tileWidth, 0, tileWidth, tileHeight);
+                }
+                colorCount = copy(frameBuffer, rc, i * tileWidth, count, colorCount);
+                i++;
+            }
+        }
+        return encode(image, isLossless(colorCount));
+    }
+
+    private boolean isLossless(int colorCount) {
+        String format = s_format;
+        if (FORMAT_PNG.equals(format))
+            return true;
+        if (FORMAT_JPEG.equals(format))
+            return false;
+        return colorCount <= MAX_PNG_COLORS;
+    }
+
+    byte[] encode(BufferedImage image, boolean lossless) throws IOException {
+        ImageWriter writer = lossless ? pngWriter : jpegWriter;
+        bos.reset();
+        MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(bos);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), null);
+        } finally {
+            writer.reset();
+            ios.close();
+        }
+
+        if (s_logger.isTraceEnabled())
+            s_logger.trace("Encoded " + image.getWidth() + "x" + image.getHeight() + " image as " + (lossless ? "png" : "jpeg") + ", size: " + bos.size());
+        return bos.toByteArray();
+    }
+
+    /**
+     * The scratch image only grows, smaller images are taken from its top left corner.
+     */
+    private BufferedImage getScratch(int width, int height) {
+        if (scratch == null || scratch.getWidth() < width || scratch.getHeight() < height) {
+            int w = scratch == null ? width : Math.max(width, scratch.getWidth());
+            int h = scratch == null ? height : Math.max(height, scratch.getHeight());
+            if (graphics != null)
+                graphics.dispose();
+            scratch = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+            graphics = scratch.createGraphics();
+        }
+        if (scratch.getWidth() == width && scratch.getHeight() == height)
+            return scratch;
+        return scratch.getSubimage(0, 0, width, height);
+    }
+
+    /**
+     * Copies a rectangle of the frame buffer to the scratch image and counts the distinct
+     * colors in it until there are too many for PNG.
+     *
+     * @return number of colors seen so far, more than MAX_PNG_COLORS once there are too many
+     */
+    private int copy(BufferedImage frameBuffer, Rectangle rc, int x, boolean count, int colorCount) {
+        if (rc.width <= 0 || rc.height <= 0)
+            return colorCount;
+        graphics.drawImage(frameBuffer, x, 0, x + rc.width, rc.height, rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
+        if (!count)
+            return colorCount;
+
+        if (colorCount == 0)
+            Arrays.fill(colors, -1);
+        if (pixels.length < rc.width)
+            pixels = new int[rc.width];
+        boolean intRgb = frameBuffer.getType() == BufferedImage.TYPE_INT_RGB;
+        for (int row = 0; row < rc.height && colorCount <= MAX_PNG_COLORS; row++) {
+            // the canvas frame buffer is read straight from its raster, without color conversion
+            if (intRgb)
+                frameBuffer.getRaster().getDataElements(rc.x, rc.y + row, rc.width, 1, pixels);
+            else
+                frameBuffer.getRGB(rc.x, rc.y + row, rc.width, 1, pixels, 0, rc.width);
+
+            for (int i = 0; i < rc.width && colorCount <= MAX_PNG_COLORS; i++) {
+                int rgb = pixels[i] & 0xffffff;
+                int slot = (rgb * 0x9E3779B1 >>> 24) & (colors.length - 1);
+                while (colors[slot] != -1 && colors[slot] != rgb)
+                    slot = (slot + 1) & (colors.length - 1);
+                if (colors[slot] == -1) {
+                    colors[slot] = rgb;
+                    colorCount++;
+                }
+            }
+        }
+        return colorCount;
+    }
+}
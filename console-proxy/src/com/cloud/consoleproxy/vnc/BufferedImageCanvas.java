@@ -26,7 +26,7 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
 
-import com.cloud.consoleproxy.util.ImageHelper;
+import com.cloud.consoleproxy.util.TileEncoder;
 import com.cloud.consoleproxy.util.TileInfo;
 
 /**
@@ -104,47 +104,26 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
     }
 
     @Override
-    public byte[] getFrameBufferJpeg() {
-        int width = 800;
-        int height = 600;
-
-        width = offlineImage.getWidth();
-        height = offlineImage.getHeight();
-
-        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        Graphics2D g = bufferedImage.createGraphics();
-        synchronized (offlineImage) {
-            g.drawImage(offlineImage, 0, 0, width, height, 0, 0, width, height, null);
-        }
-
-        byte[] imgBits = null;
+    public byte[] getFrameBufferImageBits() {
+        TileEncoder encoder = TileEncoder.acquire();
         try {
-            imgBits = ImageHelper.jpegFromImage(bufferedImage);
+            return encoder.encodeFrameBuffer(offlineImage);
         } catch (IOException e) {
+            return null;
+        } finally {
+            TileEncoder.release(encoder);
         }
-        return imgBits;
     }
 
     @Override
-    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
-        int width = Math.max(tileWidth, tileWidth * tileList.size());
-        BufferedImage bufferedImage = new BufferedImage(width, tileHeight, BufferedImage.TYPE_3BYTE_BGR);
-        Graphics2D g = bufferedImage.createGraphics();
-
-        synchronized (offlineImage) {
-            int i = 0;
-            for (TileInfo tile : tileList) {
-                Rectangle rc = tile.getTileRect();
-                g.drawImage(offlineImage, i * tileWidth, 0, i * tileWidth + rc.width, rc.height, rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
-                i++;
-            }
-        }
-
-        byte[] imgBits = null;
+    public byte[] getTilesMergedImageBits(List<TileInfo> tileList, int tileWidth, int tileHeight) {
+        TileEncoder encoder = TileEncoder.acquire();
         try {
-            imgBits = ImageHelper.jpegFromImage(bufferedImage);
+            return encoder.encodeTiles(offlineImage, tileList, tileWidth, tileHeight);
         } catch (IOException e) {
+            return null;
+        } finally {
+            TileEncoder.release(encoder);
         }
-        return imgBits;
     }
 }
\ No newline at end of file
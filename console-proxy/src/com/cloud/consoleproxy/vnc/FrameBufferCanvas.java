@@ -24,7 +24,13 @@ import com.cloud.consoleproxy.util.TileInfo;
 public interface FrameBufferCanvas {
     Image getFrameBufferScaledImage(int width, int height);
 
-    public byte[] getFrameBufferJpeg();
+    /**
+     * @return the whole frame buffer as JPEG or PNG, null if it can't be encoded
+     */
+    public byte[] getFrameBufferImageBits();
 
-    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight);
+    /**
+     * @return the tiles side by side as JPEG or PNG, null if they can't be encoded
+     */
+    public byte[] getTilesMergedImageBits(List<TileInfo> tileList, int tileWidth, int tileHeight);
 }
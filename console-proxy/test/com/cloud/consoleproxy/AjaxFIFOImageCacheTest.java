@@ -0,0 +1,133 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AjaxFIFOImageCacheTest extends TestCase {
+    List<AjaxFIFOImageCache> _caches = new ArrayList<AjaxFIFOImageCache>();
+    long _proxyBytes;
+
+    @Override
+    protected void setUp() {
+        _proxyBytes = AjaxFIFOImageCache.getProxyBytes();
+    }
+
+    @Override
+    protected void tearDown() {
+        for (AjaxFIFOImageCache imageCache : _caches) {
+            imageCache.clear();
+        }
+        AjaxFIFOImageCache.setProxyMaxBytes(AjaxFIFOImageCache.DEFAULT_PROXY_MAX_BYTES);
+    }
+
+    AjaxFIFOImageCache createCache(int cacheSize, int maxBytes) {
+        AjaxFIFOImageCache imageCache = new AjaxFIFOImageCache(cacheSize, maxBytes);
+        _caches.add(imageCache);
+        return imageCache;
+    }
+
+    public void testEvictsInPutOrder() {
+        AjaxFIFOImageCache imageCache = createCache(3, 1024);
+        int first = imageCache.putImage(new byte[10]);
+        int second = imageCache.putImage(new byte[10]);
+        int third = imageCache.putImage(new byte[10]);
+        int fourth = imageCache.putImage(new byte[10]);
+
+        assertNull(imageCache.getImage(first));
+        assertNotNull(imageCache.getImage(second));
+        assertNotNull(imageCache.getImage(third));
+        assertNotNull(imageCache.getImage(fourth));
+        assertEquals(3, imageCache.getImageCount());
+        assertEquals(30, imageCache.getBytes());
+        assertEquals(1, imageCache.getEvictions());
+    }
+
+    public void testImageReadGetsSecondChance() {
+        AjaxFIFOImageCache imageCache = createCache(3, 1024);
+        int first = imageCache.putImage(new byte[10]);
+        int second = imageCache.putImage(new byte[10]);
+        int third = imageCache.putImage(new byte[10]);
+        assertNotNull(imageCache.getImage(first));
+        imageCache.putImage(new byte[10]);
+
+        // the image read since it was put is passed over once
+        assertNull(imageCache.getImage(second));
+        assertEquals(3, imageCache.getImageCount());
+
+        // and then goes in its turn, after the images put before it was passed over
+        imageCache.putImage(new byte[10]);
+        assertNull(imageCache.getImage(third));
+        imageCache.putImage(new byte[10]);
+        imageCache.putImage(new byte[10]);
+        assertNull(imageCache.getImage(first));
+        assertEquals(4, imageCache.getEvictions());
+    }
+
+    public void testSessionByteCap() {
+        AjaxFIFOImageCache imageCache = createCache(10, 100);
+        int first = imageCache.putImage(new byte[60]);
+        int second = imageCache.putImage(new byte[60]);
+
+        assertNull(imageCache.getImage(first));
+        assertNotNull(imageCache.getImage(second));
+        assertEquals(60, imageCache.getBytes());
+
+        int large = imageCache.putImage(new byte[150]);
+        assertNotNull("the image just put is kept over the cap", imageCache.getImage(large));
+        assertEquals(1, imageCache.getImageCount());
+        assertEquals(150, imageCache.getBytes());
+    }
+
+    public void testProxyByteCapEvictsFromOtherSessions() {
+        AjaxFIFOImageCache.setProxyMaxBytes(_proxyBytes + 250);
+        AjaxFIFOImageCache idle = createCache(10, 1024);
+        AjaxFIFOImageCache busy = createCache(10, 1024);
+        int idleFirst = idle.putImage(new byte[100]);
+        int idleSecond = idle.putImage(new byte[100]);
+
+        int busyFirst = busy.putImage(new byte[100]);
+        assertNull("the oldest image of the proxy goes, though another session did the put", idle.getImage(idleFirst));
+        assertNotNull(idle.getImage(idleSecond));
+        assertNotNull(busy.getImage(busyFirst));
+        assertEquals(1, idle.getEvictions());
+        assertEquals(0, busy.getEvictions());
+        assertEquals(_proxyBytes + 200, AjaxFIFOImageCache.getProxyBytes());
+
+        // the idle session is down to its newest image, which it keeps
+        int busySecond = busy.putImage(new byte[100]);
+        assertNotNull(idle.getImage(idleSecond));
+        assertNull(busy.getImage(busyFirst));
+        assertNotNull(busy.getImage(busySecond));
+        assertEquals(_proxyBytes + 200, AjaxFIFOImageCache.getProxyBytes());
+    }
+
+    public void testClearReleasesBytes() {
+        AjaxFIFOImageCache imageCache = createCache(10, 1024);
+        imageCache.putImage(new byte[100]);
+        imageCache.putImage(new byte[100]);
+        assertEquals(_proxyBytes + 200, AjaxFIFOImageCache.getProxyBytes());
+
+        imageCache.clear();
+        assertEquals(0, imageCache.getImageCount());
+        assertEquals(0, imageCache.getBytes());
+        assertEquals(_proxyBytes, AjaxFIFOImageCache.getProxyBytes());
+    }
+}
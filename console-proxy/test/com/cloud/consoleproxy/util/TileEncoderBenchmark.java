@@ -0,0 +1,110 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import com.cloud.consoleproxy.util.TileEncoderTest.Desktop;
+import com.cloud.consoleproxy.util.TileEncoderTest.Sequence;
+import com.cloud.consoleproxy.util.TileEncoderTest.TextConsole;
+import com.cloud.utils.Profiler;
+
+/**
+ * Compares the encoder pool against the ImageIO jpeg the canvas used before it, on the
+ * recorded sequences of TileEncoderTest.  Not part of the unit tests, run it with
+ * -Dtest=TileEncoderBenchmark.
+ */
+public class TileEncoderBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(TileEncoderBenchmark.class);
+
+    // how the canvas encoded updates before the encoder pool
+    static byte[] encodeWithImageIO(BufferedImage frameBuffer, List<TileInfo> tileList) throws Exception {
+        BufferedImage bufferedImage = new BufferedImage(Math.max(64, 64 * tileList.size()), 64, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = bufferedImage.createGraphics();
+        int i = 0;
+        for (TileInfo tile : tileList) {
+            Rectangle rc = tile.getTileRect();
+            g.drawImage(frameBuffer, i * 64, 0, i * 64 + rc.width, rc.height, rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
+            i++;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
+        ImageIO.write(bufferedImage, "jpg", bos);
+        return bos.toByteArray();
+    }
+
+    void benchmark(String name, Sequence sequence, int frames) throws Exception {
+        List<BufferedImage> snapshots = new ArrayList<BufferedImage>();
+        List<List<TileInfo>> updates = TileEncoderTest.record(sequence, frames, snapshots);
+
+        // warm up both paths before timing them
+        TileEncoder encoder = TileEncoder.acquire();
+        try {
+            for (int i = 0; i < Math.min(frames, 20); i++) {
+                encodeWithImageIO(snapshots.get(i), updates.get(i));
+                encoder.encodeTiles(snapshots.get(i), updates.get(i), 64, 64);
+            }
+        } finally {
+            TileEncoder.release(encoder);
+        }
+
+        long oldBytes = 0;
+        Profiler profiler = new Profiler();
+        profiler.start();
+        for (int i = 0; i < frames; i++) {
+            oldBytes += encodeWithImageIO(snapshots.get(i), updates.get(i)).length;
+        }
+        profiler.stop();
+        long oldTime = profiler.getDuration();
+
+        long newBytes = 0;
+        int pngCount = 0;
+        profiler = new Profiler();
+        profiler.start();
+        for (int i = 0; i < frames; i++) {
+            encoder = TileEncoder.acquire();
+            try {
+                byte[] bits = encoder.encodeTiles(snapshots.get(i), updates.get(i), 64, 64);
+                newBytes += bits.length;
+                if ("image/png".equals(TileEncoder.getContentType(bits)))
+                    pngCount++;
+            } finally {
+                TileEncoder.release(encoder);
+            }
+        }
+        profiler.stop();
+
+        s_logger.info(name + ": " + frames + " updates, ImageIO jpeg " + oldBytes + " bytes in " + oldTime + " ms, encoder pool " + newBytes
+                + " bytes (" + pngCount + " png) in " + profiler.getDuration() + " ms");
+    }
+
+    public void testTextConsole() throws Exception {
+        benchmark("Text console", new TextConsole(), 400);
+    }
+
+    public void testDesktop() throws Exception {
+        benchmark("Desktop", new Desktop(), 100);
+    }
+}
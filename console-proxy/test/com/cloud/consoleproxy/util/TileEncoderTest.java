@@ -0,0 +1,267 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class TileEncoderTest extends TestCase {
+
+    /**
+     * A recorded frame buffer sequence, each step draws the next frame and returns the
+     * rectangle the VNC server would have sent for it.
+     */
+    static abstract class Sequence {
+        final BufferedImage frameBuffer;
+        final Random random = new Random(7);
+
+        Sequence(int width, int height) {
+            frameBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        abstract Rectangle next(Graphics2D g);
+    }
+
+    /**
+     * An 80x25 text console typing and scrolling.
+     */
+    static class TextConsole extends Sequence {
+        int row;
+        int col;
+
+        TextConsole() {
+            super(720, 400);
+        }
+
+        @Override
+        Rectangle next(Graphics2D g) {
+            if (col == 80) {
+                col = 0;
+                row++;
+            }
+            if (row == 25) {
+                // scroll up a line, the whole screen changes
+                g.copyArea(0, 16, 720, 384, 0, -16);
+                g.setColor(Color.black);
+                g.fillRect(0, 384, 720, 16);
+                row = 24;
+                drawChars(g, 4);
+                return new Rectangle(0, 0, 720, 400);
+            }
+            int x = col * 9;
+            drawChars(g, 4);
+            return new Rectangle(x, row * 16, 36, 16);
+        }
+
+        void drawChars(Graphics2D g, int n) {
+            g.setColor(Color.lightGray);
+            for (int i = 0; i < n && col < 80; i++, col++) {
+                // a glyph is a few random strokes in its 9x16 cell
+                int bits = random.nextInt();
+                for (int k = 0; k < 12; k++) {
+                    if ((bits & (1 << k)) != 0) {
+                        g.fillRect(col * 9 + 1 + k % 3 * 2, row * 16 + 2 + k / 3 * 3, 2, 2);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A window dragged across a photo wallpaper.
+     */
+    static class Desktop extends Sequence {
+        final BufferedImage wallpaper;
+        int x = 40;
+        int y = 60;
+
+        Desktop() {
+            super(1024, 768);
+            wallpaper = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_RGB);
+            for (int j = 0; j < 768; j++) {
+                for (int i = 0; i < 1024; i++) {
+                    int r = (i * 255 / 1024 + random.nextInt(24)) & 0xff;
+                    int gr = (j * 255 / 768 + random.nextInt(24)) & 0xff;
+                    int b = ((i + j) / 8 + random.nextInt(24)) & 0xff;
+                    wallpaper.setRGB(i, j, (r << 16) | (gr << 8) | b);
+                }
+            }
+            frameBuffer.createGraphics().drawImage(wallpaper, 0, 0, null);
+        }
+
+        @Override
+        Rectangle next(Graphics2D g) {
+            Rectangle old = new Rectangle(x, y, 320, 240);
+            g.drawImage(wallpaper, x, y, x + 320, y + 240, x, y, x + 320, y + 240, null);
+            x = (x + 12) % 680;
+            y = (y + 5) % 500;
+            g.setColor(Color.white);
+            g.fillRect(x, y, 320, 240);
+            g.setColor(Color.blue);
+            g.fillRect(x, y, 320, 20);
+            return old.union(new Rectangle(x, y, 320, 240));
+        }
+    }
+
+    static List<List<TileInfo>> record(Sequence sequence, int frames, List<BufferedImage> snapshots) {
+        TileTracker tracker = new TileTracker();
+        tracker.initTracking(64, 64, sequence.frameBuffer.getWidth(), sequence.frameBuffer.getHeight());
+        Graphics2D g = sequence.frameBuffer.createGraphics();
+        List<List<TileInfo>> updates = new ArrayList<List<TileInfo>>();
+        for (int i = 0; i < frames; i++) {
+            tracker.invalidate(sequence.next(g));
+            updates.add(tracker.scan(false));
+            BufferedImage snapshot = new BufferedImage(sequence.frameBuffer.getWidth(), sequence.frameBuffer.getHeight(), BufferedImage.TYPE_INT_RGB);
+            snapshot.createGraphics().drawImage(sequence.frameBuffer, 0, 0, null);
+            snapshots.add(snapshot);
+        }
+        return updates;
+    }
+
+    /**
+     * Encodes every update of the sequence with the encoder pool, checks each one decodes
+     * to a strip of its tiles and returns how many came out as png.
+     */
+    static int encodeAll(Sequence sequence, int frames) throws Exception {
+        List<BufferedImage> snapshots = new ArrayList<BufferedImage>();
+        List<List<TileInfo>> updates = record(sequence, frames, snapshots);
+        int pngCount = 0;
+        for (int i = 0; i < frames; i++) {
+            TileEncoder encoder = TileEncoder.acquire();
+            try {
+                byte[] bits = encoder.encodeTiles(snapshots.get(i), updates.get(i), 64, 64);
+                if ("image/png".equals(TileEncoder.getContentType(bits)))
+                    pngCount++;
+
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bits));
+                assertEquals(Math.max(64, 64 * updates.get(i).size()), decoded.getWidth());
+                assertEquals(64, decoded.getHeight());
+            } finally {
+                TileEncoder.release(encoder);
+            }
+        }
+        return pngCount;
+    }
+
+    public void testTextConsoleUpdates() throws Exception {
+        assertTrue("text updates go out lossless", encodeAll(new TextConsole(), 100) > 50);
+    }
+
+    public void testDesktopUpdates() throws Exception {
+        assertTrue("photo updates go out as jpeg", encodeAll(new Desktop(), 20) < 20);
+    }
+
+    public void testFormatChoice() throws Exception {
+        TextConsole text = new TextConsole();
+        List<List<TileInfo>> updates = record(text, 100, new ArrayList<BufferedImage>());
+        TileEncoder encoder = TileEncoder.acquire();
+        try {
+            byte[] bits = encoder.encodeTiles(text.frameBuffer, updates.get(updates.size() - 1), 64, 64);
+            assertEquals("image/png", TileEncoder.getContentType(bits));
+
+            // lossless tiles come back exactly as they were
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoder.encodeFrameBuffer(text.frameBuffer)));
+            assertEquals(720, decoded.getWidth());
+            assertEquals(400, decoded.getHeight());
+            for (int y = 0; y < 400; y += 3) {
+                for (int x = 0; x < 720; x += 5) {
+                    assertEquals(text.frameBuffer.getRGB(x, y), decoded.getRGB(x, y));
+                }
+            }
+
+            Desktop desktop = new Desktop();
+            bits = encoder.encodeFrameBuffer(desktop.frameBuffer);
+            assertEquals("image/jpeg", TileEncoder.getContentType(bits));
+            decoded = ImageIO.read(new ByteArrayInputStream(bits));
+            assertEquals(1024, decoded.getWidth());
+
+            // smaller updates reuse the scratch image of a larger one
+            List<TileInfo> tiles = new ArrayList<TileInfo>();
+            tiles.add(new TileInfo(0, 0, new Rectangle(0, 0, 64, 64)));
+            tiles.add(new TileInfo(0, 11, new Rectangle(704, 0, 16, 64)));
+            decoded = ImageIO.read(new ByteArrayInputStream(encoder.encodeTiles(text.frameBuffer, tiles, 64, 64)));
+            assertEquals(128, decoded.getWidth());
+            assertEquals(64, decoded.getHeight());
+            assertEquals(Color.black.getRGB(), decoded.getRGB(100, 10));
+        } finally {
+            TileEncoder.release(encoder);
+        }
+
+        TileEncoder.setFormat(TileEncoder.FORMAT_JPEG);
+        try {
+            assertEquals("image/jpeg", TileEncoder.getContentType(ImageHelper.jpegFromImage(text.frameBuffer)));
+            encoder = TileEncoder.acquire();
+            try {
+                assertEquals("image/jpeg", TileEncoder.getContentType(encoder.encodeFrameBuffer(text.frameBuffer)));
+            } finally {
+                TileEncoder.release(encoder);
+            }
+        } finally {
+            TileEncoder.setFormat(TileEncoder.FORMAT_AUTO);
+        }
+    }
+
+    public void testPoolIsBounded() throws Exception {
+        TileEncoder.setMaxEncoders(2);
+        try {
+            final AtomicInteger busy = new AtomicInteger();
+            final AtomicInteger maxBusy = new AtomicInteger();
+            final Desktop desktop = new Desktop();
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 5; j++) {
+                            TileEncoder encoder = TileEncoder.acquire();
+                            try {
+                                int n = busy.incrementAndGet();
+                                synchronized (maxBusy) {
+                                    maxBusy.set(Math.max(maxBusy.get(), n));
+                                }
+                                encoder.encodeFrameBuffer(desktop.frameBuffer);
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            } finally {
+                                busy.decrementAndGet();
+                                TileEncoder.release(encoder);
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(maxBusy.get() <= 2);
+        } finally {
+            TileEncoder.setMaxEncoders(Runtime.getRuntime().availableProcessors());
+        }
+    }
+}
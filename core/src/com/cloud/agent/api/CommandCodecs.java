@@ -0,0 +1,336 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.transport.BinaryCodec;
+import com.cloud.agent.transport.BinaryCodecs;
+import com.cloud.host.Host;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * Binary codecs for the commands and answers that make up most of the
+ * steady state traffic between the agents and the management server.  They
+ * live in this package so they can read and write the same fields Gson does
+ * without adding accessors to the commands.
+ */
+public class CommandCodecs {
+    public static final BinaryCodec<Answer> ANSWER = new AnswerCodec();
+    public static final BinaryCodec<PingCommand> PING = new PingCodec();
+    public static final BinaryCodec<PingRoutingCommand> PING_ROUTING = new PingRoutingCodec();
+    public static final BinaryCodec<PingRoutingWithNwGroupsCommand> PING_ROUTING_WITH_NW_GROUPS = new PingRoutingWithNwGroupsCodec();
+    public static final BinaryCodec<PingAnswer> PING_ANSWER = new PingAnswerCodec();
+    public static final BinaryCodec<GetVmStatsCommand> GET_VM_STATS = new GetVmStatsCodec();
+    public static final BinaryCodec<GetVmStatsAnswer> GET_VM_STATS_ANSWER = new GetVmStatsAnswerCodec();
+
+    protected static void writeCommand(Command cmd, DataOutput out) throws IOException {
+        BinaryCodecs.writeVarLong(out, cmd.getWait());
+        BinaryCodecs.writeStringMap(out, cmd.contextMap);
+    }
+
+    protected static void readCommand(Command cmd, DataInput in) throws IOException {
+        cmd.setWait((int)BinaryCodecs.readVarLong(in));
+        Map<String, String> contextMap = BinaryCodecs.readStringMap(in);
+        cmd.contextMap = contextMap != null ? contextMap : new HashMap<String, String>();
+    }
+
+    protected static void writeAnswer(Answer answer, DataOutput out) throws IOException {
+        writeCommand(answer, out);
+        out.writeBoolean(answer.result);
+        BinaryCodecs.writeString(out, answer.details);
+    }
+
+    protected static void readAnswer(Answer answer, DataInput in) throws IOException {
+        readCommand(answer, in);
+        answer.result = in.readBoolean();
+        answer.details = BinaryCodecs.readString(in);
+    }
+
+    protected static void writePing(PingCommand cmd, DataOutput out) throws IOException {
+        writeCommand(cmd, out);
+        BinaryCodecs.writeEnum(out, cmd.hostType);
+        BinaryCodecs.writeVarLong(out, cmd.hostId);
+    }
+
+    protected static void readPing(PingCommand cmd, DataInput in) throws IOException {
+        readCommand(cmd, in);
+        cmd.hostType = BinaryCodecs.readEnum(in, Host.Type.class);
+        cmd.hostId = BinaryCodecs.readVarLong(in);
+    }
+
+    protected static void writePingRouting(PingRoutingCommand cmd, DataOutput out) throws IOException {
+        writePing(cmd, out);
+        out.writeBoolean(cmd._gatewayAccessible);
+        out.writeBoolean(cmd._vnetAccessible);
+        if (cmd.newStates == null) {
+            BinaryCodecs.writeSize(out, -1);
+            return;
+        }
+        BinaryCodecs.writeSize(out, cmd.newStates.size());
+        for (Map.Entry<String, State> entry : cmd.newStates.entrySet()) {
+            BinaryCodecs.writeString(out, entry.getKey());
+            BinaryCodecs.writeEnum(out, entry.getValue());
+        }
+    }
+
+    protected static void readPingRouting(PingRoutingCommand cmd, DataInput in) throws IOException {
+        readPing(cmd, in);
+        cmd._gatewayAccessible = in.readBoolean();
+        cmd._vnetAccessible = in.readBoolean();
+        int size = BinaryCodecs.readSize(in);
+        if (size < 0) {
+            cmd.newStates = null;
+            return;
+        }
+        cmd.newStates = new HashMap<String, State>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String vmName = BinaryCodecs.readString(in);
+            cmd.newStates.put(vmName, BinaryCodecs.readEnum(in, State.class));
+        }
+    }
+
+    protected static void writeNullableLong(DataOutput out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            BinaryCodecs.writeVarLong(out, value);
+        }
+    }
+
+    protected static Long readNullableLong(DataInput in) throws IOException {
+        return in.readBoolean() ? BinaryCodecs.readVarLong(in) : null;
+    }
+
+    protected static class AnswerCodec implements BinaryCodec<Answer> {
+        @Override
+        public boolean canEncode(Answer answer) {
+            return true;
+        }
+
+        @Override
+        public void encode(Answer answer, DataOutput out) throws IOException {
+            writeAnswer(answer, out);
+        }
+
+        @Override
+        public Answer decode(DataInput in) throws IOException {
+            Answer answer = new Answer();
+            readAnswer(answer, in);
+            return answer;
+        }
+    }
+
+    protected static class PingCodec implements BinaryCodec<PingCommand> {
+        @Override
+        public boolean canEncode(PingCommand cmd) {
+            return true;
+        }
+
+        @Override
+        public void encode(PingCommand cmd, DataOutput out) throws IOException {
+            writePing(cmd, out);
+        }
+
+        @Override
+        public PingCommand decode(DataInput in) throws IOException {
+            PingCommand cmd = new PingCommand();
+            readPing(cmd, in);
+            return cmd;
+        }
+    }
+
+    protected static class PingRoutingCodec implements BinaryCodec<PingRoutingCommand> {
+        @Override
+        public boolean canEncode(PingRoutingCommand cmd) {
+            return true;
+        }
+
+        @Override
+        public void encode(PingRoutingCommand cmd, DataOutput out) throws IOException {
+            writePingRouting(cmd, out);
+        }
+
+        @Override
+        public PingRoutingCommand decode(DataInput in) throws IOException {
+            PingRoutingCommand cmd = new PingRoutingCommand();
+            readPingRouting(cmd, in);
+            return cmd;
+        }
+    }
+
+    protected static class PingRoutingWithNwGroupsCodec implements BinaryCodec<PingRoutingWithNwGroupsCommand> {
+        @Override
+        public boolean canEncode(PingRoutingWithNwGroupsCommand cmd) {
+            return true;
+        }
+
+        @Override
+        public void encode(PingRoutingWithNwGroupsCommand cmd, DataOutput out) throws IOException {
+            writePingRouting(cmd, out);
+            if (cmd.newGroupStates == null) {
+                BinaryCodecs.writeSize(out, -1);
+                return;
+            }
+            BinaryCodecs.writeSize(out, cmd.newGroupStates.size());
+            for (Map.Entry<String, Pair<Long, Long>> entry : cmd.newGroupStates.entrySet()) {
+                BinaryCodecs.writeString(out, entry.getKey());
+                Pair<Long, Long> pair = entry.getValue();
+                writeNullableLong(out, pair == null ? null : pair.first());
+                writeNullableLong(out, pair == null ? null : pair.second());
+            }
+        }
+
+        @Override
+        public PingRoutingWithNwGroupsCommand decode(DataInput in) throws IOException {
+            PingRoutingWithNwGroupsCommand cmd = new PingRoutingWithNwGroupsCommand();
+            readPingRouting(cmd, in);
+            int size = BinaryCodecs.readSize(in);
+            if (size >= 0) {
+                cmd.newGroupStates = new HashMap<String, Pair<Long, Long>>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    String vmName = BinaryCodecs.readString(in);
+                    Long id = readNullableLong(in);
+                    cmd.newGroupStates.put(vmName, new Pair<Long, Long>(id, readNullableLong(in)));
+                }
+            }
+            return cmd;
+        }
+    }
+
+    protected static class PingAnswerCodec implements BinaryCodec<PingAnswer> {
+        @Override
+        public boolean canEncode(PingAnswer answer) {
+            return BinaryCodecs.canEncode(answer.getCommand());
+        }
+
+        @Override
+        public void encode(PingAnswer answer, DataOutput out) throws IOException {
+            BinaryCodecs.writeCommand(out, answer.getCommand());
+            writeAnswer(answer, out);
+        }
+
+        @Override
+        public PingAnswer decode(DataInput in) throws IOException {
+            Command cmd = BinaryCodecs.readCommand(in);
+            if (cmd != null && !(cmd instanceof PingCommand)) {
+                throw new IOException("PingAnswer carries a " + cmd.getClass().getName());
+            }
+            PingAnswer answer = new PingAnswer((PingCommand)cmd);
+            readAnswer(answer, in);
+            return answer;
+        }
+    }
+
+    protected static class GetVmStatsCodec implements BinaryCodec<GetVmStatsCommand> {
+        @Override
+        public boolean canEncode(GetVmStatsCommand cmd) {
+            return true;
+        }
+
+        @Override
+        public void encode(GetVmStatsCommand cmd, DataOutput out) throws IOException {
+            writeCommand(cmd, out);
+            BinaryCodecs.writeString(out, cmd.hostGuid);
+            BinaryCodecs.writeString(out, cmd.hostName);
+            if (cmd.vmNames == null) {
+                BinaryCodecs.writeSize(out, -1);
+                return;
+            }
+            BinaryCodecs.writeSize(out, cmd.vmNames.size());
+            for (String vmName : cmd.vmNames) {
+                BinaryCodecs.writeString(out, vmName);
+            }
+        }
+
+        @Override
+        public GetVmStatsCommand decode(DataInput in) throws IOException {
+            GetVmStatsCommand cmd = new GetVmStatsCommand();
+            readCommand(cmd, in);
+            cmd.hostGuid = BinaryCodecs.readString(in);
+            cmd.hostName = BinaryCodecs.readString(in);
+            int size = BinaryCodecs.readSize(in);
+            if (size >= 0) {
+                List<String> vmNames = new ArrayList<String>(size);
+                for (int i = 0; i < size; i++) {
+                    vmNames.add(BinaryCodecs.readString(in));
+                }
+                cmd.vmNames = vmNames;
+            }
+            return cmd;
+        }
+    }
+
+    protected static class GetVmStatsAnswerCodec implements BinaryCodec<GetVmStatsAnswer> {
+        @Override
+        public boolean canEncode(GetVmStatsAnswer answer) {
+            return true;
+        }
+
+        @Override
+        public void encode(GetVmStatsAnswer answer, DataOutput out) throws IOException {
+            writeAnswer(answer, out);
+            if (answer.vmStatsMap == null) {
+                BinaryCodecs.writeSize(out, -1);
+                return;
+            }
+            BinaryCodecs.writeSize(out, answer.vmStatsMap.size());
+            for (Map.Entry<String, VmStatsEntry> entry : answer.vmStatsMap.entrySet()) {
+                BinaryCodecs.writeString(out, entry.getKey());
+                VmStatsEntry stats = entry.getValue();
+                out.writeBoolean(stats != null);
+                if (stats != null) {
+                    out.writeDouble(stats.cpuUtilization);
+                    out.writeDouble(stats.networkReadKBs);
+                    out.writeDouble(stats.networkWriteKBs);
+                    BinaryCodecs.writeVarLong(out, stats.numCPUs);
+                    BinaryCodecs.writeString(out, stats.entityType);
+                }
+            }
+        }
+
+        @Override
+        public GetVmStatsAnswer decode(DataInput in) throws IOException {
+            GetVmStatsAnswer answer = new GetVmStatsAnswer();
+            readAnswer(answer, in);
+            int size = BinaryCodecs.readSize(in);
+            if (size >= 0) {
+                answer.vmStatsMap = new HashMap<String, VmStatsEntry>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    String vmName = BinaryCodecs.readString(in);
+                    VmStatsEntry stats = null;
+                    if (in.readBoolean()) {
+                        stats = new VmStatsEntry();
+                        stats.cpuUtilization = in.readDouble();
+                        stats.networkReadKBs = in.readDouble();
+                        stats.networkWriteKBs = in.readDouble();
+                        stats.numCPUs = (int)BinaryCodecs.readVarLong(in);
+                        stats.entityType = BinaryCodecs.readString(in);
+                    }
+                    answer.vmStatsMap.put(vmName, stats);
+                }
+            }
+            return answer;
+        }
+    }
+}
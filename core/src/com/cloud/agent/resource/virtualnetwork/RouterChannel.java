@@ -0,0 +1,369 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.script.OutputInterpreter;
+import com.cloud.utils.script.Script;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.Session;
+
+/**
+ * RouterChannel is a long lived control channel to a virtual router, an ssh connection that is
+ * authenticated once and runs each router script in a session of its own.  The sessions are
+ * multiplexed over the connection, so a command neither forks router_proxy.sh nor pays for an
+ * ssh handshake, and the commands for a router can run side by side.
+ *
+ * A connection that sat idle is pinged before it is used again, a router that rebooted or went
+ * away is connected to again.  A command the channel couldn't send throws an IOException and
+ * the caller can still run it through router_proxy.sh.
+ */
+public class RouterChannel {
+    private static final Logger s_logger = Logger.getLogger(RouterChannel.class);
+
+    static final String SCRIPTS_DIR = "/opt/cloud/bin/";
+
+    // a router that can't be reached is not tried again for a while, its commands go through router_proxy.sh
+    static final int CONNECT_TIMEOUT = 30000;
+    static final long RETRY_INTERVAL = 60000L;
+    // a connection that sat idle may lead to a router that is gone, opening a session on it would hang, so it is pinged first
+    static final long KEEPALIVE_INTERVAL = 60000L;
+    // routers that went away leave their channels behind, they are closed once unused this long
+    static final long MAX_IDLE = 1800000L;
+
+    // Connection.ping() waits for the router without a timeout, it is bounded by running it here
+    private static final ExecutorService s_pinger = Executors.newCachedThreadPool(new NamedThreadFactory("RouterChannel-Ping"));
+
+    private final String _routerIp;
+    private final int _port;
+    private final File _keyFile;
+    private final int _timeout;
+
+    private Connection _conn;
+    private volatile long _lastUsed = now();
+    private final AtomicInteger _busy = new AtomicInteger();
+    private long _failedAt;
+    private boolean _connecting;
+    private boolean _closed;
+
+    public RouterChannel(String routerIp, int port, File keyFile, int timeout) {
+        _routerIp = routerIp;
+        _port = port;
+        _keyFile = keyFile;
+        _timeout = timeout;
+    }
+
+    public String getRouterIp() {
+        return _routerIp;
+    }
+
+    public boolean isIdle(long now) {
+        return _busy.get() == 0 && now - _lastUsed > MAX_IDLE;
+    }
+
+    /**
+     * Runs a script of the router the way Script.execute() runs router_proxy.sh.
+     *
+     * @return null if the script succeeded and the interpreter found no error, the error otherwise
+     * @throws IOException if the command couldn't be sent to the router
+     */
+    public String execute(String script, String args, OutputInterpreter interpreter) throws IOException {
+        String command = SCRIPTS_DIR + script + (args == null ? "" : " " + args);
+        _busy.incrementAndGet();
+        try {
+            return execute(command, interpreter);
+        } finally {
+            _lastUsed = now();
+            _busy.decrementAndGet();
+        }
+    }
+
+    private String execute(String command, OutputInterpreter interpreter) throws IOException {
+        Connection conn = getConnection();
+        Session sess;
+        try {
+            sess = conn.openSession();
+        } catch (IOException e) {
+            // the connection went stale, the router may have rebooted since
+            reset(conn);
+            conn = getConnection();
+            sess = conn.openSession();
+        }
+
+        try {
+            sess.execCommand(command);
+        } catch (IOException e) {
+            // the command wasn't sent, the caller can run it through router_proxy.sh
+            sess.close();
+            reset(conn);
+            throw e;
+        }
+
+        try {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Executing on router " + _routerIp + ": " + command);
+            }
+
+            StringBuilder output = new StringBuilder();
+            Integer exitStatus = waitForExit(sess, output);
+            if (exitStatus == null) {
+                s_logger.warn("Timed out: " + command + " on router " + _routerIp + ".  Output is: " + output);
+                return Script.ERR_TIMEOUT;
+            }
+
+            BufferedReader reader = new BufferedReader(new StringReader(output.toString()));
+            if (exitStatus.intValue() == 0) {
+                return interpreter.interpret(reader);
+            }
+            s_logger.debug("Exit value of " + command + " on router " + _routerIp + " is " + exitStatus);
+            return interpreter.processError(reader);
+        } catch (IOException e) {
+            // the command was sent, running it again could apply it twice
+            s_logger.warn("Lost the channel to router " + _routerIp + " while executing " + command, e);
+            reset(conn);
+            return "Lost the channel to router " + _routerIp + ": " + e.getMessage();
+        } finally {
+            sess.close();
+        }
+    }
+
+    /**
+     * Copies a file to the router over the channel.
+     */
+    public void put(byte[] data, String fileName, String directory) throws IOException {
+        _busy.incrementAndGet();
+        try {
+            Connection conn = getConnection();
+            try {
+                new SCPClient(conn).put(data, fileName, directory);
+            } catch (IOException e) {
+                reset(conn);
+                throw e;
+            }
+        } finally {
+            _lastUsed = now();
+            _busy.decrementAndGet();
+        }
+    }
+
+    public synchronized void close() {
+        _closed = true;
+        if (_conn != null) {
+            _conn.close();
+            _conn = null;
+        }
+    }
+
+    /**
+     * The ping and the connect run outside the lock, they can take as long as CONNECT_TIMEOUT.
+     * Commands that come meanwhile don't wait for them, they throw and go through router_proxy.sh.
+     */
+    private Connection getConnection() throws IOException {
+        Connection conn;
+        synchronized (this) {
+            if (_closed) {
+                throw new IOException("The channel to router " + _routerIp + " is closed");
+            }
+            if (_connecting) {
+                throw new IOException("The channel to router " + _routerIp + " is being checked");
+            }
+            conn = _conn;
+            // other commands running on it keep the connection
+            if (conn != null && (_busy.get() > 1 || now() - _lastUsed <= KEEPALIVE_INTERVAL)) {
+                return conn;
+            }
+            if (conn == null && now() - _failedAt < RETRY_INTERVAL) {
+                throw new IOException("The channel to router " + _routerIp + " failed to open lately");
+            }
+            _connecting = true;
+        }
+
+        try {
+            if (conn != null) {
+                if (ping(conn)) {
+                    return conn;
+                }
+                synchronized (this) {
+                    if (now() - _failedAt < RETRY_INTERVAL) {
+                        throw new IOException("The router " + _routerIp + " didn't answer on the channel");
+                    }
+                }
+            }
+
+            try {
+                conn = connect();
+            } catch (IOException e) {
+                synchronized (this) {
+                    _failedAt = now();
+                }
+                throw e;
+            }
+            final Connection opened = conn;
+            opened.addConnectionMonitor(new ConnectionMonitor() {
+                @Override
+                public void connectionLost(Throwable reason) {
+                    reset(opened);
+                }
+            });
+
+            synchronized (this) {
+                if (_closed) {
+                    opened.close();
+                    throw new IOException("The channel to router " + _routerIp + " is closed");
+                }
+                _conn = opened;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Opened the channel to router " + _routerIp);
+            }
+            return opened;
+        } finally {
+            synchronized (this) {
+                _connecting = false;
+            }
+        }
+    }
+
+    /**
+     * Opens and authenticates a connection to the router.
+     */
+    Connection connect() throws IOException {
+        Connection conn = new Connection(_routerIp, _port);
+        try {
+            conn.connect(null, CONNECT_TIMEOUT, CONNECT_TIMEOUT);
+            if (!conn.authenticateWithPublicKey("root", _keyFile, null)) {
+                throw new IOException("Failed to authenticate to router " + _routerIp);
+            }
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    long pingTimeout() {
+        return CONNECT_TIMEOUT;
+    }
+
+    /**
+     * Checks that the router still answers on a connection that sat idle, and drops the
+     * connection if it doesn't.  A router that doesn't answer in time isn't connected to
+     * again for a while.
+     */
+    private boolean ping(final Connection conn) {
+        Future<Void> ping = s_pinger.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                conn.ping();
+                return null;
+            }
+        });
+        try {
+            ping.get(pingTimeout(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            // the ping holds the connection until the router's socket times out, it is closed after that
+            s_logger.debug("Router " + _routerIp + " didn't answer the ping on the channel");
+            synchronized (this) {
+                if (_conn == conn) {
+                    _conn = null;
+                }
+                _failedAt = now();
+            }
+            s_pinger.execute(new Runnable() {
+                @Override
+                public void run() {
+                    conn.close();
+                }
+            });
+        } catch (ExecutionException e) {
+            s_logger.debug("Unable to ping router " + _routerIp + " on the channel: " + e.getCause().getMessage());
+            reset(conn);
+        } catch (InterruptedException e) {
+            reset(conn);
+        }
+        return false;
+    }
+
+    private synchronized void reset(Connection conn) {
+        if (_conn == conn) {
+            _conn = null;
+            conn.close();
+        }
+    }
+
+    /**
+     * Reads the output of a command, stdout and stderr together as router_proxy.sh has them.
+     *
+     * @return the exit status, -1 if the router didn't tell, null if the command timed out
+     */
+    private Integer waitForExit(Session sess, StringBuilder output) throws IOException {
+        InputStream stdout = sess.getStdout();
+        InputStream stderr = sess.getStderr();
+        byte[] buffer = new byte[8192];
+        while (true) {
+            if (stdout.available() == 0 && stderr.available() == 0) {
+                int conditions = sess.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF, _timeout);
+                if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                    return null;
+                }
+                if ((conditions & ChannelCondition.EOF) != 0 && (conditions & (ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA)) == 0) {
+                    break;
+                }
+            }
+            while (stdout.available() > 0) {
+                int n = stdout.read(buffer);
+                output.append(new String(buffer, 0, n));
+            }
+            while (stderr.available() > 0) {
+                int n = stderr.read(buffer);
+                output.append(new String(buffer, 0, n));
+            }
+        }
+
+        // the exit status may come after the end of the output
+        int conditions = sess.waitForCondition(ChannelCondition.EXIT_STATUS | ChannelCondition.CLOSED, _timeout);
+        if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+            return null;
+        }
+        Integer exitStatus = sess.getExitStatus();
+        return exitStatus == null ? Integer.valueOf(-1) : exitStatus;
+    }
+}
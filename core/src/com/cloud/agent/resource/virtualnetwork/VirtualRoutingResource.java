@@ -31,6 +31,8 @@ import java.net.URLConnection;
 import java.nio.channels.SocketChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -50,6 +52,8 @@ import com.cloud.agent.api.GetDomRVersionCmd;
 import com.cloud.agent.api.proxy.CheckConsoleProxyLoadCommand;
 import com.cloud.agent.api.proxy.ConsoleProxyLoadAnswer;
 import com.cloud.agent.api.proxy.WatchConsoleProxyLoadCommand;
+import com.cloud.agent.api.routing.BatchConfigAnswer;
+import com.cloud.agent.api.routing.BatchConfigCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
 import com.cloud.agent.api.routing.IpAssocAnswer;
 import com.cloud.agent.api.routing.IpAssocCommand;
@@ -93,6 +97,7 @@ import com.cloud.utils.ssh.SshHelper;
 @Local(value={VirtualRoutingResource.class})
 public class VirtualRoutingResource implements Manager {
     private static final Logger s_logger = Logger.getLogger(VirtualRoutingResource.class);
+    private static final String ROUTER_KEY_FILE = "/root/.ssh/id_rsa.cloud";
     private String _savepasswordPath; 	// This script saves a random password to the DomR file system
     private String _publicIpAddress;
     private String _firewallPath;
@@ -111,6 +116,8 @@ public class VirtualRoutingResource implements Manager {
     private int _sleep;
     private int _retry;
     private int _port;
+    private boolean _useRouterChannel;
+    private final ConcurrentHashMap<String, RouterChannel> _routerChannels = new ConcurrentHashMap<String, RouterChannel>();
 
     public Answer executeRequest(final Command cmd) {
         try {
@@ -136,6 +143,8 @@ public class VirtualRoutingResource implements Manager {
                 return execute((DhcpEntryCommand)cmd);
             } else if (cmd instanceof VmDataCommand) {
                 return execute ((VmDataCommand)cmd);
+            } else if (cmd instanceof BatchConfigCommand) {
+                return execute((BatchConfigCommand)cmd);
             } else if (cmd instanceof CheckRouterCommand) {
                 return execute ((CheckRouterCommand)cmd);
             } else if (cmd instanceof SetFirewallRulesCommand) {
@@ -239,30 +248,15 @@ public class VirtualRoutingResource implements Manager {
 
     private Answer execute(SetPortForwardingRulesCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
-        String[] results = new String[cmd.getRules().length];
+        String[] config = new String[cmd.getRules().length];
         int i = 0;
-        boolean endResult = true;
         for (PortForwardingRuleTO rule : cmd.getRules()) {
-            String result = null;
-            final Script command = new Script(_firewallPath, _timeout, s_logger);
-
-            command.add(routerIp);
-            command.add(rule.revoked() ? "-D" : "-A");
-            command.add("-P ", rule.getProtocol().toLowerCase());
-            command.add("-l ", rule.getSrcIp());
-            command.add("-p ", rule.getStringSrcPortRange());
-            command.add("-r ", rule.getDstIp());
-            command.add("-d ", rule.getStringDstPortRange());
-            result = command.execute();
-            if (result == null) {
-                results[i++] = null;
-            } else {
-                results[i++] = "Failed";
-                endResult = false;
-            }
+            config[i++] = "firewall " + (rule.revoked() ? "-D" : "-A") + " -P " + rule.getProtocol().toLowerCase() + " -l " + rule.getSrcIp()
+                    + " -p " + rule.getStringSrcPortRange() + " -r " + rule.getDstIp() + " -d " + rule.getStringDstPortRange();
         }
 
-        return new SetPortForwardingRulesAnswer(cmd, results, endResult);
+        String[] results = applyFirewallConfig(routerIp, config);
+        return new SetPortForwardingRulesAnswer(cmd, results, isSuccess(results));
     }
 
     protected Answer SetVPCStaticNatRules(SetStaticNatRulesCommand cmd) {
@@ -294,36 +288,131 @@ public class VirtualRoutingResource implements Manager {
             return SetVPCStaticNatRules(cmd);
         }
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
-        String[] results = new String[cmd.getRules().length];
+        String[] config = new String[cmd.getRules().length];
         int i = 0;
-        boolean endResult = true;
         for (StaticNatRuleTO rule : cmd.getRules()) {
-            String result = null;
-            final Script command = new Script(_firewallPath, _timeout, s_logger);
-            command.add(routerIp);
-            command.add(rule.revoked() ? "-D" : "-A");
-            
             //1:1 NAT needs instanceip;publicip;domrip;op
-            command.add(" -l ", rule.getSrcIp());
-            command.add(" -r ", rule.getDstIp());
-            
+            String args = (rule.revoked() ? "-D" : "-A") + " -l " + rule.getSrcIp() + " -r " + rule.getDstIp();
             if (rule.getProtocol() != null) { 
-                command.add(" -P ", rule.getProtocol().toLowerCase());
+                args += " -P " + rule.getProtocol().toLowerCase();
             }
-            
-            command.add(" -d ", rule.getStringSrcPortRange());
-            command.add(" -G ") ;
-            
-            result = command.execute();
-            if (result == null) {
-                results[i++] = null;
-            } else {
-                results[i++] = "Failed";
-                endResult = false;
+            config[i++] = "firewall " + args + " -d " + rule.getStringSrcPortRange() + " -G";
+        }
+
+        String[] results = applyFirewallConfig(routerIp, config);
+        return new SetStaticNatRulesAnswer(cmd, results, isSuccess(results));
+    }
+
+    /**
+     * Applies the firewall.sh invocations of the rules with one run of batch_config.sh. Routers
+     * started from an older patch don't have batch_config.sh, for them the rules are applied one
+     * at a time with call_firewall.sh as before.
+     */
+    private String[] applyFirewallConfig(String routerIp, String[] config) {
+        if (config.length == 0) {
+            return new String[0];
+        }
+        String output = null;
+        try {
+            output = applyBatchConfig(routerIp, config);
+        } catch (Exception e) {
+            // some of the rules may be in, applying them again would add them twice
+            s_logger.warn("Unable to apply " + config.length + " firewall rules on router " + routerIp + ": " + e.getMessage());
+            return BatchConfigAnswer.parseResults(config.length, null);
+        }
+        if (output != null) {
+            return BatchConfigAnswer.parseResults(config.length, output);
+        }
+        s_logger.info("Router " + routerIp + " has no " + BatchConfigCommand.SCRIPT + ", applying the firewall rules one at a time");
+
+        String[] results = new String[config.length];
+        for (int i = 0; i < config.length; i++) {
+            final Script command = new Script(_firewallPath, _timeout, s_logger);
+            command.add(routerIp);
+            String[] args = config[i].split(" ");
+            for (int j = 1; j < args.length; j++) {
+                command.add(args[j]);
             }
+            results[i] = command.execute() == null ? null : "Failed";
         }
+        return results;
+    }
 
-        return new SetStaticNatRulesAnswer(cmd, results, endResult);
+    private static boolean isSuccess(String[] results) {
+        for (String result : results) {
+            if (result != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected Answer execute(BatchConfigCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        String[] config = cmd.generateConfig();
+        String output = null;
+        try {
+            output = applyBatchConfig(routerIp, config);
+        } catch (Exception e) {
+            s_logger.warn("Unable to apply " + config.length + " configuration entries on router " + routerIp, e);
+            return new Answer(cmd, e);
+        }
+        if (output != null) {
+            return new BatchConfigAnswer(cmd, config, output);
+        }
+
+        s_logger.info("Router " + routerIp + " has no " + BatchConfigCommand.SCRIPT + ", applying " + config.length + " configuration entries one at a time");
+        NetworkElementCommand[] entries = cmd.getEntryCommands();
+        Answer[] answers = new Answer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            answers[i] = executeRequest(entries[i]);
+        }
+        return new BatchConfigAnswer(cmd, answers);
+    }
+
+    /**
+     * Copies a batch of configuration entries to the router and applies them with one run of
+     * batch_config.sh, instead of a run of router_proxy.sh for each of them.
+     *
+     * @return output of the script, the exit status of each entry, or null if the batch never ran as
+     *         the file couldn't be copied or the router has no batch_config.sh, and the entries can
+     *         be applied one at a time
+     * @throws InternalErrorException if the script was sent but failed or timed out, some entries may be applied
+     */
+    protected String applyBatchConfig(String routerIp, String[] config) throws InternalErrorException {
+        String cfgFileName = "batch_config_" + UUID.randomUUID().toString();
+        try {
+            copyToRouter(routerIp, BatchConfigCommand.toFile(config).getBytes(), cfgFileName);
+        } catch (Exception e) {
+            s_logger.info("Unable to copy " + cfgFileName + " to router " + routerIp + ": " + e.getMessage());
+            return null;
+        }
+
+        final OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+        String result = routerProxy(BatchConfigCommand.SCRIPT, routerIp, "/tmp/" + cfgFileName, parser);
+        if (result != null) {
+            // batch_config.sh always exits 0 once it runs
+            if (result.contains("/" + BatchConfigCommand.SCRIPT + ": No such file or directory")) {
+                return null;
+            }
+            throw new InternalErrorException("Failed to run " + BatchConfigCommand.SCRIPT + " on router " + routerIp + ": " + result);
+        }
+        String output = parser.getLines();
+        return output != null ? output : "";
+    }
+
+    protected void copyToRouter(String routerIp, byte[] data, String fileName) throws Exception {
+        RouterChannel channel = getRouterChannel(routerIp);
+        if (channel != null) {
+            try {
+                channel.put(data, fileName, "/tmp");
+                return;
+            } catch (IOException e) {
+                s_logger.debug("Unable to copy " + fileName + " over the channel to router " + routerIp + ": " + e.getMessage());
+            }
+        }
+        File permKey = new File(ROUTER_KEY_FILE);
+        SshHelper.scpTo(routerIp, _port, "root", permKey, null, "/tmp", data, fileName, null);
     }
     
     protected Answer VPCLoadBalancerConfig(final LoadBalancerConfigCommand cmd) {
@@ -594,14 +683,8 @@ public class VirtualRoutingResource implements Manager {
     
     
     public String routerProxyWithParser(String script, String routerIP, String args) {
-        final Script command  = new Script(_routerProxyPath, _timeout, s_logger);
         final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-        command.add(script);
-        command.add(routerIP);
-        if ( args != null ) {
-            command.add(args);
-        }
-        String result = command.execute(parser);
+        String result = routerProxy(script, routerIP, args, parser);
         if (result == null) {
             return parser.getLine();
         }
@@ -624,13 +707,56 @@ public class VirtualRoutingResource implements Manager {
     }
     
     public String routerProxy(String script, String routerIP, String args) {
+        return routerProxy(script, routerIP, args, new OutputInterpreter.OutputLogger(s_logger));
+    }
+
+    /**
+     * Runs a script of the router over its control channel, or through router_proxy.sh when
+     * the channel is off or couldn't send the command.
+     *
+     * @return null on success, the error otherwise, as Script.execute() does
+     */
+    protected String routerProxy(String script, String routerIP, String args, OutputInterpreter interpreter) {
+        RouterChannel channel = getRouterChannel(routerIP);
+        if (channel != null) {
+            try {
+                return channel.execute(script, args, interpreter);
+            } catch (IOException e) {
+                s_logger.debug("Unable to run " + script + " over the channel to router " + routerIP + ", falling back to ssh: " + e.getMessage());
+            }
+        }
+
         final Script command  = new Script(_routerProxyPath, _timeout, s_logger);
         command.add(script);
         command.add(routerIP);
         if ( args != null ) {
             command.add(args);
         }
-        return command.execute();
+        return command.execute(interpreter);
+    }
+
+    protected RouterChannel getRouterChannel(String routerIP) {
+        if (!_useRouterChannel || routerIP == null) {
+            return null;
+        }
+
+        // routers that went away leave their channels behind, close the ones nobody used lately
+        long now = System.currentTimeMillis();
+        for (RouterChannel channel : _routerChannels.values()) {
+            if (channel.isIdle(now) && _routerChannels.remove(channel.getRouterIp(), channel)) {
+                channel.close();
+            }
+        }
+
+        RouterChannel channel = _routerChannels.get(routerIP);
+        if (channel == null) {
+            channel = new RouterChannel(routerIP, _port, new File(ROUTER_KEY_FILE), _timeout);
+            RouterChannel existing = _routerChannels.putIfAbsent(routerIP, channel);
+            if (existing != null) {
+                channel = existing;
+            }
+        }
+        return channel;
     }
 
     protected Answer execute(CheckRouterCommand cmd) {
@@ -1052,6 +1178,9 @@ public class VirtualRoutingResource implements Manager {
         value = (String)params.get("ssh.port");
         _port = NumbersUtil.parseInt(value, 3922);
 
+        value = (String)params.get("router.channel");
+        _useRouterChannel = !"false".equalsIgnoreCase(value);
+
         _publicIpAddress = (String)params.get("public.ip.address");
         if (_publicIpAddress != null) {
             s_logger.warn("Incoming public ip address is overriden.  Will always be using the same ip address: " + _publicIpAddress);
@@ -1164,6 +1293,10 @@ public class VirtualRoutingResource implements Manager {
 
     @Override
     public boolean stop() {
+        for (RouterChannel channel : _routerChannels.values()) {
+            channel.close();
+        }
+        _routerChannels.clear();
         return true;
     }
 
@@ -0,0 +1,42 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.cloud.agent.api.Command;
+
+/**
+ * BinaryCodec marshalls one concrete Command or Answer class to and from the
+ * compact binary wire format.  Codecs are registered in BinaryCodecs and are
+ * only used when both ends of the link have advertised that they can parse
+ * the binary format; everything else keeps going through Gson.
+ */
+public interface BinaryCodec<T extends Command> {
+    /**
+     * @param cmd command to be encoded.
+     * @return true if this codec is able to encode everything in the command.
+     *         Returning false makes the whole request fall back to Gson.
+     */
+    boolean canEncode(T cmd);
+
+    void encode(T cmd, DataOutput out) throws IOException;
+
+    T decode(DataInput in) throws IOException;
+}
@@ -0,0 +1,295 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.CommandCodecs;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.exception.UnsupportedVersionException;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * BinaryCodecs is the registry of codecs for the binary wire format.
+ *
+ * The binary data package looks as follows:
+ * 1. Schema - 1 byte;
+ * 2. Number of commands - variable length, see writeSize();
+ * 3. For each command, the codec id (2 bytes) followed by the codec data.
+ *
+ * Codec ids are part of the wire protocol.  Never reuse or renumber an id;
+ * if the layout of a command has to change, register a new codec under a
+ * new id or bump SCHEMA.
+ */
+public class BinaryCodecs {
+    public static final byte SCHEMA = 1;
+
+    private static final Map<Class<?>, Short> s_ids = new HashMap<Class<?>, Short>();
+    private static final Map<Short, BinaryCodec<? extends Command>> s_codecs = new HashMap<Short, BinaryCodec<? extends Command>>();
+
+    static {
+        register((short)1, Answer.class, CommandCodecs.ANSWER);
+        register((short)2, PingCommand.class, CommandCodecs.PING);
+        register((short)3, PingRoutingCommand.class, CommandCodecs.PING_ROUTING);
+        register((short)4, PingRoutingWithNwGroupsCommand.class, CommandCodecs.PING_ROUTING_WITH_NW_GROUPS);
+        register((short)5, PingAnswer.class, CommandCodecs.PING_ANSWER);
+        register((short)6, GetVmStatsCommand.class, CommandCodecs.GET_VM_STATS);
+        register((short)7, GetVmStatsAnswer.class, CommandCodecs.GET_VM_STATS_ANSWER);
+    }
+
+    protected static synchronized <T extends Command> void register(short id, Class<T> clazz, BinaryCodec<T> codec) {
+        assert !s_codecs.containsKey(id) : "Codec id " + id + " is already taken by " + s_codecs.get(id);
+        s_ids.put(clazz, id);
+        s_codecs.put(id, codec);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static BinaryCodec<Command> getCodec(Command cmd) {
+        Short id = s_ids.get(cmd.getClass());
+        return id == null ? null : (BinaryCodec<Command>)s_codecs.get(id);
+    }
+
+    /**
+     * @return true if every command has a codec registered for its exact class.
+     */
+    public static boolean canEncode(Command[] cmds) {
+        if (cmds == null || cmds.length == 0) {
+            return false;
+        }
+        for (Command cmd : cmds) {
+            if (!canEncode(cmd)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean canEncode(Command cmd) {
+        if (cmd == null) {
+            return true;
+        }
+        BinaryCodec<Command> codec = getCodec(cmd);
+        return codec != null && codec.canEncode(cmd);
+    }
+
+    /**
+     * Encodes the commands into the binary data package.
+     *
+     * @return the encoded bytes or null if one of the commands can not be
+     *         encoded, in which case the caller should use Gson.
+     */
+    public static byte[] encode(Command[] cmds) {
+        if (!canEncode(cmds)) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * cmds.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(SCHEMA);
+            writeSize(out, cmds.length);
+            for (Command cmd : cmds) {
+                writeCommand(out, cmd);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to encode " + cmds[0], e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the binary data package starting at the current position of
+     * the buffer.
+     *
+     * @param buff buffer containing the data package.
+     * @param answers true if the package carries answers.
+     */
+    public static Command[] decode(ByteBuffer buff, boolean answers) throws UnsupportedVersionException {
+        byte[] array;
+        int offset;
+        if (buff.hasArray()) {
+            array = buff.array();
+            offset = buff.arrayOffset() + buff.position();
+        } else {
+            array = new byte[buff.remaining()];
+            buff.get(array);
+            offset = 0;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(array, offset, array.length - offset));
+        try {
+            byte schema = in.readByte();
+            if (schema != SCHEMA) {
+                throw new UnsupportedVersionException("Unsupported binary schema: " + schema, UnsupportedVersionException.IncompatibleVersion);
+            }
+            int count = readSize(in);
+            Command[] cmds = answers ? new Answer[count] : new Command[count];
+            for (int i = 0; i < count; i++) {
+                cmds[i] = readCommand(in);
+            }
+            return cmds;
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to decode the binary data package", e);
+        }
+    }
+
+    /**
+     * Writes a nullable command, prefixed by its codec id, so codecs can embed
+     * other commands.
+     */
+    public static void writeCommand(DataOutput out, Command cmd) throws IOException {
+        if (cmd == null) {
+            out.writeShort(0);
+            return;
+        }
+        BinaryCodec<Command> codec = getCodec(cmd);
+        if (codec == null) {
+            throw new IOException("No binary codec for " + cmd.getClass().getName());
+        }
+        out.writeShort(s_ids.get(cmd.getClass()));
+        codec.encode(cmd, out);
+    }
+
+    public static Command readCommand(DataInput in) throws IOException {
+        short id = in.readShort();
+        if (id == 0) {
+            return null;
+        }
+        BinaryCodec<? extends Command> codec = s_codecs.get(id);
+        if (codec == null) {
+            throw new IOException("Unknown binary codec: " + id);
+        }
+        return codec.decode(in);
+    }
+
+    /**
+     * Writes a non-negative number in as few bytes as possible; seven bits
+     * per byte with the high bit set on every byte but the last.
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    /**
+     * Writes the size of a nullable collection or string: 0 for null and
+     * size + 1 otherwise.
+     */
+    public static void writeSize(DataOutput out, int size) throws IOException {
+        writeVarLong(out, size + 1L);
+    }
+
+    /**
+     * @return size of the collection or string, -1 if it was null.
+     */
+    public static int readSize(DataInput in) throws IOException {
+        long size = readVarLong(in) - 1;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Size is too large: " + size);
+        }
+        return (int)size;
+    }
+
+    /**
+     * Writes a nullable string.  DataOutput.writeUTF() is not used because it
+     * is limited to 64k and answer details can carry whole stack traces.
+     */
+    public static void writeString(DataOutput out, String str) throws IOException {
+        if (str == null) {
+            writeSize(out, -1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        writeSize(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int len = readSize(in);
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    public static void writeStringMap(DataOutput out, Map<String, String> map) throws IOException {
+        if (map == null) {
+            writeSize(out, -1);
+            return;
+        }
+        writeSize(out, map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    public static HashMap<String, String> readStringMap(DataInput in) throws IOException {
+        int size = readSize(in);
+        if (size < 0) {
+            return null;
+        }
+        HashMap<String, String> map = new HashMap<String, String>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, readString(in));
+        }
+        return map;
+    }
+
+    public static <E extends Enum<E>> void writeEnum(DataOutput out, E value) throws IOException {
+        writeString(out, value == null ? null : value.name());
+    }
+
+    public static <E extends Enum<E>> E readEnum(DataInput in, Class<E> clazz) throws IOException {
+        String name = readString(in);
+        return name == null ? null : Enum.valueOf(clazz, name);
+    }
+}
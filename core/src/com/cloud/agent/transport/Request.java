@@ -59,13 +59,19 @@ import com.google.gson.stream.JsonReader;
  * 
  * A request looks as follows:
  * 1. Version - 1 byte;
- * 2. Flags - 3 bytes;
- * 3. Sequence - 8 bytes;
- * 4. Length - 4 bytes;
- * 5. ManagementServerId - 8 bytes;
- * 6. AgentId - 8 bytes;
- * 7. Data Package.
+ * 2. Encoding - 1 byte;
+ * 3. Flags - 2 bytes;
+ * 4. Sequence - 8 bytes;
+ * 5. Length - 4 bytes;
+ * 6. ManagementServerId - 8 bytes;
+ * 7. AgentId - 8 bytes;
+ * 8. Data Package.
  * 
+ * The encoding byte used to be reserved and is ignored by older peers.  It
+ * says whether the data package is in the binary format (see BinaryCodecs)
+ * and whether the sender is able to parse the binary format.  A sender only
+ * uses the binary format once the peer has advertised it, so Gson remains
+ * the format spoken with older agents and management servers.
  */
 public class Request {
     private static final Logger s_logger = Logger.getLogger(Request.class);
@@ -97,6 +103,10 @@ public class Request {
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
 
+    protected static final byte        ENCODING_BINARY      = 0x1;
+    protected static final byte        ENCODING_ACCEPTS_BINARY = 0x2;
+
+    private static volatile boolean s_binaryEnabled = Boolean.parseBoolean(System.getProperty("agent.binary.wire.format", "true"));
 
     protected Version   _ver;
     protected long      _session;
@@ -107,6 +117,8 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected boolean   _binary;
+    protected boolean   _peerAcceptsBinary;
     
     protected Request() {
     }
@@ -159,6 +171,7 @@ public class Request {
 
     protected Request(final Request that, final Command[] cmds) {
         this._ver = that._ver;
+        this._binary = that._peerAcceptsBinary;
         this._seq = that._seq;
         setInSequence(that.executeInSequence());
         setStopOnError(that.stopOnError());
@@ -201,6 +214,34 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Asks for the binary format to be used when this request is serialized.
+     * It's ignored if any of the commands doesn't have a binary codec.  Only
+     * set this when the peer is known to accept the binary format.
+     */
+    public void setBinaryEncoding(boolean binary) {
+        _binary = binary;
+    }
+
+    public boolean isBinaryEncoding() {
+        return _binary;
+    }
+
+    /**
+     * @return true if the sender of this request said it can parse the binary format.
+     */
+    public boolean peerAcceptsBinary() {
+        return _peerAcceptsBinary;
+    }
+
+    public static boolean isBinaryEncodingEnabled() {
+        return s_binaryEnabled;
+    }
+
+    public static void setBinaryEncodingEnabled(boolean enabled) {
+        s_binaryEnabled = enabled;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -248,7 +289,7 @@ public class Request {
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
-        buffer.put((byte) 0);
+        buffer.put(getEncodingInByte());
         buffer.putShort(getFlags());
         buffer.putLong(_seq);
         // The size here is uncompressed size, if the data is compressed.
@@ -312,10 +353,18 @@ public class Request {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
         
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        byte[] data = null;
+        if (_content == null && _binary && s_binaryEnabled) {
+            data = BinaryCodecs.encode(_cmds);
+        }
+        if (data == null) {
+            _binary = false;
+            if (_content == null) {
+                _content = s_gson.toJson(_cmds, _cmds.getClass());
+            }
+            data = _content.getBytes();
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
+        tmp = ByteBuffer.wrap(data);
         int capacity = tmp.capacity();
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
@@ -342,6 +391,17 @@ public class Request {
         return (byte) _ver.ordinal();
     }
 
+    protected byte getEncodingInByte() {
+        byte encoding = 0;
+        if (_binary) {
+            encoding |= ENCODING_BINARY;
+        }
+        if (s_binaryEnabled) {
+            encoding |= ENCODING_ACCEPTS_BINARY;
+        }
+        return encoding;
+    }
+
     protected short getFlags() {
         return (short) (((this instanceof Response) ? FLAG_RESPONSE : FLAG_REQUEST) | _flags);
     }
@@ -423,6 +483,9 @@ public class Request {
         buf.append(" { ").append(getType());
         buf.append(", MgmtId: ").append(_mgmtId).append(", via: ").append(_via);
         buf.append(", Ver: ").append(_ver.toString());
+        if (_binary) {
+            buf.append(", Binary");
+        }
         buf.append(", Flags: ").append(Integer.toBinaryString(getFlags())).append(", ");
         buf.append(content);
         buf.append(" }");
@@ -447,7 +510,7 @@ public class Request {
         if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
-        final byte reserved = buff.get(); // tossed away for now.
+        final byte encoding = buff.get();
         final short flags = buff.getShort();
         final boolean isRequest = (flags & FLAG_REQUEST) > 0;
 
@@ -467,7 +530,20 @@ public class Request {
         if ((flags & FLAG_COMPRESSED) != 0) {
             buff = doDecompress(buff, size);
         }
-        
+
+        Request request;
+        if ((encoding & ENCODING_BINARY) != 0) {
+            final Command[] cmds = BinaryCodecs.decode(buff, !isRequest);
+            if (isRequest) {
+                request = new Request(version, seq, agentId, mgmtId, via, flags, cmds);
+            } else {
+                request = new Response(version, seq, agentId, mgmtId, via, flags, (Answer[])cmds);
+            }
+            request._binary = true;
+            request._peerAcceptsBinary = (encoding & ENCODING_ACCEPTS_BINARY) != 0;
+            return request;
+        }
+
         byte[] command = null;
         int offset = 0;
         if (buff.hasArray()) {
@@ -482,10 +558,12 @@ public class Request {
         final String content = new String(command, offset, command.length - offset);
 
         if (isRequest) {
-            return new Request(version, seq, agentId, mgmtId, via, flags, content);
+            request = new Request(version, seq, agentId, mgmtId, via, flags, content);
         } else {
-            return new Response(Version.get(ver), seq, agentId, mgmtId, via, flags, content);
+            request = new Response(Version.get(ver), seq, agentId, mgmtId, via, flags, content);
         }
+        request._peerAcceptsBinary = (encoding & ENCODING_ACCEPTS_BINARY) != 0;
+        return request;
     }
 
     public long getAgentId() {
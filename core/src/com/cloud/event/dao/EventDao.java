@@ -27,7 +27,7 @@ import com.cloud.utils.db.SearchCriteria;
 public interface EventDao extends GenericDao<EventVO, Long> {
     public List<EventVO> searchAllEvents(SearchCriteria<EventVO> sc, Filter filter);
 
-    public List<EventVO> listOlderEvents(Date oldTime);
+    public List<EventVO> listOlderEvents(Date oldTime, Filter filter);
 
     EventVO findCompletedEvent(long startId);
 }
@@ -48,11 +48,11 @@ public class EventDaoImpl extends GenericDaoBase<EventVO, Long> implements Event
 	}
 
     @Override
-    public List<EventVO> listOlderEvents(Date oldTime) {
+    public List<EventVO> listOlderEvents(Date oldTime, Filter filter) {
         if (oldTime == null) return null;
         SearchCriteria<EventVO> sc = createSearchCriteria();
         sc.addAnd("createDate", SearchCriteria.Op.LT, oldTime);
-        return listIncludingRemovedBy(sc, null);
+        return listIncludingRemovedBy(sc, filter);
         
     }
     
@@ -47,6 +47,9 @@ public class VmRulesetLogVO {
     
     @Column(name="logsequence")
     long logsequence;
+
+    @Column(name="ruleset_signature")
+    String rulesetSignature;
     
     protected VmRulesetLogVO() {
     	
@@ -76,5 +79,9 @@ public class VmRulesetLogVO {
 	public void incrLogsequence() {
 		logsequence++;
 	}
+
+	public String getRulesetSignature() {
+		return rulesetSignature;
+	}
     
 }
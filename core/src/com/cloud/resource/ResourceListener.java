@@ -31,8 +31,10 @@ public interface ResourceListener {
     static final Integer EVENT_CANCEL_MAINTENANCE_AFTER = 0x1 << 5;
     static final Integer EVENT_PREPARE_MAINTENANCE_BEFORE = 0x1 << 6;
     static final Integer EVENT_PREPARE_MAINTENANCE_AFTER = 0x1 << 7;
+    static final Integer EVENT_UPDATE_HOST_AFTER = 0x1 << 8;
     static final Integer EVENT_ALL = (EVENT_DISCOVER_BEFORE | EVENT_DISCOVER_AFTER | EVENT_DELETE_HOST_BEFORE | EVENT_DELETE_HOST_AFTER
-            | EVENT_CANCEL_MAINTENANCE_BEFORE | EVENT_CANCEL_MAINTENANCE_AFTER | EVENT_PREPARE_MAINTENANCE_BEFORE | EVENT_PREPARE_MAINTENANCE_AFTER);
+            | EVENT_CANCEL_MAINTENANCE_BEFORE | EVENT_CANCEL_MAINTENANCE_AFTER | EVENT_PREPARE_MAINTENANCE_BEFORE | EVENT_PREPARE_MAINTENANCE_AFTER
+            | EVENT_UPDATE_HOST_AFTER);
     
     /**
      * 
@@ -103,4 +105,12 @@ public interface ResourceListener {
      * Called after AgentManager.main
      */
     void processPrepareMaintenaceEventAfter(Long hostId);
+
+    /**
+     * 
+     * @param hostId
+     * 
+     * Called after the resource state, tags or guest os category of the host are changed
+     */
+    void processUpdateHostEventAfter(Long hostId);
 }
@@ -110,6 +110,7 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.S3Utils;
 import com.cloud.utils.S3Utils.FileNamingStrategy;
 import com.cloud.utils.S3Utils.ObjectNamingStrategy;
+import com.cloud.utils.S3Utils.TransferOptions;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
@@ -140,6 +141,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements
     
     DownloadManager _dlMgr;
     UploadManager _upldMgr;
+    TransferOptions _s3TransferOptions = TransferOptions.DEFAULT;
 	private String _configSslScr;
 	private String _configAuthScr;
 	private String _configIpFirewallScr;
@@ -260,7 +262,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements
                 return new Answer(cmd, false, errMsg);
             }
 
-            getDirectory(s3, s3.getBucketName(),
+            getDirectory(s3, _s3TransferOptions, s3.getBucketName(),
                     determineS3TemplateDirectory(accountId, templateId),
                     downloadDirectory, new FileNamingStrategy() {
                         @Override
@@ -394,7 +396,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements
             }
 
             final String bucket = s3.getBucketName();
-            putDirectory(s3, bucket, _storage.getFile(templatePath),
+            putDirectory(s3, _s3TransferOptions, bucket, _storage.getFile(templatePath),
                     new FilenameFilter() {
                         @Override
                         public boolean accept(final File directory,
@@ -697,7 +699,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements
                             final String key = determineSnapshotS3Key(
                                     accountId, volumeId, snapshotFileName);
                             final File targetFile = S3Utils.getFile(s3,
-                                    s3.getBucketName(), key,
+                                    _s3TransferOptions, s3.getBucketName(), key,
                                     _storage.getFile(directoryName),
                                     new FileNamingStrategy() {
 
@@ -1486,6 +1488,10 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements
         _params = params;
         String value = (String)params.get("scripts.timeout");
         _timeout = NumbersUtil.parseInt(value, 1440) * 1000;
+
+        long s3PartSize = NumbersUtil.parseLong((String)params.get("s3.transfer.part.size"), TransferOptions.DEFAULT.getPartSize());
+        int s3Concurrency = NumbersUtil.parseInt((String)params.get("s3.transfer.max.concurrency"), TransferOptions.DEFAULT.getMaxConcurrency());
+        _s3TransferOptions = new TransferOptions(s3PartSize, s3Concurrency);
         
         _storage = (StorageLayer)params.get(StorageLayer.InstanceConfigKey);
         if (_storage == null) {
@@ -18,10 +18,7 @@ package com.cloud.storage.template;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.MessageDigest;
@@ -225,6 +222,8 @@ public class DownloadManagerImpl implements DownloadManager {
     private String listVolScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
     private boolean _sslCopy;
+    private String _checksumAlgorithm = TemplateStreamVerifier.DEFAULT_ALGORITHM;
+    private int _bufferSize = TemplateDownloader.DEFAULT_BUFFER_SIZE;
 
     /**
      * Get notified of change of job status. Executed in context of downloader thread
@@ -280,33 +279,14 @@ public class DownloadManagerImpl implements DownloadManager {
     }
     
     private String computeCheckSum(File f) {
-    	byte[] buffer = new byte[8192];
-        int read = 0;
-        MessageDigest digest;
-        String checksum = null;        
-        InputStream is = null;
         try {
-            digest = MessageDigest.getInstance("MD5");           
-            is = new FileInputStream(f);     
-            while( (read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }       
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            checksum = String.format("%032x",bigInt);
-            return checksum;
-        }catch(IOException e) {
-        	return null;
-        }catch (NoSuchAlgorithmException e) {         
-        	return null;
-        }
-        finally {
-            try {
-            	if(is != null)
-            		is.close();
-            } catch (IOException e) {
-            	return null;
-            }                        
+            TemplateStreamVerifier verifier = new TemplateStreamVerifier(_checksumAlgorithm, null);
+            verifier.reset(f, f.length(), _bufferSize);
+            return verifier.getChecksum();
+        } catch (IOException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            return null;
         }
     }
 
@@ -335,7 +315,15 @@ public class DownloadManagerImpl implements DownloadManager {
         dnld.setTmpltPath(finalResourcePath);
 
         File originalTemplate = new File(td.getDownloadLocalPath());
-        String checkSum = computeCheckSum(originalTemplate);
+        // the checksum computed while downloading is good as long as it covered the whole file
+        String checkSum = null;
+        TemplateStreamVerifier verifier = td.getVerifier();
+        boolean verified = verifier != null && verifier.getLength() == originalTemplate.length();
+        if (verified) {
+            checkSum = verifier.getChecksum();
+        } else {
+            checkSum = computeCheckSum(originalTemplate);
+        }
         if (checkSum == null) {
             s_logger.warn("Something wrong happened when try to calculate the checksum of downloaded template!");
         }
@@ -371,7 +359,9 @@ public class DownloadManagerImpl implements DownloadManager {
 
         scr.add("-t", resourcePath);
         scr.add("-f", td.getDownloadLocalPath());
-        if (dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
+        // no need for the script to read the file again to verify a checksum computed from what was written,
+        // and the script only knows md5
+        if (!verified && "MD5".equalsIgnoreCase(_checksumAlgorithm) && dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
             scr.add("-c", dnld.getChecksum());
         }
         scr.add("-u"); // cleanup
@@ -497,6 +487,12 @@ public class DownloadManagerImpl implements DownloadManager {
             } else {
                 throw new CloudRuntimeException("Unable to download from URL: " + url);
             }
+            td.setBufferSize(_bufferSize);
+            try {
+                td.setVerifier(new TemplateStreamVerifier(_checksumAlgorithm, format));
+            } catch (NoSuchAlgorithmException e) {
+                s_logger.warn("Unable to verify the download of " + url + " as it goes: " + e.getMessage());
+            }
             DownloadJob dj = new DownloadJob(td, jobId, id, name, format, hvm, accountId, descr, cksum, installPathPrefix, resourceType);
             jobs.put(jobId, dj);
             threadPool.execute(td);
@@ -541,6 +537,21 @@ public class DownloadManagerImpl implements DownloadManager {
         return 0;
     }
 
+    /**
+     * @return bytes per second the template has been downloaded at, 0 if unknown
+     */
+    public long getDownloadThroughput(String jobId) {
+        DownloadJob dj = jobs.get(jobId);
+        if (dj != null) {
+            TemplateDownloader td = dj.getTemplateDownloader();
+            long millis = td.getDownloadTime();
+            if (millis > 0) {
+                return td.getDownloadedBytes() * 1000 / millis;
+            }
+        }
+        return 0;
+    }
+
     // @Override
     public String getDownloadLocalPath(String jobId) {
         DownloadJob dj = jobs.get(jobId);
@@ -622,8 +633,10 @@ public class DownloadManagerImpl implements DownloadManager {
         if (jobId == null) {
             return new DownloadAnswer("Internal Error", VMTemplateStorageResourceAssoc.Status.DOWNLOAD_ERROR);
         }
-        return new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId), getInstallPath(jobId),
+        DownloadAnswer answer = new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId), getInstallPath(jobId),
                 getDownloadTemplateSize(jobId), getDownloadTemplateSize(jobId), getDownloadCheckSum(jobId));
+        answer.setThroughput(getDownloadThroughput(jobId));
+        return answer;
     }
 
     private void sleep() {
@@ -666,13 +679,16 @@ public class DownloadManagerImpl implements DownloadManager {
             td.stopDownload();
             answer = new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId),
                     getInstallPath(jobId), getDownloadTemplateSize(jobId), getDownloadTemplatePhysicalSize(jobId), getDownloadCheckSum(jobId));
+            answer.setThroughput(getDownloadThroughput(jobId));
             jobs.remove(jobId);
             return answer;
         default:
             break; // TODO
         }
-        return new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId),
+        answer = new DownloadAnswer(jobId, getDownloadPct(jobId), getDownloadError(jobId), getDownloadStatus2(jobId), getDownloadLocalPath(jobId),
                 getInstallPath(jobId), getDownloadTemplateSize(jobId), getDownloadTemplatePhysicalSize(jobId), getDownloadCheckSum(jobId));
+        answer.setThroughput(getDownloadThroughput(jobId));
+        return answer;
     }
 
     private String getInstallPath(String jobId) {
@@ -914,6 +930,23 @@ public class DownloadManagerImpl implements DownloadManager {
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
+        value = (String) params.get("download.checksum.algorithm");
+        if (value != null) {
+            try {
+                MessageDigest.getInstance(value);
+                _checksumAlgorithm = value;
+            } catch (NoSuchAlgorithmException e) {
+                throw new ConfigurationException("Unsupported download.checksum.algorithm " + value);
+            }
+        }
+        s_logger.info("Checksum of downloads is computed with " + _checksumAlgorithm);
+
+        value = (String) params.get("download.buffer.size");
+        _bufferSize = NumbersUtil.parseInt(value, TemplateDownloader.DEFAULT_BUFFER_SIZE);
+        if (_bufferSize < 64 * 1024) {
+            _bufferSize = 64 * 1024;
+        }
+
         String scriptsDir = (String) params.get("template.scripts.dir");
         if (scriptsDir == null) {
             scriptsDir = "scripts/storage/secondary";
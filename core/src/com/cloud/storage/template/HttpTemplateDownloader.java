@@ -27,6 +27,10 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Date;
 
 import org.apache.commons.httpclient.ChunkedInputStream;
@@ -59,13 +63,13 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	public static final Logger s_logger = Logger.getLogger(HttpTemplateDownloader.class.getName());
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
 
-	private static final int CHUNK_SIZE = 1024*1024; //1M
 	private String downloadUrl;
 	private String toFile;
 	public TemplateDownloader.Status status= TemplateDownloader.Status.NOT_STARTED;
 	public String errorString = " ";
 	private long remoteSize = 0;
 	public long downloadTime = 0;
+	private volatile long transferStart = 0;
 	public long totalBytes;
 	private final HttpClient client;
 	private GetMethod request;
@@ -78,6 +82,8 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	private long MAX_TEMPLATE_SIZE_IN_BYTES;
 	private ResourceType resourceType = ResourceType.TEMPLATE;
 	private final HttpMethodRetryHandler myretryhandler;
+	private TemplateStreamVerifier verifier;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
 
 	
 
@@ -269,35 +275,73 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             
             InputStream in = !chunked?new BufferedInputStream(request.getResponseBodyAsStream())
             						: new ChunkedInputStream(request.getResponseBodyAsStream());
-            
-            RandomAccessFile out = new RandomAccessFile(file, "rwd");
-            out.seek(localFileSize);
+            ReadableByteChannel source = Channels.newChannel(in);
 
-            s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES);
-            
-            byte[] block = new byte[CHUNK_SIZE];
-            long offset=0;
-            boolean done=false;
-            status = TemplateDownloader.Status.IN_PROGRESS;
-            while (!done && status != Status.ABORTED && offset <= remoteSize) {
-            	if ( (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
-            		out.write(block, 0, bytes);
-            		offset +=bytes;
-            		out.seek(offset);
-            		totalBytes += bytes;
+            if (verifier != null) {
+            	if (localFileSize > 0) {
+            		verifier.reset(file, localFileSize, bufferSize);
             	} else {
-            		done = true;
+            		verifier.reset();
+            	}
+            }
+
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            FileChannel target = out.getChannel();
+            try {
+            	target.position(localFileSize);
+
+            	s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES);
+
+            	ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            	long offset=0;
+            	boolean done=false;
+            	boolean headChecked = verifier == null;
+            	status = TemplateDownloader.Status.IN_PROGRESS;
+            	transferStart = start.getTime();
+            	while (!done && status != Status.ABORTED && offset <= remoteSize) {
+            		buffer.clear();
+            		if ( (bytes = source.read(buffer)) > -1) {
+            			buffer.flip();
+            			if (verifier != null) {
+            				verifier.update(buffer.array(), 0, bytes);
+            			}
+            			while (buffer.hasRemaining()) {
+            				target.write(buffer);
+            			}
+            			offset +=bytes;
+            			totalBytes += bytes;
+            			if (!headChecked && verifier.isHeadComplete()) {
+            				headChecked = true;
+            				String error = verifier.checkHead();
+            				if (error != null) {
+            					status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            					errorString = error;
+            					return 0;
+            				}
+            			}
+            		} else {
+            			done = true;
+            		}
             	}
+            	target.force(false);
+            } finally {
+            	transferStart = 0;
+            	out.close();
             }
             Date finish = new Date();
             String downloaded = "(incomplete download)";
             if (totalBytes >= remoteSize) {
+            	String error = verifier != null ? verifier.checkFormat() : null;
+            	if (error != null) {
+            		status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            		errorString = error;
+            		return 0;
+            	}
             	status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
             	downloaded = "(download complete remote=" + remoteSize + "bytes)";
             }
             errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
             downloadTime += finish.getTime() - start.getTime();
-            out.close();
             
             return totalBytes;
 		}catch (HttpException hte) {
@@ -334,6 +378,10 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 
 
 	public long getDownloadTime() {
+		long inProgressSince = transferStart;
+		if (inProgressSince > 0) {
+			return downloadTime + System.currentTimeMillis() - inProgressSince;
+		}
 		return downloadTime;
 	}
 	
@@ -463,4 +511,19 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return resourceType;
 	}
 
+	@Override
+	public void setVerifier(TemplateStreamVerifier verifier) {
+		this.verifier = verifier;
+	}
+
+	@Override
+	public TemplateStreamVerifier getVerifier() {
+		return verifier;
+	}
+
+	@Override
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
 }
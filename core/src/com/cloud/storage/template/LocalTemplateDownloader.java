@@ -71,7 +71,7 @@ public class LocalTemplateDownloader extends TemplateDownloaderBase implements T
             	_storage.setWorldReadableAndWriteable(dst);
         	}   	
         	
-            ByteBuffer buffer = ByteBuffer.allocate(1024 * 512);
+            ByteBuffer buffer = ByteBuffer.allocate(_bufferSize);
             FileInputStream fis;
             try {
                 fis = new FileInputStream(src);
@@ -92,12 +92,21 @@ public class LocalTemplateDownloader extends TemplateDownloaderBase implements T
             
             _remoteSize = src.length();
             this._totalBytes = 0;
+            if (_verifier != null) {
+                _verifier.reset();
+            }
             _status = TemplateDownloader.Status.IN_PROGRESS;
             
             try {
                 while (_status != Status.ABORTED && fic.read(buffer) != -1) {
                     buffer.flip();
-                    int count = foc.write(buffer);
+                    if (_verifier != null) {
+                        _verifier.update(buffer.array(), 0, buffer.limit());
+                    }
+                    int count = 0;
+                    while (buffer.hasRemaining()) {
+                        count += foc.write(buffer);
+                    }
                     _totalBytes += count;
                     buffer.clear();
                 }
@@ -107,6 +116,12 @@ public class LocalTemplateDownloader extends TemplateDownloaderBase implements T
             
             String downloaded = "(incomplete download)";
             if (_totalBytes == _remoteSize) {
+                String error = _verifier != null ? _verifier.checkFormat() : null;
+                if (error != null) {
+                    _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+                    _errorString = error;
+                    return 0;
+                }
                 _status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
                 downloaded = "(download complete)";
             }
@@ -31,6 +31,8 @@ public interface TemplateDownloader extends Runnable{
 	public static enum Status  {UNKNOWN, NOT_STARTED, IN_PROGRESS, ABORTED, UNRECOVERABLE_ERROR, RECOVERABLE_ERROR, DOWNLOAD_FINISHED, POST_DOWNLOAD_FINISHED}
 
 	public static long DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES = 50L*1024L*1024L*1024L;
+
+	public static int DEFAULT_BUFFER_SIZE = 4*1024*1024;
 	
 	/**
 	 * Initiate download, resuming a previous one if required
@@ -90,4 +92,18 @@ public interface TemplateDownloader extends Runnable{
 	
 	public long getMaxTemplateSizeInBytes();
 
+	/**
+	 * Feed the downloaded bytes to a verifier, so the checksum and format of the
+	 * template are checked while it is downloaded
+	 * @param verifier verifier, null for none
+	 */
+	public void setVerifier(TemplateStreamVerifier verifier);
+
+	public TemplateStreamVerifier getVerifier();
+
+	/**
+	 * @param bufferSize size in bytes of the buffer used to copy the template
+	 */
+	public void setBufferSize(int bufferSize);
+
 }
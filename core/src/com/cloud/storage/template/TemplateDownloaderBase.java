@@ -38,6 +38,8 @@ public abstract class TemplateDownloaderBase implements TemplateDownloader {
     protected long _start;
     protected StorageLayer _storage;
     protected boolean _inited = false;
+    protected TemplateStreamVerifier _verifier;
+    protected int _bufferSize = DEFAULT_BUFFER_SIZE;
     private long MAX_TEMPLATE_SIZE_IN_BYTES;
     
     public TemplateDownloaderBase(StorageLayer storage, String downloadUrl, String toDir, long maxTemplateSizeInBytes, DownloadCompleteCallback callback) {
@@ -121,6 +123,21 @@ public abstract class TemplateDownloaderBase implements TemplateDownloader {
     public long getMaxTemplateSizeInBytes() { 
 		return this.MAX_TEMPLATE_SIZE_IN_BYTES;
 	}
+
+    @Override
+    public void setVerifier(TemplateStreamVerifier verifier) {
+        _verifier = verifier;
+    }
+
+    @Override
+    public TemplateStreamVerifier getVerifier() {
+        return _verifier;
+    }
+
+    @Override
+    public void setBufferSize(int bufferSize) {
+        _bufferSize = bufferSize;
+    }
     
     @Override
     public void run() {
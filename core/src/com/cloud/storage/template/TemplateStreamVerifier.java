@@ -0,0 +1,221 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.cloud.storage.Storage.ImageFormat;
+
+/**
+ * TemplateStreamVerifier checks a template while it is being downloaded.  It computes the
+ * checksum of the bytes as they are written and keeps the head and the tail of the file
+ * so the image format can be checked without reading the downloaded file again.
+ */
+public class TemplateStreamVerifier {
+    public static final String DEFAULT_ALGORITHM = "MD5";
+
+    static final int HEAD_SIZE = 512;
+    static final int TAIL_SIZE = 512;
+
+    private static final byte[] QCOW2_MAGIC = { 'Q', 'F', 'I', (byte)0xfb };
+    private static final byte[] VHD_COOKIE = { 'c', 'o', 'n', 'e', 'c', 't', 'i', 'x' };
+    private static final byte[] GZIP_MAGIC = { 0x1f, (byte)0x8b };
+    private static final byte[] BZIP2_MAGIC = { 'B', 'Z', 'h' };
+    private static final byte[] ZIP_MAGIC = { 'P', 'K', 0x03, 0x04 };
+    private static final byte[] TAR_MAGIC = { 'u', 's', 't', 'a', 'r' };
+    private static final int TAR_MAGIC_OFFSET = 257;
+
+    private final String _algorithm;
+    private final ImageFormat _format;
+    private MessageDigest _digest;
+    private String _checksum;
+    private final byte[] _head = new byte[HEAD_SIZE];
+    private int _headLength;
+    private final byte[] _tail = new byte[TAIL_SIZE];
+    private long _length;
+
+    /**
+     * @param algorithm digest algorithm, MD5 or SHA-256
+     * @param format format the template is expected to be in, null to skip the format checks
+     */
+    public TemplateStreamVerifier(String algorithm, ImageFormat format) throws NoSuchAlgorithmException {
+        _algorithm = algorithm;
+        _format = format;
+        _digest = MessageDigest.getInstance(algorithm);
+    }
+
+    public String getAlgorithm() {
+        return _algorithm;
+    }
+
+    /**
+     * Starts over, for a download that is restarted from the beginning.
+     */
+    public synchronized void reset() {
+        _digest.reset();
+        _checksum = null;
+        _headLength = 0;
+        _length = 0;
+    }
+
+    /**
+     * Starts over and feeds the part of the file that is already downloaded, for a
+     * download that is resumed.
+     */
+    public synchronized void reset(File file, long length, int bufferSize) throws IOException {
+        reset();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int)remaining);
+                }
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file + " after " + (length - remaining) + " bytes");
+                }
+                update(buffer.array(), 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void update(byte[] b, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        _digest.update(b, off, len);
+        _checksum = null;
+
+        if (_headLength < HEAD_SIZE) {
+            int n = Math.min(HEAD_SIZE - _headLength, len);
+            System.arraycopy(b, off, _head, _headLength, n);
+            _headLength += n;
+        }
+
+        if (len >= TAIL_SIZE) {
+            System.arraycopy(b, off + len - TAIL_SIZE, _tail, 0, TAIL_SIZE);
+        } else {
+            System.arraycopy(_tail, len, _tail, 0, TAIL_SIZE - len);
+            System.arraycopy(b, off, _tail, TAIL_SIZE - len, len);
+        }
+        _length += len;
+    }
+
+    /**
+     * @return number of bytes fed so far
+     */
+    public synchronized long getLength() {
+        return _length;
+    }
+
+    /**
+     * @return hex checksum of the bytes fed so far
+     */
+    public synchronized String getChecksum() {
+        if (_checksum == null) {
+            MessageDigest digest;
+            try {
+                digest = (MessageDigest)_digest.clone();
+            } catch (CloneNotSupportedException e) {
+                return null;
+            }
+            byte[] sum = digest.digest();
+            _checksum = String.format("%0" + (sum.length * 2) + "x", new BigInteger(1, sum));
+        }
+        return _checksum;
+    }
+
+    /**
+     * @return true once enough of the file is in to check its header
+     */
+    public synchronized boolean isHeadComplete() {
+        return _headLength == HEAD_SIZE;
+    }
+
+    /**
+     * Checks what can be checked from the start of the file, so a download of the wrong
+     * kind of file can be stopped early.
+     *
+     * @return error if the file is not in the expected format, null otherwise
+     */
+    public synchronized String checkHead() {
+        if (_format == null || isArchive()) {
+            return null;
+        }
+        if (_format == ImageFormat.QCOW2 && !startsWith(_head, _headLength, 0, QCOW2_MAGIC)) {
+            return "Template is not a QCOW2 image";
+        }
+        return null;
+    }
+
+    /**
+     * Checks the whole file once it is downloaded.
+     *
+     * @return error if the file is not in the expected format, null otherwise
+     */
+    public synchronized String checkFormat() {
+        String error = checkHead();
+        if (error != null || _format == null || isArchive()) {
+            return error;
+        }
+        if (_format == ImageFormat.VHD) {
+            // the footer is the last 512 bytes (511 in some older images); dynamic disks keep a copy at the start too
+            int tailLength = (int)Math.min(_length, TAIL_SIZE);
+            if (!startsWith(_head, _headLength, 0, VHD_COOKIE)
+                    && !startsWith(_tail, TAIL_SIZE, TAIL_SIZE - tailLength, VHD_COOKIE)
+                    && !(tailLength >= TAIL_SIZE - 1 && startsWith(_tail, TAIL_SIZE, 1, VHD_COOKIE))) {
+                return "Template is not a VHD image";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compressed and archived templates are unpacked by the install script, their contents
+     * can't be checked here.
+     */
+    private boolean isArchive() {
+        return startsWith(_head, _headLength, 0, GZIP_MAGIC) || startsWith(_head, _headLength, 0, BZIP2_MAGIC)
+                || startsWith(_head, _headLength, 0, ZIP_MAGIC) || startsWith(_head, _headLength, TAR_MAGIC_OFFSET, TAR_MAGIC);
+    }
+
+    private static boolean startsWith(byte[] b, int length, int offset, byte[] magic) {
+        if (offset + magic.length > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (b[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
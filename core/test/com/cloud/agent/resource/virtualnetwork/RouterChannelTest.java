@@ -0,0 +1,436 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.api.routing.BatchConfigAnswer;
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SetDhcpEntriesCommand;
+import com.cloud.utils.script.OutputInterpreter;
+import com.cloud.utils.script.Script;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+
+public class RouterChannelTest extends TestCase {
+
+    /**
+     * A channel on stubbed connections, with a clock of its own.
+     */
+    static class StubChannel extends RouterChannel {
+        final List<Connection> _connections = new ArrayList<Connection>();
+        long _clock;
+        long _pingTimeout = RouterChannel.CONNECT_TIMEOUT;
+        boolean _unreachable;
+
+        StubChannel(String routerIp) {
+            super(routerIp, 3922, new File("id_rsa.cloud"), 1000);
+            _clock = 10 * RETRY_INTERVAL;
+        }
+
+        @Override
+        Connection connect() throws IOException {
+            if (_unreachable) {
+                throw new IOException("Connection refused");
+            }
+            Connection conn = mock(Connection.class);
+            when(conn.openSession()).thenAnswer(new Answer<Session>() {
+                @Override
+                public Session answer(InvocationOnMock invocation) {
+                    return mockSession("", 0);
+                }
+            });
+            _connections.add(conn);
+            return conn;
+        }
+
+        @Override
+        long now() {
+            return _clock;
+        }
+
+        @Override
+        long pingTimeout() {
+            return _pingTimeout;
+        }
+    }
+
+    static Session mockSession(String output, Integer exitStatus) {
+        Session sess = mock(Session.class);
+        when(sess.getStdout()).thenReturn(new ByteArrayInputStream(output.getBytes()));
+        when(sess.getStderr()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(sess.waitForCondition(anyInt(), anyLong())).thenReturn(ChannelCondition.EOF, ChannelCondition.EXIT_STATUS);
+        when(sess.getExitStatus()).thenReturn(exitStatus);
+        return sess;
+    }
+
+    static Field resourceField(String name) throws Exception {
+        Field f = VirtualRoutingResource.class.getDeclaredField(name);
+        f.setAccessible(true);
+        return f;
+    }
+
+    /**
+     * Opens the connection of the channel with a command and returns it, the next session
+     * opened on it is the given one if there is one.
+     */
+    static Connection open(StubChannel channel, Session next) throws Exception {
+        if (channel._connections.isEmpty()) {
+            assertNull(channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser()));
+        }
+        Connection conn = channel._connections.get(channel._connections.size() - 1);
+        if (next != null) {
+            doReturn(next).when(conn).openSession();
+        }
+        return conn;
+    }
+
+    public void testExitStatusMapping() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Connection conn = open(channel, mockSession("1.0\n", 0));
+
+        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+        assertNull(channel.execute("get_template_version.sh", null, parser));
+        assertEquals("1.0\n", parser.getLines());
+
+        doReturn(mockSession("bash: /opt/cloud/bin/batch_config.sh: No such file or directory\n", 127)).when(conn).openSession();
+        parser = new OutputInterpreter.AllLinesParser();
+        assertEquals("bash: /opt/cloud/bin/batch_config.sh: No such file or directory", channel.execute("batch_config.sh", "/tmp/cfg", parser));
+        assertNull(parser.getLines());
+
+        // a router that doesn't tell the exit status failed the command
+        doReturn(mockSession("", null)).when(conn).openSession();
+        assertNotNull(channel.execute("edithosts.sh", "-m 02:00:00:00:00:01", new OutputInterpreter.AllLinesParser()));
+
+        Session sess = mockSession("", 0);
+        when(sess.waitForCondition(anyInt(), anyLong())).thenReturn(ChannelCondition.TIMEOUT);
+        doReturn(sess).when(conn).openSession();
+        assertEquals(Script.ERR_TIMEOUT, channel.execute("edithosts.sh", "-m 02:00:00:00:00:01", new OutputInterpreter.AllLinesParser()));
+
+        verify(sess).execCommand("/opt/cloud/bin/edithosts.sh -m 02:00:00:00:00:01");
+        verify(sess).close();
+        assertEquals(1, channel._connections.size());
+        verify(conn, never()).close();
+    }
+
+    public void testSendFailureThrows() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Session sess = mockSession("", 0);
+        doThrow(new IOException("Broken pipe")).when(sess).execCommand(anyString());
+        Connection conn = open(channel, sess);
+
+        try {
+            channel.execute("vmdata.sh", null, new OutputInterpreter.AllLinesParser());
+            fail("A command that wasn't sent is left to router_proxy.sh");
+        } catch (IOException e) {
+            // expected
+        }
+        verify(conn).close();
+
+        // the next command is sent on a new connection
+        assertNull(channel.execute("vmdata.sh", null, new OutputInterpreter.AllLinesParser()));
+        assertEquals(2, channel._connections.size());
+    }
+
+    public void testFailureAfterSendIsReported() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Session sess = mockSession("", 0);
+        InputStream lost = mock(InputStream.class);
+        when(lost.available()).thenThrow(new IOException("Connection reset"));
+        when(sess.getStdout()).thenReturn(lost);
+        Connection conn = open(channel, sess);
+
+        String result = channel.execute("firewall.sh", "-A", new OutputInterpreter.AllLinesParser());
+        assertTrue(result, result.startsWith("Lost the channel to router 169.254.1.1"));
+        verify(sess).execCommand("/opt/cloud/bin/firewall.sh -A");
+        verify(conn).close();
+    }
+
+    public void testStaleConnectionIsReopened() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Connection conn = open(channel, null);
+        doThrow(new IOException("The connection is closed")).when(conn).openSession();
+
+        assertNull(channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser()));
+        verify(conn).close();
+        assertEquals(2, channel._connections.size());
+    }
+
+    public void testUnreachableRouterIsNotRetriedAtOnce() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        channel._unreachable = true;
+        for (int i = 0; i < 2; i++) {
+            try {
+                channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser());
+                fail("An unreachable router is left to router_proxy.sh");
+            } catch (IOException e) {
+                // expected
+            }
+            channel._unreachable = false;
+        }
+
+        channel._clock += RouterChannel.RETRY_INTERVAL + 1;
+        assertNull(channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser()));
+        assertEquals(1, channel._connections.size());
+    }
+
+    public void testIdleConnectionIsPinged() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Connection conn = open(channel, null);
+
+        channel._clock += RouterChannel.KEEPALIVE_INTERVAL;
+        assertNull(channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser()));
+        verify(conn, never()).ping();
+
+        channel._clock += RouterChannel.KEEPALIVE_INTERVAL + 1;
+        assertNull(channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser()));
+        verify(conn).ping();
+        verify(conn, never()).close();
+        assertEquals(1, channel._connections.size());
+    }
+
+    public void testUnansweredPingReopensConnection() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Connection conn = open(channel, null);
+        doThrow(new IOException("The connection is being shutdown")).when(conn).ping();
+
+        channel._clock += RouterChannel.KEEPALIVE_INTERVAL + 1;
+        assertNull(channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser()));
+        verify(conn).close();
+        assertEquals(2, channel._connections.size());
+    }
+
+    public void testUnansweredPingIsNotWaitedFor() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        channel._pingTimeout = 100;
+        Connection conn = open(channel, null);
+        final CountDownLatch answer = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                answer.await();
+                return null;
+            }
+        }).when(conn).ping();
+
+        channel._clock += RouterChannel.KEEPALIVE_INTERVAL + 1;
+        for (int i = 0; i < 2; i++) {
+            try {
+                channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser());
+                fail("A router that doesn't answer is left to router_proxy.sh");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        verify(conn, times(1)).ping();
+        answer.countDown();
+        verify(conn, timeout(1000)).close();
+
+        channel._clock += RouterChannel.RETRY_INTERVAL + 1;
+        assertNull(channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser()));
+        assertEquals(2, channel._connections.size());
+    }
+
+    public void testCommandsDontWaitForConnect() throws Exception {
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        final StubChannel channel = new StubChannel("169.254.1.1") {
+            @Override
+            Connection connect() throws IOException {
+                connecting.countDown();
+                try {
+                    connected.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                return super.connect();
+            }
+        };
+        final String[] result = new String[] { "not run" };
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser());
+                } catch (IOException e) {
+                    result[0] = e.getMessage();
+                }
+            }
+        });
+        first.start();
+        connecting.await();
+
+        try {
+            channel.execute("vmdata.sh", null, new OutputInterpreter.AllLinesParser());
+            fail("A command that comes while the channel opens is left to router_proxy.sh");
+        } catch (IOException e) {
+            // expected
+        }
+
+        connected.countDown();
+        first.join();
+        assertNull(result[0]);
+        assertNull(channel.execute("vmdata.sh", null, new OutputInterpreter.AllLinesParser()));
+        assertEquals(1, channel._connections.size());
+    }
+
+    public void testClosedChannelThrows() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Connection conn = open(channel, null);
+
+        channel.close();
+        verify(conn).close();
+        try {
+            channel.execute("get_template_version.sh", null, new OutputInterpreter.AllLinesParser());
+            fail("A closed channel leaves the commands to router_proxy.sh");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testIdleChannelsAreClosed() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Connection conn = open(channel, null);
+        assertFalse(channel.isIdle(channel._clock + RouterChannel.MAX_IDLE));
+        assertTrue(channel.isIdle(channel._clock + RouterChannel.MAX_IDLE + 1));
+
+        VirtualRoutingResource resource = new VirtualRoutingResource();
+        resourceField("_useRouterChannel").set(resource, true);
+        @SuppressWarnings("unchecked")
+        Map<String, RouterChannel> channels = (Map<String, RouterChannel>)resourceField("_routerChannels").get(resource);
+        channels.put(channel.getRouterIp(), channel);
+
+        // the stub's clock is far behind the real one, so the channel has been idle for long
+        RouterChannel other = resource.getRouterChannel("169.254.1.2");
+        assertEquals("169.254.1.2", other.getRouterIp());
+        assertFalse(channels.containsKey("169.254.1.1"));
+        verify(conn).close();
+        assertSame(other, resource.getRouterChannel("169.254.1.2"));
+        resource.stop();
+    }
+
+    /**
+     * A resource that runs the router scripts on the given channel, with echo standing in for
+     * router_proxy.sh so its output tells that the command went through ssh.
+     */
+    static VirtualRoutingResource createResource(final RouterChannel channel) throws Exception {
+        VirtualRoutingResource resource = new VirtualRoutingResource() {
+            @Override
+            protected RouterChannel getRouterChannel(String routerIP) {
+                return channel;
+            }
+        };
+        resourceField("_routerProxyPath").set(resource, "/bin/echo");
+        resourceField("_timeout").set(resource, 10000);
+        return resource;
+    }
+
+    public void testSshFallbackOnlyWhenNotSent() throws Exception {
+        StubChannel channel = new StubChannel("169.254.1.1");
+        Session sess = mockSession("", 0);
+        doThrow(new IOException("Broken pipe")).when(sess).execCommand(anyString());
+        open(channel, sess);
+        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+        assertNull(createResource(channel).routerProxy("vmdata.sh", "169.254.1.1", "-d", parser));
+        assertEquals("vmdata.sh 169.254.1.1 -d\n", parser.getLines());
+
+        channel = new StubChannel("169.254.1.1");
+        sess = mockSession("", 0);
+        InputStream lost = mock(InputStream.class);
+        when(lost.available()).thenThrow(new IOException("Connection reset"));
+        when(sess.getStdout()).thenReturn(lost);
+        open(channel, sess);
+        parser = new OutputInterpreter.AllLinesParser();
+        assertNotNull(createResource(channel).routerProxy("vmdata.sh", "169.254.1.1", "-d", parser));
+        assertNull(parser.getLines());
+    }
+
+    public void testBatchFallbackOnlyWhenNotRun() throws Exception {
+        final StubChannel channel = new StubChannel("169.254.1.1");
+        Connection conn = open(channel, mockSession("bash: /opt/cloud/bin/batch_config.sh: No such file or directory\n", 127));
+        final List<DhcpEntryCommand> applied = new ArrayList<DhcpEntryCommand>();
+        VirtualRoutingResource resource = new VirtualRoutingResource() {
+            @Override
+            protected RouterChannel getRouterChannel(String routerIP) {
+                return channel;
+            }
+
+            @Override
+            protected void copyToRouter(String routerIp, byte[] data, String fileName) {
+            }
+
+            @Override
+            protected synchronized com.cloud.agent.api.Answer execute(DhcpEntryCommand cmd) {
+                applied.add(cmd);
+                return new com.cloud.agent.api.Answer(cmd);
+            }
+        };
+        List<DhcpEntryCommand> entries = new ArrayList<DhcpEntryCommand>();
+        entries.add(new DhcpEntryCommand("02:00:4c:5f:00:01", "10.1.1.2", "vm-1"));
+        entries.add(new DhcpEntryCommand("02:00:4c:5f:00:02", "10.1.1.3", "vm-2"));
+        SetDhcpEntriesCommand cmd = new SetDhcpEntriesCommand(entries);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_IP, "169.254.1.1");
+
+        // a router without batch_config.sh gets the entries one at a time
+        assertTrue(resource.executeRequest(cmd).getResult());
+        assertEquals(2, applied.size());
+        assertEquals("169.254.1.1", applied.get(1).getAccessDetail(NetworkElementCommand.ROUTER_IP));
+
+        // a batch that timed out may have been partly applied, it fails as it is
+        applied.clear();
+        Session sess = mockSession("", 0);
+        when(sess.waitForCondition(anyInt(), anyLong())).thenReturn(ChannelCondition.TIMEOUT);
+        doReturn(sess).when(conn).openSession();
+        assertFalse(resource.executeRequest(cmd).getResult());
+        assertTrue(applied.isEmpty());
+
+        doReturn(mockSession("0 0\n1 1\n", 0)).when(conn).openSession();
+        com.cloud.agent.api.Answer answer = resource.executeRequest(cmd);
+        assertFalse(answer.getResult());
+        assertNull(((BatchConfigAnswer)answer).getResults()[0]);
+        assertNotNull(((BatchConfigAnswer)answer).getResults()[1]);
+        assertTrue(applied.isEmpty());
+    }
+}
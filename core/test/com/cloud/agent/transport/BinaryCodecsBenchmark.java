@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetVmStatsCommand;
+
+/**
+ * Compares the size and the cost of the gson and binary formats for a host with 100 VMs.  Not
+ * part of the unit tests, run it with -Dtest=BinaryCodecsBenchmark.
+ */
+public class BinaryCodecsBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(BinaryCodecsBenchmark.class);
+
+    public void testEncodingComparison() throws Exception {
+        GetVmStatsCommand statsCmd = BinaryCodecsTest.createGetVmStats(100);
+        Command[][] payloads = new Command[][] { { BinaryCodecsTest.createPing(100) }, { BinaryCodecsTest.createVmStats(statsCmd) } };
+        int iterations = 500;
+
+        for (Command[] payload : payloads) {
+            long[] elapsed = new long[2];
+            int[] size = new int[2];
+            for (int round = 0; round < 2; round++) {
+                for (int format = 0; format < 2; format++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        Request sreq = payload[0] instanceof Answer ? new Response(new Request(2, 3, statsCmd, true), (Answer)payload[0]) : new Request(2, 3, payload, false, false);
+                        sreq.setBinaryEncoding(format == 1);
+                        byte[] bytes = sreq.getBytes();
+                        size[format] = BinaryCodecsTest.uncompressedSize(bytes);
+                        Request creq = Request.parse(bytes);
+                        creq.getCommands();
+                    }
+                    elapsed[format] = System.nanoTime() - start;
+                }
+            }
+            s_logger.info(payload[0].getClass().getSimpleName() + ": gson " + size[0] + " bytes, " + (elapsed[0] / iterations) + " ns/op; binary " + size[1] + " bytes, "
+                    + (elapsed[1] / iterations) + " ns/op");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.host.Host;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+
+public class BinaryCodecsTest extends TestCase {
+    static PingRoutingWithNwGroupsCommand createPing(int vms) {
+        HashMap<String, State> states = new HashMap<String, State>();
+        HashMap<String, Pair<Long, Long>> groupStates = new HashMap<String, Pair<Long, Long>>();
+        for (int i = 0; i < vms; i++) {
+            states.put("i-2-" + i + "-VM", i % 3 == 0 ? State.Stopped : State.Running);
+            groupStates.put("i-2-" + i + "-VM", new Pair<Long, Long>((long)i, i % 2 == 0 ? null : (long)(i * 7)));
+        }
+        PingRoutingWithNwGroupsCommand ping = new PingRoutingWithNwGroupsCommand(Host.Type.Routing, 42, states, groupStates);
+        ping.setGatewayAccessible(false);
+        return ping;
+    }
+
+    static GetVmStatsAnswer createVmStats(GetVmStatsCommand cmd) {
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (String vmName : cmd.getVmNames()) {
+            stats.put(vmName, new VmStatsEntry(12.5, 1024.25, 2048.75, 2, "UserVm"));
+        }
+        return new GetVmStatsAnswer(cmd, stats);
+    }
+
+    static GetVmStatsCommand createGetVmStats(int vms) {
+        List<String> vmNames = new ArrayList<String>();
+        for (int i = 0; i < vms; i++) {
+            vmNames.add("i-2-" + i + "-VM");
+        }
+        return new GetVmStatsCommand(vmNames, "host-guid", "host-name");
+    }
+
+    public void testPingRoundTrip() throws Exception {
+        PingRoutingWithNwGroupsCommand ping = createPing(50);
+        ping.setContextParam("key", "value");
+        Request sreq = new Request(2, 3, ping, false);
+        sreq.setSequence(7);
+        sreq.setBinaryEncoding(true);
+
+        byte[] bytes = sreq.getBytes();
+        assertEquals(2, Request.getAgentId(bytes));
+        assertEquals(7, Request.getSequence(bytes));
+
+        Request creq = Request.parse(bytes);
+        assertTrue(creq.isBinaryEncoding());
+        assertTrue(creq.peerAcceptsBinary());
+        PingRoutingWithNwGroupsCommand cping = (PingRoutingWithNwGroupsCommand)creq.getCommand();
+        assertEquals(42, cping.getHostId());
+        assertEquals(Host.Type.Routing, cping.getHostType());
+        assertFalse(cping.isGatewayAccessible());
+        assertTrue(cping.isVnetAccessible());
+        assertEquals(ping.getNewStates(), cping.getNewStates());
+        assertEquals(ping.getNewGroupStates(), cping.getNewGroupStates());
+        assertEquals("value", cping.getContextParam("key"));
+
+        // The answer goes back in binary because the request advertised it.
+        Response cresp = new Response(creq, new PingAnswer(cping));
+        Response sresp = Response.parse(cresp.getBytes());
+        assertTrue(sresp.isBinaryEncoding());
+        PingAnswer answer = (PingAnswer)sresp.getAnswer();
+        assertTrue(answer.getResult());
+        assertEquals(ping.getNewStates(), ((PingRoutingWithNwGroupsCommand)answer.getCommand()).getNewStates());
+    }
+
+    public void testVmStatsRoundTrip() throws Exception {
+        GetVmStatsCommand cmd = createGetVmStats(20);
+        Request sreq = new Request(2, 3, cmd, true);
+        sreq.setBinaryEncoding(true);
+        Request creq = Request.parse(sreq.getBytes());
+        GetVmStatsCommand ccmd = (GetVmStatsCommand)creq.getCommand();
+        assertEquals(cmd.getVmNames(), ccmd.getVmNames());
+        assertEquals("host-guid", ccmd.getHostGuid());
+        assertEquals("host-name", ccmd.getHostName());
+
+        GetVmStatsAnswer answer = createVmStats(ccmd);
+        Response sresp = Response.parse(new Response(creq, answer).getBytes());
+        GetVmStatsAnswer canswer = (GetVmStatsAnswer)sresp.getAnswer();
+        assertEquals(20, canswer.getVmStatsMap().size());
+        VmStatsEntry entry = canswer.getVmStatsMap().get("i-2-3-VM");
+        assertEquals(1024.25, entry.getNetworkReadKBs());
+        assertEquals(2, entry.getNumCPUs());
+        assertEquals("UserVm", entry.getEntityType());
+    }
+
+    public void testFallbackToGson() throws Exception {
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, new Command[] { createPing(1), cmd }, true, false);
+        sreq.setBinaryEncoding(true);
+        Request creq = Request.parse(sreq.getBytes());
+        assertFalse(creq.isBinaryEncoding());
+        assertEquals(2, creq.getCommands().length);
+        assertTrue(creq.getCommands()[1] instanceof GetHostStatsCommand);
+    }
+
+    public void testNegotiation() throws Exception {
+        Request sreq = new Request(2, 3, createPing(1), false);
+        Request creq = Request.parse(sreq.getBytes());
+        assertFalse(creq.isBinaryEncoding());
+        assertTrue(creq.peerAcceptsBinary());
+
+        Request.setBinaryEncodingEnabled(false);
+        try {
+            sreq = new Request(2, 3, createPing(1), false);
+            sreq.setBinaryEncoding(true);
+            creq = Request.parse(sreq.getBytes());
+            assertFalse(creq.isBinaryEncoding());
+            assertFalse(creq.peerAcceptsBinary());
+
+            Response cresp = new Response(creq, new Answer(creq.getCommand()));
+            Request.setBinaryEncodingEnabled(true);
+            assertFalse(Response.parse(cresp.getBytes()).isBinaryEncoding());
+        } finally {
+            Request.setBinaryEncodingEnabled(true);
+        }
+    }
+
+    public void testCompressedBinary() throws Exception {
+        Request sreq = new Request(2, 3, createPing(2000), false);
+        sreq.setBinaryEncoding(true);
+        byte[] bytes = sreq.getBytes();
+        Request creq = Request.parse(bytes);
+        assertTrue(creq.isBinaryEncoding());
+        assertEquals(2000, ((PingRoutingWithNwGroupsCommand)creq.getCommand()).getNewStates().size());
+    }
+
+    public void testBinaryIsSmaller() throws Exception {
+        GetVmStatsCommand statsCmd = createGetVmStats(100);
+        Request[] gson = new Request[] { new Request(2, 3, createPing(100), false), new Response(new Request(2, 3, statsCmd, true), createVmStats(statsCmd)) };
+        Request[] binary = new Request[] { new Request(2, 3, createPing(100), false), new Response(new Request(2, 3, statsCmd, true), createVmStats(statsCmd)) };
+        for (int i = 0; i < gson.length; i++) {
+            binary[i].setBinaryEncoding(true);
+            int gsonSize = uncompressedSize(gson[i].getBytes());
+            int binarySize = uncompressedSize(binary[i].getBytes());
+            assertTrue("binary " + binarySize + " bytes, gson " + gsonSize + " bytes", binarySize < gsonSize);
+        }
+    }
+
+    /**
+     * @return the uncompressed size of the data package, from the header
+     */
+    static int uncompressedSize(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getInt(12);
+    }
+}
@@ -0,0 +1,46 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.utils.Profiler;
+
+/**
+ * Times checksumming a 256 MB template stream.  Not part of the unit tests, run it with
+ * -Dtest=TemplateStreamVerifierBenchmark.
+ */
+public class TemplateStreamVerifierBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(TemplateStreamVerifierBenchmark.class);
+
+    public void testStreamingThroughput() throws Exception {
+        byte[] block = TemplateStreamVerifierTest.image(4 * 1024 * 1024, null, null);
+        TemplateStreamVerifier verifier = new TemplateStreamVerifier("MD5", ImageFormat.VHD);
+        Profiler profiler = new Profiler();
+        profiler.start();
+        for (int i = 0; i < 64; i++) {
+            verifier.update(block, 0, block.length);
+        }
+        verifier.getChecksum();
+        profiler.stop();
+        assertEquals(64L * block.length, verifier.getLength());
+        s_logger.info("Verified 256 MB in " + profiler.getDuration() + " ms");
+    }
+}
@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.cloud.storage.Storage.ImageFormat;
+
+public class TemplateStreamVerifierTest extends TestCase {
+
+    static byte[] image(int size, byte[] head, byte[] footer) {
+        byte[] b = new byte[size];
+        new Random(size).nextBytes(b);
+        if (head != null) {
+            System.arraycopy(head, 0, b, 0, head.length);
+        }
+        if (footer != null) {
+            System.arraycopy(footer, 0, b, size - 512, footer.length);
+        }
+        return b;
+    }
+
+    static void feed(TemplateStreamVerifier verifier, byte[] b, int chunk) {
+        for (int off = 0; off < b.length; off += chunk) {
+            verifier.update(b, off, Math.min(chunk, b.length - off));
+        }
+    }
+
+    static String hex(String algorithm, byte[] b) throws Exception {
+        byte[] sum = MessageDigest.getInstance(algorithm).digest(b);
+        StringBuilder sb = new StringBuilder();
+        for (byte x : sum) {
+            sb.append(String.format("%02x", x));
+        }
+        return sb.toString();
+    }
+
+    public void testChecksum() throws Exception {
+        byte[] b = image(100000, null, null);
+        for (String algorithm : new String[] { "MD5", "SHA-256" }) {
+            TemplateStreamVerifier verifier = new TemplateStreamVerifier(algorithm, null);
+            feed(verifier, b, 777);
+            assertEquals(b.length, verifier.getLength());
+            assertEquals(hex(algorithm, b), verifier.getChecksum());
+            // asking for the checksum doesn't disturb the running digest
+            verifier.update(b, 0, 10);
+            byte[] more = new byte[b.length + 10];
+            System.arraycopy(b, 0, more, 0, b.length);
+            System.arraycopy(b, 0, more, b.length, 10);
+            assertEquals(hex(algorithm, more), verifier.getChecksum());
+        }
+    }
+
+    public void testResumeFromFile() throws Exception {
+        byte[] b = image(300000, null, null);
+        File f = File.createTempFile("verifier", ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(b, 0, 200000);
+            out.close();
+
+            TemplateStreamVerifier verifier = new TemplateStreamVerifier("MD5", null);
+            feed(verifier, b, 4096);
+            verifier.reset(f, 200000, 64 * 1024);
+            assertEquals(200000, verifier.getLength());
+            verifier.update(b, 200000, 100000);
+            assertEquals(hex("MD5", b), verifier.getChecksum());
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testFormatChecks() throws Exception {
+        byte[] qcow2 = { 'Q', 'F', 'I', (byte)0xfb, 0, 0, 0, 2 };
+        byte[] cookie = { 'c', 'o', 'n', 'e', 'c', 't', 'i', 'x' };
+        byte[] gzip = { 0x1f, (byte)0x8b, 8, 0 };
+
+        TemplateStreamVerifier verifier = new TemplateStreamVerifier("MD5", ImageFormat.QCOW2);
+        feed(verifier, image(4096, qcow2, null), 100);
+        assertTrue(verifier.isHeadComplete());
+        assertNull(verifier.checkHead());
+        assertNull(verifier.checkFormat());
+
+        verifier = new TemplateStreamVerifier("MD5", ImageFormat.QCOW2);
+        feed(verifier, image(4096, cookie, null), 1000);
+        assertNotNull(verifier.checkHead());
+
+        // compressed templates are unpacked later, there is nothing to check yet
+        verifier = new TemplateStreamVerifier("MD5", ImageFormat.QCOW2);
+        feed(verifier, image(4096, gzip, null), 1000);
+        assertNull(verifier.checkFormat());
+
+        // a fixed vhd only has the footer at the end
+        verifier = new TemplateStreamVerifier("MD5", ImageFormat.VHD);
+        feed(verifier, image(8192, null, cookie), 300);
+        assertNull(verifier.checkHead());
+        assertNull(verifier.checkFormat());
+
+        verifier = new TemplateStreamVerifier("MD5", ImageFormat.VHD);
+        feed(verifier, image(8192, null, null), 8192);
+        assertNotNull(verifier.checkFormat());
+
+        // a dynamic vhd has a copy of the footer at the start
+        verifier = new TemplateStreamVerifier("MD5", ImageFormat.VHD);
+        feed(verifier, image(8192, cookie, null), 8192);
+        assertNull(verifier.checkFormat());
+
+        verifier = new TemplateStreamVerifier("MD5", ImageFormat.ISO);
+        feed(verifier, image(8192, null, null), 8192);
+        assertNull(verifier.checkFormat());
+    }
+}
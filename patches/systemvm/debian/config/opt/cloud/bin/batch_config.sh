@@ -0,0 +1,83 @@
+#!/usr/bin/env bash
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+# @VERSION@
+
+# batch_config.sh -- applies a batch of configuration entries, one per line of the given file,
+# and prints "<entry index> <exit status>" for each of them.  A "-" stands for an empty field.
+#   dhcp <mac> <ip> <host> <default router> <dns> <static routes>
+#   vmdata <vm ip> <folder> <file> <base64 contents>
+#   firewall <firewall.sh arguments>
+# The entries take the locks of the scripts they run, so the batch itself doesn't.
+
+usage() {
+  printf "Usage: %s: <config file>\n" $(basename $0) >&2
+  exit 2
+}
+
+[ $# -ne 1 ] && usage
+cfg=$1
+[ ! -f $cfg ] && usage
+
+field() {
+  [ "$1" != "-" ] && echo "$1"
+}
+
+dhcp_entry() {
+  NO_DNSMASQ_RESTART=1 /root/edithosts.sh "$1" "$2" "$3" "$(field $4)" "$(field $5)" "$(field $6)"
+}
+
+vm_data() {
+  local data=$(mktemp)
+  [ "$4" != "-" ] && echo "$4" | base64 -d > $data
+  /bin/bash /root/userdata.sh -v "$1" -F "$2" -f "$3" -d $data
+  local ret=$?
+  rm -f $data
+  return $ret
+}
+
+index=0
+dhcp_entries=0
+while read -r type args
+do
+  case $type in
+  dhcp)     dhcp_entry $args </dev/null >/dev/null 2>&1
+            ret=$?
+            [ $ret -eq 0 ] && dhcp_entries=$((dhcp_entries + 1))
+            ;;
+  vmdata)   vm_data $args </dev/null >/dev/null 2>&1
+            ret=$?
+            ;;
+  firewall) /root/firewall.sh $args </dev/null >/dev/null 2>&1
+            ret=$?
+            ;;
+  *)        ret=2
+            ;;
+  esac
+  echo "$index $ret"
+  index=$((index + 1))
+done < $cfg
+
+rm -f $cfg
+
+if [ $dhcp_entries -gt 0 ] && [ "$(pidof dnsmasq)" != "" ]
+then
+  logger -t cloud "$(basename $0): restarting dnsmasq for $dhcp_entries dhcp entries"
+  service dnsmasq restart >/dev/null 2>&1
+fi
+
+exit 0
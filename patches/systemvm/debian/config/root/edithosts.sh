@@ -25,6 +25,7 @@
 # $4 : default router
 # $5 : nameserver on default nic
 # $6 : comma separated static routes
+# NO_DNSMASQ_RESTART=1 in the environment leaves restarting dnsmasq to the caller
 
 mac=$1
 ip=$2
@@ -120,6 +121,12 @@ then
 fi
 
 # make dnsmasq re-read files
+# batch_config.sh restarts dnsmasq once after a whole batch of entries
+if [ "$NO_DNSMASQ_RESTART" == "1" ]
+then
+  unlock_exit 0 $lock $locked
+fi
+
 pid=$(pidof dnsmasq)
 if [ "$pid" != "" ]
 then
@@ -2176,10 +2176,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements
             return new SecurityGroupRuleAnswer(cmd, false, e.toString());
         }
 
+        String rules = cmd.getCompactRuleSet();
+        long startTick = System.currentTimeMillis();
         boolean result = add_network_rules(cmd.getVmName(),
                 Long.toString(cmd.getVmId()), cmd.getGuestIp(),
                 cmd.getSignature(), Long.toString(cmd.getSeqNum()),
-                cmd.getGuestMac(), cmd.stringifyRules(), vif, brname);
+                cmd.getGuestMac(), rules, vif, brname);
+        long applyTime = System.currentTimeMillis() - startTick;
 
         if (!result) {
             s_logger.warn("Failed to program network rules for vm "
@@ -2190,7 +2193,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements
             s_logger.debug("Programmed network rules for vm " + cmd.getVmName()
                     + " guestIp=" + cmd.getGuestIp() + ",ingress numrules="
                     + cmd.getIngressRuleSet().length + ",egress numrules="
-                    + cmd.getEgressRuleSet().length);
+                    + cmd.getEgressRuleSet().length + ",num cidrs="
+                    + cmd.getTotalNumCidrs() + ",compressed size="
+                    + (rules == null ? 0 : rules.length()) + " applied in "
+                    + applyTime + "ms");
             return new SecurityGroupRuleAnswer(cmd);
         }
     }
@@ -4327,7 +4333,6 @@ public class LibvirtComputingResource extends ServerResourceBase implements
             return false;
         }
 
-        String newRules = rules.replace(" ", ";");
         Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
         cmd.add("add_network_rules");
         cmd.add("--vmname", vmName);
@@ -4339,7 +4344,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
         cmd.add("--vif", vif);
         cmd.add("--brname", brname);
         if (rules != null) {
-            cmd.add("--rules", newRules);
+            cmd.add("--compressedrules", rules);
         }
         String result = cmd.execute();
         if (result != null) {
@@ -24,6 +24,7 @@ import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
 import com.cloud.agent.api.proxy.CheckConsoleProxyLoadCommand;
 import com.cloud.agent.api.proxy.WatchConsoleProxyLoadCommand;
+import com.cloud.agent.api.routing.BatchConfigCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
 import com.cloud.agent.api.routing.IpAssocCommand;
 import com.cloud.agent.api.routing.LoadBalancerConfigCommand;
@@ -65,6 +66,8 @@ public interface MockVmManager extends Manager {
     Answer AddDhcpEntry(DhcpEntryCommand cmd);
 
     Answer setVmData(VmDataCommand cmd);
+
+    Answer applyBatchConfig(BatchConfigCommand cmd);
     Answer CleanupNetworkRules(CleanupNetworkRulesCmd cmd, SimulatorInfo info);
 
     Answer CheckConsoleProxyLoad(CheckConsoleProxyLoadCommand cmd);
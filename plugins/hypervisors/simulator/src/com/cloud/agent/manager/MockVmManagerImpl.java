@@ -456,6 +456,11 @@ public class MockVmManagerImpl implements MockVmManager {
         return new Answer(cmd);
     }
 
+    @Override
+    public Answer applyBatchConfig(BatchConfigCommand cmd) {
+        return new Answer(cmd);
+    }
+
     @Override
 	public Answer CleanupNetworkRules(CleanupNetworkRulesCmd cmd, SimulatorInfo info) {
 		Transaction txn = Transaction.open(Transaction.SIMULATOR_DB);
@@ -29,6 +29,7 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.api.check.CheckSshCommand;
 import com.cloud.agent.api.proxy.CheckConsoleProxyLoadCommand;
 import com.cloud.agent.api.proxy.WatchConsoleProxyLoadCommand;
+import com.cloud.agent.api.routing.BatchConfigCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
 import com.cloud.agent.api.routing.IpAssocCommand;
 import com.cloud.agent.api.routing.LoadBalancerConfigCommand;
@@ -182,6 +183,8 @@ public class SimulatorManagerImpl implements SimulatorManager {
                 return _mockVmMgr.AddDhcpEntry((DhcpEntryCommand) cmd);
             } else if (cmd instanceof VmDataCommand) {
                 return _mockVmMgr.setVmData((VmDataCommand) cmd);
+            } else if (cmd instanceof BatchConfigCommand) {
+                return _mockVmMgr.applyBatchConfig((BatchConfigCommand) cmd);
             } else if (cmd instanceof CleanupNetworkRulesCmd) {
                 return _mockVmMgr.CleanupNetworkRules((CleanupNetworkRulesCmd) cmd, info);
             } else if (cmd instanceof CheckNetworkCommand) {
@@ -123,6 +123,8 @@ import com.cloud.agent.api.ValidateSnapshotCommand;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
+import com.cloud.agent.api.routing.BatchConfigAnswer;
+import com.cloud.agent.api.routing.BatchConfigCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
 import com.cloud.agent.api.routing.IpAssocAnswer;
 import com.cloud.agent.api.routing.IpAssocCommand;
@@ -344,6 +346,8 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                 answer = execute((DhcpEntryCommand) cmd);
             } else if (clz == VmDataCommand.class) {
                 answer = execute((VmDataCommand) cmd);
+            } else if (cmd instanceof BatchConfigCommand) {
+                answer = execute((BatchConfigCommand) cmd);
             } else if (clz == ReadyCommand.class) {
                 answer = execute((ReadyCommand) cmd);
             } else if (clz == GetHostStatsCommand.class) {
@@ -1866,6 +1870,39 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         return new Answer(cmd);
     }
 
+    protected Answer execute(BatchConfigCommand cmd) {
+        if (s_logger.isInfoEnabled()) {
+            s_logger.info("Executing resource " + cmd.getClass().getSimpleName() + " on domR " + cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP));
+        }
+
+        String controlIp = getRouterSshControlIp(cmd);
+        String[] config = cmd.generateConfig();
+        String tmpFileName = "batch_config_" + UUID.randomUUID().toString();
+
+        try {
+            VmwareManager mgr = getServiceContext().getStockObject(VmwareManager.CONTEXT_STOCK_NAME);
+            SshHelper.scpTo(controlIp, DEFAULT_DOMR_SSHPORT, "root", mgr.getSystemVMKeyFile(), null, "/tmp", BatchConfigCommand.toFile(config).getBytes(), tmpFileName, null);
+
+            // the script removes the file once it has applied the entries
+            Pair<Boolean, String> result = SshHelper.sshExecute(controlIp, DEFAULT_DOMR_SSHPORT, "root", mgr.getSystemVMKeyFile(), null,
+                    "/opt/cloud/bin/" + BatchConfigCommand.SCRIPT + " /tmp/" + tmpFileName);
+
+            if (!result.first()) {
+                s_logger.error(BatchConfigCommand.SCRIPT + " on domain router " + controlIp + " failed, message: " + result.second());
+                return new Answer(cmd, false, cmd.getClass().getSimpleName() + " failed due to " + result.second());
+            }
+
+            if (s_logger.isInfoEnabled()) {
+                s_logger.info(BatchConfigCommand.SCRIPT + " on domain router " + controlIp + " completed " + config.length + " entries");
+            }
+            return new BatchConfigAnswer(cmd, config, result.second());
+        } catch (Throwable e) {
+            String msg = cmd.getClass().getSimpleName() + " failed due to " + VmwareHelper.getExceptionMessage(e);
+            s_logger.error(msg, e);
+            return new Answer(cmd, false, msg);
+        }
+    }
+
     private String encodeDataArgs(String[] dataArgs) {
         StringBuilder sb = new StringBuilder();
 
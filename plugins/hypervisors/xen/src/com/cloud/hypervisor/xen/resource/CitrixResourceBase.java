@@ -81,7 +81,6 @@ import com.cloud.agent.api.CheckS2SVpnConnectionsCommand;
 import com.cloud.agent.api.CheckVirtualMachineAnswer;
 import com.cloud.agent.api.CheckVirtualMachineCommand;
 import com.cloud.agent.api.CleanupNetworkRulesCmd;
-import com.cloud.agent.api.ClusterSyncAnswer;
 import com.cloud.agent.api.ClusterSyncCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.CreatePrivateTemplateFromSnapshotCommand;
@@ -150,6 +149,8 @@ import com.cloud.agent.api.check.CheckSshCommand;
 import com.cloud.agent.api.proxy.CheckConsoleProxyLoadCommand;
 import com.cloud.agent.api.proxy.ConsoleProxyLoadAnswer;
 import com.cloud.agent.api.proxy.WatchConsoleProxyLoadCommand;
+import com.cloud.agent.api.routing.BatchConfigAnswer;
+import com.cloud.agent.api.routing.BatchConfigCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
 import com.cloud.agent.api.routing.IpAssocAnswer;
 import com.cloud.agent.api.routing.IpAssocCommand;
@@ -438,6 +439,8 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             return execute((DhcpEntryCommand) cmd);
         } else if (clazz == VmDataCommand.class) {
             return execute((VmDataCommand) cmd);
+        } else if (cmd instanceof BatchConfigCommand) {
+            return execute((BatchConfigCommand) cmd);
         } else if (clazz == ReadyCommand.class) {
             return execute((ReadyCommand) cmd);
         } else if (clazz == GetHostStatsCommand.class) {
@@ -1835,6 +1838,33 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
     }
 
+    protected Answer execute(final BatchConfigCommand cmd) {
+        Connection conn = getConnection();
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        String[] config = cmd.generateConfig();
+
+        // the whole batch goes to the router as one file, applied by one run of the script
+        String cfgFilePath = "/tmp/batch_config_" + UUID.randomUUID().toString();
+        String result = callHostPlugin(conn, "vmops", "createFileInDomr", "domrip", routerIp, "filepath", cfgFilePath, "filecontents", BatchConfigCommand.toFile(config));
+        if (result != null && !result.isEmpty()) {
+            String args = BatchConfigCommand.SCRIPT + " " + routerIp + " " + cfgFilePath;
+            result = callHostPlugin(conn, "vmops", "routerProxy", "args", args);
+            if (result != null && !result.isEmpty()) {
+                return new BatchConfigAnswer(cmd, config, result);
+            }
+        }
+
+        // batch_config.sh always exits 0 once it runs, so the router doesn't have it or never got the file.
+        // The host plugin doesn't time out, and the dhcp entries and vm data can be written again anyway.
+        s_logger.info("Unable to run " + BatchConfigCommand.SCRIPT + " on router " + routerIp + ", applying " + config.length + " configuration entries one at a time");
+        NetworkElementCommand[] entries = cmd.getEntryCommands();
+        Answer[] answers = new Answer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            answers[i] = executeRequest(entries[i]);
+        }
+        return new BatchConfigAnswer(cmd, answers);
+    }
+
     protected Answer execute(final SavePasswordCommand cmd) {
         Connection conn = getConnection();
         final String password = cmd.getPassword();
@@ -7204,8 +7234,15 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             s_logger.warn("Check for master failed, failing the Cluster sync command");
             return  new Answer(cmd);
         } 
-        HashMap<String, Pair<String, State>> newStates = deltaClusterSync(conn);
-        return new ClusterSyncAnswer(cmd.getClusterId(), newStates);
+        synchronized (_cluster.intern()) {
+            HashMap<String, Pair<String, State>> allStates = getAllVms(conn);
+            if (allStates == null) {
+                s_logger.warn("Unable to get the vm states so no state sync at this point.");
+                return new Answer(cmd, false, "Unable to get the vm states");
+            }
+            HashMap<String, Pair<String, State>> changes = deltaClusterSync(conn, allStates);
+            return s_vms.sync(_cluster, cmd, allStates, changes);
+        }
     }
 
 
@@ -7239,20 +7276,18 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             s_logger.warn(msg, e);
             throw new CloudRuntimeException(msg);
         }
+        synchronized (_cluster.intern()) {
+            s_vms.resetSync(_cluster, s_vms.getClusterVmState(_cluster));
+        }
         return s_vms.getClusterVmState(_cluster);
     }
 
 
-    protected HashMap<String, Pair<String, State>> deltaClusterSync(Connection conn) {
+    protected HashMap<String, Pair<String, State>> deltaClusterSync(Connection conn, HashMap<String, Pair<String, State>> newStates) {
         final HashMap<String, Pair<String, State>> changes = new HashMap<String, Pair<String, State>>();
 
 
         synchronized (_cluster.intern()) {
-        	HashMap<String, Pair<String, State>> newStates = getAllVms(conn);
-	        if (newStates == null) {
-	            s_logger.warn("Unable to get the vm states so no state sync at this point.");
-	            return null;
-	        }
 	        HashMap<String, Pair<String, State>>  oldStates = new HashMap<String, Pair<String, State>>(s_vms.size(_cluster));
             oldStates.putAll(s_vms.getClusterVmState(_cluster));
 
@@ -7345,6 +7380,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
                 } else {
                     State newState = State.Stopped;
                     s_logger.warn("The VM is now missing marking it as Stopped " + vm);
+                    s_vms.remove(_cluster, host_uuid, vm);
                     changes.put(vm, new Pair<String, State>(host_uuid, newState));
                 }
             }
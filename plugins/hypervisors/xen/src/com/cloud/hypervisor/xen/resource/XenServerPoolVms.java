@@ -17,9 +17,13 @@
 package com.cloud.hypervisor.xen.resource;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import org.apache.log4j.Logger;
 import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.agent.api.ClusterSyncAnswer;
+import com.cloud.agent.api.ClusterSyncCommand;
 import com.cloud.utils.Pair;
 import com.cloud.vm.VirtualMachine.State;
 
@@ -28,7 +32,18 @@ public class XenServerPoolVms {
     private static final Logger s_logger = Logger.getLogger(XenServerPoolVms.class);
     private final Map<String/* clusterId */, HashMap<String/* vm name */, Pair<String/* host uuid */, State/* vm state */>>> _cluster_vms =
          new ConcurrentHashMap<String, HashMap<String, Pair<String, State>>>();
+    private final Map<String/* clusterId */, SyncState> _cluster_sync = new ConcurrentHashMap<String, SyncState>();
 
+    /**
+     * What the management server has been told about the vms of a cluster: the generation
+     * of the last answer, the vm states reported so far and the changes it hasn't
+     * acknowledged yet, by the generation they were last reported in.
+     */
+    static class SyncState {
+        long _generation;
+        final HashMap<String, Pair<String, State>> _reported = new HashMap<String, Pair<String, State>>();
+        final HashMap<String, Pair<Long, Pair<String, State>>> _unacked = new HashMap<String, Pair<Long, Pair<String, State>>>();
+    }
 
     public HashMap<String, Pair<String, State>> getClusterVmState(String clusterId){
         HashMap<String, Pair<String, State>> _vms= _cluster_vms.get(clusterId);
@@ -71,6 +86,64 @@ public class XenServerPoolVms {
         return vms.size();
     }
     
+    private SyncState getSyncState(String clusterId) {
+        SyncState sync = _cluster_sync.get(clusterId);
+        if (sync == null) {
+            sync = new SyncState();
+            _cluster_sync.put(clusterId, sync);
+        }
+        return sync;
+    }
+
+    /**
+     * Starts reporting the cluster over from the vm states sent with the startup command.
+     * Callers hold the cluster lock, as for the other changes to the cluster's vms.
+     */
+    public void resetSync(String clusterId, HashMap<String, Pair<String, State>> allStates) {
+        SyncState sync = getSyncState(clusterId);
+        sync._unacked.clear();
+        ClusterSyncAnswer.apply(sync._reported, allStates, true);
+    }
+
+    /**
+     * Answers a cluster sync with every change the management server hasn't acknowledged,
+     * so an answer that went missing is made up for by the next one, or with all the vms
+     * if it asked for a full sync.  Callers hold the cluster lock.
+     *
+     * @param allStates vms running in the cluster
+     * @param changes vms that changed since the last sync
+     */
+    public ClusterSyncAnswer sync(String clusterId, ClusterSyncCommand cmd, HashMap<String, Pair<String, State>> allStates, HashMap<String, Pair<String, State>> changes) {
+        SyncState sync = getSyncState(clusterId);
+        boolean full = cmd.isFullSync();
+        long generation = ++sync._generation;
+        HashMap<String, Pair<String, State>> newStates;
+        if (full) {
+            sync._unacked.clear();
+            newStates = new HashMap<String, Pair<String, State>>(allStates);
+        } else {
+            long acked = cmd.getAckedGeneration();
+            for (Iterator<Pair<Long, Pair<String, State>>> it = sync._unacked.values().iterator(); it.hasNext();) {
+                if (it.next().first() <= acked) {
+                    it.remove();
+                }
+            }
+            for (Map.Entry<String, Pair<String, State>> change : changes.entrySet()) {
+                sync._unacked.put(change.getKey(), new Pair<Long, Pair<String, State>>(generation, change.getValue()));
+            }
+            newStates = new HashMap<String, Pair<String, State>>(sync._unacked.size());
+            for (Map.Entry<String, Pair<Long, Pair<String, State>>> entry : sync._unacked.entrySet()) {
+                newStates.put(entry.getKey(), entry.getValue().second());
+            }
+        }
+        ClusterSyncAnswer.apply(sync._reported, newStates, full);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Cluster " + clusterId + " sync generation " + generation + (full ? " full, " : " acked " + cmd.getAckedGeneration() + ", ")
+                    + newStates.size() + " vms reported");
+        }
+        return new ClusterSyncAnswer(cmd.getClusterId(), newStates, generation, full, ClusterSyncAnswer.checksum(sync._reported));
+    }
+
     @Override
     public String toString(){
         StringBuilder sbuf = new StringBuilder("PoolVms=");
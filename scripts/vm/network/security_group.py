@@ -23,6 +23,10 @@ import logging
 import sys
 import os
 import xml.dom.minidom
+import base64
+import hashlib
+import tempfile
+import zlib
 from optparse import OptionParser, OptionGroup, OptParseError, BadOptionError, OptionError, OptionConflictError, OptionValueError
 import re
 iptables = Command("iptables")
@@ -136,6 +140,9 @@ def destroy_network_rules_for_vm(vm_name, vif=None):
                     logging.debug("Igoring failure to delete dnat: " + dnat) 
         except:
             pass
+    if ipset_supported():
+        destroy_ipsets_for_vm(vm_name)
+
     remove_rule_log_for_vm(vm_name)
     
     if 1 in [ vm_name.startswith(c) for c in ['r-', 's-', 'v-'] ]:
@@ -596,7 +603,77 @@ def remove_rule_log_for_vm(vmName):
 def egress_chain_name(vm_name):
     return vm_name + "-eg"
 
-def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif, brname):
+# sets with fewer members than this are still programmed as one iptables rule per cidr
+IPSET_MIN_MEMBERS = 4
+
+def ipset_prefix(vm_name):
+    # ipset names are limited to 31 characters, vm names are not
+    return "sg" + hashlib.md5(vm_name).hexdigest()[:12] + "_"
+
+def ipset_supported():
+    try:
+        execute("ipset -n list > /dev/null")
+        return True
+    except:
+        return False
+
+def destroy_ipsets_for_vm(vm_name):
+    prefix = ipset_prefix(vm_name)
+    try:
+        names = execute("ipset -n list").split("\n")
+    except:
+        return
+    for name in names:
+        if name.startswith(prefix):
+            try:
+                execute("ipset destroy " + name)
+            except:
+                logging.debug("Ignoring failure to destroy ipset " + name)
+
+def program_ipset(setname, ips):
+    lines = ["create " + setname + " hash:net -exist", "flush " + setname]
+    for ip in ips:
+        lines.append("add " + setname + " " + ip + " -exist")
+    restore = tempfile.NamedTemporaryFile(prefix="cloud-ipset-", delete=False)
+    try:
+        restore.write("\n".join(lines) + "\n")
+        restore.close()
+        execute("ipset restore < " + restore.name)
+    finally:
+        os.remove(restore.name)
+
+def parse_rules(rules):
+    """ 'I:tcp:22:22:10.1.1.0/24,10.1.2.1/32,;...' into (type, proto, start, end, cidrs, None) """
+    parsed = []
+    if rules == "" or rules == None:
+        return parsed
+    for line in rules.split(';')[:-1]:
+        tokens = line.split(':')
+        if len(tokens) != 5:
+            continue
+        ips = tokens[4].split(",")
+        ips.pop()
+        parsed.append((tokens[0], tokens[1], tokens[2], tokens[3], ips, None))
+    return parsed
+
+def parse_compressed_rules(compressed):
+    """ Decodes SecurityGroupRulesCmd.getCompactRuleSet(): each distinct cidr list is sent once,
+        'S:<index>:<cidr>,<cidr>,', and rules refer to it, 'I:<proto>:<start>:<end>:<index>' """
+    parsed = []
+    if compressed == "" or compressed == None:
+        return parsed
+    sets = {}
+    for line in zlib.decompress(base64.b64decode(compressed)).split(';'):
+        tokens = line.split(':')
+        if tokens[0] == 'S' and len(tokens) == 3:
+            ips = tokens[2].split(",")
+            ips.pop()
+            sets[tokens[1]] = ips
+        elif len(tokens) == 5 and tokens[4] in sets:
+            parsed.append((tokens[0], tokens[1], tokens[2], tokens[3], list(sets[tokens[4]]), tokens[4]))
+    return parsed
+
+def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif, brname, compressedRules=None):
   try:
     vmName = vm_name
     domId = getvmId(vmName)
@@ -614,29 +691,22 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
     if changes[0] or changes[1] or changes[2] or changes[3]:
         default_network_rules(vmName, vm_id, vm_ip, vmMac, vif, brname)
 
-    if rules == "" or rules == None:
-        lines = []
+    if compressedRules != None:
+        lines = parse_compressed_rules(compressedRules)
     else:
-        lines = rules.split(';')[:-1]
+        lines = parse_rules(rules)
 
     logging.debug("    programming network rules for  IP: " + vm_ip + " vmname=" + vm_name)
     vmchain = vm_name
     execute("iptables -F " + vmchain)
     egress_vmchain = egress_chain_name(vm_name)
     execute("iptables -F " + egress_vmchain)
+    use_ipset = ipset_supported()
+    if use_ipset:
+        destroy_ipsets_for_vm(vm_name)
+    programmed_sets = {}
     egressrule = 0
-    for line in lines:
-	
-        tokens = line.split(':')
-        if len(tokens) != 5:
-          continue
-        ruletype = tokens[0]
-        protocol = tokens[1]
-        start = tokens[2]
-        end = tokens[3]
-        cidrs = tokens.pop();
-        ips = cidrs.split(",")
-        ips.pop()
+    for (ruletype, protocol, start, end, ips, setindex) in lines:
         allow_any = False
         if ruletype == 'E':
             vmchain = egress_chain_name(vm_name)
@@ -652,7 +722,29 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
             del ips[i]
             allow_any = True
         range = start + ":" + end
-        if ips:    
+        match_set = None
+        if use_ipset and setindex != None and len(ips) >= IPSET_MIN_MEMBERS:
+            setname = ipset_prefix(vm_name) + setindex
+            if not setindex in programmed_sets:
+                try:
+                    program_ipset(setname, ips)
+                    programmed_sets[setindex] = True
+                except:
+                    logging.debug("Failed to program ipset " + setname + ", falling back to one rule per cidr")
+                    programmed_sets[setindex] = False
+            if programmed_sets[setindex]:
+                match_set = " -m set --match-set " + setname + (direction == "-s" and " src" or " dst")
+        if ips and match_set:
+            if protocol == 'all':
+                execute("iptables -I " + vmchain + " -m state --state NEW" + match_set + " -j " + action)
+            elif protocol != 'icmp':
+                execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW" + match_set + " -j " + action)
+            else:
+                range = start + "/" + end
+                if start == "-1":
+                    range = "any"
+                execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + match_set + " -j " + action)
+        elif ips:
             if protocol == 'all':
                 for ip in ips:
                     execute("iptables -I " + vmchain + " -m state --state NEW " + direction + " " + ip + " -j "+action)
@@ -807,6 +899,7 @@ if __name__ == '__main__':
     parser.add_option("--sig", dest="sig")
     parser.add_option("--seq", dest="seq")
     parser.add_option("--rules", dest="rules")
+    parser.add_option("--compressedrules", dest="compressedRules")
     parser.add_option("--brname", dest="brname")
     parser.add_option("--localbrname", dest="localbrname")
     parser.add_option("--dhcpSvr", dest="dhcpSvr")
@@ -825,7 +918,7 @@ if __name__ == '__main__':
     elif cmd == "get_rule_logs_for_vms":
         get_rule_logs_for_vms()
     elif cmd == "add_network_rules":
-        add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname)
+        add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname, option.compressedRules)
     elif cmd == "cleanup_rules":
         cleanup_rules()
     elif cmd == "post_default_network_rules":
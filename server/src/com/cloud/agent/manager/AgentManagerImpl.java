@@ -238,6 +238,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         final Map<String, String> configs = configDao.getConfiguration("AgentManager", params);
         _port = NumbersUtil.parseInt(configs.get("port"), 8250);
         final int workers = NumbersUtil.parseInt(configs.get("workers"), 5);
+        final int selectors = NumbersUtil.parseInt(configs.get(Config.AgentSelectors.key()), 0);
 
         String value = configs.get(Config.PingInterval.toString());
         _pingInterval = NumbersUtil.parseInt(value, 60);
@@ -281,9 +282,9 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         //allow core threads to time out even when there are no items in the queue
         _connectExecutor.allowCoreThreadTimeOut(true);
  
-        _connection = new NioServer("AgentManager", _port, workers + 10, this);
+        _connection = new NioServer("AgentManager", _port, workers + 10, selectors, this);
 
-        s_logger.info("Listening on " + _port + " with " + workers + " workers");
+        s_logger.info("Listening on " + _port + " with " + workers + " workers and " + _connection.getSelectorCount() + " selectors");
         return true;
     }
 
@@ -1365,6 +1366,10 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                     final byte[] data = task.getData();
                     try {
                         final Request event = Request.parse(data);
+                        final Object attachment = task.getLink().attachment();
+                        if (attachment instanceof ConnectedAgentAttache) {
+                            ((ConnectedAgentAttache) attachment).setBinaryAccepted(event.peerAcceptsBinary());
+                        }
                         if (event instanceof Response) {
                             processResponse(task.getLink(), (Response) event);
                         } else {
@@ -34,6 +34,7 @@ public class ConnectedAgentAttache extends AgentAttache {
     private static final Logger s_logger = Logger.getLogger(ConnectedAgentAttache.class);
 
     protected Link _link;
+    protected volatile boolean _binaryAccepted;
 
     public ConnectedAgentAttache(AgentManagerImpl agentMgr, final long id, final Link link, boolean maintenance) {
         super(agentMgr, id, maintenance);
@@ -43,12 +44,20 @@ public class ConnectedAgentAttache extends AgentAttache {
     @Override
     public synchronized void send(Request req) throws AgentUnavailableException {
         try {
+            req.setBinaryEncoding(_binaryAccepted);
             _link.send(req.toBytes());
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
         }
     }
 
+    /**
+     * Records whether the agent said it can parse the binary wire format.
+     */
+    public void setBinaryAccepted(boolean accepted) {
+        _binaryAccepted = accepted;
+    }
+
     @Override
     public synchronized boolean isClosed() {
         return _link == null;
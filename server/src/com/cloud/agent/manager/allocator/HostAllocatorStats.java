@@ -0,0 +1,106 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * HostAllocatorStats keeps a latency histogram per host allocator, along with the
+ * number of hosts in the allocators' candidate index.
+ */
+public class HostAllocatorStats extends StandardMBean implements HostAllocatorStatsMBean {
+    private static final Logger s_logger = Logger.getLogger(HostAllocatorStats.class);
+
+    private static final HostAllocatorStats s_instance = new HostAllocatorStats(true);
+
+    private final ConcurrentHashMap<String, LatencyHistogram> _latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final AtomicInteger _indexedHosts = new AtomicInteger();
+
+    public static HostAllocatorStats getInstance() {
+        return s_instance;
+    }
+
+    protected HostAllocatorStats(boolean register) {
+        super(HostAllocatorStatsMBean.class, false);
+        if (register) {
+            try {
+                JmxUtil.registerMBean("HostAllocator", "Stats", this);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register the host allocator stats mbean", e);
+            }
+        }
+    }
+
+    public void record(String allocator, long millis) {
+        LatencyHistogram histogram = _latencies.get(allocator);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = _latencies.putIfAbsent(allocator, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(millis);
+    }
+
+    public LatencyHistogram getLatency(String allocator) {
+        return _latencies.get(allocator);
+    }
+
+    public void setIndexedHosts(int hosts) {
+        _indexedHosts.set(hosts);
+    }
+
+    @Override
+    public String[] getAllocationLatencies() {
+        Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(_latencies);
+        List<String> latencies = new ArrayList<String>(sorted.size());
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            latencies.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return latencies.toArray(new String[latencies.size()]);
+    }
+
+    @Override
+    public String getAllocationLatency(String allocator) {
+        LatencyHistogram histogram = _latencies.get(allocator);
+        return histogram != null ? histogram.toString() : null;
+    }
+
+    @Override
+    public int getIndexedHosts() {
+        return _indexedHosts.get();
+    }
+
+    @Override
+    public String resetCounters() {
+        _latencies.clear();
+        return "Reset";
+    }
+}
@@ -21,13 +21,19 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.agent.AgentManager;
 import com.cloud.agent.manager.allocator.HostAllocator;
+import com.cloud.agent.manager.allocator.HostAllocatorStats;
+import com.cloud.agent.manager.allocator.impl.HostCandidateIndex.Candidate;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.deploy.DeploymentPlan;
@@ -35,13 +41,17 @@ import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.host.DetailVO;
 import com.cloud.host.Host;
 import com.cloud.host.Host.Type;
+import com.cloud.host.HostTagVO;
 import com.cloud.host.HostVO;
 import com.cloud.host.dao.HostDao;
 import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.host.dao.HostTagsDao;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.hypervisor.dao.HypervisorCapabilitiesDao;
 import com.cloud.offering.ServiceOffering;
+import com.cloud.resource.ResourceListener;
 import com.cloud.resource.ResourceManager;
+import com.cloud.resource.ResourceState;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.GuestOSCategoryVO;
 import com.cloud.storage.GuestOSVO;
@@ -52,6 +62,8 @@ import com.cloud.user.Account;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.Transaction;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachineProfile;
 import com.cloud.vm.dao.ConsoleProxyDao;
@@ -79,10 +91,18 @@ public class FirstFitAllocator implements HostAllocator {
     @Inject GuestOSCategoryDao _guestOSCategoryDao = null;
     @Inject VMInstanceDao _vmInstanceDao = null;
     @Inject ResourceManager _resourceMgr;
+    @Inject HostTagsDao _hostTagsDao;
+    @Inject AgentManager _agentMgr;
     float _factor = 1;
     boolean _checkHvm = true;
     protected String _allocationAlgorithm = "random";
     @Inject CapacityManager _capacityMgr;
+    String _haTag;
+    HostCandidateIndex _hostIndex;
+    HostCandidateIndexListener _hostIndexListener;
+    int _hostIndexListenerId = -1;
+    int _hostIndexRefreshInterval;
+    ScheduledExecutorService _executor;
     
     
 	@Override
@@ -93,6 +113,15 @@ public class FirstFitAllocator implements HostAllocator {
 	
     @Override
     public List<Host> allocateTo(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, Type type, ExcludeList avoid, int returnUpTo, boolean considerReservedCapacity) {
+        long startTime = System.currentTimeMillis();
+        try {
+            return findHosts(vmProfile, plan, type, avoid, returnUpTo, considerReservedCapacity);
+        } finally {
+            HostAllocatorStats.getInstance().record(_name, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    protected List<Host> findHosts(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, Type type, ExcludeList avoid, int returnUpTo, boolean considerReservedCapacity) {
 	
 	    long dcId = plan.getDataCenterId();
 		Long podId = plan.getPodId();
@@ -119,7 +148,30 @@ public class FirstFitAllocator implements HostAllocator {
         List<HostVO> clusterHosts = new ArrayList<HostVO>();
         
         String haVmTag = (String)vmProfile.getParameter(VirtualMachineProfile.Param.HaTag);
-        if (haVmTag != null) {
+        if (_hostIndex != null && type == Host.Type.Routing) {
+            List<String> tags = new ArrayList<String>();
+            String excludedTag = null;
+            if (haVmTag != null) {
+                tags.add(haVmTag);
+            } else if (hostTagOnOffering == null && hostTagOnTemplate == null) {
+                excludedTag = _haTag;
+            } else {
+                if (hasSvcOfferingTag) {
+                    tags.add(hostTagOnOffering);
+                }
+                if (hasTemplateTag) {
+                    tags.add(hostTagOnTemplate);
+                }
+            }
+            HypervisorType hypervisor = vmProfile.getHypervisorType();
+            if (hypervisor == HypervisorType.None || hypervisor == HypervisorType.Any) {
+                hypervisor = null;
+            }
+            clusterHosts = _hostIndex.listCandidates(dcId, podId, clusterId, hypervisor, tags, excludedTag);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Found " + clusterHosts.size() + " hosts in the candidate index with tags: " + tags + (excludedTag != null ? " and without tag: " + excludedTag : ""));
+            }
+        } else if (haVmTag != null) {
             clusterHosts = _hostDao.listByHostTag(type, clusterId, podId, dcId, haVmTag);
         } else {
             if (hostTagOnOffering == null && hostTagOnTemplate == null){
@@ -360,6 +412,13 @@ public class FirstFitAllocator implements HostAllocator {
     }
     
     protected String getHostGuestOSCategory(HostVO host) {
+        if (_hostIndex != null && _hostIndex.contains(host.getId())) {
+            return _hostIndex.getGuestOSCategory(host.getId());
+        }
+        return loadHostGuestOSCategory(host);
+    }
+
+    protected String loadHostGuestOSCategory(HostVO host) {
 		DetailVO hostDetail = _hostDetailsDao.findDetail(host.getId(), "guest.os.category.id");
 		if (hostDetail != null) {
 			String guestOSCategoryIdString = hostDetail.getValue();
@@ -406,10 +465,104 @@ public class FirstFitAllocator implements HostAllocator {
             }
             String value = configs.get("xen.check.hvm");
             _checkHvm = value == null ? true : Boolean.parseBoolean(value);
+
+            _haTag = configs.get("ha.tag");
+            value = configs.get("host.allocator.index.enabled");
+            if (value == null || Boolean.parseBoolean(value)) {
+                _hostIndex = new HostCandidateIndex();
+                _hostIndexRefreshInterval = NumbersUtil.parseInt(configs.get("host.allocator.index.refresh.interval"), 60);
+            }
         }
         return true;
     }
 
+    public void refreshIndexedHost(long hostId) {
+        HostVO host = _hostDao.findById(hostId);
+        if (host == null) {
+            removeIndexedHost(hostId);
+        } else {
+            refreshIndexedHost(host, false);
+        }
+    }
+
+    /**
+     * @param connecting true if the host is connecting, in which case it is indexed as if it were up
+     */
+    public void refreshIndexedHost(HostVO host, boolean connecting) {
+        if (_hostIndex == null) {
+            return;
+        }
+        boolean candidate = connecting ? host.getType() == Host.Type.Routing && host.getResourceState() == ResourceState.Enabled : HostCandidateIndex.isCandidate(host);
+        if (candidate) {
+            _hostIndex.put(new Candidate(host, _hostTagsDao.gethostTags(host.getId()), loadHostGuestOSCategory(host)));
+        } else {
+            _hostIndex.remove(host.getId());
+        }
+        HostAllocatorStats.getInstance().setIndexedHosts(_hostIndex.size());
+    }
+
+    public void removeIndexedHost(long hostId) {
+        if (_hostIndex == null) {
+            return;
+        }
+        _hostIndex.remove(hostId);
+        HostAllocatorStats.getInstance().setIndexedHosts(_hostIndex.size());
+    }
+
+    protected void reloadHostIndex() {
+        Map<Long, List<String>> tagsByHost = new HashMap<Long, List<String>>();
+        for (HostTagVO tag : _hostTagsDao.listAll()) {
+            List<String> tags = tagsByHost.get(tag.getHostId());
+            if (tags == null) {
+                tags = new ArrayList<String>();
+                tagsByHost.put(tag.getHostId(), tags);
+            }
+            tags.add(tag.getTag());
+        }
+
+        Map<Long, String> categoryNames = new HashMap<Long, String>();
+        for (GuestOSCategoryVO category : _guestOSCategoryDao.listAll()) {
+            categoryNames.put(category.getId(), category.getName());
+        }
+        Map<Long, String> categoryByHost = _hostDetailsDao.findDetailsByName("guest.os.category.id");
+
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (HostVO host : _resourceMgr.listAllHostsInAllZonesByType(Host.Type.Routing)) {
+            if (!HostCandidateIndex.isCandidate(host)) {
+                continue;
+            }
+            String categoryName = null;
+            String categoryId = categoryByHost.get(host.getId());
+            if (categoryId != null) {
+                try {
+                    categoryName = categoryNames.get(Long.parseLong(categoryId));
+                } catch (NumberFormatException e) {
+                    // treated like a host without a category, as getHostGuestOSCategory does
+                }
+            }
+            candidates.add(new Candidate(host, tagsByHost.get(host.getId()), categoryName));
+        }
+        _hostIndex.reload(candidates);
+        HostAllocatorStats.getInstance().setIndexedHosts(candidates.size());
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Host candidate index reloaded with " + candidates.size() + " hosts");
+        }
+    }
+
+    protected class HostIndexRefreshTask implements Runnable {
+        @Override
+        public void run() {
+            Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+            try {
+                reloadHostIndex();
+            } catch (Throwable t) {
+                s_logger.warn("Unable to reload the host candidate index", t);
+            } finally {
+                txn.close();
+            }
+        }
+    }
+
     @Override
     public String getName() {
         return _name;
@@ -417,11 +570,25 @@ public class FirstFitAllocator implements HostAllocator {
 
     @Override
     public boolean start() {
+        if (_hostIndex != null) {
+            reloadHostIndex();
+            _hostIndexListener = new HostCandidateIndexListener(this);
+            _hostIndexListenerId = _agentMgr.registerForHostEvents(_hostIndexListener, true, false, false);
+            _resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER | ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER
+                    | ResourceListener.EVENT_DELETE_HOST_AFTER | ResourceListener.EVENT_UPDATE_HOST_AFTER, _hostIndexListener);
+            _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("HostCandidateIndex"));
+            _executor.scheduleWithFixedDelay(new HostIndexRefreshTask(), _hostIndexRefreshInterval, _hostIndexRefreshInterval, TimeUnit.SECONDS);
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
+        if (_hostIndex != null) {
+            _executor.shutdown();
+            _agentMgr.unregisterForHostEvents(_hostIndexListenerId);
+            _resourceMgr.unregisterResourceEvent(_hostIndexListener);
+        }
         return true;
     }
 
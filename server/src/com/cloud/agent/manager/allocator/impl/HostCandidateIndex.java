@@ -0,0 +1,219 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.resource.ResourceState;
+
+/**
+ * HostCandidateIndex keeps the routing hosts that can take vms in memory, indexed by
+ * cluster and by host tag, along with the guest OS category each host is set to prefer.
+ * Host allocators filter it instead of searching the host tables on every allocation.
+ */
+public class HostCandidateIndex {
+
+    public static class Candidate {
+        final HostVO _host;
+        final Set<String> _tags;
+        final String _guestOSCategory;
+
+        public Candidate(HostVO host, Collection<String> tags, String guestOSCategory) {
+            _host = host;
+            _tags = tags == null ? Collections.<String>emptySet() : normalize(tags);
+            _guestOSCategory = guestOSCategory;
+        }
+
+        public HostVO getHost() {
+            return _host;
+        }
+
+        /**
+         * @return the host's tags, in lower case
+         */
+        public Set<String> getTags() {
+            return _tags;
+        }
+
+        public String getGuestOSCategory() {
+            return _guestOSCategory;
+        }
+    }
+
+    private final Map<Long, Candidate> _hosts = new TreeMap<Long, Candidate>();
+    private final Map<Long, Set<Long>> _byCluster = new HashMap<Long, Set<Long>>();
+    private final Map<String, Set<Long>> _byTag = new HashMap<String, Set<Long>>();
+
+    /**
+     * @return true if the host is a routing host that is up and enabled
+     */
+    public static boolean isCandidate(HostVO host) {
+        return host.getType() == Host.Type.Routing && host.getStatus() == Status.Up && host.getResourceState() == ResourceState.Enabled;
+    }
+
+    /**
+     * Replaces the whole index.
+     */
+    public synchronized void reload(Collection<Candidate> candidates) {
+        _hosts.clear();
+        _byCluster.clear();
+        _byTag.clear();
+        for (Candidate candidate : candidates) {
+            add(candidate);
+        }
+    }
+
+    public synchronized void put(Candidate candidate) {
+        remove(candidate.getHost().getId());
+        add(candidate);
+    }
+
+    public synchronized void remove(long hostId) {
+        Candidate candidate = _hosts.remove(hostId);
+        if (candidate == null) {
+            return;
+        }
+        removeFrom(_byCluster, candidate.getHost().getClusterId(), hostId);
+        for (String tag : candidate.getTags()) {
+            removeFrom(_byTag, tag, hostId);
+        }
+    }
+
+    public synchronized boolean contains(long hostId) {
+        return _hosts.containsKey(hostId);
+    }
+
+    public synchronized int size() {
+        return _hosts.size();
+    }
+
+    public synchronized String getGuestOSCategory(long hostId) {
+        Candidate candidate = _hosts.get(hostId);
+        return candidate != null ? candidate.getGuestOSCategory() : null;
+    }
+
+    /**
+     * @param dcId zone of the hosts
+     * @param podId pod of the hosts, null for any
+     * @param clusterId cluster of the hosts, null for any
+     * @param hypervisor hypervisor of the hosts, null for any
+     * @param tags tags every host must have
+     * @param excludedTag tag the hosts must not have, null for none
+     * @return hosts in order of id
+     */
+    public synchronized List<HostVO> listCandidates(long dcId, Long podId, Long clusterId, HypervisorType hypervisor, Collection<String> tags, String excludedTag) {
+        // tags compare case insensitively, as they did in the host_tags queries
+        if (tags != null) {
+            tags = normalize(tags);
+        }
+        if (excludedTag != null) {
+            excludedTag = excludedTag.toLowerCase();
+        }
+        Collection<Long> hostIds = _hosts.keySet();
+        if (clusterId != null) {
+            hostIds = get(_byCluster, clusterId);
+        }
+        if (tags != null) {
+            for (String tag : tags) {
+                Set<Long> tagged = get(_byTag, tag);
+                if (tagged.size() < hostIds.size()) {
+                    hostIds = tagged;
+                }
+            }
+        }
+
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (Long hostId : hostIds) {
+            Candidate candidate = _hosts.get(hostId);
+            HostVO host = candidate.getHost();
+            if (host.getDataCenterId() != dcId) {
+                continue;
+            }
+            if (podId != null && !podId.equals(host.getPodId())) {
+                continue;
+            }
+            if (clusterId != null && !clusterId.equals(host.getClusterId())) {
+                continue;
+            }
+            if (hypervisor != null && hypervisor != host.getHypervisorType()) {
+                continue;
+            }
+            if (tags != null && !candidate.getTags().containsAll(tags)) {
+                continue;
+            }
+            if (excludedTag != null && candidate.getTags().contains(excludedTag)) {
+                continue;
+            }
+            hosts.add(host);
+        }
+        return hosts;
+    }
+
+    static Set<String> normalize(Collection<String> tags) {
+        Set<String> normalized = new HashSet<String>();
+        for (String tag : tags) {
+            normalized.add(tag.toLowerCase());
+        }
+        return normalized;
+    }
+
+    private void add(Candidate candidate) {
+        long hostId = candidate.getHost().getId();
+        _hosts.put(hostId, candidate);
+        addTo(_byCluster, candidate.getHost().getClusterId(), hostId);
+        for (String tag : candidate.getTags()) {
+            addTo(_byTag, tag, hostId);
+        }
+    }
+
+    private static <K> Set<Long> get(Map<K, Set<Long>> index, K key) {
+        Set<Long> hostIds = index.get(key);
+        return hostIds != null ? hostIds : Collections.<Long>emptySet();
+    }
+
+    private static <K> void addTo(Map<K, Set<Long>> index, K key, long hostId) {
+        Set<Long> hostIds = index.get(key);
+        if (hostIds == null) {
+            hostIds = new TreeSet<Long>();
+            index.put(key, hostIds);
+        }
+        hostIds.add(hostId);
+    }
+
+    private static <K> void removeFrom(Map<K, Set<Long>> index, K key, long hostId) {
+        Set<Long> hostIds = index.get(key);
+        if (hostIds != null) {
+            hostIds.remove(hostId);
+            if (hostIds.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.AgentControlAnswer;
+import com.cloud.agent.api.AgentControlCommand;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.api.StartupRoutingCommand;
+import com.cloud.exception.ConnectionException;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.resource.ResourceListener;
+import com.cloud.resource.ServerResource;
+
+/**
+ * Keeps a FirstFitAllocator's host candidate index current as hosts connect, disconnect,
+ * go in and out of maintenance, are enabled, disabled, tagged or deleted.
+ */
+public class HostCandidateIndexListener implements Listener, ResourceListener {
+    FirstFitAllocator _allocator;
+
+    public HostCandidateIndexListener(FirstFitAllocator allocator) {
+        _allocator = allocator;
+    }
+
+    @Override
+    public boolean processAnswers(long agentId, long seq, Answer[] answers) {
+        return false;
+    }
+
+    @Override
+    public boolean processCommands(long agentId, long seq, Command[] commands) {
+        return false;
+    }
+
+    @Override
+    public AgentControlAnswer processControlCommand(long agentId, AgentControlCommand cmd) {
+        return null;
+    }
+
+    @Override
+    public void processConnect(HostVO host, StartupCommand cmd, boolean forRebalance) throws ConnectionException {
+        if (!(cmd instanceof StartupRoutingCommand)) {
+            return;
+        }
+        // the host is not Up until all connect listeners are done, so it is indexed as if it were
+        _allocator.refreshIndexedHost(host, true);
+    }
+
+    @Override
+    public boolean processDisconnect(long agentId, Status state) {
+        _allocator.removeIndexedHost(agentId);
+        return false;
+    }
+
+    @Override
+    public boolean isRecurring() {
+        return false;
+    }
+
+    @Override
+    public int getTimeout() {
+        return 0;
+    }
+
+    @Override
+    public boolean processTimeout(long agentId, long seq) {
+        return false;
+    }
+
+    @Override
+    public void processDiscoverEventBefore(Long dcid, Long podId, Long clusterId, URI uri, String username, String password, List<String> hostTags) {
+    }
+
+    @Override
+    public void processDiscoverEventAfter(Map<? extends ServerResource, Map<String, String>> resources) {
+    }
+
+    @Override
+    public void processDeleteHostEventBefore(HostVO host) {
+    }
+
+    @Override
+    public void processDeletHostEventAfter(HostVO host) {
+        _allocator.removeIndexedHost(host.getId());
+    }
+
+    @Override
+    public void processCancelMaintenaceEventBefore(Long hostId) {
+    }
+
+    @Override
+    public void processCancelMaintenaceEventAfter(Long hostId) {
+        _allocator.refreshIndexedHost(hostId);
+    }
+
+    @Override
+    public void processPrepareMaintenaceEventBefore(Long hostId) {
+    }
+
+    @Override
+    public void processPrepareMaintenaceEventAfter(Long hostId) {
+        _allocator.removeIndexedHost(hostId);
+    }
+
+    @Override
+    public void processUpdateHostEventAfter(Long hostId) {
+        _allocator.refreshIndexedHost(hostId);
+    }
+}
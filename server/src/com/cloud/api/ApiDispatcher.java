@@ -332,11 +332,16 @@ public class ApiDispatcher {
             superClass = superClass.getSuperclass();
         }
 
+        // only the commands that take a continuation token page by it, the others would list their first page again
+        boolean continuationTokenTaken = false;
         for (Field field : fields) {
             Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
             if ((parameterAnnotation == null) || !parameterAnnotation.expose()) {
                 continue;
             }
+            if (ApiConstants.CONTINUATION_TOKEN.equals(parameterAnnotation.name())) {
+                continuationTokenTaken = true;
+            }
 
             IdentityMapper identityMapper = field.getAnnotation(IdentityMapper.class);
 
@@ -375,6 +380,11 @@ public class ApiDispatcher {
                 throw new ServerApiException(BaseCmd.INTERNAL_ERROR, "Internal error executing API command " + cmd.getCommandName().substring(0, cmd.getCommandName().length() - 8));
             }
         }
+
+        if (!continuationTokenTaken && (unpackedParams.get(ApiConstants.CONTINUATION_TOKEN) != null)) {
+            throw new ServerApiException(BaseCmd.PARAM_ERROR, "Unable to execute API command " + cmd.getCommandName().substring(0, cmd.getCommandName().length() - 8) + " as it doesn't support parameter "
+                    + ApiConstants.CONTINUATION_TOKEN);
+        }
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -0,0 +1,508 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.StackMaid;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * ApiNioListener serves the integration API port from a single selector
+ * thread.  Connections are kept alive between requests and only a parsed
+ * request occupies a worker thread.  The worker queue is bounded; when it is
+ * full the request is answered right away with a 503 and a Retry-After
+ * header instead of piling up behind the ones already waiting.
+ *
+ * Requests on a connection are served one at a time.  A pipelined request is
+ * left in the read buffer until the response to the previous one is out.
+ */
+public class ApiNioListener extends Thread {
+    private static final Logger s_logger = Logger.getLogger(ApiNioListener.class);
+
+    public static final String REMOTE_ADDRESS = "api.remote.address";
+
+    protected static final int MAX_REQUEST_SIZE = 1024 * 1024;
+    protected static final int IDLE_TIMEOUT = 30000;
+    protected static final String SERVER = "HttpComponents/1.1";
+
+    private final HttpRequestHandler _handler;
+    private final int _port;
+    private final int _retryAfter;
+    private final ThreadPoolExecutor _workers;
+    private final ConcurrentLinkedQueue<Connection> _responses = new ConcurrentLinkedQueue<Connection>();
+    private final ApiServerStats _stats = ApiServerStats.getInstance();
+    private Selector _selector;
+    private volatile ServerSocketChannel _serverChannel;
+
+    public ApiNioListener(HttpRequestHandler handler, int port, int workers, int queueSize, int retryAfter) {
+        super("ApiServer-Listener");
+        setDaemon(true);
+        _handler = handler;
+        _port = port;
+        _retryAfter = retryAfter;
+        _workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("ApiServer"));
+    }
+
+    protected void init() throws IOException {
+        _selector = Selector.open();
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.configureBlocking(false);
+        _serverChannel.socket().setReuseAddress(true);
+        _serverChannel.socket().bind(new InetSocketAddress(_port));
+        _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getLocalPort() {
+        return _serverChannel != null ? _serverChannel.socket().getLocalPort() : -1;
+    }
+
+    @Override
+    public void run() {
+        try {
+            init();
+        } catch (IOException e) {
+            s_logger.error("error initializing api server", e);
+            return;
+        }
+        s_logger.info("ApiServer listening on port " + getLocalPort() + " without blocking");
+
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (!Thread.interrupted()) {
+                _selector.select(1000);
+
+                Connection conn;
+                while ((conn = _responses.poll()) != null) {
+                    try {
+                        write(conn);
+                    } catch (IOException e) {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("ApiServer:  IOException - " + e);
+                        }
+                        close(conn.key);
+                    }
+                }
+
+                Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            conn = (Connection)key.attachment();
+                            if (key.isReadable()) {
+                                read(conn);
+                            } else if (key.isWritable()) {
+                                write(conn);
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("ApiServer:  IOException - " + e);
+                        }
+                        close(key);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep > 1000) {
+                    closeIdleConnections(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+        } catch (IOException e) {
+            s_logger.error("I/O error on the api server selector", e);
+        } finally {
+            cleanUp();
+        }
+    }
+
+    public void shutdown() {
+        interrupt();
+        _selector.wakeup();
+    }
+
+    protected void cleanUp() {
+        _workers.shutdown();
+        try {
+            for (SelectionKey key : _selector.keys()) {
+                close(key);
+            }
+            _selector.close();
+            _serverChannel.close();
+        } catch (IOException e) {
+            s_logger.debug("Unable to close the api server channels", e);
+        }
+    }
+
+    protected void accept() throws IOException {
+        SocketChannel channel = _serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(_selector, SelectionKey.OP_READ, conn);
+        _stats.connectionOpened();
+    }
+
+    protected void read(Connection conn) throws IOException {
+        if (!conn.in.hasRemaining()) {
+            if (conn.in.capacity() >= MAX_REQUEST_SIZE) {
+                respond(conn, HttpStatus.SC_REQUEST_TOO_LONG, "Request is too large", false);
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(conn.in.capacity() * 2, MAX_REQUEST_SIZE));
+            conn.in.flip();
+            bigger.put(conn.in);
+            conn.in = bigger;
+        }
+
+        if (conn.channel.read(conn.in) < 0) {
+            close(conn.key);
+            return;
+        }
+        conn.lastActive = System.currentTimeMillis();
+        dispatch(conn);
+    }
+
+    protected void dispatch(Connection conn) {
+        Request request;
+        try {
+            request = parse(conn.in);
+        } catch (IllegalArgumentException e) {
+            respond(conn, HttpStatus.SC_BAD_REQUEST, e.getMessage(), false);
+            return;
+        }
+        if (request == null) {
+            return;
+        }
+
+        if (conn.requests++ > 0) {
+            _stats.connectionReused();
+        }
+        conn.keepAlive = request.keepAlive;
+        // Stop reading until the response is written out.
+        conn.key.interestOps(0);
+        try {
+            _workers.execute(new WorkerTask(conn, request));
+        } catch (RejectedExecutionException e) {
+            _stats.rejected();
+            s_logger.info("Rejecting " + request.request.getRequestLine() + " from " + conn.remoteAddress + " because all api workers are busy");
+            respond(conn, HttpStatus.SC_SERVICE_UNAVAILABLE, "Server is busy, please retry later", request.keepAlive, request.jsonResponse);
+        }
+    }
+
+    protected void write(Connection conn) throws IOException {
+        if (!conn.key.isValid()) {
+            return;
+        }
+        conn.channel.write(conn.out);
+        if (conn.out.hasRemaining()) {
+            conn.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        conn.out = null;
+        conn.lastActive = System.currentTimeMillis();
+        if (!conn.keepAlive) {
+            close(conn.key);
+            return;
+        }
+        conn.key.interestOps(SelectionKey.OP_READ);
+        if (conn.in.position() > 0) {
+            // There's a pipelined request waiting already.
+            dispatch(conn);
+        }
+    }
+
+    protected void close(SelectionKey key) {
+        key.cancel();
+        Object attachment = key.attachment();
+        if (attachment instanceof Connection) {
+            Connection conn = (Connection)attachment;
+            if (!conn.closed) {
+                conn.closed = true;
+                _stats.connectionClosed();
+            }
+        }
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+    }
+
+    protected void closeIdleConnections(long now) {
+        for (SelectionKey key : _selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection conn = (Connection)attachment;
+                // Connections waiting on a worker don't count as idle.
+                if (key.isValid() && key.interestOps() == SelectionKey.OP_READ && now - conn.lastActive > IDLE_TIMEOUT) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    protected void respond(Connection conn, int status, String message, boolean keepAlive) {
+        respond(conn, status, message, keepAlive, false);
+    }
+
+    protected void respond(Connection conn, int status, String message, boolean keepAlive, boolean json) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        if (status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            response.addHeader("Retry-After", Integer.toString(_retryAfter));
+        }
+        String body = json ? "{ \"error\" : { \"description\" : \"" + message + "\" } }" : "<error>" + message + "</error>";
+        conn.keepAlive = keepAlive;
+        try {
+            conn.out = format(response, json ? ApiServer.jsonContentType : "text/xml", body.getBytes("UTF-8"), keepAlive);
+            conn.key.interestOps(SelectionKey.OP_WRITE);
+        } catch (UnsupportedEncodingException e) {
+            close(conn.key);
+        }
+    }
+
+    protected static ByteBuffer format(HttpResponse response, String contentType, byte[] content, boolean keepAlive) throws UnsupportedEncodingException {
+        int status = response.getStatusLine().getStatusCode();
+        String reason = response.getStatusLine().getReasonPhrase();
+        if (reason == null) {
+            reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH);
+        }
+        if (reason == null) {
+            reason = "Error";
+        }
+
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason.replace('\r', ' ').replace('\n', ' ')).append("\r\n");
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        head.append("Date: ").append(dateFormat.format(new Date())).append("\r\n");
+        head.append("Server: ").append(SERVER).append("\r\n");
+        for (Header header : response.getAllHeaders()) {
+            head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        head.append("Content-Length: ").append(content.length).append("\r\n");
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+
+        byte[] headBytes = head.toString().getBytes("ISO-8859-1");
+        ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + content.length);
+        buffer.put(headBytes).put(content);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Parses one request off the front of the buffer.  The buffer is in write
+     * mode before and after the call; the bytes of a parsed request are
+     * removed from it.
+     * @return the request or null if it hasn't been fully received yet.
+     */
+    protected static Request parse(ByteBuffer in) {
+        byte[] data = in.array();
+        int length = in.position();
+        int headEnd = -1;
+        for (int i = 3; i < length; i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                headEnd = i + 1;
+                break;
+            }
+        }
+        if (headEnd < 0) {
+            return null;
+        }
+
+        String head;
+        try {
+            head = new String(data, 0, headEnd - 4, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Unable to decode the request");
+        }
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+            throw new IllegalArgumentException("Malformed request line");
+        }
+
+        int contentLength = 0;
+        String connection = null;
+        String contentType = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid Content-Length");
+                }
+            } else if (name.equalsIgnoreCase("Connection")) {
+                connection = value;
+            } else if (name.equalsIgnoreCase("Content-Type")) {
+                contentType = value;
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                throw new IllegalArgumentException("Transfer-Encoding is not supported");
+            }
+        }
+        if (contentLength < 0 || headEnd + contentLength > MAX_REQUEST_SIZE) {
+            throw new IllegalArgumentException("Invalid Content-Length");
+        }
+        if (length < headEnd + contentLength) {
+            return null;
+        }
+
+        String uri = requestLine[1];
+        if (contentLength > 0 && contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            // Form posts carry the same parameters a GET puts in the query string.
+            try {
+                uri = uri + (uri.indexOf('?') >= 0 ? "&" : "?") + new String(data, headEnd, contentLength, "ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalArgumentException("Unable to decode the request");
+            }
+        }
+
+        in.flip();
+        in.position(headEnd + contentLength);
+        in.compact();
+
+        HttpVersion version = requestLine[2].equals("HTTP/1.0") ? HttpVersion.HTTP_1_0 : HttpVersion.HTTP_1_1;
+        boolean keepAlive = version == HttpVersion.HTTP_1_1 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+        return new Request(new BasicHttpRequest(requestLine[0], uri, version), keepAlive, uri.indexOf("response=json") >= 0);
+    }
+
+    protected static class Request {
+        final HttpRequest request;
+        final boolean keepAlive;
+        final boolean jsonResponse;
+
+        public Request(HttpRequest request, boolean keepAlive, boolean jsonResponse) {
+            this.request = request;
+            this.keepAlive = keepAlive;
+            this.jsonResponse = jsonResponse;
+        }
+    }
+
+    protected static class Connection {
+        final SocketChannel channel;
+        final String remoteAddress;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(8 * 1024);
+        ByteBuffer out;
+        long lastActive = System.currentTimeMillis();
+        boolean keepAlive;
+        boolean closed;
+        int requests;
+
+        public Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.remoteAddress = channel.socket().getInetAddress().toString();
+        }
+    }
+
+    protected class WorkerTask implements Runnable {
+        private final Connection _conn;
+        private final Request _request;
+
+        public WorkerTask(Connection conn, Request request) {
+            _conn = conn;
+            _request = request;
+        }
+
+        @Override
+        public void run() {
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null);
+            HttpContext context = new BasicHttpContext(null);
+            context.setAttribute(REMOTE_ADDRESS, _conn.remoteAddress);
+            try {
+                byte[] content;
+                String contentType = null;
+                try {
+                    _handler.handle(_request.request, response, context);
+                    HttpEntity entity = response.getEntity();
+                    content = entity != null ? EntityUtils.toByteArray(entity) : new byte[0];
+                    if (entity != null && entity.getContentType() != null) {
+                        contentType = entity.getContentType().getValue();
+                    }
+                } catch (Exception e) {
+                    s_logger.warn("ApiServer:  Unable to handle " + _request.request.getRequestLine(), e);
+                    response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, null);
+                    contentType = "text/xml";
+                    content = "<error>Internal Server Error</error>".getBytes("UTF-8");
+                } finally {
+                    StackMaid.current().exitCleanup();
+                }
+                _conn.out = format(response, contentType, content, _request.keepAlive);
+            } catch (UnsupportedEncodingException e) {
+                s_logger.error("Unable to format the response", e);
+                _conn.keepAlive = false;
+                _conn.out = ByteBuffer.allocate(0);
+            }
+            _responses.add(_conn);
+            _selector.wakeup();
+        }
+    }
+}
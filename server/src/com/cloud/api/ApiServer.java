@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -106,6 +107,7 @@ import com.cloud.user.UserAccount;
 import com.cloud.user.UserContext;
 import com.cloud.user.UserVO;
 import com.cloud.utils.IdentityProxy;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.StringUtils;
@@ -137,6 +139,7 @@ public class ApiServer implements HttpRequestHandler {
     private User _systemUser = null;
 
     private static int _workerCount = 0;
+    private static final int STREAMING_THRESHOLD = 500;
 
     private static ApiServer s_instance = null;
     private static List<String> s_userCommands = null;
@@ -299,8 +302,16 @@ public class ApiServer implements HttpRequestHandler {
         }
 
         if (apiPort != null) {
-            ListenerThread listenerThread = new ListenerThread(this, apiPort);
-            listenerThread.start();
+            if (Boolean.parseBoolean(configDao.getValue(Config.IntegrationAPINio.key()))) {
+                int workers = NumbersUtil.parseInt(configDao.getValue(Config.IntegrationAPIWorkers.key()), 150);
+                int queueSize = NumbersUtil.parseInt(configDao.getValue(Config.IntegrationAPIQueueSize.key()), 100);
+                int retryAfter = NumbersUtil.parseInt(configDao.getValue(Config.IntegrationAPIRetryAfter.key()), 5);
+                ApiNioListener listener = new ApiNioListener(this, apiPort, workers, queueSize, retryAfter);
+                listener.start();
+            } else {
+                ListenerThread listenerThread = new ListenerThread(this, apiPort);
+                listenerThread.start();
+            }
         } 
     }
 
@@ -313,6 +324,8 @@ public class ApiServer implements HttpRequestHandler {
         if (connObj instanceof SocketHttpServerConnection) {
             InetAddress remoteAddr = ((SocketHttpServerConnection) connObj).getRemoteAddress();
             sb.append(remoteAddr.toString() + " -- ");
+        } else if (context.getAttribute(ApiNioListener.REMOTE_ADDRESS) != null) {
+            sb.append(context.getAttribute(ApiNioListener.REMOTE_ADDRESS) + " -- ");
         }
         sb.append(StringUtils.cleanString(request.getRequestLine().toString()));
 
@@ -372,8 +385,18 @@ public class ApiServer implements HttpRequestHandler {
 
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
+        return handleRequest(params, decode, responseType, auditTrailSb, null);
+    }
+
+    /**
+     * @param out if not null, large list responses are written straight to it
+     * as they are serialized and null is returned in place of the response.
+     */
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb, Writer out) throws ServerApiException {
         String response = null;
         String[] command = null;
+        long startTime = System.currentTimeMillis();
         try {
             command = (String[]) params.get("command");
             if (command == null) {
@@ -421,8 +444,12 @@ public class ApiServer implements HttpRequestHandler {
                     cmdObj.setFullUrlParams(paramMap);
                     cmdObj.setResponseType(responseType);
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
-                    buildAuditTrail(auditTrailSb, command[0], response);
+                    response = queueCommand(cmdObj, paramMap, out);
+                    if (response == null && out != null && isStreamed(cmdObj)) {
+                        auditTrailSb.append(" " + HttpServletResponse.SC_OK + " streamed " + ((ListResponse) cmdObj.getResponseObject()).getCount() + " objects");
+                    } else {
+                        buildAuditTrail(auditTrailSb, command[0], response);
+                    }
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
                         String errorString = "Unknown API command: " + ((command == null) ? "null" : command[0]);
@@ -470,11 +497,17 @@ public class ApiServer implements HttpRequestHandler {
                 e.setCSErrorCode(CSExceptionErrorCode.getCSErrCode("ServerApiException"));
                 throw e;
             }
+        } finally {
+            if (command != null) {
+                // names that aren't api commands share a bucket, so clients can't add histograms at will
+                String statsName = _apiCommands.getProperty(command[0]) != null ? command[0] : ApiServerStats.UNKNOWN_COMMAND;
+                ApiServerStats.getInstance().record(statsName, System.currentTimeMillis() - startTime);
+            }
         }
         return response;
     }
 
-    private String queueCommand(BaseCmd cmdObj, Map<String, String> params) {
+    private String queueCommand(BaseCmd cmdObj, Map<String, String> params, Writer out) throws IOException {
         UserContext ctx = UserContext.current();
         Long callerUserId = ctx.getCallerUserId();
         Account caller = ctx.getCaller();
@@ -546,13 +579,31 @@ public class ApiServer implements HttpRequestHandler {
             }
 
             SerializationContext.current().setUuidTranslation(true);
+            if (out != null && isStreamed(cmdObj)) {
+                ApiResponseSerializer.toSerializedStream((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType(), out);
+                return null;
+            }
             return ApiResponseSerializer.toSerializedString((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType());
         }
     }
 
+    /**
+     * Large lists are streamed rather than serialized into a string.  The
+     * small ones still go through the string so they show up in the audit trail.
+     */
+    private boolean isStreamed(BaseCmd cmdObj) {
+        if (cmdObj instanceof BaseAsyncCmd || !(cmdObj.getResponseObject() instanceof ListResponse)) {
+            return false;
+        }
+        Integer size = ((ListResponse<?>) cmdObj.getResponseObject()).getResponseSize();
+        return size != null && size > STREAMING_THRESHOLD;
+    }
+
+    @SuppressWarnings("unchecked")
     private void buildAsyncListResponse(BaseListCmd command, Account account) {
-        List<ResponseObject> responses = ((ListResponse) command.getResponseObject()).getResponses();
-        if (responses != null && responses.size() > 0) {
+        final ListResponse<ResponseObject> listResponse = (ListResponse<ResponseObject>) command.getResponseObject();
+        Integer count = listResponse.getCount();
+        if (count != null && count > 0) {
             List<? extends AsyncJob> jobs = null;
 
             // list all jobs for ROOT admin
@@ -566,18 +617,55 @@ public class ApiServer implements HttpRequestHandler {
                 return;
             }
 
-            // Using maps might possibly be more efficient if the set is large enough but for now, we'll just do a
-            // comparison of two lists. Either way, there shouldn't be too many async jobs active for the account.
+            // There shouldn't be too many async jobs active for the account so
+            // a map of them is cheap, and each response only needs one lookup.
+            final Map<Long, AsyncJob> pendingJobs = new HashMap<Long, AsyncJob>();
             for (AsyncJob job : jobs) {
-                if (job.getInstanceId() == null) {
-                    continue;
+                if (job.getInstanceId() != null) {
+                    pendingJobs.put(job.getInstanceId(), job);
                 }
-                for (ResponseObject response : responses) {
-                    if (response.getObjectId() != null && job.getInstanceId().longValue() == response.getObjectId().longValue()) {
-                        response.setJobId(job.getId());
-                        response.setJobStatus(job.getStatus());
-                    }
+            }
+
+            if (!listResponse.hasResponseSource()) {
+                for (ResponseObject response : listResponse.getResponses()) {
+                    setPendingJob(response, pendingJobs);
                 }
+                return;
+            }
+
+            final Iterator<ResponseObject> source = listResponse.getResponseIterator();
+            listResponse.setResponseSource(new Iterable<ResponseObject>() {
+                @Override
+                public Iterator<ResponseObject> iterator() {
+                    return new Iterator<ResponseObject>() {
+                        @Override
+                        public boolean hasNext() {
+                            return source.hasNext();
+                        }
+
+                        @Override
+                        public ResponseObject next() {
+                            ResponseObject response = source.next();
+                            setPendingJob(response, pendingJobs);
+                            return response;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            }, listResponse.getResponseSize(), count);
+        }
+    }
+
+    private void setPendingJob(ResponseObject response, Map<Long, AsyncJob> pendingJobs) {
+        if (response.getObjectId() != null) {
+            AsyncJob job = pendingJobs.get(response.getObjectId());
+            if (job != null) {
+                response.setJobId(job.getId());
+                response.setJobStatus(job.getStatus());
             }
         }
     }
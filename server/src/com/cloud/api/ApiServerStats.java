@@ -0,0 +1,135 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * ApiServerStats keeps a latency histogram per API command along with the
+ * counters of the non-blocking integration port listener.
+ */
+public class ApiServerStats extends StandardMBean implements ApiServerStatsMBean {
+    private static final Logger s_logger = Logger.getLogger(ApiServerStats.class);
+
+    private static final ApiServerStats s_instance = new ApiServerStats(true);
+
+    // latencies of the requests that didn't name an api command
+    public static final String UNKNOWN_COMMAND = "unknown";
+
+    private final ConcurrentHashMap<String, LatencyHistogram> _latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final AtomicLong _rejected = new AtomicLong();
+    private final AtomicLong _open = new AtomicLong();
+    private final AtomicLong _reused = new AtomicLong();
+
+    public static ApiServerStats getInstance() {
+        return s_instance;
+    }
+
+    protected ApiServerStats(boolean register) {
+        super(ApiServerStatsMBean.class, false);
+        if (register) {
+            try {
+                JmxUtil.registerMBean("ApiServer", "Stats", this);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register the api server stats mbean", e);
+            }
+        }
+    }
+
+    public void record(String command, long millis) {
+        LatencyHistogram histogram = _latencies.get(command);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = _latencies.putIfAbsent(command, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(millis);
+    }
+
+    public LatencyHistogram getLatency(String command) {
+        return _latencies.get(command);
+    }
+
+    public void rejected() {
+        _rejected.incrementAndGet();
+    }
+
+    public void connectionOpened() {
+        _open.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        _open.decrementAndGet();
+    }
+
+    public void connectionReused() {
+        _reused.incrementAndGet();
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(_latencies);
+        List<String> latencies = new ArrayList<String>(sorted.size());
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            latencies.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return latencies.toArray(new String[latencies.size()]);
+    }
+
+    @Override
+    public String getCommandLatency(String command) {
+        LatencyHistogram histogram = _latencies.get(command);
+        return histogram != null ? histogram.toString() : null;
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return _rejected.get();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return _open.get();
+    }
+
+    @Override
+    public long getReusedConnections() {
+        return _reused.get();
+    }
+
+    @Override
+    public String resetCounters() {
+        _latencies.clear();
+        _rejected.set(0);
+        _reused.set(0);
+        return "Reset";
+    }
+}
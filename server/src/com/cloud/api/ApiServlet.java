@@ -44,6 +44,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 public class ApiServlet extends HttpServlet {
     public static final Logger s_logger = Logger.getLogger(ApiServlet.class.getName());
     private static final Logger s_accessLogger = Logger.getLogger("apiserver." + ApiServer.class.getName());
+    private static final int STREAMING_BUFFER_SIZE = 64 * 1024;
 
     private ApiServer _apiServer = null;
     private AccountService _accountMgr = null;
@@ -309,8 +310,14 @@ public class ApiServlet extends HttpServlet {
                                 + ")");
 
                 try {
-                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb);
-                    writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
+                    // large lists are written to the response as they are serialized, the
+                    // buffer holds off committing it so early errors still get their status
+                    setContentType(resp, responseType);
+                    resp.setBufferSize(STREAMING_BUFFER_SIZE);
+                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb, resp.getWriter());
+                    if (response != null) {
+                        writeResponse(resp, response, HttpServletResponse.SC_OK, responseType);
+                    }
                 } catch (ServerApiException se) {
                     String serializedResponseText = _apiServer.getSerializedApiError(se.getErrorCode(), se.getDescription(), params, responseType, null);
                     resp.setHeader("X-Description", se.getDescription());
@@ -361,14 +368,24 @@ public class ApiServlet extends HttpServlet {
      * if(accountObj != null) accountId = accountObj.getId(); UserContext.updateContext(userId, accountId, sessionId); }
      */
 
+    private void setContentType(HttpServletResponse resp, String responseType) {
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
+        } else {
+            resp.setContentType("text/xml; charset=UTF-8");
+        }
+    }
+
     // FIXME: rather than isError, we might was to pass in the status code to give more flexibility
     private void writeResponse(HttpServletResponse resp, String response, int responseCode, String responseType) {
         try {
-            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
-            } else {
-                resp.setContentType("text/xml; charset=UTF-8");
+            if (resp.isCommitted()) {
+                // a streamed list failed part way, it has been ended with the error already
+                s_logger.warn("Unable to send response code " + responseCode + " as part of the response has been sent");
+                return;
             }
+            resp.resetBuffer();
+            setContentType(resp, responseType);
 
             resp.setStatus(responseCode);
             resp.getWriter().print(response);
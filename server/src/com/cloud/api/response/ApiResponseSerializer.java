@@ -16,12 +16,16 @@
 // under the License.
 package com.cloud.api.response;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -53,6 +57,25 @@ public class ApiResponseSerializer {
         }
     }
 
+    /**
+     * Writes the serialized response to out.  List responses are written one
+     * object at a time so the memory used doesn't depend on the size of the
+     * list, especially when the objects come from a response source.  If a
+     * list object can't be created or serialized the list is ended with an
+     * errorcode and errortext before the exception is thrown, since what was
+     * written already may have been sent.
+     */
+    public static void toSerializedStream(ResponseObject result, String responseType, Writer out) throws IOException {
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            if (result != null) {
+                writeJSON(result, out);
+            }
+        } else {
+            writeXML(result, out);
+        }
+        out.flush();
+    }
+
     private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
 
     public static String unescape(String escaped) {
@@ -66,66 +89,104 @@ public class ApiResponseSerializer {
 
     public static String toJSONSerializedString(ResponseObject result) {
         if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-            	
-            StringBuilder sb = new StringBuilder();
-
-            sb.append("{ \"").append(result.getResponseName()).append("\" : ");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
-                Integer count = ((ListResponse) result).getCount();
-                boolean nonZeroCount = (count != null && count.longValue() != 0);
+            StringWriter out = new StringWriter();
+            try {
+                writeJSON(result, out);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("Unable to write to a string", e);
+            }
+            return out.toString();
+        }
+        return null;
+    }
+
+    private static void writeJSON(ResponseObject result, Writer out) throws IOException {
+        Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("{ \"").append(result.getResponseName()).append("\" : ");
+        if (result instanceof ListResponse) {
+            Iterator<? extends ResponseObject> responses = ((ListResponse) result).getResponseIterator();
+            Integer count = ((ListResponse) result).getCount();
+            boolean nonZeroCount = (count != null && count.longValue() != 0);
+            if (nonZeroCount) {
+                sb.append("{ \"").append(ApiConstants.COUNT).append("\":").append(count);
+                String nextToken = ((ListResponse) result).getNextToken();
+                if (nextToken != null) {
+                    sb.append(" ,\"").append(ApiConstants.NEXT_TOKEN).append("\":\"").append(nextToken).append("\"");
+                }
+            }
+
+            if ((responses != null) && responses.hasNext()) {
+                ResponseObject first = responses.next();
+                String jsonStr = gson.toJson(first);
+                jsonStr = unescape(jsonStr);
+
                 if (nonZeroCount) {
-                    sb.append("{ \"").append(ApiConstants.COUNT).append("\":").append(count);
+                    sb.append(" ,\"").append(first.getObjectName()).append("\" : [  ").append(jsonStr);
                 }
-                
-                if ((responses != null) && !responses.isEmpty()) {
-                    String jsonStr = gson.toJson(responses.get(0));                    
-                    jsonStr = unescape(jsonStr);
 
-                    if (nonZeroCount) {
-                        sb.append(" ,\"").append(responses.get(0).getObjectName()).append("\" : [  ").append(jsonStr);
-                    }
-                    
-                    for (int i = 1; i < ((ListResponse) result).getResponses().size(); i++) {
-                        jsonStr = gson.toJson(responses.get(i));
+                try {
+                    while (responses.hasNext()) {
+                        // write out what we have so far so only one object is held at a time
+                        out.append(sb);
+                        sb.setLength(0);
+
+                        jsonStr = gson.toJson(responses.next());
                         jsonStr = unescape(jsonStr);
                         sb.append(", ").append(jsonStr);
                     }
-                    sb.append(" ] }");
-                } else  {
-                    if (!nonZeroCount){ 
-                        sb.append("{");
-                    }
-                    
-                    sb.append(" }");
+                } catch (RuntimeException e) {
+                    // part of the list may have been sent already, so end it with the error
+                    // the same way an error response reports it
+                    sb.append(" ], \"errorcode\" : ").append(BaseCmd.INTERNAL_ERROR).append(", \"errortext\" : ").append(gson.toJson(getStreamErrorText(e)));
+                    sb.append(" } }");
+                    out.append(sb);
+                    throw e;
                 }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{ \"success\" : \"").append(((SuccessResponse) result).getSuccess()).append("\"} ");
-            } else if (result instanceof ExceptionResponse) {            	
-            	String jsonErrorText = gson.toJson((ExceptionResponse) result);
-            	jsonErrorText = unescape(jsonErrorText);
-            	sb.append(jsonErrorText);            	
-            } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append(" { \"").append(result.getObjectName()).append("\" : ").append(jsonStr).append(" } ");
-                    }
+                sb.append(" ] }");
+            } else  {
+                if (!nonZeroCount){ 
+                    sb.append("{");
+                }
+
+                sb.append(" }");
+            }
+        } else if (result instanceof SuccessResponse) {
+            sb.append("{ \"success\" : \"").append(((SuccessResponse) result).getSuccess()).append("\"} ");
+        } else if (result instanceof ExceptionResponse) {            	
+            String jsonErrorText = gson.toJson((ExceptionResponse) result);
+            jsonErrorText = unescape(jsonErrorText);
+            sb.append(jsonErrorText);            	
+        } else {
+            String jsonStr = gson.toJson(result);
+            if ((jsonStr != null) && !"".equals(jsonStr)) {
+                jsonStr = unescape(jsonStr);
+                if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
+                    sb.append(jsonStr);
                 } else {
-                    sb.append("{ }");
+                    sb.append(" { \"").append(result.getObjectName()).append("\" : ").append(jsonStr).append(" } ");
                 }
+            } else {
+                sb.append("{ }");
             }
-            sb.append(" }");            
-            return sb.toString();
         }
-        return null;
+        sb.append(" }");
+        out.append(sb);
     }
 
     private static String toXMLSerializedString(ResponseObject result) {
+        StringWriter out = new StringWriter();
+        try {
+            writeXML(result, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to write to a string", e);
+        }
+        return out.toString();
+    }
+
+    private static void writeXML(ResponseObject result, Writer out) throws IOException {
         StringBuilder sb = new StringBuilder();
         sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
         sb.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
@@ -136,11 +197,30 @@ public class ApiResponseSerializer {
             if (count != null && count != 0) {
                 sb.append("<").append(ApiConstants.COUNT).append(">").append(((ListResponse) result).getCount()).
                 append("</").append(ApiConstants.COUNT).append(">");
+                String nextToken = ((ListResponse) result).getNextToken();
+                if (nextToken != null) {
+                    sb.append("<").append(ApiConstants.NEXT_TOKEN).append(">").append(nextToken).
+                    append("</").append(ApiConstants.NEXT_TOKEN).append(">");
+                }
             }
-            List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
-            if ((responses != null) && !responses.isEmpty()) {
-                for (ResponseObject obj : responses) {
-                    serializeResponseObjXML(sb, obj);
+            Iterator<? extends ResponseObject> responses = ((ListResponse) result).getResponseIterator();
+            if (responses != null) {
+                out.append(sb);
+                sb.setLength(0);
+                try {
+                    while (responses.hasNext()) {
+                        serializeResponseObjXML(sb, responses.next());
+                        out.append(sb);
+                        sb.setLength(0);
+                    }
+                } catch (RuntimeException e) {
+                    // drop the object that failed and end the list with the error
+                    sb.setLength(0);
+                    sb.append("<errorcode>").append(BaseCmd.INTERNAL_ERROR).append("</errorcode>");
+                    sb.append("<errortext>").append(escapeSpecialXmlChars(getStreamErrorText(e))).append("</errortext>");
+                    sb.append("</").append(result.getResponseName()).append(">");
+                    out.append(sb);
+                    throw e;
                 }
             }
         } else {
@@ -152,7 +232,12 @@ public class ApiResponseSerializer {
         }
 
         sb.append("</").append(result.getResponseName()).append(">");
-        return sb.toString();
+        out.append(sb);
+    }
+
+    private static String getStreamErrorText(RuntimeException e) {
+        s_logger.warn("Unable to serialize the rest of the list response", e);
+        return "Internal server error, unable to serialize the rest of the list.";
     }
 
     private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
@@ -34,4 +34,8 @@ public interface AsyncJobMBean {
 	public String getSyncQueueId();
 	public String getSyncQueueContentType();
 	public String getSyncQueueContentId();
+	public String getSchedulerLane();
+	public int getSchedulerLaneDepth();
+	public int getSchedulerAccountDepth();
+	public long getSchedulerWaitTime();
 }
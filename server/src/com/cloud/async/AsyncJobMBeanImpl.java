@@ -25,11 +25,17 @@ import com.cloud.utils.DateUtil;
 
 public class AsyncJobMBeanImpl extends StandardMBean implements AsyncJobMBean {
 	private AsyncJobVO _jobVo;
+	private AsyncJobScheduler _scheduler;
 	
 	public AsyncJobMBeanImpl(AsyncJobVO jobVo) {
+		this(jobVo, null);
+	}
+	
+	public AsyncJobMBeanImpl(AsyncJobVO jobVo, AsyncJobScheduler scheduler) {
 		super(AsyncJobMBean.class, false);
 		
 		_jobVo = jobVo;
+		_scheduler = scheduler;
 	}
 	
 	public long getAccountId() {
@@ -141,4 +147,25 @@ public class AsyncJobMBeanImpl extends StandardMBean implements AsyncJobMBean {
 		return "N/A";
 	}
 	
+	public String getSchedulerLane() {
+		return AsyncJobScheduler.getJobClass(_jobVo);
+	}
+	
+	public int getSchedulerLaneDepth() {
+		if(_scheduler != null)
+			return _scheduler.getLaneDepth(AsyncJobScheduler.getJobClass(_jobVo));
+		return 0;
+	}
+	
+	public int getSchedulerAccountDepth() {
+		if(_scheduler != null)
+			return _scheduler.getAccountDepth(AsyncJobScheduler.getJobClass(_jobVo), _jobVo.getAccountId());
+		return 0;
+	}
+	
+	public long getSchedulerWaitTime() {
+		if(_scheduler != null)
+			return _scheduler.getWaitTime(_jobVo.getId());
+		return -1;
+	}
 }
@@ -20,11 +20,15 @@ package com.cloud.async;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -37,6 +41,8 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SyncQueueWakeupCommand;
 import com.cloud.api.ApiDispatcher;
 import com.cloud.api.ApiGsonHelper;
 import com.cloud.api.ApiSerializerHelper;
@@ -80,7 +86,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 	private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 3; 	// 3 seconds
     
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
-    private static final int HEARTBEAT_INTERVAL = 2000;
+    private static final int HEARTBEAT_INTERVAL = 2000;         // safety net, released queues are woken up directly
     private static final int GC_INTERVAL = 10000;				// 10 seconds
     
     private String _name;
@@ -98,7 +104,10 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 
     private final ScheduledExecutorService _heartbeatScheduler =
             Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
-    private ExecutorService _executor;
+    private final ExecutorService _wakeupExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("AsyncJobMgr-Wakeup"));
+    private final Set<Long> _pendingWakeups = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final Set<Long> _pendingPeerWakeups = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private AsyncJobScheduler _scheduler;
 
     @Override
     public AsyncJobExecutorContext getExecutorContext() {
@@ -378,7 +387,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         if (executeInContext) {
             runnable.run();
         } else {
-    		_executor.submit(runnable);
+    		_scheduler.submit(job, runnable);
         }
     }
 
@@ -390,7 +399,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                     long jobId = 0;
                     
                     try {
-                    	JmxUtil.registerMBean("AsyncJobManager", "Active Job " + job.getId(), new AsyncJobMBeanImpl(job));
+                    	JmxUtil.registerMBean("AsyncJobManager", "Active Job " + job.getId(), new AsyncJobMBeanImpl(job, _scheduler));
                     } catch(Exception e) {
                     	s_logger.warn("Unable to register active job " + job.getId() + " to JMX monitoring due to exception " + ExceptionUtil.toString(e));
                     }
@@ -441,7 +450,6 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                         // commands might need to be queued as part of synchronization here, so they just have to be re-dispatched from the queue mechanism...
                         if (job.getSyncSource() != null) {
                             _queueMgr.purgeItem(job.getSyncSource().getId());
-                            checkQueue(job.getSyncSource().getQueueId());
                         }
     
                         if (s_logger.isDebugEnabled()) {
@@ -479,7 +487,6 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                             try {
                                 if (job.getSyncSource() != null) {
                                     _queueMgr.purgeItem(job.getSyncSource().getId());
-                                    checkQueue(job.getSyncSource().getQueueId());
                                 }
                             } catch(Throwable ex) {
                                 s_logger.fatal("Exception on exception, log it for record", ex);
@@ -546,7 +553,6 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             }
     		
 			_queueMgr.purgeItem(executor.getSyncSource().getId());
-			checkQueue(executor.getSyncSource().getQueueId());
     	}
     }
     
@@ -570,6 +576,81 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     	}
     }
     
+    /**
+     * Queues released on this node are checked right away on the wakeup
+     * thread instead of waiting for the heartbeat to poll them.  Items
+     * that were handed back because this node is too busy are left to the
+     * other management servers.  Requests for the same queue are collapsed
+     * while one is pending.
+     */
+    private void onQueueReleased(long queueId, boolean returned) {
+        if (returned) {
+            if (_clusterMgr != null && _pendingPeerWakeups.add(queueId)) {
+                submitWakeup(getPeerWakeupTask());
+            }
+        } else if (_pendingWakeups.add(queueId)) {
+            submitWakeup(getQueueWakeupTask(queueId));
+        }
+    }
+
+    private void submitWakeup(Runnable task) {
+        try {
+            _wakeupExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the heartbeat picks up whatever is left
+            _pendingWakeups.clear();
+            _pendingPeerWakeups.clear();
+        }
+    }
+
+    private Runnable getQueueWakeupTask(final long queueId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                _pendingWakeups.remove(queueId);
+                try {
+                    checkQueue(queueId);
+                } finally {
+                    StackMaid.current().exitCleanup();
+                }
+            }
+        };
+    }
+
+    private Runnable getPeerWakeupTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (_pendingPeerWakeups.isEmpty()) {
+                    return;
+                }
+
+                long[] queueIds = new long[_pendingPeerWakeups.size()];
+                int count = 0;
+                Iterator<Long> it = _pendingPeerWakeups.iterator();
+                while (it.hasNext() && count < queueIds.length) {
+                    queueIds[count++] = it.next();
+                    it.remove();
+                }
+                if (count < queueIds.length) {
+                    long[] ids = new long[count];
+                    System.arraycopy(queueIds, 0, ids, 0, count);
+                    queueIds = ids;
+                }
+
+                Transaction txn = Transaction.open("AsyncJobMgrPeerWakeup");
+                try {
+                    _clusterMgr.broadcast(0, new Command[] { new SyncQueueWakeupCommand(queueIds) });
+                } catch (Throwable e) {
+                    s_logger.warn("Unable to wake up sync queues on the other management servers", e);
+                } finally {
+                    txn.close();
+                    StackMaid.current().exitCleanup();
+                }
+            }
+        };
+    }
+
 	private Runnable getHeartbeatTask() {
 		return new Runnable() {
 			@Override
@@ -749,10 +830,24 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             int poolSize = (cloudMaxActive * 2) / 3;
             
             s_logger.info("Start AsyncJobManager thread pool in size " + poolSize);
-            _executor = Executors.newFixedThreadPool(poolSize, new NamedThreadFactory("Job-Executor"));
+            _scheduler = new AsyncJobScheduler("Job-Executor", poolSize, AsyncJobScheduler.parseWeights(configDao.getValue(Config.JobSchedulerWeights.key())));
+            _scheduler.start();
 		} catch (final Exception e) {
 			throw new ConfigurationException("Unable to load db.properties to configure AsyncJobManagerImpl");
 		}
+
+		try {
+		    JmxUtil.registerMBean("AsyncJobManager", "Scheduler", _scheduler);
+		} catch (Exception e) {
+		    s_logger.warn("Unable to register the async job scheduler to JMX monitoring", e);
+		}
+
+		_queueMgr.registerListener(new SyncQueueListener() {
+		    @Override
+		    public void onQueueReleased(long queueId, boolean returned) {
+		        AsyncJobManagerImpl.this.onQueueReleased(queueId, returned);
+		    }
+		});
 		
 		return true;
     }
@@ -816,7 +911,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     @Override
     public boolean stop() {
     	_heartbeatScheduler.shutdown();
-    	_executor.shutdown();
+    	_wakeupExecutor.shutdown();
+    	_scheduler.shutdown();
         return true;
     }
     
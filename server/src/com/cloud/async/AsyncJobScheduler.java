@@ -0,0 +1,405 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * AsyncJobScheduler runs async jobs on a fixed set of worker threads while
+ * keeping one tenant or one kind of job from starving the rest.
+ *
+ * Jobs are put into lanes by job class, which is the instance type of the
+ * job or the command class name when there's no instance type.  Lanes are
+ * served by weighted round robin: in every round a lane gets to run as many
+ * jobs as its weight before the next lane is served.  Within a lane the
+ * accounts with queued jobs take turns, so a burst from one account only
+ * delays that account's own jobs.
+ */
+public class AsyncJobScheduler extends StandardMBean implements AsyncJobSchedulerMBean {
+    private static final Logger s_logger = Logger.getLogger(AsyncJobScheduler.class);
+
+    private final int _workers;
+    private final Map<String, Integer> _weights;
+    private final ThreadFactory _threadFactory;
+    private final List<Thread> _threads = new ArrayList<Thread>();
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Map<String, Lane> _lanes = new LinkedHashMap<String, Lane>();
+    private final List<Lane> _ring = new ArrayList<Lane>();
+    private int _current = 0;
+    private int _depth = 0;
+    private boolean _shutdown = false;
+
+    private final ConcurrentHashMap<Long, Entry> _running = new ConcurrentHashMap<Long, Entry>();
+    private final AtomicInteger _active = new AtomicInteger();
+    private long _executed = 0;
+
+    /**
+     * @param weights weight of each job class, classes not listed have weight 1.
+     */
+    public AsyncJobScheduler(String name, int workers, Map<String, Integer> weights) {
+        super(AsyncJobSchedulerMBean.class, false);
+        _workers = workers;
+        _weights = weights != null ? weights : new HashMap<String, Integer>();
+        _threadFactory = new NamedThreadFactory(name);
+    }
+
+    /**
+     * Parses weights in the form of "Snapshot:4,DomainRouter:2".
+     */
+    public static Map<String, Integer> parseWeights(String weights) {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        if (weights == null) {
+            return result;
+        }
+        for (String weight : weights.split(",")) {
+            String[] pair = weight.trim().split(":");
+            if (pair.length != 2) {
+                continue;
+            }
+            try {
+                result.put(pair[0].trim(), Math.max(1, Integer.parseInt(pair[1].trim())));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring invalid job class weight " + weight);
+            }
+        }
+        return result;
+    }
+
+    public static String getJobClass(AsyncJob job) {
+        if (job.getInstanceType() != null && job.getInstanceType() != AsyncJob.Type.None) {
+            return job.getInstanceType().toString();
+        }
+        String cmd = job.getCmd();
+        return cmd != null ? cmd.substring(cmd.lastIndexOf('.') + 1) : "Unknown";
+    }
+
+    public void start() {
+        for (int i = 0; i < _workers; i++) {
+            Thread thread = _threadFactory.newThread(new Worker());
+            _threads.add(thread);
+            thread.start();
+        }
+    }
+
+    public void shutdown() {
+        _lock.lock();
+        try {
+            _shutdown = true;
+            _notEmpty.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the workers to finish the jobs they are running.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        for (Thread thread : _threads) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            thread.join(remaining);
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void submit(AsyncJob job, Runnable task) {
+        Entry entry = new Entry(job, task);
+        _lock.lock();
+        try {
+            if (_shutdown) {
+                throw new RejectedExecutionException("Scheduler has been shut down");
+            }
+            Lane lane = _lanes.get(entry.jobClass);
+            if (lane == null) {
+                Integer weight = _weights.get(entry.jobClass);
+                lane = new Lane(entry.jobClass, weight != null ? weight : 1);
+                _lanes.put(entry.jobClass, lane);
+                _ring.add(lane);
+            }
+            lane.add(entry);
+            _depth++;
+            _notEmpty.signal();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    protected Entry take() throws InterruptedException {
+        _lock.lock();
+        try {
+            while (_depth == 0) {
+                if (_shutdown) {
+                    return null;
+                }
+                _notEmpty.await();
+            }
+
+            // There's at least one job so this finds it within two rounds.
+            while (true) {
+                Lane lane = _ring.get(_current);
+                if (lane.depth > 0 && lane.credits > 0) {
+                    lane.credits--;
+                    _depth--;
+                    return lane.poll();
+                }
+                lane.credits = lane.weight;
+                _current = (_current + 1) % _ring.size();
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    protected void execute(Entry entry) {
+        long now = System.currentTimeMillis();
+        entry.started = now;
+        entry.lane.waits.record(now - entry.queued);
+        _running.put(entry.jobId, entry);
+        _active.incrementAndGet();
+        try {
+            entry.task.run();
+        } catch (Throwable th) {
+            s_logger.warn("Unexpected exception running job-" + entry.jobId, th);
+        } finally {
+            _active.decrementAndGet();
+            _running.remove(entry.jobId);
+            _lock.lock();
+            try {
+                _executed++;
+                entry.lane.executed++;
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds the running job waited in its lane, -1 if it's not running.
+     */
+    public long getWaitTime(long jobId) {
+        Entry entry = _running.get(jobId);
+        return entry != null ? entry.started - entry.queued : -1;
+    }
+
+    public int getLaneDepth(String jobClass) {
+        _lock.lock();
+        try {
+            Lane lane = _lanes.get(jobClass);
+            return lane != null ? lane.depth : 0;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int getAccountDepth(String jobClass, long accountId) {
+        _lock.lock();
+        try {
+            Lane lane = _lanes.get(jobClass);
+            if (lane == null) {
+                return 0;
+            }
+            ArrayDeque<Entry> entries = lane.accounts.get(accountId);
+            return entries != null ? entries.size() : 0;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public LatencyHistogram getWaits(String jobClass) {
+        _lock.lock();
+        try {
+            Lane lane = _lanes.get(jobClass);
+            return lane != null ? lane.waits : null;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public int getWorkers() {
+        return _workers;
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return _active.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        _lock.lock();
+        try {
+            return _depth;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public long getExecuted() {
+        _lock.lock();
+        try {
+            return _executed;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public String[] getLanes() {
+        _lock.lock();
+        try {
+            String[] lanes = new String[_ring.size()];
+            for (int i = 0; i < lanes.length; i++) {
+                Lane lane = _ring.get(i);
+                lanes[i] = lane.name + ": weight=" + lane.weight + ", depth=" + lane.depth + ", accounts=" + lane.accounts.size() + ", executed=" + lane.executed
+                        + ", wait " + lane.waits;
+            }
+            return lanes;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public String getWeights() {
+        return _weights.toString();
+    }
+
+    @Override
+    public String resetCounters() {
+        _lock.lock();
+        try {
+            _executed = 0;
+            for (Lane lane : _ring) {
+                lane.executed = 0;
+                lane.waits.reset();
+            }
+        } finally {
+            _lock.unlock();
+        }
+        return "Reset";
+    }
+
+    protected static class Entry {
+        final long jobId;
+        final long accountId;
+        final String jobClass;
+        final Runnable task;
+        final long queued = System.currentTimeMillis();
+        long started;
+        Lane lane;
+
+        public Entry(AsyncJob job, Runnable task) {
+            this.jobId = job.getId();
+            this.accountId = job.getAccountId();
+            this.jobClass = getJobClass(job);
+            this.task = task;
+        }
+    }
+
+    /**
+     * Jobs of one job class, queued per account.  Accessed with the scheduler lock held.
+     */
+    protected static class Lane {
+        final String name;
+        final int weight;
+        final Map<Long, ArrayDeque<Entry>> accounts = new HashMap<Long, ArrayDeque<Entry>>();
+        final ArrayDeque<Long> turns = new ArrayDeque<Long>();
+        final LatencyHistogram waits = new LatencyHistogram();
+        int credits;
+        int depth;
+        long executed;
+
+        public Lane(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+            this.credits = weight;
+        }
+
+        void add(Entry entry) {
+            entry.lane = this;
+            ArrayDeque<Entry> entries = accounts.get(entry.accountId);
+            if (entries == null) {
+                entries = new ArrayDeque<Entry>();
+                accounts.put(entry.accountId, entries);
+                turns.add(entry.accountId);
+            }
+            entries.add(entry);
+            depth++;
+        }
+
+        Entry poll() {
+            Long accountId = turns.poll();
+            ArrayDeque<Entry> entries = accounts.get(accountId);
+            Entry entry = entries.poll();
+            if (entries.isEmpty()) {
+                accounts.remove(accountId);
+            } else {
+                turns.add(accountId);
+            }
+            depth--;
+            return entry;
+        }
+    }
+
+    protected class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Entry entry;
+                try {
+                    entry = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (entry == null) {
+                    return;
+                }
+                execute(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+/**
+ * Gets told when a sync queue may have become ready to process its next
+ * item, so the item can be picked up without waiting for the next poll.
+ * Notifications are fired after the queue change has been written.
+ */
+public interface SyncQueueListener {
+    /**
+     * @param queueId queue that had an item released.
+     * @param returned true if the item was handed back unprocessed rather than purged.
+     */
+    void onQueueReleased(long queueId, boolean returned);
+}
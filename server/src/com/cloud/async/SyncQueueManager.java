@@ -32,4 +32,13 @@ public interface SyncQueueManager extends Manager {
     public List<SyncQueueItemVO> getBlockedQueueItems(long thresholdMs, boolean exclusive);
 
     void purgeAsyncJobQueueItemId(long asyncJobId);
+
+    public void registerListener(SyncQueueListener listener);
+    public void unregisterListener(SyncQueueListener listener);
+
+    /**
+     * Passes on release notifications received from another management server
+     * to the local listeners.
+     */
+    public void wakeup(long[] queueIds);
 }
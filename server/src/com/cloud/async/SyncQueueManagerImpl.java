@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -33,6 +34,7 @@ import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 
 
 @Local(value={SyncQueueManager.class})
@@ -43,6 +45,9 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     
     private SyncQueueDao _syncQueueDao;
     private SyncQueueItemDao _syncQueueItemDao;
+
+    private final List<SyncQueueListener> _listeners = new CopyOnWriteArrayList<SyncQueueListener>();
+    private final SyncQueueStats _stats = new SyncQueueStats();
 
     @Override
     @DB
@@ -111,6 +116,7 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
 	    			_syncQueueItemDao.update(itemVO.getId(), itemVO);
 	    			
 	        		txt.commit();
+	        		_stats.dequeued(queueId, itemVO.getCreated(), false, System.currentTimeMillis());
 	    			return itemVO;
     			} else {
         			if(s_logger.isDebugEnabled())
@@ -166,6 +172,11 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     			}
     		}
     		txt.commit();
+
+    		long now = System.currentTimeMillis();
+    		for (SyncQueueItemVO item : resultList) {
+    		    _stats.dequeued(item.getQueueId(), item.getCreated(), true, now);
+    		}
     		return resultList;
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception: ", e);
@@ -177,6 +188,7 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     @Override
     @DB
     public void purgeItem(long queueItemId) {
+    	Long releasedQueueId = null;
     	Transaction txt = Transaction.currentTxn();
     	try {
     		txt.start();
@@ -194,18 +206,25 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
 	                assert (queueVO.getQueueSize() > 0) : "Count reduce happens when it's already <= 0!";
 	                queueVO.setQueueSize(queueVO.getQueueSize() - 1);
 	                _syncQueueDao.update(queueVO.getId(), queueVO);
+	                releasedQueueId = queueVO.getId();
 				}
 			}
     		txt.commit();
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception: ", e);
     		txt.rollback();
+    		return;
+    	}
+
+    	if (releasedQueueId != null) {
+    	    fireQueueReleased(releasedQueueId, false);
     	}
     }
     
     @Override
     @DB
     public void returnItem(long queueItemId) {
+    	Long releasedQueueId = null;
     	Transaction txt = Transaction.currentTxn();
     	try {
     		txt.start();
@@ -221,13 +240,56 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
 				
 				queueVO.setLastUpdated(DateUtil.currentGMTTime());
 				_syncQueueDao.update(queueVO.getId(), queueVO);
+				releasedQueueId = queueVO.getId();
 			}
     		txt.commit();
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception: ", e);
     		txt.rollback();
+    		return;
+    	}
+
+    	if (releasedQueueId != null) {
+    	    fireQueueReleased(releasedQueueId, true);
     	}
     }
+
+    @Override
+    public void registerListener(SyncQueueListener listener) {
+        _listeners.add(listener);
+    }
+
+    @Override
+    public void unregisterListener(SyncQueueListener listener) {
+        _listeners.remove(listener);
+    }
+
+    @Override
+    public void wakeup(long[] queueIds) {
+        _stats.peerWakeup(queueIds.length);
+        for (long queueId : queueIds) {
+            notifyListeners(queueId, false);
+        }
+    }
+
+    private void fireQueueReleased(long queueId, boolean returned) {
+        _stats.released(queueId, System.currentTimeMillis());
+        notifyListeners(queueId, returned);
+    }
+
+    private void notifyListeners(long queueId, boolean returned) {
+        for (SyncQueueListener listener : _listeners) {
+            try {
+                listener.onQueueReleased(queueId, returned);
+            } catch (Throwable e) {
+                s_logger.warn("Unexpected exception from sync queue listener on queue-" + queueId, e);
+            }
+        }
+    }
+
+    public SyncQueueStats getStats() {
+        return _stats;
+    }
     
     @Override
 	public List<SyncQueueItemVO> getActiveQueueItems(Long msid, boolean exclusive) {
@@ -261,6 +323,11 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     
     @Override
     public boolean start() {
+        try {
+            JmxUtil.registerMBean("SyncQueueManager", "Stats", _stats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the sync queue stats to JMX monitoring", e);
+        }
         return true;
     }
 
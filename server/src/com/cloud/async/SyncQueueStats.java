@@ -0,0 +1,144 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.LatencyHistogram;
+
+/**
+ * Keeps track of how long a queued item waits after its predecessor in the
+ * same sync queue is released before it gets dequeued.  For chained
+ * operations on the same VM that is the gap between one job finishing and
+ * the next one starting.  Only releases and dequeues on this management
+ * server are matched up.
+ */
+public class SyncQueueStats extends StandardMBean implements SyncQueueStatsMBean {
+    // releases that are not followed by a dequeue are dropped after this long
+    protected static final long RELEASE_EXPIRY = 10 * 60 * 1000L;
+    protected static final int MAX_TRACKED_RELEASES = 4096;
+
+    private final Map<Long, Long> _releasedAt = new ConcurrentHashMap<Long, Long>();
+    private final LatencyHistogram _handoff = new LatencyHistogram();
+    private final AtomicLong _polledDequeues = new AtomicLong();
+    private final AtomicLong _directDequeues = new AtomicLong();
+    private final AtomicLong _releases = new AtomicLong();
+    private final AtomicLong _peerWakeups = new AtomicLong();
+
+    public SyncQueueStats() {
+        super(SyncQueueStatsMBean.class, false);
+    }
+
+    public void released(long queueId, long now) {
+        _releases.incrementAndGet();
+        if (_releasedAt.size() >= MAX_TRACKED_RELEASES) {
+            Iterator<Long> it = _releasedAt.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next() > RELEASE_EXPIRY) {
+                    it.remove();
+                }
+            }
+            if (_releasedAt.size() >= MAX_TRACKED_RELEASES) {
+                return;
+            }
+        }
+        _releasedAt.put(queueId, now);
+    }
+
+    /**
+     * @param created when the dequeued item was queued, items queued after
+     * the release didn't wait on it and are not counted.
+     * @param polled true if the item was found by polling rather than by
+     * checking the queue directly.
+     */
+    public void dequeued(long queueId, Date created, boolean polled, long now) {
+        if (polled) {
+            _polledDequeues.incrementAndGet();
+        } else {
+            _directDequeues.incrementAndGet();
+        }
+
+        Long releasedAt = _releasedAt.remove(queueId);
+        if (releasedAt != null && (created == null || created.getTime() <= releasedAt)) {
+            _handoff.record(Math.max(0, now - releasedAt));
+        }
+    }
+
+    public void peerWakeup(int queues) {
+        _peerWakeups.addAndGet(queues);
+    }
+
+    public LatencyHistogram getHandoff() {
+        return _handoff;
+    }
+
+    @Override
+    public long getHandoffCount() {
+        return _handoff.getCount();
+    }
+
+    @Override
+    public long getHandoffAverage() {
+        return _handoff.getAverage();
+    }
+
+    @Override
+    public long getHandoffMax() {
+        return _handoff.getMax();
+    }
+
+    @Override
+    public String getHandoffLatency() {
+        return _handoff.toString();
+    }
+
+    @Override
+    public long getPolledDequeues() {
+        return _polledDequeues.get();
+    }
+
+    @Override
+    public long getDirectDequeues() {
+        return _directDequeues.get();
+    }
+
+    @Override
+    public long getReleases() {
+        return _releases.get();
+    }
+
+    @Override
+    public long getPeerWakeups() {
+        return _peerWakeups.get();
+    }
+
+    @Override
+    public String resetCounters() {
+        _handoff.reset();
+        _polledDequeues.set(0);
+        _directDequeues.set(0);
+        _releases.set(0);
+        _peerWakeups.set(0);
+        return "Reset";
+    }
+}
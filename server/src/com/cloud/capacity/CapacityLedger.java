@@ -0,0 +1,357 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.utils.Pair;
+
+/**
+ * In-memory copy of the cpu and memory rows of op_host_capacity, partitioned by cluster.
+ *
+ * The planner reads its cluster and pod lists from here instead of running the aggregate
+ * queries of CapacityDao. The ledger is only a copy: capacity is allocated and released on
+ * the database rows as before, and the capacity manager loads each host's rows back in
+ * after writing or reading them. It also reloads all rows periodically to pick up what
+ * other management servers and the capacity checker wrote, so the lists may lag behind
+ * those by up to the reload interval. Whether a host really has the capacity is still
+ * checked against its rows.
+ */
+public class CapacityLedger {
+
+    public static class HostCapacity {
+        final long _hostId;
+        final long _dataCenterId;
+        final Long _podId;
+        final long _clusterId;
+
+        long _usedCpu;
+        long _reservedCpu;
+        long _totalCpu;
+        long _usedMem;
+        long _reservedMem;
+        long _totalMem;
+
+        HostCapacity(long hostId, long dataCenterId, Long podId, long clusterId) {
+            _hostId = hostId;
+            _dataCenterId = dataCenterId;
+            _podId = podId;
+            _clusterId = clusterId;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public long getDataCenterId() {
+            return _dataCenterId;
+        }
+
+        public Long getPodId() {
+            return _podId;
+        }
+
+        public long getClusterId() {
+            return _clusterId;
+        }
+
+        public long getUsedCpu() {
+            return _usedCpu;
+        }
+
+        public long getReservedCpu() {
+            return _reservedCpu;
+        }
+
+        public long getTotalCpu() {
+            return _totalCpu;
+        }
+
+        public long getUsedMem() {
+            return _usedMem;
+        }
+
+        public long getReservedMem() {
+            return _reservedMem;
+        }
+
+        public long getTotalMem() {
+            return _totalMem;
+        }
+
+        /**
+         * @return the capacity of the host as the rows have it, not tracked by any ledger
+         */
+        static HostCapacity fromRows(CapacityVO cpu, CapacityVO mem) {
+            Long dataCenterId = cpu.getDataCenterId();
+            Long clusterId = cpu.getClusterId();
+            HostCapacity host = new HostCapacity(cpu.getHostOrPoolId(), dataCenterId == null ? 0 : dataCenterId, cpu.getPodId(), clusterId == null ? 0 : clusterId);
+            host.load(cpu, mem);
+            return host;
+        }
+
+        synchronized HostCapacity copy() {
+            HostCapacity copy = new HostCapacity(_hostId, _dataCenterId, _podId, _clusterId);
+            copy._usedCpu = _usedCpu;
+            copy._reservedCpu = _reservedCpu;
+            copy._totalCpu = _totalCpu;
+            copy._usedMem = _usedMem;
+            copy._reservedMem = _reservedMem;
+            copy._totalMem = _totalMem;
+            return copy;
+        }
+
+        synchronized void load(CapacityVO cpu, CapacityVO mem) {
+            _usedCpu = cpu.getUsedCapacity();
+            _reservedCpu = cpu.getReservedCapacity();
+            _totalCpu = cpu.getTotalCapacity();
+            _usedMem = mem.getUsedCapacity();
+            _reservedMem = mem.getReservedCapacity();
+            _totalMem = mem.getTotalCapacity();
+        }
+    }
+
+    private final Map<Long, Map<Long, HostCapacity>> _clusters = new ConcurrentHashMap<Long, Map<Long, HostCapacity>>();
+    private final Map<Long, HostCapacity> _hosts = new ConcurrentHashMap<Long, HostCapacity>();
+
+    /**
+     * Replaces the contents of the ledger with the given cpu and memory rows. Hosts without
+     * both rows, or outside a cluster, are not tracked.
+     */
+    public synchronized void reload(Collection<CapacityVO> capacities) {
+        Map<Long, CapacityVO> cpus = new HashMap<Long, CapacityVO>();
+        Map<Long, CapacityVO> mems = new HashMap<Long, CapacityVO>();
+        for (CapacityVO capacity : capacities) {
+            if (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_CPU) {
+                cpus.put(capacity.getHostOrPoolId(), capacity);
+            } else if (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_MEMORY) {
+                mems.put(capacity.getHostOrPoolId(), capacity);
+            }
+        }
+
+        Set<Long> loaded = new HashSet<Long>();
+        for (CapacityVO cpu : cpus.values()) {
+            CapacityVO mem = mems.get(cpu.getHostOrPoolId());
+            if (mem != null && loadHost(cpu, mem)) {
+                loaded.add(cpu.getHostOrPoolId());
+            }
+        }
+        for (Long hostId : new ArrayList<Long>(_hosts.keySet())) {
+            if (!loaded.contains(hostId)) {
+                removeHost(hostId);
+            }
+        }
+    }
+
+    /**
+     * Starts tracking a host, or refreshes it from its rows if it is tracked already.
+     *
+     * @return false if the host cannot be tracked because it is not in a zone and cluster
+     */
+    public synchronized boolean loadHost(CapacityVO cpu, CapacityVO mem) {
+        if (cpu.getClusterId() == null || cpu.getDataCenterId() == null) {
+            return false;
+        }
+        long hostId = cpu.getHostOrPoolId();
+        HostCapacity host = _hosts.get(hostId);
+        if (host != null && host._clusterId != cpu.getClusterId()) {
+            removeHost(hostId);
+            host = null;
+        }
+        if (host == null) {
+            host = new HostCapacity(hostId, cpu.getDataCenterId(), cpu.getPodId(), cpu.getClusterId());
+        }
+        host.load(cpu, mem);
+
+        Map<Long, HostCapacity> cluster = _clusters.get(host._clusterId);
+        if (cluster == null) {
+            cluster = new ConcurrentHashMap<Long, HostCapacity>();
+            _clusters.put(host._clusterId, cluster);
+        }
+        cluster.put(hostId, host);
+        _hosts.put(hostId, host);
+        return true;
+    }
+
+    /**
+     * Stops tracking a host.
+     */
+    public synchronized void removeHost(long hostId) {
+        HostCapacity host = _hosts.remove(hostId);
+        if (host != null) {
+            Map<Long, HostCapacity> cluster = _clusters.get(host._clusterId);
+            if (cluster != null) {
+                cluster.remove(hostId);
+                if (cluster.isEmpty()) {
+                    _clusters.remove(host._clusterId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a consistent copy of the host's capacity, or null if the host is not tracked
+     */
+    public HostCapacity getHost(long hostId) {
+        HostCapacity host = _hosts.get(hostId);
+        return host == null ? null : host.copy();
+    }
+
+    public int getHostCount() {
+        return _hosts.size();
+    }
+
+    /**
+     * In-memory version of CapacityDao.listClustersInZoneOrPodByHostCapacities: clusters in the
+     * zone or pod with a host that has the cpu, and a host that has the ram. Free capacity is
+     * computed the way the query does, as total - used + reserved.
+     */
+    public List<Long> listClustersByHostCapacities(long id, boolean isZone, long requiredCpu, long requiredRam, float cpuOverprovisioningFactor) {
+        List<Long> result = new ArrayList<Long>();
+        for (Map.Entry<Long, Map<Long, HostCapacity>> cluster : _clusters.entrySet()) {
+            if (hasCapacity(cluster.getValue().values(), id, isZone, requiredCpu, requiredRam, cpuOverprovisioningFactor)) {
+                result.add(cluster.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * In-memory version of CapacityDao.listPodsByHostCapacities.
+     */
+    public List<Long> listPodsByHostCapacities(long zoneId, long requiredCpu, long requiredRam, float cpuOverprovisioningFactor) {
+        Map<Long, List<HostCapacity>> pods = new HashMap<Long, List<HostCapacity>>();
+        for (HostCapacity host : zoneHosts(zoneId)) {
+            List<HostCapacity> hosts = pods.get(host._podId);
+            if (hosts == null) {
+                hosts = new ArrayList<HostCapacity>();
+                pods.put(host._podId, hosts);
+            }
+            hosts.add(host);
+        }
+
+        List<Long> result = new ArrayList<Long>();
+        for (Map.Entry<Long, List<HostCapacity>> pod : pods.entrySet()) {
+            if (hasCapacity(pod.getValue(), zoneId, true, requiredCpu, requiredRam, cpuOverprovisioningFactor)) {
+                result.add(pod.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * In-memory version of CapacityDao.orderClustersByAggregateCapacity: clusters of the zone or
+     * pod in ascending order of (used + reserved) / total of the given capacity type.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, boolean isZone, short capacityType, float cpuOverprovisioningFactor) {
+        Map<Long, long[]> sums = new HashMap<Long, long[]>();
+        for (Map<Long, HostCapacity> cluster : _clusters.values()) {
+            for (HostCapacity host : cluster.values()) {
+                if (isZone ? host._dataCenterId == id : host._podId != null && host._podId == id) {
+                    addToSum(sums, host._clusterId, host, capacityType);
+                }
+            }
+        }
+        return orderByAggregate(sums, capacityType, cpuOverprovisioningFactor);
+    }
+
+    /**
+     * In-memory version of CapacityDao.orderPodsByAggregateCapacity.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType, float cpuOverprovisioningFactor) {
+        Map<Long, long[]> sums = new HashMap<Long, long[]>();
+        for (HostCapacity host : zoneHosts(zoneId)) {
+            addToSum(sums, host._podId, host, capacityType);
+        }
+        return orderByAggregate(sums, capacityType, cpuOverprovisioningFactor);
+    }
+
+    private List<HostCapacity> zoneHosts(long zoneId) {
+        List<HostCapacity> hosts = new ArrayList<HostCapacity>();
+        for (Map<Long, HostCapacity> cluster : _clusters.values()) {
+            for (HostCapacity host : cluster.values()) {
+                if (host._dataCenterId == zoneId && host._podId != null) {
+                    hosts.add(host);
+                }
+            }
+        }
+        return hosts;
+    }
+
+    private static boolean hasCapacity(Collection<HostCapacity> hosts, long id, boolean isZone, long requiredCpu, long requiredRam, float cpuOverprovisioningFactor) {
+        boolean enoughCpu = false;
+        boolean enoughMem = false;
+        for (HostCapacity host : hosts) {
+            if (isZone ? host._dataCenterId != id : host._podId == null || host._podId != id) {
+                continue;
+            }
+            synchronized (host) {
+                enoughCpu |= (host._totalCpu * cpuOverprovisioningFactor) - host._usedCpu + host._reservedCpu >= requiredCpu;
+                enoughMem |= host._totalMem - host._usedMem + host._reservedMem >= requiredRam;
+            }
+            if (enoughCpu && enoughMem) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addToSum(Map<Long, long[]> sums, Long key, HostCapacity host, short capacityType) {
+        long[] sum = sums.get(key);
+        if (sum == null) {
+            sum = new long[2];
+            sums.put(key, sum);
+        }
+        synchronized (host) {
+            if (capacityType == Capacity.CAPACITY_TYPE_CPU) {
+                sum[0] += host._usedCpu + host._reservedCpu;
+                sum[1] += host._totalCpu;
+            } else {
+                sum[0] += host._usedMem + host._reservedMem;
+                sum[1] += host._totalMem;
+            }
+        }
+    }
+
+    private static Pair<List<Long>, Map<Long, Double>> orderByAggregate(Map<Long, long[]> sums, short capacityType, float cpuOverprovisioningFactor) {
+        float factor = capacityType == Capacity.CAPACITY_TYPE_CPU ? cpuOverprovisioningFactor : 1;
+        final Map<Long, Double> ratios = new HashMap<Long, Double>();
+        for (Map.Entry<Long, long[]> entry : sums.entrySet()) {
+            double total = entry.getValue()[1] * (double)factor;
+            // the query divides by zero here and gets NULL, which sorts first and reads back as 0
+            ratios.put(entry.getKey(), total == 0 ? 0 : entry.getValue()[0] / total);
+        }
+        List<Long> ids = new ArrayList<Long>(ratios.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                int result = Double.compare(ratios.get(a), ratios.get(b));
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+        return new Pair<List<Long>, Map<Long, Double>>(ids, ratios);
+    }
+}
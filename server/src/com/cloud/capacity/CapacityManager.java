@@ -16,9 +16,13 @@
 // under the License.
 package com.cloud.capacity;
 
+import java.util.List;
+import java.util.Map;
+
 import com.cloud.host.HostVO;
 import com.cloud.storage.StoragePoolVO;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.Manager;
 import com.cloud.vm.VirtualMachine;
 
@@ -39,6 +43,21 @@ public interface CapacityManager extends Manager {
      * @param cpuOverprovisioningFactor factor to apply to the actual host cpu
      */
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, boolean considerReservedCapacity);
+
+    /**
+     * Sets cpu and ram of the host aside for a vm that has been planned onto it but is not
+     * starting yet, so other deployments see it as used. The hold goes away when the vm's
+     * capacity is allocated on start, when it is released, or when it times out.
+     * Holds are kept in memory by the management server that made them; other management
+     * servers do not count them, and they are lost when the server restarts.
+     * @return false if the host does not have the capacity, counting what is already held
+     */
+    boolean holdCapacity(long vmId, long hostId, int cpu, long ram, float cpuOverprovisioningFactor);
+
+    /**
+     * @return id of the host the vm held capacity on, or null if it held none
+     */
+    Long releaseHeldCapacity(long vmId);
     
 	void updateCapacityForHost(HostVO host);
     
@@ -55,4 +74,25 @@ public interface CapacityManager extends Manager {
      * @return true if the count of host's running VMs >= hypervisor limit
      */
     boolean checkIfHostReachMaxGuestLimit(HostVO host);
+
+    /**
+     * Clusters of the zone or pod with a host that has the required cpu and a host that has the required ram.
+     * Same as CapacityDao.listClustersInZoneOrPodByHostCapacities, answered from memory when the capacity ledger is enabled.
+     */
+    List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone, float cpuOverprovisioningFactor);
+
+    /**
+     * Same as CapacityDao.orderClustersByAggregateCapacity, answered from memory when the capacity ledger is enabled.
+     */
+    Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone, float cpuOverprovisioningFactor);
+
+    /**
+     * Same as CapacityDao.listPodsByHostCapacities, answered from memory when the capacity ledger is enabled.
+     */
+    List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam, short capacityType, float cpuOverprovisioningFactor);
+
+    /**
+     * Same as CapacityDao.orderPodsByAggregateCapacity, answered from memory when the capacity ledger is enabled.
+     */
+    Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType, float cpuOverprovisioningFactor);
 }
@@ -17,11 +17,13 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -37,6 +39,7 @@ import com.cloud.agent.api.Command;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.api.ApiDBUtils;
+import com.cloud.capacity.CapacityLedger.HostCapacity;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
@@ -116,6 +119,28 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     private float _storageOverProvisioningFactor = 1.0f;
     private float _cpuOverProvisioningFactor = 1.0f;
 
+    CapacityLedger _ledger;
+    private int _ledgerReconcileInterval;
+
+    // capacity set aside for vms planned onto a host that have not started yet, only seen by this management server
+    private final Map<Long, CapacityHold> _holds = new HashMap<Long, CapacityHold>();
+    private final Map<Long, long[]> _heldByHost = new HashMap<Long, long[]>();
+    private int _holdTimeout;
+
+    static class CapacityHold {
+        final long _hostId;
+        final long _cpu;
+        final long _ram;
+        final long _created;
+
+        CapacityHold(long hostId, long cpu, long ram) {
+            _hostId = hostId;
+            _cpu = cpu;
+            _ram = ram;
+            _created = System.currentTimeMillis();
+        }
+    }
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _name = name;
@@ -127,6 +152,13 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _cpuOverProvisioningFactor = 1.0f;
         }
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("HostCapacity-Checker"));
+
+        if (Boolean.parseBoolean(_configDao.getValue(Config.CapacityLedgerEnabled.key()))) {
+            _ledger = new CapacityLedger();
+            _ledgerReconcileInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacityLedgerReconcileInterval.key()), 60);
+        }
+        _holdTimeout = NumbersUtil.parseInt(_configDao.getValue(Config.CapacityHoldTimeout.key()), 300);
+        s_logger.info("Capacity ledger enabled: " + (_ledger != null) + ", reconcile interval: " + _ledgerReconcileInterval);
         VirtualMachine.State.getStateMachine().registerListener(this);
         _agentManager.registerForHostEvents(new StorageCapacityListener(_capacityDao, _storageOverProvisioningFactor), true, false, false);
         _agentManager.registerForHostEvents(new ComputeCapacityListener(_capacityDao, this, _cpuOverProvisioningFactor), true, false, false);
@@ -138,6 +170,11 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     public boolean start() {
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+        if (_ledger != null) {
+            reconcileLedger();
+            _executor.scheduleWithFixedDelay(new LedgerReconcileTask(), _ledgerReconcileInterval, _ledgerReconcileInterval, TimeUnit.SECONDS);
+        }
+        _executor.scheduleWithFixedDelay(new HoldExpiryTask(), 60, 60, TimeUnit.SECONDS);
         return true;
     }
 
@@ -148,6 +185,54 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         return true;
     }
 
+    protected class LedgerReconcileTask implements Runnable {
+        @Override
+        public void run() {
+            Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+            try {
+                reconcileLedger();
+            } catch (Throwable t) {
+                s_logger.warn("Unable to reconcile the capacity ledger with the database", t);
+            } finally {
+                txn.close();
+            }
+        }
+    }
+
+    protected class HoldExpiryTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                expireHolds();
+            } catch (Throwable t) {
+                s_logger.warn("Unable to expire capacity holds", t);
+            }
+        }
+    }
+
+    /**
+     * Reloads the ledger from op_host_capacity, which picks up what other management servers
+     * and the capacity checker changed since the last reload.
+     */
+    protected void reconcileLedger() {
+        SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+        sc.addAnd("capacityType", SearchCriteria.Op.IN, CapacityVO.CAPACITY_TYPE_CPU, CapacityVO.CAPACITY_TYPE_MEMORY);
+        _ledger.reload(_capacityDao.search(sc, null));
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reconciled the capacity ledger with the database, tracking " + _ledger.getHostCount() + " hosts");
+        }
+    }
+
+    private void reloadLedger(long hostId) {
+        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+        if (capacityCpu == null || capacityMem == null) {
+            _ledger.removeHost(hostId);
+        } else {
+            _ledger.loadHost(capacityCpu, capacityMem);
+        }
+    }
+
     @Override
     public String getName() {
         return _name;
@@ -224,6 +309,9 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMemory.getId(), capacityMemory);
             txn.commit();
+            if (_ledger != null) {
+                _ledger.loadHost(capacityCpu, capacityMemory);
+            }
             return true;
         } catch (Exception e) {
             s_logger.debug("Failed to transit vm's state, due to " + e.getMessage());
@@ -238,18 +326,24 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 
         long hostId = vm.getHostId();
 
+        // the vm is taking up the capacity it was planned onto now
+        releaseHeldCapacity(vm.getId());
+
         ServiceOfferingVO svo = _offeringsDao.findById(vm.getServiceOfferingId());
+        if (svo == null) {
+            return;
+        }
+
+        int cpu = svo.getCpu() * svo.getSpeed();
+        long ram = svo.getRamSize() * 1024L * 1024L;
 
         CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
         CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
 
-        if (capacityCpu == null || capacityMem == null || svo == null) {
+        if (capacityCpu == null || capacityMem == null) {
             return;
         }
 
-        int cpu = svo.getCpu() * svo.getSpeed();
-        long ram = svo.getRamSize() * 1024L * 1024L;
-
         String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
         float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
 
@@ -314,6 +408,9 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMem.getId(), capacityMem);
             txn.commit();
+            if (_ledger != null) {
+                _ledger.loadHost(capacityCpu, capacityMem);
+            }
         } catch (Exception e) {
             txn.rollback();
             return;
@@ -329,35 +426,30 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     + " , cpuOverprovisioningFactor: " + cpuOverprovisioningFactor);
         }
 
-        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
-        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
-
-        if (capacityCpu == null || capacityMem == null) {
-            if (capacityCpu == null) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Cannot checkIfHostHasCapacity, Capacity entry for CPU not found in Db, for hostId: " + hostId);
-                }
-            }
-            if (capacityMem == null) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Cannot checkIfHostHasCapacity, Capacity entry for RAM not found in Db, for hostId: " + hostId);
-                }
-            }
-
+        HostCapacity capacity = loadHostCapacity(hostId);
+        if (capacity == null) {
             return false;
         }
 
-        long usedCpu = capacityCpu.getUsedCapacity();
-        long usedMem = capacityMem.getUsedCapacity();
-        long reservedCpu = capacityCpu.getReservedCapacity();
-        long reservedMem = capacityMem.getReservedCapacity();
-        long actualTotalCpu = capacityCpu.getTotalCapacity();
+        long usedCpu = capacity.getUsedCpu();
+        long usedMem = capacity.getUsedMem();
+        long[] held = getHeldCapacity(hostId);
+        if (held != null) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Counting CPU: " + held[0] + " and RAM: " + held[1] + " held for planned vms as used on host: " + hostId);
+            }
+            usedCpu += held[0];
+            usedMem += held[1];
+        }
+        long reservedCpu = capacity.getReservedCpu();
+        long reservedMem = capacity.getReservedMem();
+        long actualTotalCpu = capacity.getTotalCpu();
         long totalCpu = (long) (actualTotalCpu * cpuOverprovisioningFactor);
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
         }
 
-        long totalMem = capacityMem.getTotalCapacity();
+        long totalMem = capacity.getTotalMem();
 
         String failureReason = "";
         if (checkFromReservedCapacity) {
@@ -440,6 +532,92 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         return hasCapacity;
 
     }
+
+    @Override
+    public boolean holdCapacity(long vmId, long hostId, int cpu, long ram, float cpuOverprovisioningFactor) {
+        synchronized (_holds) {
+            releaseHeldCapacity(vmId);
+            if (!checkIfHostHasCapacity(hostId, cpu, ram, false, cpuOverprovisioningFactor, true)) {
+                return false;
+            }
+            _holds.put(vmId, new CapacityHold(hostId, cpu, ram));
+            long[] held = _heldByHost.get(hostId);
+            if (held == null) {
+                held = new long[2];
+                _heldByHost.put(hostId, held);
+            }
+            held[0] += cpu;
+            held[1] += ram;
+            return true;
+        }
+    }
+
+    @Override
+    public Long releaseHeldCapacity(long vmId) {
+        synchronized (_holds) {
+            CapacityHold hold = _holds.remove(vmId);
+            if (hold == null) {
+                return null;
+            }
+            long[] held = _heldByHost.get(hold._hostId);
+            held[0] -= hold._cpu;
+            held[1] -= hold._ram;
+            if (held[0] <= 0 && held[1] <= 0) {
+                _heldByHost.remove(hold._hostId);
+            }
+            return hold._hostId;
+        }
+    }
+
+    private long[] getHeldCapacity(long hostId) {
+        synchronized (_holds) {
+            long[] held = _heldByHost.get(hostId);
+            return held == null ? null : held.clone();
+        }
+    }
+
+    protected void expireHolds() {
+        long cutoff = System.currentTimeMillis() - _holdTimeout * 1000L;
+        List<Long> expired = new ArrayList<Long>();
+        synchronized (_holds) {
+            for (Map.Entry<Long, CapacityHold> entry : _holds.entrySet()) {
+                if (entry.getValue()._created < cutoff) {
+                    expired.add(entry.getKey());
+                }
+            }
+            for (Long vmId : expired) {
+                releaseHeldCapacity(vmId);
+            }
+        }
+        if (!expired.isEmpty()) {
+            s_logger.debug("Released capacity held for vms that did not start within " + _holdTimeout + " seconds: " + expired);
+        }
+    }
+
+    private HostCapacity loadHostCapacity(long hostId) {
+        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+
+        if (capacityCpu == null || capacityMem == null) {
+            if (capacityCpu == null) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cannot checkIfHostHasCapacity, Capacity entry for CPU not found in Db, for hostId: " + hostId);
+                }
+            }
+            if (capacityMem == null) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cannot checkIfHostHasCapacity, Capacity entry for RAM not found in Db, for hostId: " + hostId);
+                }
+            }
+
+            return null;
+        }
+
+        if (_ledger != null) {
+            _ledger.loadHost(capacityCpu, capacityMem);
+        }
+        return HostCapacity.fromRows(capacityCpu, capacityMem);
+    }
     
     @Override
     public long getAllocatedPoolCapacity(StoragePoolVO pool, VMTemplateVO templateForVmCreation){
@@ -491,7 +669,14 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     
     @DB
     @Override
-	public void updateCapacityForHost(HostVO host){
+    public void updateCapacityForHost(HostVO host) {
+        recalculateCapacityForHost(host);
+        if (_ledger != null) {
+            reloadLedger(host.getId());
+        }
+    }
+
+    protected void recalculateCapacityForHost(HostVO host) {
     	// prepare the service offerings
         List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
         Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
@@ -821,6 +1006,9 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 
 	@Override
 	public void processPrepareMaintenaceEventAfter(Long hostId) {		
+		if (_ledger != null) {
+			_ledger.removeHost(hostId);
+		}
 		_capacityDao.removeBy(Capacity.CAPACITY_TYPE_MEMORY, null, null, null, hostId);
 		_capacityDao.removeBy(Capacity.CAPACITY_TYPE_CPU, null, null, null, hostId);
 	}
@@ -831,6 +1019,42 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 		
 	}
 
+	@Override
+	public void processUpdateHostEventAfter(Long hostId) {
+	}
+
+    @Override
+    public List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone, float cpuOverprovisioningFactor) {
+        if (_ledger == null) {
+            return _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityTypeForOrdering, isZone, cpuOverprovisioningFactor);
+        }
+        return _ledger.listClustersByHostCapacities(id, isZone, requiredCpu, requiredRam, cpuOverprovisioningFactor);
+    }
+
+    @Override
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone, float cpuOverprovisioningFactor) {
+        if (_ledger == null) {
+            return _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
+        }
+        return _ledger.orderClustersByAggregateCapacity(id, isZone, capacityType, cpuOverprovisioningFactor);
+    }
+
+    @Override
+    public List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam, short capacityType, float cpuOverprovisioningFactor) {
+        if (_ledger == null) {
+            return _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
+        }
+        return _ledger.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, cpuOverprovisioningFactor);
+    }
+
+    @Override
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType, float cpuOverprovisioningFactor) {
+        if (_ledger == null) {
+            return _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+        }
+        return _ledger.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+    }
+
     @Override
     public boolean checkIfHostReachMaxGuestLimit(HostVO host) {
         Long vmCount = _vmDao.countRunningByHostId(host.getId());
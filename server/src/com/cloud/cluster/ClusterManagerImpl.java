@@ -28,6 +28,8 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLRecoverableException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -35,6 +37,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -51,9 +55,12 @@ import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateQueryCacheCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
+import com.cloud.agent.api.SyncQueueWakeupCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.agent.manager.Commands;
+import com.cloud.async.SyncQueueManager;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDao;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.cluster.dao.ManagementServerHostPeerDao;
@@ -78,6 +85,7 @@ import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.QueryCache;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
@@ -95,6 +103,7 @@ public class ClusterManagerImpl implements ClusterManager {
 
     private static final int EXECUTOR_SHUTDOWN_TIMEOUT = 1000; // 1 second
     private static final int DEFAULT_OUTGOING_WORKERS = 5; 
+    private static final int QUERY_CACHE_INVALIDATION_INTERVAL = 250; // milliseconds
 
     private final List<ClusterManagerListener> _listeners = new ArrayList<ClusterManagerListener>();
     private final Map<Long, ManagementServerHostVO> _activePeers = new HashMap<Long, ManagementServerHostVO>();
@@ -106,6 +115,7 @@ public class ClusterManagerImpl implements ClusterManager {
 
     @Inject
     private AgentManager _agentMgr;
+    private SyncQueueManager _syncQueueMgr;
     @Inject
     private ClusteredAgentRebalanceService _rebalanceService;
     @Inject
@@ -145,6 +155,9 @@ public class ClusterManagerImpl implements ClusterManager {
     private List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
     private List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
     private Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
+
+    // tables written locally whose query cache invalidation hasn't been sent to the peers yet
+    private final Set<String> _queryCacheInvalidations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     
     public ClusterManagerImpl() {
         _clusterPeers = new HashMap<String, ClusterService>();
@@ -424,6 +437,30 @@ public class ClusterManagerImpl implements ClusterManager {
         	Answer[] answers = new Answer[1];
         	answers[0] = new Answer(cmd, result, null);
         	return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof InvalidateQueryCacheCommand) {
+            InvalidateQueryCacheCommand cmd = (InvalidateQueryCacheCommand)cmds[0];
+
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Intercepting command to invalidate query cache for " + Arrays.toString(cmd.getTables()));
+            }
+            QueryCache.invalidate(Arrays.asList(cmd.getTables()), false);
+
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof SyncQueueWakeupCommand) {
+            SyncQueueWakeupCommand cmd = (SyncQueueWakeupCommand)cmds[0];
+
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Intercepting command to wake up sync queues " + Arrays.toString(cmd.getQueueIds()));
+            }
+            if (_syncQueueMgr != null) {
+                _syncQueueMgr.wakeup(cmd.getQueueIds());
+            }
+
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
         }
 
         try {
@@ -713,6 +750,37 @@ public class ClusterManagerImpl implements ClusterManager {
         }
     }
 
+    /**
+     * Writes are collected and sent to the peers in batches so a busy table
+     * doesn't turn into a PDU per transaction.
+     */
+    private Runnable getQueryCacheInvalidationTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (_queryCacheInvalidations.isEmpty()) {
+                    return;
+                }
+
+                List<String> tables = new ArrayList<String>();
+                Iterator<String> it = _queryCacheInvalidations.iterator();
+                while (it.hasNext()) {
+                    tables.add(it.next());
+                    it.remove();
+                }
+
+                Transaction txn = Transaction.open("ClusterQueryCacheInvalidation");
+                try {
+                    broadcast(0, new Command[] { new InvalidateQueryCacheCommand(tables.toArray(new String[tables.size()])) });
+                } catch (Throwable e) {
+                    s_logger.warn("Unable to send query cache invalidation for " + tables, e);
+                } finally {
+                    txn.close();
+                }
+            }
+        };
+    }
+
     private Runnable getHeartbeatTask() {
         return new Runnable() {
             @Override
@@ -1205,6 +1273,16 @@ public class ClusterManagerImpl implements ClusterManager {
             _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), _heartbeatInterval, _heartbeatInterval, TimeUnit.MILLISECONDS);
             _notificationExecutor.submit(getNotificationTask());
 
+            if (QueryCache.isEnabled()) {
+                QueryCache.setListener(new QueryCache.Listener() {
+                    @Override
+                    public void invalidated(Set<String> tables) {
+                        _queryCacheInvalidations.addAll(tables);
+                    }
+                });
+                _heartbeatScheduler.scheduleAtFixedRate(getQueryCacheInvalidationTask(), QUERY_CACHE_INVALIDATION_INTERVAL, QUERY_CACHE_INVALIDATION_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+
         } catch (Throwable e) {
             s_logger.error("Unexpected exception : ", e);
             txn.rollback();
@@ -1256,6 +1334,8 @@ public class ClusterManagerImpl implements ClusterManager {
             throw new ConfigurationException("Unable to get " + AgentManager.class.getName());
         }
 
+        _syncQueueMgr = locator.getManager(SyncQueueManager.class);
+
         _mshostDao = locator.getDao(ManagementServerHostDao.class);
         if (_mshostDao == null) {
             throw new ConfigurationException("Unable to get " + ManagementServerHostDao.class.getName());
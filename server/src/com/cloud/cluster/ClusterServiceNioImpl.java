@@ -0,0 +1,351 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.ClusterServiceNioProtocol.Request;
+import com.cloud.cluster.ClusterServiceNioProtocol.Response;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.Task;
+
+/**
+ * ClusterService over a persistent NIO connection to the peer.  Callers on
+ * different threads share the connection and their requests are pipelined.
+ * Only a few frames are allowed to be waiting for their responses; requests
+ * made in the meantime queue up and go out together in the next frame, so
+ * small PDUs under load don't cost a frame and a round trip each.
+ *
+ * If the peer can't be reached on its NIO port, for example because it
+ * runs without the NIO listener, the requests go through the servlet
+ * transport and the NIO connection is retried after a while.
+ */
+public class ClusterServiceNioImpl implements ClusterService, HandlerFactory {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioImpl.class);
+
+    protected static final int CONNECT_WAIT = 10000;            // 10 seconds
+    protected static final int RETRY_INTERVAL = 60000;          // 1 minute
+    protected static final int MAX_BATCH_REQUESTS = 64;
+    protected static final int MAX_FRAMES_IN_FLIGHT = 2;
+    protected static final int MAX_BATCH_SIZE = 256 * 1024;
+
+    private final String _host;
+    private final int _port;
+    private final int _requestTimeoutSeconds;
+    private final ClusterService _fallback;
+
+    private NioClient _client;
+    private volatile Link _link;
+    private volatile CountDownLatch _connected;
+    private long _retryAt;
+
+    private final AtomicLong _nextRequestId = new AtomicLong(1);
+    private final Map<Long, PendingRequest> _pending = new ConcurrentHashMap<Long, PendingRequest>();
+    private final LinkedList<PendingRequest> _outgoing = new LinkedList<PendingRequest>();
+    private boolean _flushing;
+    private int _framesInFlight;
+
+    private final AtomicLong _frames = new AtomicLong();
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _fallbacks = new AtomicLong();
+
+    public ClusterServiceNioImpl(String host, int port, int requestTimeoutSeconds, ClusterService fallback) {
+        s_logger.info("Setup cluster service channel to " + host + ":" + port + ", request timeout: " + requestTimeoutSeconds + " seconds");
+        _host = host;
+        _port = port;
+        _requestTimeoutSeconds = requestTimeoutSeconds;
+        _fallback = fallback;
+    }
+
+    @Override
+    public String execute(ClusterServicePdu pdu) throws RemoteException {
+        Link link = getLink();
+        if (link == null) {
+            _fallbacks.incrementAndGet();
+            return _fallback.execute(pdu);
+        }
+        return call(link, new PendingRequest(new Request(_nextRequestId.getAndIncrement(), pdu)));
+    }
+
+    @Override
+    public boolean ping(String callingPeer) throws RemoteException {
+        Link link = getLink();
+        if (link == null) {
+            _fallbacks.incrementAndGet();
+            return _fallback.ping(callingPeer);
+        }
+        return "true".equalsIgnoreCase(call(link, new PendingRequest(new Request(_nextRequestId.getAndIncrement(), callingPeer))));
+    }
+
+    /**
+     * @return number of frames sent, requests sent and requests that went through the fallback transport.
+     */
+    public long[] getCounters() {
+        return new long[] { _frames.get(), _requests.get(), _fallbacks.get() };
+    }
+
+    public synchronized void close() {
+        Link link = _link;
+        _link = null;
+        if (link != null) {
+            link.close();
+        }
+        if (_client != null) {
+            _client.stop();
+            _client = null;
+        }
+        failPending("Cluster service channel to " + _host + ":" + _port + " is closed");
+    }
+
+    protected String call(Link link, PendingRequest request) throws RemoteException {
+        _pending.put(request.request.getId(), request);
+        synchronized (_outgoing) {
+            _outgoing.add(request);
+        }
+        flush(link);
+
+        String result = request.await(_requestTimeoutSeconds * 1000L);
+        _pending.remove(request.request.getId());
+        if (request.failure != null) {
+            throw new RemoteException(request.failure);
+        }
+        if (!request.done) {
+            throw new RemoteException("Timed out waiting for " + _host + ":" + _port + " after " + _requestTimeoutSeconds + " seconds");
+        }
+        return result;
+    }
+
+    /**
+     * Writes out the queued requests.  Only one thread writes at a time, the
+     * others just leave their requests in the queue for it to pick up, and
+     * nothing is written while too many frames are waiting for responses.
+     * The next response frame flushes whatever queued up.
+     */
+    protected void flush(Link link) {
+        synchronized (_outgoing) {
+            if (_flushing || _framesInFlight >= MAX_FRAMES_IN_FLIGHT) {
+                return;
+            }
+            _flushing = true;
+        }
+
+        List<PendingRequest> batch = new ArrayList<PendingRequest>();
+        try {
+            while (true) {
+                batch.clear();
+                synchronized (_outgoing) {
+                    if (_outgoing.isEmpty() || _framesInFlight >= MAX_FRAMES_IN_FLIGHT) {
+                        _flushing = false;
+                        return;
+                    }
+                    int size = 0;
+                    while (!_outgoing.isEmpty() && batch.size() < MAX_BATCH_REQUESTS && (batch.isEmpty() || size + _outgoing.getFirst().request.getSize() <= MAX_BATCH_SIZE)) {
+                        PendingRequest request = _outgoing.removeFirst();
+                        size += request.request.getSize();
+                        batch.add(request);
+                    }
+                    _framesInFlight++;
+                }
+
+                List<Request> requests = new ArrayList<Request>(batch.size());
+                for (PendingRequest request : batch) {
+                    requests.add(request.request);
+                }
+                try {
+                    link.send(ClusterServiceNioProtocol.encodeRequests(requests));
+                    _frames.incrementAndGet();
+                    _requests.addAndGet(batch.size());
+                } catch (IOException e) {
+                    synchronized (_outgoing) {
+                        _framesInFlight--;
+                    }
+                    for (PendingRequest request : batch) {
+                        request.fail("Unable to send to " + _host + ":" + _port + ": " + e.toString());
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            synchronized (_outgoing) {
+                _flushing = false;
+            }
+            throw e;
+        }
+    }
+
+    protected synchronized Link getLink() {
+        if (_link != null) {
+            return _link;
+        }
+        if (System.currentTimeMillis() < _retryAt) {
+            return null;
+        }
+
+        _connected = new CountDownLatch(1);
+        NioClient client = new NioClient("ClusterService-" + _host, _host, _port, 1, this);
+        client.start();
+        if (client.isStartup()) {
+            try {
+                _connected.await(CONNECT_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        if (_link == null) {
+            s_logger.info("Unable to open cluster service channel to " + _host + ":" + _port + ", using servlet transport for now");
+            client.stop();
+            _retryAt = System.currentTimeMillis() + RETRY_INTERVAL;
+            return null;
+        }
+        _client = client;
+        return _link;
+    }
+
+    // not synchronized, getLink() holds the lock while it waits for this
+    protected void connected(Link link) {
+        _link = link;
+        _connected.countDown();
+    }
+
+    protected void disconnected(Link link) {
+        synchronized (this) {
+            if (_link != link) {
+                return;
+            }
+            _link = null;
+            if (_client != null) {
+                _client.stop();
+                _client = null;
+            }
+        }
+        s_logger.info("Cluster service channel to " + _host + ":" + _port + " is disconnected");
+        failPending("Cluster service channel to " + _host + ":" + _port + " is disconnected");
+    }
+
+    protected void failPending(String reason) {
+        synchronized (_outgoing) {
+            _outgoing.clear();
+            _framesInFlight = 0;
+        }
+        Iterator<PendingRequest> it = _pending.values().iterator();
+        while (it.hasNext()) {
+            it.next().fail(reason);
+            it.remove();
+        }
+    }
+
+    protected void received(Link link, byte[] data) throws IOException {
+        List<Response> responses;
+        try {
+            responses = ClusterServiceNioProtocol.decodeResponses(data);
+        } finally {
+            synchronized (_outgoing) {
+                _framesInFlight--;
+            }
+            flush(link);
+        }
+
+        for (Response response : responses) {
+            PendingRequest request = _pending.remove(response.getId());
+            if (request != null) {
+                request.complete(response.getResult());
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Response " + response.getId() + " from " + _host + ":" + _port + " arrived after the request was given up");
+            }
+        }
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new ResponseHandler(type, link, data);
+    }
+
+    protected class ResponseHandler extends Task {
+        public ResponseHandler(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            switch (task.getType()) {
+            case CONNECT:
+                connected(task.getLink());
+                break;
+            case DATA:
+                received(task.getLink(), task.getData());
+                break;
+            case DISCONNECT:
+            case CONNECT_FAILED:
+                disconnected(task.getLink());
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    protected static class PendingRequest {
+        final Request request;
+        String result;
+        String failure;
+        boolean done;
+
+        PendingRequest(Request request) {
+            this.request = request;
+        }
+
+        synchronized void complete(String result) {
+            this.result = result;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(String failure) {
+            this.failure = failure;
+            notifyAll();
+        }
+
+        synchronized String await(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (!done && failure == null) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format of the cluster service NIO channel.  Link does the framing,
+ * every frame carries a batch of requests or a batch of responses.  Requests
+ * are matched to their responses by a per connection request id so any
+ * number of them can be outstanding at the same time.
+ *
+ *   frame    := type(byte) version(byte) count(int) entry*
+ *   request  := id(long) method(int) (pdu | callingPeer(string))
+ *   pdu      := seq(long) ackSeq(long) agentId(long) pduType(int) stopOnError(boolean)
+ *               sourcePeer(string) destPeer(string) json(string)
+ *   response := id(long) result(string)
+ *   string   := length(int, -1 for null) utf-8 bytes
+ */
+public class ClusterServiceNioProtocol {
+    public static final byte FRAME_REQUEST = 1;
+    public static final byte FRAME_RESPONSE = 2;
+    public static final byte VERSION = 1;
+
+    public static class Request {
+        final long id;
+        final int method;
+        final ClusterServicePdu pdu;
+        final String callingPeer;
+
+        public Request(long id, ClusterServicePdu pdu) {
+            this(id, RemoteMethodConstants.METHOD_DELIVER_PDU, pdu, null);
+        }
+
+        public Request(long id, String callingPeer) {
+            this(id, RemoteMethodConstants.METHOD_PING, null, callingPeer);
+        }
+
+        protected Request(long id, int method, ClusterServicePdu pdu, String callingPeer) {
+            this.id = id;
+            this.method = method;
+            this.pdu = pdu;
+            this.callingPeer = callingPeer;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public ClusterServicePdu getPdu() {
+            return pdu;
+        }
+
+        public String getCallingPeer() {
+            return callingPeer;
+        }
+
+        /**
+         * @return rough size of the request on the wire, used to cap batches.
+         */
+        public int getSize() {
+            int size = 64;
+            if (pdu != null && pdu.getJsonPackage() != null) {
+                size += pdu.getJsonPackage().length();
+            }
+            return size;
+        }
+    }
+
+    public static class Response {
+        final long id;
+        final String result;
+
+        public Response(long id, String result) {
+            this.id = id;
+            this.result = result;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getResult() {
+            return result;
+        }
+    }
+
+    public static byte getFrameType(byte[] data) {
+        return data.length > 0 ? data[0] : 0;
+    }
+
+    public static byte[] encodeRequests(List<Request> requests) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FRAME_REQUEST);
+        out.writeByte(VERSION);
+        out.writeInt(requests.size());
+        for (Request request : requests) {
+            out.writeLong(request.id);
+            out.writeInt(request.method);
+            if (request.method == RemoteMethodConstants.METHOD_DELIVER_PDU) {
+                ClusterServicePdu pdu = request.pdu;
+                out.writeLong(pdu.getSequenceId());
+                out.writeLong(pdu.getAckSequenceId());
+                out.writeLong(pdu.getAgentId());
+                out.writeInt(pdu.getPduType());
+                out.writeBoolean(pdu.isStopOnError());
+                writeString(out, pdu.getSourcePeer());
+                writeString(out, pdu.getDestPeer());
+                writeString(out, pdu.getJsonPackage());
+            } else {
+                writeString(out, request.callingPeer);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static List<Request> decodeRequests(byte[] data) throws IOException {
+        DataInputStream in = open(data, FRAME_REQUEST);
+        int count = in.readInt();
+        List<Request> requests = new ArrayList<Request>(count);
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            int method = in.readInt();
+            if (method == RemoteMethodConstants.METHOD_DELIVER_PDU) {
+                ClusterServicePdu pdu = new ClusterServicePdu();
+                pdu.setSequenceId(in.readLong());
+                pdu.setAckSequenceId(in.readLong());
+                pdu.setAgentId(in.readLong());
+                pdu.setPduType(in.readInt());
+                pdu.setStopOnError(in.readBoolean());
+                pdu.setSourcePeer(readString(in));
+                pdu.setDestPeer(readString(in));
+                pdu.setJsonPackage(readString(in));
+                requests.add(new Request(id, pdu));
+            } else {
+                requests.add(new Request(id, method, null, readString(in)));
+            }
+        }
+        return requests;
+    }
+
+    public static byte[] encodeResponses(List<Response> responses) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + responses.size() * 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FRAME_RESPONSE);
+        out.writeByte(VERSION);
+        out.writeInt(responses.size());
+        for (Response response : responses) {
+            out.writeLong(response.id);
+            writeString(out, response.result);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static List<Response> decodeResponses(byte[] data) throws IOException {
+        DataInputStream in = open(data, FRAME_RESPONSE);
+        int count = in.readInt();
+        List<Response> responses = new ArrayList<Response>(count);
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            responses.add(new Response(id, readString(in)));
+        }
+        return responses;
+    }
+
+    protected static DataInputStream open(byte[] data, byte type) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte frameType = in.readByte();
+        byte version = in.readByte();
+        if (frameType != type || version != VERSION) {
+            throw new IOException("Unexpected frame type " + frameType + " version " + version);
+        }
+        return in;
+    }
+
+    protected static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,109 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.ClusterServiceNioProtocol.Request;
+import com.cloud.cluster.ClusterServiceNioProtocol.Response;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+
+/**
+ * Receiving end of the cluster service NIO channel.  Peers keep one
+ * connection open and send PDUs in batches over it, every batch is
+ * answered with one frame holding the results in the same order.  The
+ * PDUs are handed to the cluster manager exactly as the servlet does.
+ */
+public class ClusterServiceNioServer implements HandlerFactory {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioServer.class);
+
+    private final ClusterManager _manager;
+    private final NioServer _server;
+
+    public ClusterServiceNioServer(ClusterManager manager, int port, int workers) {
+        _manager = manager;
+        _server = new NioServer("ClusterService", port, workers, 1, this);
+    }
+
+    public boolean start() {
+        _server.start();
+        return _server.isStartup();
+    }
+
+    public void stop() {
+        _server.stop();
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new RequestHandler(type, link, data);
+    }
+
+    protected String handle(Request request) {
+        switch (request.getMethod()) {
+        case RemoteMethodConstants.METHOD_DELIVER_PDU:
+            _manager.OnReceiveClusterServicePdu(request.getPdu());
+            return "true";
+        case RemoteMethodConstants.METHOD_PING:
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Handle ping request from " + request.getCallingPeer());
+            }
+            return "true";
+        default:
+            s_logger.error("unrecognized method " + request.getMethod());
+            return null;
+        }
+    }
+
+    protected class RequestHandler extends Task {
+        public RequestHandler(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() == Task.Type.CONNECT || task.getType() == Task.Type.DISCONNECT) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cluster service peer " + task.getLink().getSocketAddress() + " " + (task.getType() == Task.Type.CONNECT ? "connected" : "disconnected"));
+                }
+                return;
+            }
+            if (task.getType() != Task.Type.DATA) {
+                return;
+            }
+
+            List<Request> requests = ClusterServiceNioProtocol.decodeRequests(task.getData());
+            List<Response> responses = new ArrayList<Response>(requests.size());
+            for (Request request : requests) {
+                String result = null;
+                try {
+                    result = handle(request);
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception when processing cluster service request : ", e);
+                }
+                responses.add(new Response(request.getId(), result));
+            }
+            task.getLink().send(ClusterServiceNioProtocol.encodeResponses(responses));
+        }
+    }
+}
@@ -21,6 +21,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
@@ -42,6 +43,8 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     private static final Logger s_logger = Logger.getLogger(ClusterServiceServletAdapter.class);
     private static final int DEFAULT_SERVICE_PORT = 9090;
     private static final int DEFAULT_REQUEST_TIMEOUT = 300;			// 300 seconds
+    private static final int NIO_PORT_OFFSET = 1;
+    private static final int NIO_WORKERS = 5;
     
     private ClusterManager _manager;
     
@@ -50,6 +53,9 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     private ConfigurationDao _configDao;
     
     private ClusterServiceServletContainer _servletContainer;
+    private ClusterServiceNioServer _nioServer;
+    private boolean _nioEnabled;
+    private final Map<String, ClusterServiceNioImpl> _nioChannels = new HashMap<String, ClusterServiceNioImpl>();
     
     private String _name;
     private int _clusterServicePort = DEFAULT_SERVICE_PORT;
@@ -69,7 +75,23 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     	if(serviceUrl == null)
     		return null;
     	
-    	return new ClusterServiceServletImpl(serviceUrl, _clusterRequestTimeoutSeconds);
+    	ClusterServiceServletImpl servletService = new ClusterServiceServletImpl(serviceUrl, _clusterRequestTimeoutSeconds);
+    	if(!_nioEnabled)
+    		return servletService;
+
+    	// the channel outlives the cluster manager's cache of peer services so the connection is kept
+    	ManagementServerHostVO mshost = _mshostDao.findByMsid(Long.parseLong(strPeer));
+    	if(mshost == null)
+    		return servletService;
+    	String endpoint = mshost.getServiceIP() + ":" + (mshost.getServicePort() + NIO_PORT_OFFSET);
+    	synchronized(_nioChannels) {
+    		ClusterServiceNioImpl channel = _nioChannels.get(endpoint);
+    		if(channel == null) {
+    			channel = new ClusterServiceNioImpl(mshost.getServiceIP(), mshost.getServicePort() + NIO_PORT_OFFSET, _clusterRequestTimeoutSeconds, servletService);
+    			_nioChannels.put(endpoint, channel);
+    		}
+    		return channel;
+    	}
 	}
     
     @Override
@@ -118,6 +140,11 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     public boolean start() {
     	_servletContainer = new ClusterServiceServletContainer();
     	_servletContainer.start(new ClusterServiceServletHttpHandler(_manager), _clusterServicePort);
+    	if(_nioEnabled) {
+    		_nioServer = new ClusterServiceNioServer(_manager, _clusterServicePort + NIO_PORT_OFFSET, NIO_WORKERS);
+    		if(!_nioServer.start())
+    			s_logger.warn("Unable to start cluster service NIO listener on port " + (_clusterServicePort + NIO_PORT_OFFSET) + ", peers will use the servlet");
+    	}
     	return true;
     }
     
@@ -125,6 +152,13 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     public boolean stop() {
     	if(_servletContainer != null)
     		_servletContainer.stop();
+    	if(_nioServer != null)
+    		_nioServer.stop();
+    	synchronized(_nioChannels) {
+    		for(ClusterServiceNioImpl channel : _nioChannels.values())
+    			channel.close();
+    		_nioChannels.clear();
+    	}
     	return true;
     }
     
@@ -152,6 +186,8 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
         String value = _configDao.getValue(Config.ClusterMessageTimeOutSeconds.key());
     	_clusterRequestTimeoutSeconds = NumbersUtil.parseInt(value, DEFAULT_REQUEST_TIMEOUT);
     	s_logger.info("Configure cluster request time out. timeout: " + _clusterRequestTimeoutSeconds + " seconds");
+
+    	_nioEnabled = Boolean.parseBoolean(_configDao.getValue(Config.ClusterServiceNio.key()));
         
         File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
         Properties dbProps = new Properties();
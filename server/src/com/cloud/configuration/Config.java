@@ -102,6 +102,8 @@ public enum Config {
 	SecurityGroupWorkerThreads("Network", ManagementServer.class, Integer.class, "network.securitygroups.workers.pool.size", "50", "Number of worker threads processing the security group update work queue", null),
 	SecurityGroupWorkGlobalLockTimeout("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.lock.timeout", "300", "Lock wait timeout (seconds) while updating the security group work queue", null),
 	SecurityGroupWorkPerAgentMaxQueueSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.per.agent.queue.size", "100", "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually", null),
+	SecurityGroupRulesetIndex("Network", ManagementServer.class, Boolean.class, "network.securitygroups.ruleset.index", "true", "If true, security group rulesets are compiled from an in-memory index of group rules and members, and vms whose ruleset did not change are not sent an update", null),
+	SecurityGroupCompactRulesets("Network", ManagementServer.class, Boolean.class, "network.securitygroups.ruleset.compact", "false", "If true, security group rulesets are sent to hosts in a compressed form that lists each distinct set of cidrs once. Only enable it once all hosts run agents that understand this form", null),
 	
 	SecurityGroupDefaultAdding("Network", ManagementServer.class, Boolean.class, "network.securitygroups.defaultadding", "true", "If true, the user VM would be added to the default security group by default", null),
 	
@@ -141,6 +143,7 @@ public enum Config {
 	// Advanced
     JobExpireMinutes("Advanced", ManagementServer.class, String.class, "job.expire.minutes", "1440", "Time (in minutes) for async-jobs to be kept in system", null),
     JobCancelThresholdMinutes("Advanced", ManagementServer.class, String.class, "job.cancel.threshold.minutes", "60", "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", null),
+    JobSchedulerWeights("Advanced", ManagementServer.class, String.class, "job.scheduler.weights", null, "Comma separated weights of async job classes, e.g. Snapshot:2,DomainRouter:4. A job class is the instance type of the job or its command class name, and gets weight 1 when not listed", null),
     SwiftEnable("Advanced", ManagementServer.class, Boolean.class, "swift.enable", "false", "enable swift ", null),
     S3Enable("Advanced", ManagementServer.class, Boolean.class, "s3.enable", "false", "enable s3 ", null),
     EventPurgeInterval("Advanced", ManagementServer.class, Integer.class, "event.purge.interval", "86400", "The interval (in seconds) to wait before running the event purge thread", null),
@@ -156,11 +159,16 @@ public enum Config {
 	HostStatsInterval("Advanced", ManagementServer.class, Integer.class, "host.stats.interval", "60000", "The interval (in milliseconds) when host stats are retrieved from agents.", null),
 	HostRetry("Advanced", AgentManager.class, Integer.class, "host.retry", "2", "Number of times to retry hosts for creating a volume", null),
 	IntegrationAPIPort("Advanced", ManagementServer.class, Integer.class, "integration.api.port", null, "Defaul API port", null),
+	IntegrationAPINio("Advanced", ManagementServer.class, Boolean.class, "integration.api.nio", "false", "Serve the integration API port without blocking, keeping connections alive between requests", null),
+	IntegrationAPIWorkers("Advanced", ManagementServer.class, Integer.class, "integration.api.workers", "150", "Number of threads executing requests received on the non-blocking integration API port", null),
+	IntegrationAPIQueueSize("Advanced", ManagementServer.class, Integer.class, "integration.api.queue.size", "100", "Number of requests that can wait for a worker on the non-blocking integration API port before new ones are answered with 503", null),
+	IntegrationAPIRetryAfter("Advanced", ManagementServer.class, Integer.class, "integration.api.retry.after", "5", "Seconds sent in the Retry-After header when the non-blocking integration API port is saturated", null),
 	InvestigateRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "investigate.retry.interval", "60", "Time (in seconds) between VM pings when agent is disconnected", null),
 	MigrateRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "migrate.retry.interval", "120", "Time (in seconds) between migration retries", null),
 	PingInterval("Advanced", AgentManager.class, Integer.class, "ping.interval", "60", "Ping interval in seconds", null),
 	PingTimeout("Advanced", AgentManager.class, Float.class, "ping.timeout", "2.5", "Multiplier to ping.interval before announcing an agent has timed out", null),
 	ClusterDeltaSyncInterval("Advanced", AgentManager.class, Integer.class, "sync.interval", "60", "Cluster Delta sync interval in seconds", null),
+	ClusterFullSyncInterval("Advanced", AgentManager.class, Integer.class, "sync.full.interval", "3600", "Cluster full sync interval in seconds, the cluster delta sync falls back to a full sync this often and whenever its vm states are found out of step", null),
 	Port("Advanced", AgentManager.class, Integer.class, "port", "8250", "Port to listen on for agent connection.", null),
 	RouterCpuMHz("Advanced", NetworkManager.class, Integer.class, "router.cpu.mhz", String.valueOf(VpcVirtualNetworkApplianceManager.DEFAULT_ROUTER_CPU_MHZ), "Default CPU speed (MHz) for router VM.", null),
 	RestartRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "restart.retry.interval", "600", "Time (in seconds) between retries to restart a vm", null),
@@ -170,6 +178,7 @@ public enum Config {
 	RouterCheckPoolSize("Advanced", NetworkManager.class, Integer.class, "router.check.poolsize", "10", "Numbers of threads using to check redundant router status.", null),
 	RouterTemplateId("Advanced", NetworkManager.class, Long.class, "router.template.id", "1", "Default ID for template.", null),
     RouterExtraPublicNics("Advanced", NetworkManager.class, Integer.class, "router.extra.public.nics", "2", "specify extra public nics used for virtual router(up to 5)", "0-5"),
+    RouterConfigBatchSize("Advanced", NetworkManager.class, Integer.class, "router.config.batch.size", "50", "Number of guest vms whose dhcp entries or vm data a starting virtual router applies in one go, 0 sends a command per vm", null),
 	StartRetry("Advanced", AgentManager.class, Integer.class, "start.retry", "10", "Number of times to retry create and start commands", null),
 	StopRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "stop.retry.interval", "600", "Time in seconds between retries to stop or destroy a vm" , null),
 	StorageCleanupInterval("Advanced", StorageManager.class, Integer.class, "storage.cleanup.interval", "86400", "The interval (in seconds) to wait before running the storage cleanup thread.", null),
@@ -179,6 +188,7 @@ public enum Config {
 	XapiWait("Advanced", AgentManager.class, Integer.class, "xapiwait", "600", "Time (in seconds) to wait for XAPI to return", null),
 	MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	Workers("Advanced", AgentManager.class, Integer.class, "workers", "5", "Number of worker threads.", null),
+	AgentSelectors("Advanced", AgentManager.class, Integer.class, "agent.selectors", "0", "Number of selector threads serving agent connections, 0 means one per core.", null),
 	HAWorkers("Advanced", AgentManager.class, Integer.class, "ha.workers", "5", "Number of ha worker threads.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/lib/cloud/management/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
@@ -210,6 +220,9 @@ public enum Config {
 	NetworkGcWait("Advanced", ManagementServer.class, Integer.class, "network.gc.wait", "600", "Time (in seconds) to wait before shutting down a network that's not in used", null),
 	NetworkGcInterval("Advanced", ManagementServer.class, Integer.class, "network.gc.interval", "600", "Seconds to wait before checking for networks to shutdown", null),	
 	CapacitySkipcountingHours("Advanced", ManagementServer.class, Integer.class, "capacity.skipcounting.hours", "3600", "Time (in seconds) to wait before release VM's cpu and memory when VM in stopped state", null),
+	CapacityLedgerEnabled("Advanced", ManagementServer.class, Boolean.class, "capacity.ledger.enabled", "false", "If true, the deployment planner lists and orders clusters and pods by a copy of the host cpu and memory capacity kept in memory", "true,false"),
+	CapacityLedgerReconcileInterval("Advanced", ManagementServer.class, Integer.class, "capacity.ledger.reconcile.interval", "60", "Time (in seconds) between reloads of the in-memory host capacity from the database, to pick up changes made by other management servers", null),
+	CapacityHoldTimeout("Advanced", ManagementServer.class, Integer.class, "capacity.hold.timeout", "300", "Time (in seconds) that capacity set aside for a vm by batch deployment planning is kept if the vm does not start", null),
 	VmStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.interval", "60000", "The interval (in milliseconds) when vm stats are retrieved from agents.", null),
 	VmTransitionWaitInterval("Advanced", ManagementServer.class, Integer.class, "vm.tranisition.wait.interval", "3600", "Time (in seconds) to wait before taking over a VM in transition state", null),
 	VmDestroyForcestop("Advanced", ManagementServer.class, Boolean.class, "vm.destroy.forcestop", "false", "On destroy, force-stop takes this value ", null),
@@ -220,6 +233,8 @@ public enum Config {
 	ApplyAllocationAlgorithmToPods("Advanced", ManagementServer.class, Boolean.class, "apply.allocation.algorithm.to.pods", "false", "If true, deployment planner applies the allocation heuristics at pods first in the given datacenter during VM resource allocation", "true,false"),
 	VmUserDispersionWeight("Advanced", ManagementServer.class, Float.class, "vm.user.dispersion.weight", "1", "Weight for user dispersion heuristic (as a value between 0 and 1) applied to resource allocation during vm deployment. Weight for capacity heuristic will be (1 - weight of user dispersion)", null),
     VmAllocationAlgorithm("Advanced", ManagementServer.class, String.class, "vm.allocation.algorithm", "random", "'random', 'firstfit', 'userdispersing', 'userconcentratedpod_random', 'userconcentratedpod_firstfit' : Order in which hosts within a cluster will be considered for VM/volume allocation.", null),
+	HostAllocatorIndexEnabled("Advanced", ManagementServer.class, Boolean.class, "host.allocator.index.enabled", "true", "If true, host allocators pick candidate hosts from an in-memory index of up and enabled hosts by cluster, tag and guest OS category instead of searching the database", "true,false"),
+	HostAllocatorIndexRefreshInterval("Advanced", ManagementServer.class, Integer.class, "host.allocator.index.refresh.interval", "60", "Time (in seconds) between reloads of the host allocator candidate index, to pick up host tag, guest OS category and enable/disable changes", null),
 	EndpointeUrl("Advanced", ManagementServer.class, String.class, "endpointe.url", "http://localhost:8080/client/api", "Endpointe Url", null),
 	ElasticLoadBalancerEnabled("Advanced", ManagementServer.class, String.class, "network.loadbalancer.basiczone.elb.enabled", "false", "Whether the load balancing service is enabled for basic zones", "true,false"),
 	ElasticLoadBalancerNetwork("Advanced", ManagementServer.class, String.class, "network.loadbalancer.basiczone.elb.network", "guest", "Whether the elastic load balancing service public ips are taken from the public or guest network", "guest,public"),
@@ -277,6 +292,8 @@ public enum Config {
     DirectNetworkStatsInterval("Usage", ManagementServer.class, Integer.class, "direct.network.stats.interval", "86400", "Interval (in seconds) to collect stats from Traffic Monitor", null),
     UsageSanityCheckInterval("Usage", ManagementServer.class, Integer.class, "usage.sanity.check.interval", null, "Interval (in days) to check sanity of usage data", null),
     UsageAggregationTimezone("Usage", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParseWorkers("Usage", ManagementServer.class, Integer.class, "usage.parse.workers", "1", "Number of threads the usage job parses accounts with, more than 1 shards the accounts across them and lets a failed job resume from where each shard stopped", null),
+    UsageIncrementalInterval("Usage", ManagementServer.class, Integer.class, "usage.incremental.interval", "0", "Interval (in minutes) to parse usage up to the current time between usage jobs, each job replaces these provisional records with those of its whole range. 0 parses usage in the usage job only", null),
     TrafficSentinelIncludeZones("Usage", ManagementServer.class, Integer.class, "traffic.sentinel.include.zones", "EXTERNAL", "Traffic going into specified list of zones is metered. For metering all traffic leave this parameter empty", null),
     TrafficSentinelExcludeZones("Usage", ManagementServer.class, Integer.class, "traffic.sentinel.exclude.zones", "", "Traffic going into specified list of zones is not metered.", null),
     
@@ -322,6 +339,7 @@ public enum Config {
 	DnsBasicZoneUpdates("Advanced", NetworkManager.class, String.class, "network.dns.basiczone.updates", "all", "This parameter can take 2 values: all (default) and pod. It defines if DHCP/DNS requests have to be send to all dhcp servers in cloudstack, or only to the one in the same pod", "all,pod"),
 
 	ClusterMessageTimeOutSeconds("Advanced", ManagementServer.class, Integer.class, "cluster.message.timeout.seconds", "300", "Time (in seconds) to wait before a inter-management server message post times out.", null),
+	ClusterServiceNio("Advanced", ManagementServer.class, Boolean.class, "cluster.service.nio", "false", "Send inter-management server messages over a persistent connection to the cluster servlet port + 1 instead of a HTTP post per message", null),
 	AgentLoadThreshold("Advanced", ManagementServer.class, Float.class, "agent.load.threshold", "0.7", "Percentage (as a value between 0 and 1) of connected agents after which agent load balancing will start happening", null),
 	
 	JavaScriptDefaultContentType("Advanced", ManagementServer.class, String.class, "json.content.type", "text/javascript", "Http response content type for .js files (default is text/javascript)", null),
@@ -17,9 +17,12 @@
 package com.cloud.deploy;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
@@ -30,7 +33,6 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.manager.allocator.HostAllocator;
-import com.cloud.api.ApiDBUtils;
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
@@ -84,7 +86,7 @@ import com.cloud.vm.dao.UserVmDao;
 import com.cloud.vm.dao.VMInstanceDao;
 
 @Local(value=DeploymentPlanner.class)
-public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
+public class FirstFitPlanner extends PlannerBase implements BatchDeploymentPlanner {
     private static final Logger s_logger = Logger.getLogger(FirstFitPlanner.class);
     @Inject protected HostDao _hostDao;
     @Inject protected DataCenterDao _dcDao;
@@ -144,6 +146,9 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         }
         
         String haVmTag = (String)vmProfile.getParameter(VirtualMachineProfile.Param.HaTag);
+
+        //capacity held for this vm by a batch plan is given back first, so it is not counted against the vm itself
+        Long heldHostId = _capacityMgr.releaseHeldCapacity(vm.getId());
         
         if(plan.getHostId() != null && haVmTag == null){
             Long hostIdSpecified = plan.getHostId();
@@ -189,6 +194,16 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
             return null;
         }
 
+        if (heldHostId != null) {
+            s_logger.debug("This VM was planned onto host: " + heldHostId + " by a batch plan, trying to choose the same host");
+            DeployDestination dest = planOnHeldHost(vmProfile, plan, avoid, dc, heldHostId, cpu_requested, ram_requested, cpuOverprovisioningFactor);
+            if (dest != null) {
+                s_logger.debug("Returning Deployment Destination: "+ dest);
+                return dest;
+            }
+            s_logger.debug("Cannot choose the host planned for this VM");
+        }
+
         if (vm.getLastHostId() != null && haVmTag == null) {
             s_logger.debug("This VM has last host_id specified, trying to choose the same host: " +vm.getLastHostId());
 
@@ -284,8 +299,292 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
 
     }
     
+    @Override
+    public List<DeployDestination> planBatch(List<? extends VirtualMachineProfile<? extends VirtualMachine>> vms, DeploymentPlan plan, ExcludeList avoid) {
+        List<DeployDestination> dests = new ArrayList<DeployDestination>(vms.size());
+        for (int i = 0; i < vms.size(); i++) {
+            dests.add(null);
+        }
+
+        DataCenter dc = _dcDao.findById(plan.getDataCenterId());
+        if(dc == null || avoid.shouldAvoid(dc)){
+            s_logger.debug("DataCenter id = '"+ plan.getDataCenterId() +"' provided cannot be found or is in avoid set, DeploymentPlanner cannot allocate the VMs, returning.");
+            return dests;
+        }
+
+        String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
+        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
+
+        //vms tied to a host are planned one by one, the others are grouped by what they ask of a host
+        Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < vms.size(); i++) {
+            VirtualMachineProfile<? extends VirtualMachine> vmProfile = vms.get(i);
+            VirtualMachine vm = vmProfile.getVirtualMachine();
+            String haVmTag = (String)vmProfile.getParameter(VirtualMachineProfile.Param.HaTag);
+            //the last host is not tried for ha restarts, nor when it is avoided, as for the host that went down
+            boolean tiedToLastHost = vm.getLastHostId() != null && haVmTag == null
+                    && (avoid.getHostsToAvoid() == null || !avoid.getHostsToAvoid().contains(vm.getLastHostId()));
+            if (plan.getHostId() != null || tiedToLastHost) {
+                dests.set(i, planAndHold(vmProfile, plan, avoid, cpuOverprovisioningFactor));
+                continue;
+            }
+            String key = vm.getServiceOfferingId() + "-" + vm.getTemplateId() + "-" + vmProfile.getHypervisorType() + "-" + vm.getAccountId() + "-" + haVmTag;
+            List<Integer> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(key, group);
+            }
+            group.add(i);
+        }
+
+        for (List<Integer> group : groups.values()) {
+            List<VirtualMachineProfile<? extends VirtualMachine>> groupVms = new ArrayList<VirtualMachineProfile<? extends VirtualMachine>>();
+            for (Integer index : group) {
+                groupVms.add(vms.get(index));
+            }
+            //a cluster that cannot take one group can still take another, so each group starts from the avoid set given
+            List<DeployDestination> groupDests = planGroup(groupVms, plan, copyOf(avoid), dc, cpuOverprovisioningFactor);
+            for (int i = 0; i < group.size(); i++) {
+                dests.set(group.get(i), groupDests.get(i));
+            }
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            int placed = 0;
+            for (DeployDestination dest : dests) {
+                if (dest != null) {
+                    placed++;
+                }
+            }
+            s_logger.debug("Planned " + placed + " of " + vms.size() + " VMs in " + groups.size() + " groups");
+        }
+        return dests;
+    }
+
+    private DeployDestination planOnHeldHost(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, DataCenter dc, long hostId,
+            int cpu_requested, long ram_requested, float cpuOverprovisioningFactor) {
+        HostVO host = _hostDao.findById(hostId);
+        if (host == null || avoid.shouldAvoid(host)) {
+            s_logger.debug("The host planned for this VM cannot be found or is in avoid set");
+            return null;
+        }
+        if ((plan.getPodId() != null && !plan.getPodId().equals(host.getPodId())) || (plan.getClusterId() != null && !plan.getClusterId().equals(host.getClusterId()))) {
+            s_logger.debug("The host planned for this VM is outside the pod or cluster of the deployment plan");
+            return null;
+        }
+        if (host.getStatus() != Status.Up || host.getResourceState() != ResourceState.Enabled) {
+            s_logger.debug("The host planned for this VM is not UP or is not enabled, host status is: " + host.getStatus() + ", host resource state is: " + host.getResourceState());
+            return null;
+        }
+        //the hold only lives on the management server that made it, so the host may have filled up since
+        if (_capacityMgr.checkIfHostReachMaxGuestLimit(host)
+                || !_capacityMgr.checkIfHostHasCapacity(hostId, cpu_requested, ram_requested, false, cpuOverprovisioningFactor, true)) {
+            s_logger.debug("The host planned for this VM does not have enough capacity any more");
+            return null;
+        }
+        Pod pod = _podDao.findById(host.getPodId());
+        Cluster cluster = _clusterDao.findById(host.getClusterId());
+        return findStorageOnHost(vmProfile, plan, avoid, dc, pod, cluster, host);
+    }
+
+    private DeployDestination planAndHold(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, float cpuOverprovisioningFactor) {
+        DeployDestination dest;
+        try {
+            dest = plan(vmProfile, plan, avoid);
+        } catch (InsufficientServerCapacityException e) {
+            s_logger.debug("Unable to plan VM: " + vmProfile.getId() + " due to " + e.getMessage());
+            return null;
+        }
+        if (dest != null) {
+            ServiceOffering offering = vmProfile.getServiceOffering();
+            // a host given by the plan is used without checks, so the hold is only best effort here
+            _capacityMgr.holdCapacity(vmProfile.getId(), dest.getHost().getId(), offering.getCpu() * offering.getSpeed(),
+                    offering.getRamSize() * 1024L * 1024L, cpuOverprovisioningFactor);
+        }
+        return dest;
+    }
+
+    private List<DeployDestination> planGroup(List<VirtualMachineProfile<? extends VirtualMachine>> vms, DeploymentPlan plan, ExcludeList avoid, DataCenter dc,
+            float cpuOverprovisioningFactor) {
+        List<DeployDestination> dests = new ArrayList<DeployDestination>(vms.size());
+        List<Integer> unplaced = new ArrayList<Integer>();
+        for (int i = 0; i < vms.size(); i++) {
+            dests.add(null);
+            unplaced.add(i);
+        }
+
+        VirtualMachineProfile<? extends VirtualMachine> vmProfile = vms.get(0);
+        ServiceOffering offering = vmProfile.getServiceOffering();
+        int cpu_requested = offering.getCpu() * offering.getSpeed();
+        long ram_requested = offering.getRamSize() * 1024L * 1024L;
+
+        List<Long> clusterList = listCandidateClusters(vmProfile, plan, avoid);
+        removeClustersCrossingThreshold(clusterList, avoid, vmProfile, plan);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Planning " + vms.size() + " VMs asking for cpu: " + cpu_requested + ", ram: " + ram_requested + " over clusters: " + clusterList);
+        }
+
+        for (Long clusterId : clusterList) {
+            if (unplaced.isEmpty()) {
+                break;
+            }
+            Cluster clusterVO = _clusterDao.findById(clusterId);
+            if (clusterVO.getHypervisorType() != vmProfile.getHypervisorType()) {
+                s_logger.debug("Cluster: "+clusterId + " has HyperVisorType that does not match the VM, skipping this cluster");
+                avoid.addCluster(clusterVO.getId());
+                continue;
+            }
+
+            //the hosts are looked up once for the whole group and filled in order
+            DataCenterDeployment potentialPlan = new DataCenterDeployment(plan.getDataCenterId(), clusterVO.getPodId(), clusterVO.getId(), null, plan.getPoolId(), null, plan.getReservationContext());
+            List<Host> suitableHosts = findSuitableHosts(vmProfile, potentialPlan, avoid, HostAllocator.RETURN_UPTO_ALL);
+            if (suitableHosts == null || suitableHosts.isEmpty()) {
+                s_logger.debug("No suitable hosts found under this Cluster: "+clusterId);
+                avoid.addCluster(clusterVO.getId());
+                continue;
+            }
+            Pod pod = _podDao.findById(clusterVO.getPodId());
+
+            int firstOpenHost = 0;
+            for (Iterator<Integer> it = unplaced.iterator(); it.hasNext() && firstOpenHost < suitableHosts.size();) {
+                int index = it.next();
+                VirtualMachineProfile<? extends VirtualMachine> profile = vms.get(index);
+                for (int h = firstOpenHost; h < suitableHosts.size(); h++) {
+                    Host host = suitableHosts.get(h);
+                    if (!_capacityMgr.holdCapacity(profile.getId(), host.getId(), cpu_requested, ram_requested, cpuOverprovisioningFactor)) {
+                        //every vm in the group asks for the same, so a host that is full for one is full for the rest
+                        if (h == firstOpenHost) {
+                            firstOpenHost++;
+                        }
+                        continue;
+                    }
+                    DeployDestination dest = findStorageOnHost(profile, plan, avoid, dc, pod, clusterVO, host);
+                    if (dest != null) {
+                        dests.set(index, dest);
+                        it.remove();
+                        break;
+                    }
+                    _capacityMgr.releaseHeldCapacity(profile.getId());
+                }
+            }
+            if (!unplaced.isEmpty()) {
+                avoid.addCluster(clusterVO.getId());
+            }
+        }
+
+        if (!unplaced.isEmpty()) {
+            s_logger.debug("Could not find suitable Deployment Destinations for " + unplaced.size() + " of " + vms.size() + " VMs under any clusters");
+        }
+        return dests;
+    }
+
+    private DeployDestination findStorageOnHost(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, DataCenter dc, Pod pod,
+            Cluster cluster, Host host) {
+        if (vmProfile.getHypervisorType() == HypervisorType.BareMetal) {
+            return new DeployDestination(dc, pod, cluster, host);
+        }
+
+        DataCenterDeployment hostPlan = new DataCenterDeployment(plan.getDataCenterId(), cluster.getPodId(), cluster.getId(), host.getId(), plan.getPoolId(), null, plan.getReservationContext());
+        Pair<Map<Volume, List<StoragePool>>, List<Volume>> result = findSuitablePoolsForVolumes(vmProfile, hostPlan, avoid, StoragePoolAllocator.RETURN_UPTO_ALL);
+        Map<Volume, List<StoragePool>> suitableVolumeStoragePools = result.first();
+        List<Volume> readyAndReusedVolumes = result.second();
+        if (suitableVolumeStoragePools.isEmpty()) {
+            s_logger.debug("No suitable storagePools found for VM: " + vmProfile.getId() + " on host: " + host.getId());
+            return null;
+        }
+
+        Pair<Host, Map<Volume, StoragePool>> potentialResources = findPotentialDeploymentResources(Collections.singletonList(host), suitableVolumeStoragePools);
+        if (potentialResources == null) {
+            return null;
+        }
+        Map<Volume, StoragePool> storageVolMap = potentialResources.second();
+        // remove the reused vol<->pool from destination, since we don't have to prepare this volume.
+        for(Volume vol : readyAndReusedVolumes){
+            storageVolMap.remove(vol);
+        }
+        DeployDestination dest = new DeployDestination(dc, pod, cluster, host, storageVolMap);
+        s_logger.debug("Returning Deployment Destination: "+ dest);
+        return dest;
+    }
+
+    private List<Long> listCandidateClusters(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid) {
+        List<Long> clusterList = new ArrayList<Long>();
+        if (plan.getClusterId() != null) {
+            if (_clusterDao.findById(plan.getClusterId()) != null) {
+                clusterList.add(plan.getClusterId());
+            } else {
+                s_logger.debug("The specified cluster cannot be found, returning.");
+                avoid.addCluster(plan.getClusterId());
+            }
+        } else if (plan.getPodId() != null) {
+            if (_podDao.findById(plan.getPodId()) != null) {
+                clusterList.addAll(listCandidateClustersInZoneOrPod(plan.getPodId(), false, vmProfile, plan, avoid));
+            } else {
+                s_logger.debug("The specified Pod cannot be found, returning.");
+                avoid.addPod(plan.getPodId());
+            }
+        } else if (Boolean.parseBoolean(_configDao.getValue(Config.ApplyAllocationAlgorithmToPods.key()))) {
+            for (Long podId : listCandidatePods(vmProfile, plan, avoid)) {
+                clusterList.addAll(listCandidateClustersInZoneOrPod(podId, false, vmProfile, plan, avoid));
+            }
+        } else {
+            clusterList.addAll(listCandidateClustersInZoneOrPod(plan.getDataCenterId(), true, vmProfile, plan, avoid));
+        }
+        return clusterList;
+    }
+
+    private ExcludeList copyOf(ExcludeList avoid) {
+        ExcludeList copy = new ExcludeList();
+        if (avoid.getDataCentersToAvoid() != null) {
+            for (Long id : avoid.getDataCentersToAvoid()) {
+                copy.addDataCenter(id);
+            }
+        }
+        if (avoid.getPodsToAvoid() != null) {
+            for (Long id : avoid.getPodsToAvoid()) {
+                copy.addPod(id);
+            }
+        }
+        if (avoid.getClustersToAvoid() != null) {
+            copy.addClusterList(avoid.getClustersToAvoid());
+        }
+        if (avoid.getHostsToAvoid() != null) {
+            for (Long id : avoid.getHostsToAvoid()) {
+                copy.addHost(id);
+            }
+        }
+        if (avoid.getPoolsToAvoid() != null) {
+            for (Long id : avoid.getPoolsToAvoid()) {
+                copy.addPool(id);
+            }
+        }
+        return copy;
+    }
+
     private DeployDestination scanPodsForDestination(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid){
         
+        List<Long> prioritizedPodIds = listCandidatePods(vmProfile, plan, avoid);
+        if(prioritizedPodIds.isEmpty()){
+            return null;
+        }
+
+        //loop over pods
+        for(Long podId : prioritizedPodIds){
+            s_logger.debug("Checking resources under Pod: "+podId);
+            DeployDestination dest = scanClustersForDestinationInZoneOrPod(podId, false, vmProfile, plan, avoid);
+            if(dest != null){
+                return dest;
+            }
+            avoid.addPod(podId);
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("No Pods found for destination, returning.");
+        }
+        return null;
+    }
+
+    private List<Long> listCandidatePods(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid){
+        
         ServiceOffering offering = vmProfile.getServiceOffering();
         int requiredCpu = offering.getCpu() * offering.getSpeed();
         long requiredRam = offering.getRamSize() * 1024L * 1024L;
@@ -293,7 +592,6 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
         
         //list pods under this zone by cpu and ram capacity
-        List<Long> prioritizedPodIds = new ArrayList<Long>();
         Pair<List<Long>, Map<Long, Double>> podCapacityInfo = listPodsByCapacity(plan.getDataCenterId(), requiredCpu, requiredRam, cpuOverprovisioningFactor); 
         List<Long> podsWithCapacity = podCapacityInfo.first();
 
@@ -317,39 +615,33 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("No pods found having a host with enough capacity, returning.");
             }
-            return null;
+            return new ArrayList<Long>();
         }
         
         if(!podsWithCapacity.isEmpty()){
-            
-            prioritizedPodIds = reorderPods(podCapacityInfo, vmProfile, plan);
-
-            //loop over pods
-            for(Long podId : prioritizedPodIds){
-                s_logger.debug("Checking resources under Pod: "+podId);
-                DeployDestination dest = scanClustersForDestinationInZoneOrPod(podId, false, vmProfile, plan, avoid);
-                if(dest != null){
-                    return dest;
-                }
-                avoid.addPod(podId);
-            }
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("No Pods found for destination, returning.");
-            }
-            return null;
+            return reorderPods(podCapacityInfo, vmProfile, plan);
         }else{
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("No Pods found after removing disabled pods and pods in avoid list, returning.");
             }
-            return null;
+            return new ArrayList<Long>();
         }
     }
     
     private DeployDestination scanClustersForDestinationInZoneOrPod(long id, boolean isZone, VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid){
         
         VirtualMachine vm = vmProfile.getVirtualMachine();
-        ServiceOffering offering = vmProfile.getServiceOffering();
         DataCenter dc = _dcDao.findById(vm.getDataCenterIdToDeployIn());
+        List<Long> clusterList = listCandidateClustersInZoneOrPod(id, isZone, vmProfile, plan, avoid);
+        if(clusterList.isEmpty()){
+            return null;
+        }
+        return checkClustersforDestination(clusterList, vmProfile, plan, avoid, dc);
+    }
+
+    private List<Long> listCandidateClustersInZoneOrPod(long id, boolean isZone, VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid){
+        
+        ServiceOffering offering = vmProfile.getServiceOffering();
         int requiredCpu = offering.getCpu() * offering.getSpeed();
         long requiredRam = offering.getRamSize() * 1024L * 1024L;
         String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
@@ -384,16 +676,15 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("No clusters found having a host with enough capacity, returning.");
             }
-            return null;
+            return new ArrayList<Long>();
         }
         if(!prioritizedClusterIds.isEmpty()){
-            List<Long> clusterList = reorderClusters(id, isZone, clusterCapacityInfo, vmProfile, plan);
-            return checkClustersforDestination(clusterList, vmProfile, plan, avoid, dc);
+            return reorderClusters(id, isZone, clusterCapacityInfo, vmProfile, plan);
         }else{
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("No clusters found after removing disabled clusters and clusters in avoid list, returning.");
             }
-            return null;
+            return new ArrayList<Long>();
         }
     }
     
@@ -467,6 +758,8 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         ServiceOffering offering = vmProfile.getServiceOffering();
         int cpu_requested = offering.getCpu() * offering.getSpeed();
         long ram_requested = offering.getRamSize() * 1024L * 1024L;
+        String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
+        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
     	
         // 	For each capacity get the cluster list crossing the threshold and remove it from the clusterList that will be used for vm allocation.
         for(short capacity : capacityList){
@@ -477,7 +770,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
            	
            	if (capacity == Capacity.CAPACITY_TYPE_CPU){
            		clustersCrossingThreshold = _capacityDao.listClustersCrossingThreshold(Capacity.CAPACITY_TYPE_CPU, plan.getDataCenterId(),
-           				capacityThresholdMap.get(capacity), cpu_requested, ApiDBUtils.getCpuOverprovisioningFactor());
+           				capacityThresholdMap.get(capacity), cpu_requested, cpuOverprovisioningFactor);
            	}else{
            		clustersCrossingThreshold = _capacityDao.listClustersCrossingThreshold(capacity, plan.getDataCenterId(),
            				capacityThresholdMap.get(capacity), ram_requested, 1.0f);//Mem overprov not supported yet
@@ -579,11 +872,11 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
-        List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
+        List<Long> clusterIdswithEnoughCapacity = _capacityMgr.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
+        Pair<List<Long>, Map<Long, Double>> result = _capacityMgr.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -616,11 +909,11 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
-        List<Long> podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
+        List<Long> podIdswithEnoughCapacity = _capacityMgr.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+        Pair<List<Long>, Map<Long, Double>> result = _capacityMgr.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -44,6 +44,8 @@ import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
+import com.cloud.deploy.DataCenterDeployment;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.exception.InsufficientCapacityException;
@@ -224,6 +226,8 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         _alertMgr.sendAlert(AlertManager.ALERT_TYPE_HOST, host.getDataCenterId(), host.getPodId(), "Host is down, " + hostDesc, "Host [" + hostDesc + "] is down."
                 + ((sb != null) ? sb.toString() : ""));
 
+        planRestarts(host, vms);
+
         for (final VMInstanceVO vm : vms) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Notifying HA Mgr of to restart vm " + vm.getId() + "-" + vm.getHostName());
@@ -232,6 +236,35 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         }
     }
 
+    /**
+     * Plans where the ha enabled vms of a host that went down are to restart in one pass, so they are
+     * spread over the cluster instead of each restart searching the same hosts. The capacity planned
+     * is held until the vm restarts, or times out if the vm turns out not to need a restart.
+     */
+    protected void planRestarts(HostVO host, List<VMInstanceVO> vms) {
+        List<VMInstanceVO> haVms = new ArrayList<VMInstanceVO>();
+        for (VMInstanceVO vm : vms) {
+            if (vm.isHaEnabled()) {
+                haVms.add(vm);
+            }
+        }
+        if (haVms.size() < 2) {
+            return;
+        }
+
+        Map<VirtualMachineProfile.Param, Object> params = new HashMap<VirtualMachineProfile.Param, Object>();
+        if (_haTag != null) {
+            params.put(VirtualMachineProfile.Param.HaTag, _haTag);
+        }
+        ExcludeList avoid = new ExcludeList();
+        avoid.addHost(host.getId());
+        try {
+            _itMgr.planStart(haVms, params, new DataCenterDeployment(host.getDataCenterId(), host.getPodId(), host.getClusterId(), null, null, null), avoid);
+        } catch (Exception e) {
+            s_logger.warn("Unable to plan the restart of the VMs on host " + host.getId() + ", they will be planned one by one", e);
+        }
+    }
+
     @Override
     public void scheduleStop(VMInstanceVO vm, long hostId, WorkType type) {
         assert (type == WorkType.CheckStop || type == WorkType.ForceStop || type == WorkType.Stop);
@@ -28,5 +28,10 @@ public interface HostDetailsDao extends GenericDao<DetailVO, Long> {
     
     DetailVO findDetail(long hostId, String name);
 
+    /**
+     * @return value of the named detail by host id, for every host that has it
+     */
+    Map<Long, String> findDetailsByName(String name);
+
 	void deleteDetails(long hostId);
 }
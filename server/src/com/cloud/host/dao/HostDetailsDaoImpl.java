@@ -33,6 +33,7 @@ import com.cloud.utils.db.Transaction;
 public class HostDetailsDaoImpl extends GenericDaoBase<DetailVO, Long> implements HostDetailsDao {
     protected final SearchBuilder<DetailVO> HostSearch;
     protected final SearchBuilder<DetailVO> DetailSearch;
+    protected final SearchBuilder<DetailVO> NameSearch;
     
     protected HostDetailsDaoImpl() {
         HostSearch = createSearchBuilder();
@@ -43,6 +44,10 @@ public class HostDetailsDaoImpl extends GenericDaoBase<DetailVO, Long> implement
         DetailSearch.and("hostId", DetailSearch.entity().getHostId(), SearchCriteria.Op.EQ);
         DetailSearch.and("name", DetailSearch.entity().getName(), SearchCriteria.Op.EQ);
         DetailSearch.done();
+
+        NameSearch = createSearchBuilder();
+        NameSearch.and("name", NameSearch.entity().getName(), SearchCriteria.Op.EQ);
+        NameSearch.done();
     }
 
     @Override
@@ -58,6 +63,23 @@ public class HostDetailsDaoImpl extends GenericDaoBase<DetailVO, Long> implement
         return detail;
     }
 
+    @Override
+    public Map<Long, String> findDetailsByName(String name) {
+        SearchCriteria<DetailVO> sc = NameSearch.create();
+        sc.setParameters("name", name);
+
+        List<DetailVO> results = search(sc, null);
+        Map<Long, String> details = new HashMap<Long, String>(results.size());
+        for (DetailVO result : results) {
+            if ("password".equals(name)) {
+                details.put(result.getHostId(), DBEncryptionUtil.decrypt(result.getValue()));
+            } else {
+                details.put(result.getHostId(), result.getValue());
+            }
+        }
+        return details;
+    }
+
     @Override
     public Map<String, String> findDetails(long hostId) {
         SearchCriteria<DetailVO> sc = HostSearch.create();
@@ -65,17 +65,20 @@ import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StopAnswer;
 import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
+import com.cloud.agent.api.routing.BatchConfigCommand;
 import com.cloud.agent.api.routing.DhcpEntryCommand;
 import com.cloud.agent.api.routing.IpAssocCommand;
 import com.cloud.agent.api.routing.LoadBalancerConfigCommand;
 import com.cloud.agent.api.routing.NetworkElementCommand;
 import com.cloud.agent.api.routing.RemoteAccessVpnCfgCommand;
 import com.cloud.agent.api.routing.SavePasswordCommand;
+import com.cloud.agent.api.routing.SetDhcpEntriesCommand;
 import com.cloud.agent.api.routing.SetFirewallRulesCommand;
 import com.cloud.agent.api.routing.SetNetworkACLCommand;
 import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
 import com.cloud.agent.api.routing.SetPortForwardingRulesVpcCommand;
 import com.cloud.agent.api.routing.SetStaticNatRulesCommand;
+import com.cloud.agent.api.routing.SetVmDataCommand;
 import com.cloud.agent.api.routing.VmDataCommand;
 import com.cloud.agent.api.routing.VpnUsersCfgCommand;
 import com.cloud.agent.api.to.FirewallRuleTO;
@@ -351,6 +354,7 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
 
     private boolean _disable_rp_filter = false;
     int _routerExtraPublicNics = 2;
+    int _routerConfigBatchSize = 50;
     private int _usageAggregationRange = 1440;
     private String _usageTimeZone = "GMT";
     private final long mgmtSrvrId = MacAddress.getMacAddress().toLong();
@@ -601,6 +605,7 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
         _routerCpuMHz = NumbersUtil.parseInt(configs.get("router.cpu.mhz"), DEFAULT_ROUTER_CPU_MHZ);
 
         _routerExtraPublicNics = NumbersUtil.parseInt(_configDao.getValue(Config.RouterExtraPublicNics.key()), 2);
+        _routerConfigBatchSize = NumbersUtil.parseInt(_configDao.getValue(Config.RouterConfigBatchSize.key()), 50);
 
         String guestOSString = configs.get("network.dhcp.nondefaultnetwork.setgateway.guestos");
         if (guestOSString != null) {
@@ -3006,6 +3011,7 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
     private void createVmDataCommandForVMs(DomainRouterVO router, Commands cmds, long guestNetworkId) {
         List<UserVmVO> vms = _userVmDao.listByNetworkIdAndStates(guestNetworkId, State.Running, State.Migrating, State.Stopping);
         DataCenterVO dc = _dcDao.findById(router.getDataCenterIdToDeployIn());
+        List<VmDataCommand> entries = new ArrayList<VmDataCommand>();
         for (UserVmVO vm : vms) {
             boolean createVmData = true;
             if (dc.getNetworkType() == NetworkType.Basic && router.getPodIdToDeployIn().longValue() != vm.getPodIdToDeployIn().longValue()) {
@@ -3016,15 +3022,55 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
                 NicVO nic = _nicDao.findByInstanceIdAndNetworkId(guestNetworkId, vm.getId());
                 if (nic != null) {
                     s_logger.debug("Creating user data entry for vm " + vm + " on domR " + router);
-                    createVmDataCommand(router, vm, nic, null, cmds);
+                    if (_routerConfigBatchSize <= 0) {
+                        createVmDataCommand(router, vm, nic, null, cmds);
+                        continue;
+                    }
+
+                    String serviceOffering = _serviceOfferingDao.findByIdIncludingRemoved(vm.getServiceOfferingId()).getDisplayText();
+                    entries.add(generateVmDataCommand(router, nic.getIp4Address(), vm.getUserData(), serviceOffering, dc.getName(), nic.getIp4Address(),
+                            vm.getHostName(), vm.getInstanceName(), vm.getId(), vm.getUuid(), null, nic.getNetworkId()));
+                    if (entries.size() == _routerConfigBatchSize) {
+                        createBatchConfigCommand(router, new SetVmDataCommand(entries), "vmdata", guestNetworkId, cmds);
+                        entries.clear();
+                    }
                 }
             }
         }
+        if (!entries.isEmpty()) {
+            createBatchConfigCommand(router, new SetVmDataCommand(entries), "vmdata", guestNetworkId, cmds);
+        }
     }
-    
+
+    /**
+     * Adds a command that applies the dhcp entries or vm data of many vms with one run of a
+     * script on the router, a router serving many vms would otherwise take an ssh session for
+     * each of them when it starts.
+     */
+    private void createBatchConfigCommand(VirtualRouter router, BatchConfigCommand cmd, String name, long guestNetworkId, Commands cmds) {
+        DataCenterVO dcVo = _dcDao.findById(router.getDataCenterIdToDeployIn());
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_IP, getRouterControlIp(router.getId()));
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, router.getInstanceName());
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP, getRouterIpInNetwork(guestNetworkId, router.getId()));
+        cmd.setAccessDetail(NetworkElementCommand.ZONE_NETWORK_TYPE, dcVo.getNetworkType().toString());
+
+        cmds.addCommand(name, cmd);
+    }
+
     private void createDhcpEntryCommand(VirtualRouter router, UserVm vm, NicVO nic, Commands cmds) {
-        DhcpEntryCommand dhcpCommand = new DhcpEntryCommand(nic.getMacAddress(), nic.getIp4Address(), vm.getHostName());
+        DhcpEntryCommand dhcpCommand = generateDhcpEntryCommand(vm, nic);
         DataCenterVO dcVo = _dcDao.findById(router.getDataCenterIdToDeployIn());
+
+        dhcpCommand.setAccessDetail(NetworkElementCommand.ROUTER_IP, getRouterControlIp(router.getId()));
+        dhcpCommand.setAccessDetail(NetworkElementCommand.ROUTER_NAME, router.getInstanceName());
+        dhcpCommand.setAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP, getRouterIpInNetwork(nic.getNetworkId(), router.getId()));
+        dhcpCommand.setAccessDetail(NetworkElementCommand.ZONE_NETWORK_TYPE, dcVo.getNetworkType().toString());
+
+        cmds.addCommand("dhcp", dhcpCommand);
+    }
+
+    private DhcpEntryCommand generateDhcpEntryCommand(UserVm vm, NicVO nic) {
+        DhcpEntryCommand dhcpCommand = new DhcpEntryCommand(nic.getMacAddress(), nic.getIp4Address(), vm.getHostName());
         String gatewayIp = findGatewayIp(vm.getId());
         boolean needGateway = true;
         if (!gatewayIp.equals(nic.getGateway())) {
@@ -3044,18 +3090,13 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
         }
         dhcpCommand.setDefaultRouter(gatewayIp);
         dhcpCommand.setDefaultDns(findDefaultDnsIp(vm.getId()));
-
-        dhcpCommand.setAccessDetail(NetworkElementCommand.ROUTER_IP, getRouterControlIp(router.getId()));
-        dhcpCommand.setAccessDetail(NetworkElementCommand.ROUTER_NAME, router.getInstanceName());
-        dhcpCommand.setAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP, getRouterIpInNetwork(nic.getNetworkId(), router.getId()));
-        dhcpCommand.setAccessDetail(NetworkElementCommand.ZONE_NETWORK_TYPE, dcVo.getNetworkType().toString());
-
-        cmds.addCommand("dhcp", dhcpCommand);
+        return dhcpCommand;
     }
 
     private void createDhcpEntryCommandsForVMs(DomainRouterVO router, Commands cmds, long guestNetworkId) {
         List<UserVmVO> vms = _userVmDao.listByNetworkIdAndStates(guestNetworkId, State.Running, State.Migrating, State.Stopping);
         DataCenterVO dc = _dcDao.findById(router.getDataCenterIdToDeployIn());
+        List<DhcpEntryCommand> entries = new ArrayList<DhcpEntryCommand>();
         for (UserVmVO vm : vms) {
             boolean createDhcp = true;
             if (dc.getNetworkType() == NetworkType.Basic && router.getPodIdToDeployIn().longValue() != vm.getPodIdToDeployIn().longValue()
@@ -3066,10 +3107,22 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
                 NicVO nic = _nicDao.findByInstanceIdAndNetworkId(guestNetworkId, vm.getId());
                 if (nic != null) {
                     s_logger.debug("Creating dhcp entry for vm " + vm + " on domR " + router + ".");
-                    createDhcpEntryCommand(router, vm, nic, cmds);
+                    if (_routerConfigBatchSize <= 0) {
+                        createDhcpEntryCommand(router, vm, nic, cmds);
+                        continue;
+                    }
+
+                    entries.add(generateDhcpEntryCommand(vm, nic));
+                    if (entries.size() == _routerConfigBatchSize) {
+                        createBatchConfigCommand(router, new SetDhcpEntriesCommand(entries), "dhcp", guestNetworkId, cmds);
+                        entries.clear();
+                    }
                 }
             }
         }
+        if (!entries.isEmpty()) {
+            createBatchConfigCommand(router, new SetDhcpEntriesCommand(entries), "dhcp", guestNetworkId, cmds);
+        }
     }
 
     protected boolean sendCommandsToRouter(final VirtualRouter router, Commands cmds) throws AgentUnavailableException {
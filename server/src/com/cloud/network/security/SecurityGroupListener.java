@@ -96,6 +96,7 @@ public class SecurityGroupListener implements Listener {
                     recordSuccess(ruleAnswer.getVmId());
                 } else {
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Error);;
+                    _securityGroupManager.forgetScheduledRuleset(ruleAnswer.getVmId());
                     s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId 
                             +" due to " + ruleAnswer.getDetails()
                             +" and updated  jobs");
@@ -177,6 +177,9 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
 
     SecurityGroupListener _answerListener;
 
+    SecurityGroupRulesetIndex _rulesetIndex;
+    boolean _compactRulesets = false;
+
     private final class SecurityGroupVOComparator implements Comparator<SecurityGroupVO> {
         @Override
         public int compare(SecurityGroupVO o1, SecurityGroupVO o2) {
@@ -338,6 +341,9 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
     }
 
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        if (_rulesetIndex != null) {
+            return _rulesetIndex.getRuleset(userVmId).getRules(type);
+        }
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
@@ -351,15 +357,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
                 if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        Nic defaultNic = _networkMgr.getDefaultNic(ngmapVO.getInstanceId());
-                        if (defaultNic != null) {
-                            String cidr = defaultNic.getIp4Address();
-                            cidr = cidr + "/32";
-                            cidrs.add(cidr);
-                        }
-                    }
+                    cidrs.addAll(listRunningMemberCidrs(rule.getAllowedNetworkId()));
                 } else if (rule.getAllowedSourceIpCidr() != null) {
                     cidrs.add(rule.getAllowedSourceIpCidr());
                 }
@@ -372,6 +370,93 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         return allowed;
     }
 
+    protected List<String> listRunningMemberCidrs(long securityGroupId) {
+        List<String> cidrs = new ArrayList<String>();
+        List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(securityGroupId, State.Running);
+        for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+            Nic defaultNic = _networkMgr.getDefaultNic(ngmapVO.getInstanceId());
+            if (defaultNic != null) {
+                String cidr = defaultNic.getIp4Address();
+                cidr = cidr + "/32";
+                cidrs.add(cidr);
+            }
+        }
+        return cidrs;
+    }
+
+    protected SecurityGroupRulesetIndex createRulesetIndex() {
+        return new SecurityGroupRulesetIndex() {
+            @Override
+            protected List<Long> loadGroupsForVm(long vmId) {
+                List<Long> groupIds = new ArrayList<Long>();
+                for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(vmId)) {
+                    groupIds.add(mapVO.getSecurityGroupId());
+                }
+                return groupIds;
+            }
+
+            @Override
+            protected Map<Long, List<Long>> loadGroupsForVms(Collection<Long> vmIds) {
+                Map<Long, List<Long>> vmGroups = new HashMap<Long, List<Long>>();
+                for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceIds(vmIds)) {
+                    List<Long> groupIds = vmGroups.get(mapVO.getInstanceId());
+                    if (groupIds == null) {
+                        groupIds = new ArrayList<Long>();
+                        vmGroups.put(mapVO.getInstanceId(), groupIds);
+                    }
+                    groupIds.add(mapVO.getSecurityGroupId());
+                }
+                return vmGroups;
+            }
+
+            @Override
+            protected List<SecurityGroupRuleVO> loadRules(long groupId, SecurityRuleType type) {
+                return _securityGroupRuleDao.listBySecurityGroupId(groupId, type);
+            }
+
+            @Override
+            protected Collection<String> loadRunningMemberCidrs(long groupId) {
+                return listRunningMemberCidrs(groupId);
+            }
+
+            @Override
+            protected Set<Long> storeScheduledSignatures(Map<Long, String> signatures) {
+                return _rulesetLogDao.updateRulesetSignatures(signatures);
+            }
+
+            @Override
+            protected void clearScheduledSignature(long vmId) {
+                _rulesetLogDao.clearRulesetSignature(vmId);
+            }
+        };
+    }
+
+    /**
+     * Reloads the ruleset index and, for a seqno bumping update, drops the vms whose
+     * ruleset is the same as the one they were last scheduled. Those vms keep their
+     * seqno, so the host's copy stays current and full sync leaves them alone.
+     */
+    protected List<Long> filterUnchangedRulesets(List<Long> affectedVms, boolean updateSeqno) {
+        if (_rulesetIndex == null) {
+            return affectedVms;
+        }
+        _rulesetIndex.invalidate();
+        if (!updateSeqno) {
+            return affectedVms;
+        }
+        List<Long> changedVms = new ArrayList<Long>(_rulesetIndex.updateScheduledSignatures(new TreeSet<Long>(affectedVms)));
+        if (s_logger.isDebugEnabled() && changedVms.size() < affectedVms.size()) {
+            s_logger.debug("Security Group Mgr: " + changedVms.size() + " of " + affectedVms.size() + " affected vms have a changed ruleset");
+        }
+        return changedVms;
+    }
+
+    public void forgetScheduledRuleset(long vmId) {
+        if (_rulesetIndex != null) {
+            _rulesetIndex.forgetVm(vmId);
+        }
+    }
+
     protected String generateRulesetSignature(Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
         String ruleset = ingress.toString();
         ruleset.concat(egress.toString());
@@ -381,6 +466,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
     public void handleVmStarted(VMInstanceVO vm) {
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
+        forgetScheduledRuleset(vm.getId());
         List<Long> affectedVms = getAffectedVmsForVmStart(vm);
         scheduleRulesetUpdateToHosts(affectedVms, true, null);
     }
@@ -390,6 +476,10 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         if (affectedVms.size() == 0) {
             return;
         }
+        affectedVms = filterUnchangedRulesets(affectedVms, updateSeqno);
+        if (affectedVms.size() == 0) {
+            return;
+        }
 
         if (delayMs == null) {
             delayMs = new Long(100l);
@@ -505,23 +595,30 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         for (PortAndProto pAp : ingressRules.keySet()) {
             Set<String> cidrs = ingressRules.get(pAp);
             if (cidrs.size() > 0) {
-                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs.size()]));
+                List<String> aggregated = NetUtils.aggregateCidrs(cidrs);
+                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), aggregated.toArray(new String[aggregated.size()]));
                 ingressResult.add(ipPortAndProto);
             }
         }
         for (PortAndProto pAp : egressRules.keySet()) {
             Set<String> cidrs = egressRules.get(pAp);
             if (cidrs.size() > 0) {
-                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs.size()]));
+                List<String> aggregated = NetUtils.aggregateCidrs(cidrs);
+                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), aggregated.toArray(new String[aggregated.size()]));
                 egressResult.add(ipPortAndProto);
             }
         }
-        return new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, ingressResult.toArray(new IpPortAndProto[ingressResult.size()]), egressResult.toArray(new IpPortAndProto[egressResult.size()]));
+        SecurityGroupRulesCmd cmd = new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, ingressResult.toArray(new IpPortAndProto[ingressResult.size()]), egressResult.toArray(new IpPortAndProto[egressResult.size()]));
+        if (_compactRulesets) {
+            cmd.compactRuleSets();
+        }
+        return cmd;
     }
 
     protected void handleVmStopped(VMInstanceVO vm) {
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
+        forgetScheduledRuleset(vm.getId());
         List<Long> affectedVms = getAffectedVmsForVmStop(vm);
         scheduleRulesetUpdateToHosts(affectedVms, true, null);
     }
@@ -542,6 +639,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
             }
 
         } else {
+            forgetScheduledRuleset(vm.getId());
             List<Long> affectedVms = new ArrayList<Long>();
             affectedVms.add(vm.getId());
             scheduleRulesetUpdateToHosts(affectedVms, true, null);
@@ -864,8 +962,13 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
 
         _serverId = ((ManagementServer) ComponentLocator.getComponent(ManagementServer.Name)).getId();
 
+        if (Boolean.parseBoolean(configs.get(Config.SecurityGroupRulesetIndex.key()))) {
+            _rulesetIndex = createRulesetIndex();
+        }
+        _compactRulesets = Boolean.parseBoolean(configs.get(Config.SecurityGroupCompactRulesets.key()));
+
         s_logger.info("SecurityGroupManager: num worker threads=" + _numWorkerThreads + 
-                       ", time between cleanups=" + _timeBetweenCleanups + " global lock timeout=" + _globalWorkLockTimeout);
+                       ", time between cleanups=" + _timeBetweenCleanups + " global lock timeout=" + _globalWorkLockTimeout + " ruleset index=" + (_rulesetIndex != null) + " compact rulesets=" + _compactRulesets);
         createThreadPools();
 
         return true;
@@ -965,6 +1068,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
                         _agentMgr.send(agentId, cmds, _answerListener);
                     } catch (AgentUnavailableException e) {
                         s_logger.debug("Unable to send ingress rules updates for vm: " + userVmId + "(agentid=" + agentId + ")");
+                        forgetScheduledRuleset(userVmId);
                         _workDao.updateStep(work.getInstanceId(), seqnum, Step.Done);
                     }
                     
@@ -1197,6 +1301,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
 
             VmRulesetLogVO log = _rulesetLogDao.findByVmId(vmId);
             if (log != null && log.getLogsequence() != seqno) {
+                forgetScheduledRuleset(vmId);
                 affectedVms.add(vmId);
             }
         }
@@ -16,11 +16,11 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -90,9 +90,16 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
             s_logger.debug("Security Group Mgr v2: scheduler disabled, doing nothing for " + affectedVms.size() + " vms");
             return;
         }
-        Set<Long> workItems = new TreeSet<Long>();
-        workItems.addAll(affectedVms);
+        // disabled vms aren't sent their ruleset, so it mustn't be recorded as scheduled either
+        Set<Long> workItems = new TreeSet<Long>(affectedVms);
         workItems.removeAll(_disabledVms);
+        if (workItems.size() == 0) {
+            return;
+        }
+        workItems = new TreeSet<Long>(filterUnchangedRulesets(new ArrayList<Long>(workItems), updateSeqno));
+        if (workItems.size() == 0) {
+            return;
+        }
         
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Security Group Mgr v2: scheduling ruleset updates for " + affectedVms.size() + " vms " + " (unique=" + workItems.size() + "), current queue size=" + _workQueue.size());
@@ -182,6 +189,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                     }
                 } catch (AgentUnavailableException e) {
                     s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
+                    forgetScheduledRuleset(userVmId);
                     _workTracker.handleException(agentId);
                 }
             }
@@ -207,38 +215,17 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
      * then we get all ips, including the default nic ip. This is also probably the correct behavior.
      */
     @Override
-    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
-
-        Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
-
-        List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
-        for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
-            for (SecurityGroupRuleVO rule : rules) {
-                PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
-                Set<String> cidrs = allowed.get(portAndProto);
-                if (cidrs == null) {
-                    cidrs = new TreeSet<String>(new CidrComparator());
-                }
-                if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
-                    }
-                } else if (rule.getAllowedSourceIpCidr() != null) {
-                    cidrs.add(rule.getAllowedSourceIpCidr());
-                }
-                if (cidrs.size() > 0) {
-                    allowed.put(portAndProto, cidrs);
-                }
-            }
+    protected List<String> listRunningMemberCidrs(long securityGroupId) {
+        List<String> cidrs = new ArrayList<String>();
+        List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(securityGroupId, State.Running);
+        for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+            //here, we differ from the superclass: instead of creating N more queries to the
+            //nics table, we use what's already there in the VO since the listBySecurityGroup already
+            //did a join with the nics table
+            String cidr = ngmapVO.getGuestIpAddress() + "/32";
+            cidrs.add(cidr);
         }
-
-        return allowed;
+        return cidrs;
     }
 
  
@@ -301,4 +288,12 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
        s_logger.warn("Cleared the work queue (possible JMX operation)");
     }
 
+    public long getRulesetCompileCount() {
+        return _rulesetIndex == null ? 0 : _rulesetIndex.getCompileCount();
+    }
+
+    public long getSuppressedRulesetUpdateCount() {
+        return _rulesetIndex == null ? 0 : _rulesetIndex.getSuppressedCount();
+    }
+
 }
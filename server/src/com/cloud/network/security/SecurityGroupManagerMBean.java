@@ -54,4 +54,8 @@ public interface SecurityGroupManagerMBean {
     boolean isSchedulerDisabledEntirely();
 
     void clearSchedulerQueueVeryDangerous();
+
+    long getRulesetCompileCount();
+
+    long getSuppressedRulesetUpdateCount();
 }
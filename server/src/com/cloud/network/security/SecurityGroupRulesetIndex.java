@@ -0,0 +1,275 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+
+/**
+ * In-memory index of security group rules and running group members, used to compile
+ * the ingress/egress ruleset of a vm without going back to the database for every
+ * member of every group that a rule allows.
+ *
+ * Compiled rulesets are shared by all vms that belong to the same set of groups, so
+ * when thousands of vms sit in one group the ruleset is built once instead of once
+ * per vm. Everything cached is tied to a generation; invalidate() starts a new one,
+ * and the manager does that whenever it schedules ruleset updates, so an update is
+ * always compiled from data loaded after the change that triggered it.
+ *
+ * The signature of the last ruleset scheduled for each vm is kept where every management
+ * server sees it, op_vm_ruleset_log in the manager. A vm whose ruleset did not change is
+ * left out of a scheduling round, which keeps its seqno in step with what the host already
+ * has. The comparison has to be made by the store, since another server may have scheduled
+ * a different ruleset for the vm since this one last did.
+ */
+public abstract class SecurityGroupRulesetIndex {
+
+    public static class Ruleset {
+        final long _generation;
+        final Map<PortAndProto, Set<String>> _ingress;
+        final Map<PortAndProto, Set<String>> _egress;
+        final String _signature;
+
+        Ruleset(long generation, Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
+            _generation = generation;
+            _ingress = Collections.unmodifiableMap(ingress);
+            _egress = Collections.unmodifiableMap(egress);
+            _signature = generateSignature(ingress, egress);
+        }
+
+        public Map<PortAndProto, Set<String>> getRules(SecurityRuleType type) {
+            return type == SecurityRuleType.EgressRule ? _egress : _ingress;
+        }
+
+        public String getSignature() {
+            return _signature;
+        }
+    }
+
+    private static class GroupRules {
+        final long _generation;
+        final List<SecurityGroupRuleVO> _ingress;
+        final List<SecurityGroupRuleVO> _egress;
+
+        GroupRules(long generation, List<SecurityGroupRuleVO> ingress, List<SecurityGroupRuleVO> egress) {
+            _generation = generation;
+            _ingress = ingress;
+            _egress = egress;
+        }
+    }
+
+    private static class GroupMembers {
+        final long _generation;
+        final Collection<String> _cidrs;
+
+        GroupMembers(long generation, Collection<String> cidrs) {
+            _generation = generation;
+            _cidrs = cidrs;
+        }
+    }
+
+    private final AtomicLong _generation = new AtomicLong();
+    private final Map<Long, GroupRules> _rules = new ConcurrentHashMap<Long, GroupRules>();
+    private final Map<Long, GroupMembers> _members = new ConcurrentHashMap<Long, GroupMembers>();
+    private final Map<String, Ruleset> _compiled = new ConcurrentHashMap<String, Ruleset>();
+
+    private final AtomicLong _compileCount = new AtomicLong();
+    private final AtomicLong _suppressedCount = new AtomicLong();
+
+    /**
+     * @return ids of the security groups the vm belongs to
+     */
+    protected abstract List<Long> loadGroupsForVm(long vmId);
+
+    /**
+     * @return ids of the security groups each of the vms belongs to
+     */
+    protected abstract Map<Long, List<Long>> loadGroupsForVms(Collection<Long> vmIds);
+
+    /**
+     * @return rules of the given type defined on the group
+     */
+    protected abstract List<SecurityGroupRuleVO> loadRules(long groupId, SecurityRuleType type);
+
+    /**
+     * @return "ip/32" cidrs of the running members of the group
+     */
+    protected abstract Collection<String> loadRunningMemberCidrs(long groupId);
+
+    /**
+     * Records the signatures as the ones last scheduled for the vms, in one step with
+     * checking what was recorded before.
+     *
+     * @return ids of the vms that didn't have their signature recorded already
+     */
+    protected abstract Set<Long> storeScheduledSignatures(Map<Long, String> signatures);
+
+    /**
+     * Clears the signature recorded for the vm.
+     */
+    protected abstract void clearScheduledSignature(long vmId);
+
+    /**
+     * Drops everything loaded so far; the next lookup of a group or ruleset reloads it.
+     */
+    public void invalidate() {
+        _generation.incrementAndGet();
+        _compiled.clear();
+        _rules.clear();
+        _members.clear();
+    }
+
+    public Ruleset getRuleset(long vmId) {
+        return getRuleset(loadGroupsForVm(vmId));
+    }
+
+    private Ruleset getRuleset(List<Long> vmGroupIds) {
+        List<Long> groupIds = new ArrayList<Long>(new TreeSet<Long>(vmGroupIds));
+        String key = groupIds.toString();
+        long generation = _generation.get();
+        Ruleset ruleset = _compiled.get(key);
+        if (ruleset == null || ruleset._generation != generation) {
+            ruleset = compile(groupIds, generation);
+            _compiled.put(key, ruleset);
+        }
+        return ruleset;
+    }
+
+    /**
+     * Records the ruleset the vm is about to be sent.
+     *
+     * @return false if the vm was already scheduled exactly this ruleset
+     */
+    public boolean updateScheduledSignature(long vmId) {
+        return !updateScheduledSignatures(Collections.singletonList(vmId)).isEmpty();
+    }
+
+    /**
+     * Records the rulesets the vms are about to be sent, loading their groups and storing
+     * their signatures for all of them at once.
+     *
+     * @return ids of the vms that weren't already scheduled exactly this ruleset
+     */
+    public Set<Long> updateScheduledSignatures(Collection<Long> vmIds) {
+        Map<Long, List<Long>> vmGroups = loadGroupsForVms(vmIds);
+        Map<Long, String> signatures = new TreeMap<Long, String>();
+        for (Long vmId : vmIds) {
+            List<Long> groupIds = vmGroups.get(vmId);
+            signatures.put(vmId, getRuleset(groupIds == null ? new ArrayList<Long>() : groupIds).getSignature());
+        }
+        Set<Long> changed = storeScheduledSignatures(signatures);
+        _suppressedCount.addAndGet(signatures.size() - changed.size());
+        return changed;
+    }
+
+    /**
+     * Forgets what was last scheduled for the vm, so its next update is always sent.
+     * Used when the host's copy of the ruleset can no longer be trusted, e.g. the vm
+     * (re)started, moved, or an update to it failed.
+     */
+    public void forgetVm(long vmId) {
+        clearScheduledSignature(vmId);
+    }
+
+    public long getCompileCount() {
+        return _compileCount.get();
+    }
+
+    public long getSuppressedCount() {
+        return _suppressedCount.get();
+    }
+
+    protected Ruleset compile(List<Long> groupIds, long generation) {
+        _compileCount.incrementAndGet();
+        Map<PortAndProto, Set<String>> ingress = new TreeMap<PortAndProto, Set<String>>();
+        Map<PortAndProto, Set<String>> egress = new TreeMap<PortAndProto, Set<String>>();
+        for (Long groupId : groupIds) {
+            GroupRules rules = getGroupRules(groupId, generation);
+            addRules(ingress, rules._ingress, generation);
+            addRules(egress, rules._egress, generation);
+        }
+        return new Ruleset(generation, ingress, egress);
+    }
+
+    private void addRules(Map<PortAndProto, Set<String>> allowed, List<SecurityGroupRuleVO> rules, long generation) {
+        for (SecurityGroupRuleVO rule : rules) {
+            PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
+            Set<String> cidrs = allowed.get(portAndProto);
+            if (cidrs == null) {
+                cidrs = new TreeSet<String>(new CidrComparator());
+            }
+            if (rule.getAllowedNetworkId() != null) {
+                cidrs.addAll(getGroupMembers(rule.getAllowedNetworkId(), generation)._cidrs);
+            } else if (rule.getAllowedSourceIpCidr() != null) {
+                cidrs.add(rule.getAllowedSourceIpCidr());
+            }
+            if (cidrs.size() > 0) {
+                allowed.put(portAndProto, cidrs);
+            }
+        }
+    }
+
+    private GroupRules getGroupRules(long groupId, long generation) {
+        GroupRules rules = _rules.get(groupId);
+        if (rules == null || rules._generation != generation) {
+            rules = new GroupRules(generation, loadRules(groupId, SecurityRuleType.IngressRule), loadRules(groupId, SecurityRuleType.EgressRule));
+            _rules.put(groupId, rules);
+        }
+        return rules;
+    }
+
+    private GroupMembers getGroupMembers(long groupId, long generation) {
+        GroupMembers members = _members.get(groupId);
+        if (members == null || members._generation != generation) {
+            members = new GroupMembers(generation, loadRunningMemberCidrs(groupId));
+            _members.put(groupId, members);
+        }
+        return members;
+    }
+
+    static String generateSignature(Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
+        StringBuilder sb = new StringBuilder();
+        appendRules(sb.append("I:"), ingress);
+        appendRules(sb.append("E:"), egress);
+        return DigestUtils.md5Hex(sb.toString());
+    }
+
+    private static void appendRules(StringBuilder sb, Map<PortAndProto, Set<String>> rules) {
+        for (Map.Entry<PortAndProto, Set<String>> entry : rules.entrySet()) {
+            PortAndProto pAp = entry.getKey();
+            sb.append(pAp.getProto()).append(':').append(pAp.getStartPort()).append(':').append(pAp.getEndPort()).append('=');
+            for (String cidr : entry.getValue()) {
+                sb.append(cidr).append(',');
+            }
+            sb.append(';');
+        }
+    }
+}
@@ -159,4 +159,14 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     public void clearSchedulerQueueVeryDangerous() {
         _sgMgr.clearWorkQueue();
     }
+
+    @Override
+    public long getRulesetCompileCount() {
+        return _sgMgr.getRulesetCompileCount();
+    }
+
+    @Override
+    public long getSuppressedRulesetUpdateCount() {
+        return _sgMgr.getSuppressedRulesetUpdateCount();
+    }
 }
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.network.security.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.cloud.network.security.SecurityGroupVMMapVO;
@@ -25,6 +26,7 @@ import com.cloud.vm.VirtualMachine.State;
 public interface SecurityGroupVMMapDao extends GenericDao<SecurityGroupVMMapVO, Long> {
     List<SecurityGroupVMMapVO> listByIpAndInstanceId(String ipAddress, long instanceId);
     List<SecurityGroupVMMapVO> listByInstanceId(long instanceId);
+    List<SecurityGroupVMMapVO> listByInstanceIds(Collection<Long> instanceIds);
     List<SecurityGroupVMMapVO> listByIp(String ipAddress);
     List<SecurityGroupVMMapVO> listBySecurityGroup(long securityGroupId);
     List<SecurityGroupVMMapVO> listBySecurityGroup(long securityGroupId, State ... vmStates);
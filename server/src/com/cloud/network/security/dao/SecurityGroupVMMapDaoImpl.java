@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.network.security.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.ejb.Local;
@@ -37,6 +38,7 @@ import com.cloud.vm.VirtualMachine.State;
 public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMapVO, Long> implements SecurityGroupVMMapDao {
     private SearchBuilder<SecurityGroupVMMapVO> ListByIpAndVmId;
     private SearchBuilder<SecurityGroupVMMapVO> ListByVmId;
+    private SearchBuilder<SecurityGroupVMMapVO> ListByVmIds;
     private SearchBuilder<SecurityGroupVMMapVO> ListByVmIdGroupId;
     protected GenericSearchBuilder<SecurityGroupVMMapVO, Long> CountSGForVm;
 
@@ -68,6 +70,10 @@ public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMap
         ListByVmId  = createSearchBuilder();
         ListByVmId.and("instanceId", ListByVmId.entity().getInstanceId(), SearchCriteria.Op.EQ);
         ListByVmId.done();
+
+        ListByVmIds  = createSearchBuilder();
+        ListByVmIds.and("instanceIds", ListByVmIds.entity().getInstanceId(), SearchCriteria.Op.IN);
+        ListByVmIds.done();
         
         ListBySecurityGroupAndStates = createSearchBuilder();
         ListBySecurityGroupAndStates.and("securityGroupId", ListBySecurityGroupAndStates.entity().getSecurityGroupId(), SearchCriteria.Op.EQ);
@@ -114,6 +120,13 @@ public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMap
         return listBy(sc);
     }
 
+    @Override
+    public List<SecurityGroupVMMapVO> listByInstanceIds(Collection<Long> vmIds) {
+        SearchCriteria<SecurityGroupVMMapVO> sc = ListByVmIds.create();
+        sc.setParameters("instanceIds", vmIds.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public int deleteVM(long instanceId) {
     	SearchCriteria<SecurityGroupVMMapVO> sc = ListByVmId.create();
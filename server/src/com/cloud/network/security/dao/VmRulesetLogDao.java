@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.network.security.dao;
 
+import java.util.Map;
 import java.util.Set;
 
 import com.cloud.network.security.VmRulesetLogVO;
@@ -25,5 +26,14 @@ public interface VmRulesetLogDao extends GenericDao<VmRulesetLogVO, Long> {
     VmRulesetLogVO findByVmId(long vmId);
 
     int createOrUpdate(Set<Long> workItems);
+
+    /**
+     * Records the signatures of the rulesets scheduled for the vms.  The entries are locked
+     * while they are compared and updated, so two servers can't both find a signature new.
+     * @return ids of the vms that had a different signature recorded, or no entry yet
+     */
+    Set<Long> updateRulesetSignatures(Map<Long, String> signatures);
+
+    void clearRulesetSignature(long vmId);
     
 }
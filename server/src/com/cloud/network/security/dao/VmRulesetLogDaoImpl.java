@@ -17,13 +17,17 @@
 package com.cloud.network.security.dao;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLTransactionRollbackException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.ejb.Local;
 
@@ -34,6 +38,7 @@ import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value={VmRulesetLogDao.class})
 public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> implements VmRulesetLogDao {
@@ -41,6 +46,9 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
     private SearchBuilder<VmRulesetLogVO> VmIdSearch;
     private String INSERT_OR_UPDATE = "INSERT INTO op_vm_ruleset_log (instance_id, created, logsequence) " +
     		" VALUES(?, now(), 1) ON DUPLICATE KEY UPDATE logsequence=logsequence+1";
+    private String SELECT_SIGNATURES = "SELECT instance_id, ruleset_signature FROM op_vm_ruleset_log WHERE instance_id IN (%s) FOR UPDATE";
+    private String UPDATE_SIGNATURES = "UPDATE op_vm_ruleset_log SET ruleset_signature=CASE instance_id %s END WHERE instance_id IN (%s)";
+    private String CLEAR_SIGNATURE = "UPDATE op_vm_ruleset_log SET ruleset_signature=NULL WHERE instance_id=?";
     private static HashMap<Integer, String> cachedPrepStmtStrings = new  HashMap<Integer, String>();
     final static private int cacheStringSizes [] = {512, 256, 128, 64, 32, 16, 8, 4, 2, 1};
 
@@ -83,6 +91,85 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
         return createOrUpdateUsingMultiInsert(workItems);
     }
     
+    @Override
+    public Set<Long> updateRulesetSignatures(Map<Long, String> signatures) {
+        Set<Long> changed = new HashSet<Long>();
+        // the entries are locked in id order, like createOrUpdate() does
+        List<Long> vmIds = new ArrayList<Long>(new TreeSet<Long>(signatures.keySet()));
+        Transaction txn = Transaction.currentTxn();
+        try {
+            txn.start();
+            for (int from = 0; from < vmIds.size(); from += cacheStringSizes[0]) {
+                List<Long> chunk = vmIds.subList(from, Math.min(from + cacheStringSizes[0], vmIds.size()));
+                PreparedStatement pstmt = txn.prepareAutoCloseStatement(String.format(SELECT_SIGNATURES, createParamList(chunk.size())));
+                int argIndex = 1;
+                for (Long vmId : chunk) {
+                    pstmt.setLong(argIndex++, vmId);
+                }
+                Set<Long> recorded = new HashSet<Long>();
+                List<Long> stale = new ArrayList<Long>();
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    long vmId = rs.getLong(1);
+                    recorded.add(vmId);
+                    if (!signatures.get(vmId).equals(rs.getString(2))) {
+                        stale.add(vmId);
+                    }
+                }
+                for (Long vmId : chunk) {
+                    // a vm without an entry hasn't been scheduled yet
+                    if (!recorded.contains(vmId)) {
+                        changed.add(vmId);
+                    }
+                }
+                if (stale.isEmpty()) {
+                    continue;
+                }
+
+                StringBuilder cases = new StringBuilder();
+                for (int i = 0; i < stale.size(); i++) {
+                    cases.append("WHEN ? THEN ? ");
+                }
+                pstmt = txn.prepareAutoCloseStatement(String.format(UPDATE_SIGNATURES, cases, createParamList(stale.size())));
+                argIndex = 1;
+                for (Long vmId : stale) {
+                    pstmt.setLong(argIndex++, vmId);
+                    pstmt.setString(argIndex++, signatures.get(vmId));
+                }
+                for (Long vmId : stale) {
+                    pstmt.setLong(argIndex++, vmId);
+                }
+                pstmt.executeUpdate();
+                changed.addAll(stale);
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            txn.rollback();
+            throw new CloudRuntimeException("Unable to update the ruleset signatures of " + signatures.size() + " vms", e);
+        }
+        return changed;
+    }
+
+    private static String createParamList(int numItems) {
+        StringBuilder builder = new StringBuilder("?");
+        for (int i = 1; i < numItems; i++) {
+            builder.append(", ?");
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void clearRulesetSignature(long vmId) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(CLEAR_SIGNATURE);
+            pstmt.setLong(1, vmId);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to clear the ruleset signature of vm " + vmId, e);
+        }
+    }
+
     private int executeWithRetryOnDeadlock(Transaction txn, String pstmt,  List<Long> vmIds) throws SQLException {
 
         int numUpdated = 0;
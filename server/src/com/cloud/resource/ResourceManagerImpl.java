@@ -272,6 +272,9 @@ public class ResourceManagerImpl implements ResourceManager, ResourceService, Ma
             if ((event & ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER) != 0) {
                 insertListener(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, listener);
             }
+            if ((event & ResourceListener.EVENT_UPDATE_HOST_AFTER) != 0) {
+                insertListener(ResourceListener.EVENT_UPDATE_HOST_AFTER, listener);
+            }
         }
     }
 
@@ -320,6 +323,9 @@ public class ResourceManagerImpl implements ResourceManager, ResourceService, Ma
             } else if (event == ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER) {
                 l.processPrepareMaintenaceEventAfter((Long) params[0]);
                 eventName = "EVENT_PREPARE_MAINTENANCE_AFTER";
+            } else if (event == ResourceListener.EVENT_UPDATE_HOST_AFTER) {
+                l.processUpdateHostEventAfter((Long) params[0]);
+                eventName = "EVENT_UPDATE_HOST_AFTER";
             } else {
                 throw new CloudRuntimeException("Unknown resource event:" + event);
             }
@@ -1114,7 +1120,11 @@ public class ResourceManagerImpl implements ResourceManager, ResourceService, Ma
             }
             _capacityDao.updateCapacityState(null, null, null, host.getId(), capacityState.toString());
         }
-        return _hostDao.updateResourceState(currentState, event, nextState, host);
+        boolean updated = _hostDao.updateResourceState(currentState, event, nextState, host);
+        if (updated) {
+            processResourceEvent(ResourceListener.EVENT_UPDATE_HOST_AFTER, host.getId());
+        }
+        return updated;
     }
 
     private boolean doMaintain(final long hostId) {
@@ -1246,6 +1256,10 @@ public class ResourceManagerImpl implements ResourceManager, ResourceService, Ma
             _hostTagsDao.persist(hostId, hostTags);
         }
 
+        if (guestOSCategoryId != null || hostTags != null) {
+            processResourceEvent(ResourceListener.EVENT_UPDATE_HOST_AFTER, hostId);
+        }
+
         String url = cmd.getUrl();
         if (url != null) {
             _storageMgr.updateSecondaryStorage(cmd.getId(), cmd.getUrl());
@@ -136,6 +136,7 @@ import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.domain.DomainVO;
 import com.cloud.domain.dao.DomainDao;
 import com.cloud.event.ActionEvent;
+import com.cloud.event.Event;
 import com.cloud.event.EventTypes;
 import com.cloud.event.EventUtils;
 import com.cloud.event.EventVO;
@@ -272,6 +273,8 @@ import edu.emory.mathcs.backport.java.util.Collections;
 public class ManagementServerImpl implements ManagementServer {
     public static final Logger s_logger = Logger.getLogger(ManagementServerImpl.class.getName());
 
+    private static final long EVENT_PURGE_BATCH = 1000;
+
     private final AccountManager _accountMgr;
     private final AgentManager _agentMgr;
     private final AlertManager _alertMgr;
@@ -1536,7 +1539,7 @@ public class ManagementServerImpl implements ManagementServer {
     }
 
     @Override
-    public List<EventVO> searchForEvents(ListEventsCmd cmd) {
+    public Pair<List<? extends Event>, Long> searchForEvents(ListEventsCmd cmd) {
         Account caller = UserContext.current().getCaller();
         List<Long> permittedAccounts = new ArrayList<Long>();
 
@@ -1555,7 +1558,14 @@ public class ManagementServerImpl implements ManagementServer {
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
-        Filter searchFilter = new Filter(EventVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        // events are created in the order of their ids, newest first by id is newest first by creation date, and the
+        // pages reached with a continuation token follow on from the numbered ones
+        Long pageSize = cmd.getPageSizeVal();
+        Filter searchFilter = new Filter(EventVO.class, "id", false, cmd.getStartIndex(), pageSize);
+        Long continuationId = cmd.getContinuationId();
+        if (continuationId != null) {
+            searchFilter.setSeekAfter(continuationId);
+        }
         SearchBuilder<EventVO> sb = _eventDao.createSearchBuilder();
 
         sb.and("accountIdIN", sb.entity().getAccountId(), SearchCriteria.Op.IN);
@@ -1655,10 +1665,19 @@ public class ManagementServerImpl implements ManagementServer {
                     pendingEvents.add(event);
                 }
             }
-            return pendingEvents;
+            // the next page picks up after the events fetched, not after the ones left pending
+            return new Pair<List<? extends Event>, Long>(pendingEvents, getLastIdOfFullPage(startedEvents, pageSize));
         } else {
-            return _eventDao.searchAllEvents(sc, searchFilter);
+            List<EventVO> events = _eventDao.searchAllEvents(sc, searchFilter);
+            return new Pair<List<? extends Event>, Long>(events, getLastIdOfFullPage(events, pageSize));
+        }
+    }
+
+    private static Long getLastIdOfFullPage(List<EventVO> events, Long pageSize) {
+        if (pageSize == null || events.isEmpty() || events.size() < pageSize.longValue()) {
+            return null;
         }
+        return events.get(events.size() - 1).getId();
     }
 
     @Override
@@ -2508,11 +2527,21 @@ public class ManagementServerImpl implements ManagementServer {
                     purgeCal.add(Calendar.DAY_OF_YEAR, -_purgeDelay);
                     Date purgeTime = purgeCal.getTime();
                     s_logger.debug("Deleting events older than: " + purgeTime.toString());
-                    List<EventVO> oldEvents = _eventDao.listOlderEvents(purgeTime);
-                    s_logger.debug("Found " + oldEvents.size() + " events to be purged");
-                    for (EventVO event : oldEvents) {
-                        _eventDao.expunge(event.getId());
-                    }
+                    // a page at a time, each picking up after the last event of the one before
+                    Long lastEventId = null;
+                    int purged = 0;
+                    List<EventVO> oldEvents;
+                    do {
+                        Filter filter = new Filter(EventVO.class, "id", true, null, EVENT_PURGE_BATCH);
+                        filter.setSeekAfter(lastEventId);
+                        oldEvents = _eventDao.listOlderEvents(purgeTime, filter);
+                        for (EventVO event : oldEvents) {
+                            _eventDao.expunge(event.getId());
+                            lastEventId = event.getId();
+                        }
+                        purged += oldEvents.size();
+                    } while (oldEvents.size() == EVENT_PURGE_BATCH);
+                    s_logger.debug("Purged " + purged + " events");
                 } catch (Exception e) {
                     s_logger.error("Exception ", e);
                 } finally {
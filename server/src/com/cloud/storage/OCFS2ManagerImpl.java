@@ -228,4 +228,8 @@ public class OCFS2ManagerImpl implements OCFS2Manager, ResourceListener {
         // TODO Auto-generated method stub
         
     }
+
+    @Override
+    public void processUpdateHostEventAfter(Long hostId) {
+    }
 }
@@ -78,6 +78,15 @@ public class UsageJobVO {
     @Column(name="heartbeat")
     private Date heartbeat;
 
+    @Column(name="shard_progress", length=4096)
+    private String shardProgress;
+
+    @Column(name="incremental_start_millis")
+    private long incrementalStartMillis;
+
+    @Column(name="incremental_end_millis")
+    private long incrementalEndMillis;
+
     public UsageJobVO() {}
 
     public Long getId() {
@@ -175,4 +184,28 @@ public class UsageJobVO {
     public void setHeartbeat(Date heartbeat) {
         this.heartbeat = heartbeat;
     }
+
+    public String getShardProgress() {
+        return shardProgress;
+    }
+
+    public void setShardProgress(String shardProgress) {
+        this.shardProgress = shardProgress;
+    }
+
+    public long getIncrementalStartMillis() {
+        return incrementalStartMillis;
+    }
+
+    public void setIncrementalStartMillis(long incrementalStartMillis) {
+        this.incrementalStartMillis = incrementalStartMillis;
+    }
+
+    public long getIncrementalEndMillis() {
+        return incrementalEndMillis;
+    }
+
+    public void setIncrementalEndMillis(long incrementalEndMillis) {
+        this.incrementalEndMillis = incrementalEndMillis;
+    }
 }
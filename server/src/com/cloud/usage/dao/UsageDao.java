@@ -30,6 +30,7 @@ import com.cloud.utils.db.SearchCriteria;
 
 public interface UsageDao extends GenericDao<UsageVO, Long> {
     void deleteRecordsForAccount(Long accountId);
+    int deleteRecordsStartingFrom(Date startDate);
     List<UsageVO> searchAllRecords(SearchCriteria<UsageVO> sc, Filter filter);
     void saveAccounts(List<AccountVO> accounts) throws UsageServerException;
     void updateAccounts(List<AccountVO> accounts) throws UsageServerException;
@@ -38,4 +39,9 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
     Long getLastAccountId() throws UsageServerException;
     Long getLastUserStatsId() throws UsageServerException;
     List<Long> listPublicTemplatesByAccount(long accountId);
+
+    /**
+     * @return the ids of the accounts with usage between the dates in the helper tables, in order
+     */
+    List<Long> listAccountsWithUsage(Date startDate, Date endDate);
 }
@@ -53,6 +53,19 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
     private static final String GET_LAST_ACCOUNT = "SELECT id FROM cloud_usage.account ORDER BY id DESC LIMIT 1";
     private static final String GET_LAST_USER_STATS = "SELECT id FROM cloud_usage.user_statistics ORDER BY id DESC LIMIT 1";
     private static final String GET_PUBLIC_TEMPLATES_BY_ACCOUNTID = "SELECT id FROM cloud.vm_template WHERE account_id = ? AND public = '1' AND removed IS NULL";
+    // the helper tables with a row open during the range, or closed in it, and the network stats taken in it
+    private static final String GET_ACCOUNTS_WITH_USAGE =
+        "SELECT account_id FROM cloud_usage.usage_vm_instance WHERE start_date <= ? AND (end_date IS NULL OR end_date >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_ip_address WHERE assigned <= ? AND (released IS NULL OR released >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_volume WHERE created <= ? AND (deleted IS NULL OR deleted >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_storage WHERE created <= ? AND (deleted IS NULL OR deleted >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_security_group WHERE created <= ? AND (deleted IS NULL OR deleted >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_load_balancer_policy WHERE created <= ? AND (deleted IS NULL OR deleted >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_port_forwarding WHERE created <= ? AND (deleted IS NULL OR deleted >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_network_offering WHERE created <= ? AND (deleted IS NULL OR deleted >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_vpn_user WHERE created <= ? AND (deleted IS NULL OR deleted >= ?) UNION " +
+        "SELECT account_id FROM cloud_usage.usage_network WHERE event_time_millis BETWEEN ? AND ? ORDER BY account_id";
+    private static final int ACCOUNTS_WITH_USAGE_DATE_TABLES = 9;
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
@@ -78,6 +91,14 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
         }
 	}
 
+    @Override
+    public int deleteRecordsStartingFrom(Date startDate) {
+        // part of the caller's transaction, so the records are replaced at once
+        SearchCriteria<UsageVO> sc = createSearchCriteria();
+        sc.addAnd("startDate", SearchCriteria.Op.GTEQ, startDate);
+        return expunge(sc);
+    }
+
 	@Override
 	public List<UsageVO> searchAllRecords(SearchCriteria<UsageVO> sc, Filter filter) {
 	    return listIncludingRemovedBy(sc, filter);
@@ -267,4 +288,29 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
         }
         return templateList;
     }
+
+    @Override
+    public List<Long> listAccountsWithUsage(Date startDate, Date endDate) {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        String sql = GET_ACCOUNTS_WITH_USAGE;
+        List<Long> accountIds = new ArrayList<Long>();
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            int i = 1;
+            for (int table = 0; table < ACCOUNTS_WITH_USAGE_DATE_TABLES; table++) {
+                pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+                pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            }
+            pstmt.setLong(i++, startDate.getTime());
+            pstmt.setLong(i++, endDate.getTime());
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                accountIds.add(Long.valueOf(rs.getLong(1)));
+            }
+        } catch (Exception ex) {
+            s_logger.error("error listing accounts with usage", ex);
+        }
+        return accountIds;
+    }
 }
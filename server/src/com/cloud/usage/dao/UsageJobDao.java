@@ -31,4 +31,6 @@ public interface UsageJobDao extends GenericDao<UsageJobVO, Long> {
     Date getLastHeartbeat();
     UsageJobVO isOwner(String hostname, int pid);
     void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success) throws UsageServerException;
+    void updateShardProgress(Long jobId, String shardProgress);
+    void updateIncrementalProgress(Long jobId, long startMillis, long endMillis);
 }
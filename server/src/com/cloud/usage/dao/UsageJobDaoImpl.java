@@ -83,6 +83,23 @@ public class UsageJobDaoImpl extends GenericDaoBase<UsageJobVO, Long> implements
         }
     }
 
+    @Override
+    public void updateShardProgress(Long jobId, String shardProgress) {
+        // part of the caller's transaction, so the progress is committed with the usage records it covers
+        UsageJobVO jobForUpdate = createForUpdate();
+        jobForUpdate.setShardProgress(shardProgress);
+        update(jobId, jobForUpdate);
+    }
+
+    @Override
+    public void updateIncrementalProgress(Long jobId, long startMillis, long endMillis) {
+        // part of the caller's transaction, like the shard progress
+        UsageJobVO jobForUpdate = createForUpdate();
+        jobForUpdate.setIncrementalStartMillis(startMillis);
+        jobForUpdate.setIncrementalEndMillis(endMillis);
+        update(jobId, jobForUpdate);
+    }
+
     @Override
     public Long checkHeartbeat(String hostname, int pid, int aggregationDuration) {
         UsageJobVO job = getNextRecurringJob();
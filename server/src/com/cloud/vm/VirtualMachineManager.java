@@ -24,6 +24,7 @@ import com.cloud.agent.api.to.NicTO;
 import com.cloud.agent.api.to.VirtualMachineTO;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.deploy.DeploymentPlan;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.exception.InsufficientCapacityException;
@@ -106,6 +107,17 @@ public interface VirtualMachineManager extends Manager {
 
     boolean migrateAway(VirtualMachine.Type type, long vmid, long hostId) throws InsufficientServerCapacityException, VirtualMachineMigrationException;
 
+    /**
+     * Plans where each of the virtual machines is to start, in one pass when a planner can do so, and holds
+     * the capacity of the hosts found until the virtual machines start there.
+     * 
+     * @param vms virtual machines that are about to be started
+     * @param params parameters they will be started with
+     * @param plan where they are to be deployed
+     * @param avoid avoid these data centers, pods, clusters, or hosts
+     */
+    void planStart(List<? extends VMInstanceVO> vms, Map<VirtualMachineProfile.Param, Object> params, DeploymentPlan plan, ExcludeList avoid);
+
     <T extends VMInstanceVO> T migrate(T vm, long srcHostId, DeployDestination dest) throws ResourceUnavailableException, ConcurrentOperationException, ManagementServerException, VirtualMachineMigrationException;
 
     <T extends VMInstanceVO> T reboot(T vm, Map<VirtualMachineProfile.Param, Object> params, User caller, Account account) throws InsufficientCapacityException, ResourceUnavailableException;
@@ -25,10 +25,12 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -80,6 +82,7 @@ import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
+import com.cloud.deploy.BatchDeploymentPlanner;
 import com.cloud.deploy.DataCenterDeployment;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.deploy.DeploymentPlan;
@@ -251,6 +254,10 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
     protected long _opWaitInterval;
     protected int _lockStateRetry;
     protected boolean _forceStop;
+    protected long _fullSyncInterval;
+
+    protected final Map<Long, ClusterSyncCommand> _clusterSyncCommands = new ConcurrentHashMap<Long, ClusterSyncCommand>();
+    protected final ConcurrentHashMap<Long, ClusterVmStates> _clusterVmStates = new ConcurrentHashMap<Long, ClusterVmStates>();
 
     @Override
     public <T extends VMInstanceVO> void registerGuru(VirtualMachine.Type type, VirtualMachineGuru<T> guru) {
@@ -442,6 +449,7 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         _lockStateRetry = NumbersUtil.parseInt(params.get(Config.VmOpLockStateRetry.key()), 5);
         _operationTimeout = NumbersUtil.parseInt(params.get(Config.Wait.key()), 1800) * 2;
         _forceStop = Boolean.parseBoolean(params.get(Config.VmDestroyForcestop.key()));
+        _fullSyncInterval = NumbersUtil.parseLong(params.get(Config.ClusterFullSyncInterval.key()), 3600) * 1000;
 
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Vm-Operations-Cleanup"));
         _nodeId = _clusterMgr.getManagementNodeId();
@@ -1461,6 +1469,36 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         }
     }
 
+    @Override
+    public void planStart(List<? extends VMInstanceVO> vms, Map<VirtualMachineProfile.Param, Object> params, DeploymentPlan plan, ExcludeList avoid) {
+        List<VirtualMachineProfile<VMInstanceVO>> profiles = new ArrayList<VirtualMachineProfile<VMInstanceVO>>();
+        for (VMInstanceVO vm : vms) {
+            profiles.add(new VirtualMachineProfileImpl<VMInstanceVO>(vm, _templateDao.findById(vm.getTemplateId()), _offeringDao.findById(vm.getServiceOfferingId()),
+                    _accountMgr.getAccount(vm.getAccountId()), params));
+        }
+
+        for (DeploymentPlanner planner : _planners) {
+            if (!(planner instanceof BatchDeploymentPlanner)) {
+                continue;
+            }
+            List<VirtualMachineProfile<VMInstanceVO>> handled = new ArrayList<VirtualMachineProfile<VMInstanceVO>>();
+            for (Iterator<VirtualMachineProfile<VMInstanceVO>> it = profiles.iterator(); it.hasNext();) {
+                VirtualMachineProfile<VMInstanceVO> profile = it.next();
+                if (planner.canHandle(profile, plan, avoid)) {
+                    handled.add(profile);
+                    it.remove();
+                }
+            }
+            if (!handled.isEmpty()) {
+                List<DeployDestination> dests = ((BatchDeploymentPlanner) planner).planBatch(handled, plan, avoid);
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Planner " + planner + " planned the start of " + (dests.size() - Collections.frequency(dests, null)) + " of " + handled.size() + " VMs");
+                }
+            }
+        }
+        // the vms left are planned one by one when they start
+    }
+
     @Override
     public boolean migrateAway(VirtualMachine.Type vmType, long vmId, long srcHostId) throws InsufficientServerCapacityException, VirtualMachineMigrationException {
         VirtualMachineGuru<? extends VMInstanceVO> vmGuru = _vmGurus.get(vmType);
@@ -1739,10 +1777,14 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
 
     public void fullSync(final long clusterId, Map<String, Pair<String, State>> newStates) {
     	if (newStates==null)return;
-        Map<Long, AgentVmInfo> infos = convertToInfos(newStates);
         Set<VMInstanceVO> set_vms = Collections.synchronizedSet(new HashSet<VMInstanceVO>());
         set_vms.addAll(_vmDao.listByClusterId(clusterId));
         set_vms.addAll(_vmDao.listLHByClusterId(clusterId));
+        Map<String, VMInstanceVO> vmsByName = new HashMap<String, VMInstanceVO>(set_vms.size());
+        for (VMInstanceVO vm : set_vms) {
+            vmsByName.put(vm.getInstanceName(), vm);
+        }
+        Map<Long, AgentVmInfo> infos = convertToInfos(newStates, vmsByName);
 
         for (VMInstanceVO vm : set_vms) {
             AgentVmInfo info =  infos.remove(vm.getId());
@@ -1853,6 +1895,13 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
 
 
     protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Pair<String, State>> newStates) {
+        return convertToInfos(newStates, null);
+    }
+
+    /**
+     * @param knownVms vms already loaded, by instance name; the gurus are only asked about the others
+     */
+    protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Pair<String, State>> newStates, Map<String, VMInstanceVO> knownVms) {
         final HashMap<Long, AgentVmInfo> map = new HashMap<Long, AgentVmInfo>();
         if (newStates == null) {
             return map;
@@ -1861,6 +1910,11 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         boolean is_alien_vm = true;
         long alien_vm_count = -1;
         for (Map.Entry<String, Pair<String, State>> entry : newStates.entrySet()) {
+            VMInstanceVO known = knownVms != null ? knownVms.get(entry.getKey()) : null;
+            if (known != null && _vmGurus.get(known.getType()) != null) {
+                map.put(known.getId(), new AgentVmInfo(entry.getKey(), _vmGurus.get(known.getType()), known, entry.getValue().second(), entry.getValue().first()));
+                continue;
+            }
         	is_alien_vm = true;
             for (VirtualMachineGuru<? extends VMInstanceVO> vmGuru : vmGurus) {
                 String name = entry.getKey();
@@ -2196,7 +2250,7 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
             if (answer instanceof ClusterSyncAnswer) {
                 ClusterSyncAnswer hs = (ClusterSyncAnswer) answer;
                 if (!hs.isExceuted()){
-                    deltaSync(hs.getNewStates());
+                    processClusterSyncAnswer(agentId, hs);
                     hs.setExecuted();
                 }
             }
@@ -2204,6 +2258,69 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         return true;
     }
 
+    /**
+     * Copy of the vm states the resource of a cluster has reported, to check its answers against.
+     */
+    protected static class ClusterVmStates {
+        final HashMap<String, Pair<String, State>> _states = new HashMap<String, Pair<String, State>>();
+        long _lastFullSync;
+    }
+
+    protected ClusterVmStates getClusterVmStates(long clusterId) {
+        ClusterVmStates vmStates = _clusterVmStates.get(clusterId);
+        if (vmStates == null) {
+            vmStates = new ClusterVmStates();
+            ClusterVmStates existing = _clusterVmStates.putIfAbsent(clusterId, vmStates);
+            if (existing != null) {
+                vmStates = existing;
+            }
+        }
+        return vmStates;
+    }
+
+    /**
+     * Applies a cluster sync answer and acknowledges it on the command the resource keeps
+     * running, so the next answer only carries what changed since.  A full sync is asked for
+     * when the answer's checksum doesn't match the vm states reported so far, and every
+     * sync.full.interval seconds regardless.
+     */
+    protected void processClusterSyncAnswer(long hostId, ClusterSyncAnswer answer) {
+        if (answer.getGeneration() == 0) {
+            deltaSync(answer.getNewStates());
+            return;
+        }
+
+        ClusterSyncCommand cmd = _clusterSyncCommands.get(hostId);
+        ClusterVmStates vmStates = getClusterVmStates(answer.getClusterId());
+        synchronized (vmStates) {
+            try {
+                if (answer.isFull()) {
+                    fullSync(answer.getClusterId(), answer.getNewStates());
+                    vmStates._lastFullSync = System.currentTimeMillis();
+                } else {
+                    deltaSync(answer.getNewStates());
+                }
+            } catch (RuntimeException e) {
+                s_logger.warn("Unable to sync the vm states of cluster " + answer.getClusterId() + ", asking for a full sync", e);
+                if (cmd != null) {
+                    cmd.setFullSync(true);
+                }
+                return;
+            }
+
+            answer.applyTo(vmStates._states);
+            boolean outOfStep = ClusterSyncAnswer.checksum(vmStates._states) != answer.getChecksum();
+            if (outOfStep) {
+                s_logger.warn("The vm states of cluster " + answer.getClusterId() + " are out of step after sync generation " + answer.getGeneration()
+                        + ", asking for a full sync");
+            }
+            if (cmd != null) {
+                cmd.setAckedGeneration(answer.getGeneration());
+                cmd.setFullSync(outOfStep || System.currentTimeMillis() - vmStates._lastFullSync >= _fullSyncInterval);
+            }
+        }
+    }
+
     @Override
     public boolean processTimeout(long agentId, long seq) {
         return true;
@@ -2243,6 +2360,7 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
 
     @Override
     public boolean processDisconnect(long agentId, Status state) {
+        _clusterSyncCommands.remove(agentId);
         return true;
     }
 
@@ -2269,10 +2387,16 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         	HashMap<String, Pair<String, State>> allStates = startup.getClusterVMStateChanges();
         	if (allStates != null){
         		this.fullSync(clusterId, allStates);
+                ClusterVmStates vmStates = getClusterVmStates(clusterId);
+                synchronized (vmStates) {
+                    ClusterSyncAnswer.apply(vmStates._states, allStates, true);
+                    vmStates._lastFullSync = System.currentTimeMillis();
+                }
         	}
         	
         	// initiate the cron job
             ClusterSyncCommand syncCmd = new ClusterSyncCommand(Integer.parseInt(Config.ClusterDeltaSyncInterval.getDefaultValue()), clusterId);
+            _clusterSyncCommands.put(agentId, syncCmd);
             try {
                 long seq_no = _agentMgr.send(agentId, new Commands(syncCmd), this);
                 s_logger.debug("Cluster VM sync started with jobid " + seq_no);
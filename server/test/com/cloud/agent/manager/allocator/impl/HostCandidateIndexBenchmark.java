@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.manager.allocator.impl.HostCandidateIndex.Candidate;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.utils.Profiler;
+
+/**
+ * Times cluster lookups in a large host candidate index.  Not part of the unit tests, run it
+ * with -Dtest=HostCandidateIndexBenchmark.
+ */
+public class HostCandidateIndexBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(HostCandidateIndexBenchmark.class);
+    static final long ZONE = HostCandidateIndexTest.ZONE;
+
+    public void testListCandidatesThroughput() {
+        HostCandidateIndex index = new HostCandidateIndex();
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (long hostId = 1; hostId <= 10000; hostId++) {
+            List<String> tags = hostId % 10 == 0 ? Arrays.asList("ssd") : null;
+            candidates.add(new Candidate(HostCandidateIndexTest.createHost(hostId, hostId % 10, hostId % 500, HypervisorType.XenServer, Status.Up), tags, null));
+        }
+        index.reload(candidates);
+
+        Profiler profiler = new Profiler();
+        profiler.start();
+        for (int i = 0; i < 10000; i++) {
+            List<HostVO> hosts = index.listCandidates(ZONE, null, (long) (i % 500), null, Collections.<String>emptyList(), "ha");
+            assertEquals(20, hosts.size());
+        }
+        profiler.stop();
+        s_logger.info("10000 cluster lookups over 10000 indexed hosts: " + profiler.getDuration() + " ms");
+    }
+}
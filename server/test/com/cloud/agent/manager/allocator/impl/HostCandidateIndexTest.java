@@ -0,0 +1,158 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.manager.allocator.impl.HostCandidateIndex.Candidate;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.host.dao.HostTagsDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.resource.ResourceState;
+
+public class HostCandidateIndexTest extends TestCase {
+    static final long ZONE = 1;
+
+    static HostVO createHost(final long id, long podId, long clusterId, HypervisorType hypervisor, final Status status) {
+        HostVO host = new HostVO("host-" + id) {
+            @Override
+            public long getId() {
+                return id;
+            }
+
+            @Override
+            public Status getStatus() {
+                return status;
+            }
+        };
+        host.setType(Host.Type.Routing);
+        host.setDataCenterId(ZONE);
+        host.setPodId(podId);
+        host.setClusterId(clusterId);
+        host.setHypervisorType(hypervisor);
+        host.setResourceState(ResourceState.Enabled);
+        return host;
+    }
+
+    static List<Long> ids(List<HostVO> hosts) {
+        List<Long> ids = new ArrayList<Long>();
+        for (HostVO host : hosts) {
+            ids.add(host.getId());
+        }
+        return ids;
+    }
+
+    public void testIsCandidate() {
+        assertTrue(HostCandidateIndex.isCandidate(createHost(1, 1, 1, HypervisorType.XenServer, Status.Up)));
+        assertFalse(HostCandidateIndex.isCandidate(createHost(1, 1, 1, HypervisorType.XenServer, Status.Disconnected)));
+        HostVO host = createHost(1, 1, 1, HypervisorType.XenServer, Status.Up);
+        host.setResourceState(ResourceState.Maintenance);
+        assertFalse(HostCandidateIndex.isCandidate(host));
+    }
+
+    public void testListCandidates() {
+        HostCandidateIndex index = new HostCandidateIndex();
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(new Candidate(createHost(1, 1, 1, HypervisorType.XenServer, Status.Up), null, "Windows"));
+        candidates.add(new Candidate(createHost(2, 1, 1, HypervisorType.XenServer, Status.Up), Arrays.asList("ssd"), null));
+        candidates.add(new Candidate(createHost(3, 1, 2, HypervisorType.KVM, Status.Up), Arrays.asList("ssd", "gpu"), null));
+        candidates.add(new Candidate(createHost(4, 2, 3, HypervisorType.KVM, Status.Up), Arrays.asList("ha"), null));
+        index.reload(candidates);
+
+        List<String> noTags = Collections.emptyList();
+        assertEquals(Arrays.asList(1L, 2L), ids(index.listCandidates(ZONE, null, 1L, null, noTags, null)));
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids(index.listCandidates(ZONE, 1L, null, null, noTags, null)));
+        assertEquals(Arrays.asList(3L, 4L), ids(index.listCandidates(ZONE, null, null, HypervisorType.KVM, noTags, null)));
+        assertEquals(Arrays.asList(2L, 3L), ids(index.listCandidates(ZONE, null, null, null, Arrays.asList("ssd"), null)));
+        assertEquals(Arrays.asList(3L), ids(index.listCandidates(ZONE, null, null, null, Arrays.asList("ssd", "gpu"), null)));
+        assertTrue(index.listCandidates(ZONE, null, 1L, null, Arrays.asList("gpu"), null).isEmpty());
+        // hosts dedicated to HA are left out for vms that do not ask for them
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids(index.listCandidates(ZONE, null, null, null, noTags, "ha")));
+        assertTrue(index.listCandidates(2, null, null, null, noTags, null).isEmpty());
+
+        assertEquals("Windows", index.getGuestOSCategory(1));
+        assertNull(index.getGuestOSCategory(2));
+    }
+
+    public void testTagsMatchIgnoringCase() {
+        HostCandidateIndex index = new HostCandidateIndex();
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(new Candidate(createHost(1, 1, 1, HypervisorType.XenServer, Status.Up), Arrays.asList("ssd"), null));
+        candidates.add(new Candidate(createHost(2, 1, 1, HypervisorType.XenServer, Status.Up), Arrays.asList("SSD", "HA"), null));
+        index.reload(candidates);
+
+        assertEquals(Arrays.asList(1L, 2L), ids(index.listCandidates(ZONE, null, null, null, Arrays.asList("SSD"), null)));
+        assertEquals(Arrays.asList(1L, 2L), ids(index.listCandidates(ZONE, null, null, null, Arrays.asList("Ssd"), null)));
+        assertEquals(Arrays.asList(1L), ids(index.listCandidates(ZONE, null, null, null, Arrays.asList("ssd"), "ha")));
+    }
+
+    public void testPutAndRemove() {
+        HostCandidateIndex index = new HostCandidateIndex();
+        index.put(new Candidate(createHost(1, 1, 1, HypervisorType.XenServer, Status.Up), Arrays.asList("ssd"), null));
+        assertEquals(1, index.listCandidates(ZONE, null, 1L, null, Arrays.asList("ssd"), null).size());
+
+        // the host was retagged and moved
+        index.put(new Candidate(createHost(1, 1, 2, HypervisorType.XenServer, Status.Up), Arrays.asList("gpu"), null));
+        assertEquals(1, index.size());
+        assertTrue(index.listCandidates(ZONE, null, 1L, null, Collections.<String>emptyList(), null).isEmpty());
+        assertTrue(index.listCandidates(ZONE, null, null, null, Arrays.asList("ssd"), null).isEmpty());
+        assertEquals(1, index.listCandidates(ZONE, null, 2L, null, Arrays.asList("gpu"), null).size());
+
+        index.remove(1);
+        assertFalse(index.contains(1));
+        assertTrue(index.listCandidates(ZONE, null, 2L, null, Collections.<String>emptyList(), null).isEmpty());
+    }
+
+    public void testUpdateHostRefreshesIndex() {
+        FirstFitAllocator allocator = new FirstFitAllocator();
+        allocator._hostIndex = new HostCandidateIndex();
+        allocator._hostDao = mock(HostDao.class);
+        allocator._hostTagsDao = mock(HostTagsDao.class);
+        allocator._hostDetailsDao = mock(HostDetailsDao.class);
+        HostCandidateIndexListener listener = new HostCandidateIndexListener(allocator);
+
+        HostVO host = createHost(1, 1, 1, HypervisorType.XenServer, Status.Up);
+        when(allocator._hostDao.findById(1L)).thenReturn(host);
+        listener.processUpdateHostEventAfter(1L);
+        assertTrue(allocator._hostIndex.contains(1));
+        assertTrue(allocator._hostIndex.listCandidates(ZONE, null, 1L, null, Arrays.asList("ssd"), null).isEmpty());
+
+        when(allocator._hostTagsDao.gethostTags(1L)).thenReturn(Arrays.asList("ssd"));
+        listener.processUpdateHostEventAfter(1L);
+        assertEquals(1, allocator._hostIndex.listCandidates(ZONE, null, 1L, null, Arrays.asList("ssd"), null).size());
+
+        host.setResourceState(ResourceState.Disabled);
+        listener.processUpdateHostEventAfter(1L);
+        assertFalse(allocator._hostIndex.contains(1));
+
+        host.setResourceState(ResourceState.Enabled);
+        listener.processUpdateHostEventAfter(1L);
+        assertTrue(allocator._hostIndex.contains(1));
+    }
+}
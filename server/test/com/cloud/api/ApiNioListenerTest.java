@@ -0,0 +1,195 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+public class ApiNioListenerTest extends TestCase {
+    private ApiNioListener _listener;
+    private CountDownLatch _release;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (_release != null) {
+            _release.countDown();
+        }
+        if (_listener != null) {
+            _listener.shutdown();
+            _listener.join(5000);
+        }
+    }
+
+    protected void start(int workers, int queueSize) {
+        _listener = new ApiNioListener(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+                if (_release != null && request.getRequestLine().getUri().contains("block")) {
+                    try {
+                        _release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                response.setEntity(new StringEntity("<uri>" + request.getRequestLine().getUri() + "</uri>"));
+            }
+        }, 0, workers, queueSize, 7);
+        _listener.start();
+    }
+
+    protected Socket connect() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            // the listener binds to a port of the system's choosing once it runs
+            int port = _listener.getLocalPort();
+            if (port <= 0) {
+                Thread.sleep(100);
+                continue;
+            }
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(10000);
+                return socket;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Unable to connect to the listener");
+    }
+
+    protected void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    protected String receive(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed after " + head);
+            }
+            head.append((char)b);
+        }
+        int index = head.indexOf("Content-Length: ") + "Content-Length: ".length();
+        int length = Integer.parseInt(head.substring(index, head.indexOf("\r\n", index)));
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(body, read, length - read);
+            if (count < 0) {
+                throw new IOException("Connection closed in the body");
+            }
+            read += count;
+        }
+        return head.toString() + new String(body, "UTF-8");
+    }
+
+    public void testKeepAlive() throws Exception {
+        start(2, 10);
+        Socket socket = connect();
+        try {
+            send(socket, "GET /client/api?command=listZones HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            String response = receive(socket);
+            assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(response, response.contains("Connection: keep-alive"));
+            assertTrue(response, response.endsWith("<uri>/client/api?command=listZones</uri>"));
+
+            // A pipelined pair on the same connection, the second one is a form post.
+            String body = "command=listHosts";
+            send(socket, "GET /?command=listRouters HTTP/1.1\r\n\r\nPOST /client/api HTTP/1.1\r\nContent-Type: application/x-www-form-urlencoded\r\nContent-Length: "
+                    + body.length() + "\r\nConnection: close\r\n\r\n" + body);
+            assertTrue(receive(socket).endsWith("<uri>/?command=listRouters</uri>"));
+            response = receive(socket);
+            assertTrue(response, response.contains("Connection: close"));
+            assertTrue(response, response.endsWith("<uri>/client/api?command=listHosts</uri>"));
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testServiceUnavailable() throws Exception {
+        _release = new CountDownLatch(1);
+        start(1, 1);
+        Socket running = connect();
+        Socket queued = connect();
+        Socket rejected = connect();
+        try {
+            send(running, "GET /?command=block HTTP/1.1\r\n\r\n");
+            Thread.sleep(200);
+            send(queued, "GET /?command=block HTTP/1.1\r\n\r\n");
+            Thread.sleep(200);
+            long before = ApiServerStats.getInstance().getRejectedRequests();
+            send(rejected, "GET /?command=listZones&response=json HTTP/1.1\r\n\r\n");
+            String response = receive(rejected);
+            assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable"));
+            assertTrue(response, response.contains("Retry-After: 7"));
+            assertTrue(response, response.contains("\"error\""));
+            assertEquals(before + 1, ApiServerStats.getInstance().getRejectedRequests());
+
+            _release.countDown();
+            assertTrue(receive(running).startsWith("HTTP/1.1 200"));
+            assertTrue(receive(queued).startsWith("HTTP/1.1 200"));
+
+            // The rejected connection is still usable.
+            send(rejected, "GET /?command=listZones HTTP/1.1\r\n\r\n");
+            assertTrue(receive(rejected).startsWith("HTTP/1.1 200"));
+        } finally {
+            running.close();
+            queued.close();
+            rejected.close();
+        }
+    }
+
+    public void testParse() throws Exception {
+        ByteBuffer in = ByteBuffer.allocate(1024);
+        in.put("GET /?command=a HTTP/1.0\r\nConnection: keep-alive\r\n".getBytes("ISO-8859-1"));
+        assertNull(ApiNioListener.parse(in));
+        in.put("\r\nGET /?command=b HTTP/1.0\r\n".getBytes("ISO-8859-1"));
+        ApiNioListener.Request request = ApiNioListener.parse(in);
+        assertEquals("/?command=a", request.request.getRequestLine().getUri());
+        assertTrue(request.keepAlive);
+        assertNull(ApiNioListener.parse(in));
+        in.put("\r\n".getBytes("ISO-8859-1"));
+        request = ApiNioListener.parse(in);
+        assertEquals("/?command=b", request.request.getRequestLine().getUri());
+        assertFalse(request.keepAlive);
+        assertEquals(0, in.position());
+
+        in.put("garbage\r\n\r\n".getBytes("ISO-8859-1"));
+        try {
+            ApiNioListener.parse(in);
+            fail("Malformed request line was accepted");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
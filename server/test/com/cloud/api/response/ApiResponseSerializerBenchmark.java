@@ -0,0 +1,65 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.BaseCmd;
+import com.cloud.api.response.ApiResponseSerializerTest.CountingWriter;
+import com.cloud.api.response.ApiResponseSerializerTest.TestResponse;
+
+/**
+ * Compares the heap held while writing out a 50k object list through the string with the peak
+ * while streaming it from a response source.  Not part of the unit tests, run it with
+ * -Dtest=ApiResponseSerializerBenchmark.
+ */
+public class ApiResponseSerializerBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ApiResponseSerializerBenchmark.class);
+
+    public void testPeakHeap() throws Exception {
+        int items = 50000;
+        long baseline = ApiResponseSerializerTest.usedHeap();
+
+        List<TestResponse> responses = new ArrayList<TestResponse>(items);
+        for (int i = 0; i < items; i++) {
+            responses.add(new TestResponse(i));
+        }
+        ListResponse<TestResponse> list = new ListResponse<TestResponse>();
+        list.setResponseName("listvirtualmachinesresponse");
+        list.setResponses(responses, items);
+        String serialized = ApiResponseSerializer.toSerializedString(list, BaseCmd.RESPONSE_TYPE_JSON);
+        long stringPeak = ApiResponseSerializerTest.usedHeap() - baseline;
+        int length = serialized.length();
+        responses = null;
+        list = null;
+        serialized = null;
+
+        baseline = ApiResponseSerializerTest.usedHeap();
+        long[] peak = new long[1];
+        CountingWriter out = new CountingWriter();
+        ApiResponseSerializer.toSerializedStream(ApiResponseSerializerTest.createSourcedResponse(items, peak), BaseCmd.RESPONSE_TYPE_JSON, out);
+        long streamPeak = Math.max(0, peak[0] - baseline);
+
+        s_logger.info(items + " objects, " + length + " chars: string " + (stringPeak / 1024) + "KB, streamed " + (streamPeak / 1024) + "KB");
+        assertEquals(length, out._chars);
+    }
+}
@@ -0,0 +1,206 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.api.BaseCmd;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.annotations.SerializedName;
+
+public class ApiResponseSerializerTest extends TestCase {
+    protected static class TestResponse extends BaseResponse {
+        @SerializedName("id")
+        private String id;
+
+        @SerializedName("name")
+        private String name;
+
+        @SerializedName("state")
+        private String state;
+
+        public TestResponse(int i) {
+            id = "9c5a4f3e-" + i;
+            name = "i-2-" + i + "-VM";
+            state = "Running";
+            setObjectName("virtualmachine");
+        }
+    }
+
+    protected static class CountingWriter extends Writer {
+        long _chars;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            _chars += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    protected static ListResponse<TestResponse> createSourcedResponse(int items, long[] peak) {
+        return createSourcedResponse(items, -1, peak);
+    }
+
+    protected static ListResponse<TestResponse> createSourcedResponse(final int items, final int failAt, final long[] peak) {
+        ListResponse<TestResponse> response = new ListResponse<TestResponse>();
+        response.setResponseName("listvirtualmachinesresponse");
+        response.setResponseSource(new Iterable<TestResponse>() {
+            @Override
+            public Iterator<TestResponse> iterator() {
+                return new Iterator<TestResponse>() {
+                    int _next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return _next < items;
+                    }
+
+                    @Override
+                    public TestResponse next() {
+                        if (_next == failAt) {
+                            throw new CloudRuntimeException("Unable to create response " + _next);
+                        }
+                        if (peak != null && _next % 10000 == 0) {
+                            peak[0] = Math.max(peak[0], usedHeap());
+                        }
+                        return new TestResponse(_next++);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        }, items, items);
+        return response;
+    }
+
+    protected static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public void testStreamMatchesString() throws Exception {
+        List<TestResponse> responses = new ArrayList<TestResponse>();
+        for (int i = 0; i < 3; i++) {
+            responses.add(new TestResponse(i));
+        }
+        ListResponse<TestResponse> list = new ListResponse<TestResponse>();
+        list.setResponseName("listvirtualmachinesresponse");
+        list.setResponses(responses, 3);
+        String expected = ApiResponseSerializer.toSerializedString(list, BaseCmd.RESPONSE_TYPE_JSON);
+        assertTrue(expected, expected.contains("\"virtualmachine\" : [  {"));
+        assertTrue(expected, expected.contains("\"name\":\"i-2-2-VM\""));
+
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.toSerializedStream(list, BaseCmd.RESPONSE_TYPE_JSON, out);
+        assertEquals(expected, out.toString());
+
+        out = new StringWriter();
+        ApiResponseSerializer.toSerializedStream(createSourcedResponse(3, null), BaseCmd.RESPONSE_TYPE_JSON, out);
+        assertEquals(expected, out.toString());
+
+        ListResponse<TestResponse> empty = new ListResponse<TestResponse>();
+        empty.setResponseName("listvirtualmachinesresponse");
+        empty.setResponseSource(new ArrayList<TestResponse>(), 0, 0);
+        assertEquals("{ \"listvirtualmachinesresponse\" : { } }", ApiResponseSerializer.toSerializedString(empty, BaseCmd.RESPONSE_TYPE_JSON));
+    }
+
+    public void testStreamEndsWithError() throws Exception {
+        StringWriter out = new StringWriter();
+        try {
+            ApiResponseSerializer.toSerializedStream(createSourcedResponse(10, 5, null), BaseCmd.RESPONSE_TYPE_JSON, out);
+            fail("The failure creating a response should be thrown");
+        } catch (CloudRuntimeException e) {
+        }
+
+        JsonObject response = new JsonParser().parse(out.toString()).getAsJsonObject().getAsJsonObject("listvirtualmachinesresponse");
+        assertEquals(10, response.get("count").getAsInt());
+        assertEquals(5, response.getAsJsonArray("virtualmachine").size());
+        assertEquals(BaseCmd.INTERNAL_ERROR, response.get("errorcode").getAsInt());
+        assertNotNull(response.get("errortext"));
+
+        // nothing has been written when the first object fails
+        out = new StringWriter();
+        try {
+            ApiResponseSerializer.toSerializedStream(createSourcedResponse(10, 0, null), BaseCmd.RESPONSE_TYPE_JSON, out);
+            fail("The failure creating a response should be thrown");
+        } catch (CloudRuntimeException e) {
+        }
+        assertEquals("", out.toString());
+    }
+
+    public void testResponseSize() {
+        // the page size decides whether a list is streamed, not the total count
+        ListResponse<TestResponse> response = new ListResponse<TestResponse>();
+        response.setResponseSource(new ArrayList<TestResponse>(), 20, 600);
+        assertEquals(Integer.valueOf(20), response.getResponseSize());
+        assertEquals(Integer.valueOf(600), response.getCount());
+
+        List<TestResponse> responses = new ArrayList<TestResponse>();
+        responses.add(new TestResponse(0));
+        response.setResponses(responses, 600);
+        assertEquals(Integer.valueOf(1), response.getResponseSize());
+        assertNull(new ListResponse<TestResponse>().getResponseSize());
+    }
+
+    public void testChunkedResponseSource() {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 450; i++) {
+            items.add(i);
+        }
+        final int[] chunks = new int[1];
+        ChunkedResponseSource<Integer, TestResponse> source = new ChunkedResponseSource<Integer, TestResponse>(items) {
+            @Override
+            protected List<TestResponse> createResponses(List<? extends Integer> chunk) {
+                chunks[0]++;
+                List<TestResponse> responses = new ArrayList<TestResponse>();
+                for (Integer i : chunk) {
+                    responses.add(new TestResponse(i));
+                }
+                return responses;
+            }
+        };
+        int count = 0;
+        for (TestResponse response : source) {
+            assertEquals("i-2-" + count + "-VM", response.name);
+            count++;
+        }
+        assertEquals(450, count);
+        assertEquals(3, chunks[0]);
+    }
+}
@@ -0,0 +1,116 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class AsyncJobSchedulerTest extends TestCase {
+    private long _nextId = 1;
+
+    protected AsyncJobVO createJob(long accountId, String cmd, AsyncJob.Type type) {
+        AsyncJobVO job = new AsyncJobVO(2, accountId, cmd, null, null, type);
+        job.setId(_nextId++);
+        return job;
+    }
+
+    public void testJobClass() {
+        assertEquals("Snapshot", AsyncJobScheduler.getJobClass(createJob(1, "com.cloud.api.commands.CreateSnapshotCmd", AsyncJob.Type.Snapshot)));
+        assertEquals("ListVMsCmd", AsyncJobScheduler.getJobClass(createJob(1, "com.cloud.api.commands.ListVMsCmd", null)));
+        assertEquals("ListVMsCmd", AsyncJobScheduler.getJobClass(createJob(1, "com.cloud.api.commands.ListVMsCmd", AsyncJob.Type.None)));
+
+        Map<String, Integer> weights = AsyncJobScheduler.parseWeights("Snapshot:4, DomainRouter:2,bogus,Volume:x");
+        assertEquals(2, weights.size());
+        assertEquals(4, weights.get("Snapshot").intValue());
+        assertEquals(2, weights.get("DomainRouter").intValue());
+    }
+
+    /**
+     * A burst of deploys from one account mustn't hold up the jobs of other
+     * accounts or of other job classes.
+     */
+    public void testFairness() throws Exception {
+        AsyncJobScheduler scheduler = new AsyncJobScheduler("Test-Executor", 1, AsyncJobScheduler.parseWeights("Snapshot:2"));
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(24);
+
+        scheduler.submit(createJob(1, "DeployVMCmd", AsyncJob.Type.VirtualMachine), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        scheduler.start();
+        Thread.sleep(100);
+
+        for (int i = 0; i < 20; i++) {
+            scheduler.submit(createJob(1, "DeployVMCmd", AsyncJob.Type.VirtualMachine), new Recorder(order, "deploy-1", done));
+        }
+        scheduler.submit(createJob(3, "DeployVMCmd", AsyncJob.Type.VirtualMachine), new Recorder(order, "deploy-3", done));
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(createJob(2, "CreateSnapshotCmd", AsyncJob.Type.Snapshot), new Recorder(order, "snapshot-2", done));
+        }
+        assertEquals(24, scheduler.getQueueDepth());
+        assertEquals(21, scheduler.getLaneDepth("VirtualMachine"));
+        assertEquals(20, scheduler.getAccountDepth("VirtualMachine", 1));
+        assertEquals(3, scheduler.getLaneDepth("Snapshot"));
+
+        blocker.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+
+        // The lane of the blocking job has used up its turn, then snapshots
+        // get two turns per round and the accounts alternate in their lane.
+        assertEquals("snapshot-2", order.get(0));
+        assertEquals("snapshot-2", order.get(1));
+        assertEquals("deploy-1", order.get(2));
+        assertEquals("snapshot-2", order.get(3));
+        assertEquals("deploy-3", order.get(4));
+        assertEquals(25, scheduler.getExecuted());
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(3, scheduler.getWaits("Snapshot").getCount());
+    }
+
+    protected static class Recorder implements Runnable {
+        private final List<String> _order;
+        private final String _name;
+        private final CountDownLatch _done;
+
+        public Recorder(List<String> order, String name, CountDownLatch done) {
+            _order = order;
+            _name = name;
+            _done = done;
+        }
+
+        @Override
+        public void run() {
+            _order.add(_name);
+            _done.countDown();
+        }
+    }
+}
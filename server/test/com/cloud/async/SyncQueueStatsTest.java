@@ -0,0 +1,58 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class SyncQueueStatsTest extends TestCase {
+    public void testHandoff() {
+        SyncQueueStats stats = new SyncQueueStats();
+        stats.released(1, 1000);
+        stats.dequeued(1, new Date(500), false, 1004);
+        assertEquals(1, stats.getHandoffCount());
+        assertEquals(4, stats.getHandoffMax());
+        assertEquals(1, stats.getDirectDequeues());
+
+        // the release has been consumed
+        stats.dequeued(1, new Date(500), true, 3000);
+        assertEquals(1, stats.getHandoffCount());
+        assertEquals(1, stats.getPolledDequeues());
+    }
+
+    public void testItemQueuedAfterRelease() {
+        SyncQueueStats stats = new SyncQueueStats();
+        stats.released(1, 1000);
+        stats.dequeued(1, new Date(1500), false, 1600);
+        assertEquals(0, stats.getHandoffCount());
+    }
+
+    public void testExpiredReleases() {
+        SyncQueueStats stats = new SyncQueueStats();
+        for (int i = 0; i < SyncQueueStats.MAX_TRACKED_RELEASES; i++) {
+            stats.released(i, 0);
+        }
+        long now = SyncQueueStats.RELEASE_EXPIRY + 1;
+        stats.released(-1, now);
+        stats.dequeued(-1, null, false, now + 2);
+        stats.dequeued(0, null, false, now + 2);
+        assertEquals(1, stats.getHandoffCount());
+        assertEquals(2, stats.getHandoffMax());
+        assertEquals(SyncQueueStats.MAX_TRACKED_RELEASES + 1, stats.getReleases());
+    }
+}
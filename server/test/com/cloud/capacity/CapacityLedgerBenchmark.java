@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Profiler;
+
+/**
+ * Times the planner's cluster listing and ordering from the ledger.  Not part
+ * of the unit tests, run it with -Dtest=CapacityLedgerBenchmark.
+ */
+public class CapacityLedgerBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(CapacityLedgerBenchmark.class);
+    static final long ZONE = CapacityLedgerTest.ZONE;
+    static final long GB = CapacityLedgerTest.GB;
+
+    public void testPlanningReads() {
+        CapacityLedger ledger = new CapacityLedger();
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        for (long hostId = 1; hostId <= 4000; hostId++) {
+            rows.addAll(CapacityLedgerTest.rows(hostId, hostId % 10, hostId % 200, (hostId * 37) % 8000, 8000, (hostId * 37) % 16 * GB, 16 * GB));
+        }
+        ledger.reload(rows);
+
+        Profiler profiler = new Profiler();
+        profiler.start();
+        for (int i = 0; i < 1000; i++) {
+            // each pass sees the rows written by the allocation of the previous one
+            long hostId = i + 1;
+            List<CapacityVO> allocated = CapacityLedgerTest.rows(hostId, hostId % 10, hostId % 200, (hostId * 37) % 8000 + 500, 8000, ((hostId * 37) % 16 + 1) * GB, 16 * GB);
+            ledger.loadHost(allocated.get(0), allocated.get(1));
+            List<Long> clusters = ledger.listClustersByHostCapacities(ZONE, true, 500, GB, 1.0f);
+            List<Long> ordered = ledger.orderClustersByAggregateCapacity(ZONE, true, Capacity.CAPACITY_TYPE_CPU, 1.0f).first();
+            ordered.retainAll(clusters);
+            assertFalse(ordered.isEmpty());
+        }
+        profiler.stop();
+        s_logger.info("1000 planning passes over 4000 hosts in 200 clusters: " + profiler.getDuration() + " ms");
+    }
+}
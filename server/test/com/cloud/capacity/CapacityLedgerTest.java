@@ -0,0 +1,106 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.capacity.CapacityLedger.HostCapacity;
+import com.cloud.utils.Pair;
+
+public class CapacityLedgerTest extends TestCase {
+    static final long ZONE = 1;
+    static final long GB = 1024L * 1024L * 1024L;
+
+    static List<CapacityVO> rows(long hostId, long podId, long clusterId, long usedCpu, long totalCpu, long usedMem, long totalMem) {
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        rows.add(new CapacityVO(hostId, ZONE, podId, clusterId, usedCpu, totalCpu, Capacity.CAPACITY_TYPE_CPU));
+        rows.add(new CapacityVO(hostId, ZONE, podId, clusterId, usedMem, totalMem, Capacity.CAPACITY_TYPE_MEMORY));
+        return rows;
+    }
+
+    public void testLoadAndReload() {
+        CapacityLedger ledger = new CapacityLedger();
+        ledger.reload(rows(1, 1, 1, 0, 8000, 0, 16 * GB));
+        assertNull("untracked host", ledger.getHost(2));
+
+        // the rows written by an allocation replace what the ledger had
+        List<CapacityVO> allocated = rows(1, 1, 1, 1000, 8000, GB, 16 * GB);
+        assertTrue(ledger.loadHost(allocated.get(0), allocated.get(1)));
+        HostCapacity host = ledger.getHost(1);
+        assertEquals(1000, host.getUsedCpu());
+        assertEquals(GB, host.getUsedMem());
+
+        // another management server started a vm on the host and wrote it to the database
+        ledger.reload(rows(1, 1, 1, 1500, 8000, GB + GB / 2, 16 * GB));
+        assertEquals(1500, ledger.getHost(1).getUsedCpu());
+
+        // a host moved to another cluster is only listed there
+        List<CapacityVO> moved = rows(1, 1, 2, 1500, 8000, GB + GB / 2, 16 * GB);
+        assertTrue(ledger.loadHost(moved.get(0), moved.get(1)));
+        assertEquals(2, ledger.getHost(1).getClusterId());
+        List<Long> clusters = ledger.listClustersByHostCapacities(ZONE, true, 1000, GB, 1.0f);
+        assertEquals(1, clusters.size());
+        assertEquals(2L, (long)clusters.get(0));
+
+        // hosts outside a cluster are not tracked
+        CapacityVO cpu = new CapacityVO(3L, ZONE, 1L, null, 0, 8000, Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO mem = new CapacityVO(3L, ZONE, 1L, null, 0, 16 * GB, Capacity.CAPACITY_TYPE_MEMORY);
+        assertFalse(ledger.loadHost(cpu, mem));
+
+        // hosts whose rows went away are dropped
+        ledger.reload(new ArrayList<CapacityVO>());
+        assertNull(ledger.getHost(1));
+        assertEquals(0, ledger.getHostCount());
+    }
+
+    public void testClustersAndPodsByCapacity() {
+        CapacityLedger ledger = new CapacityLedger();
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        // cluster 1 in pod 1 is half full, cluster 2 in pod 1 is empty, cluster 3 in pod 2 is full
+        rows.addAll(rows(1, 1, 1, 4000, 8000, 8 * GB, 16 * GB));
+        rows.addAll(rows(2, 1, 2, 0, 8000, 0, 16 * GB));
+        rows.addAll(rows(3, 2, 3, 8000, 8000, 16 * GB, 16 * GB));
+        ledger.reload(rows);
+
+        List<Long> clusters = ledger.listClustersByHostCapacities(ZONE, true, 2000, 2 * GB, 1.0f);
+        assertEquals(2, clusters.size());
+        assertTrue(clusters.contains(1L) && clusters.contains(2L));
+        assertEquals(1, ledger.listClustersByHostCapacities(1, false, 6000, 2 * GB, 1.0f).size());
+        // overprovisioning brings the full cluster back
+        assertTrue(ledger.listClustersByHostCapacities(ZONE, true, 2000, 0, 2.0f).contains(3L));
+
+        Pair<List<Long>, Map<Long, Double>> ordered = ledger.orderClustersByAggregateCapacity(ZONE, true, Capacity.CAPACITY_TYPE_CPU, 1.0f);
+        assertEquals(2L, (long)ordered.first().get(0));
+        assertEquals(1L, (long)ordered.first().get(1));
+        assertEquals(3L, (long)ordered.first().get(2));
+        assertEquals(0.5, ordered.second().get(1L), 0.0001);
+
+        assertEquals(1, ledger.listPodsByHostCapacities(ZONE, 2000, 2 * GB, 1.0f).size());
+        Pair<List<Long>, Map<Long, Double>> pods = ledger.orderPodsByAggregateCapacity(ZONE, Capacity.CAPACITY_TYPE_MEMORY, 1.0f);
+        assertEquals(1L, (long)pods.first().get(0));
+        assertEquals(0.25, pods.second().get(1L), 0.0001);
+
+        // an allocation is visible to the next planning pass once its rows are loaded back in
+        List<CapacityVO> full = rows(2, 1, 2, 8000, 8000, 16 * GB, 16 * GB);
+        ledger.loadHost(full.get(0), full.get(1));
+        assertEquals(1, ledger.listClustersByHostCapacities(ZONE, true, 2000, 2 * GB, 1.0f).size());
+    }
+}
@@ -0,0 +1,205 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.ClusterServiceNioProtocol.Request;
+import com.cloud.cluster.ClusterServiceNioProtocol.Response;
+
+public class ClusterServiceNioTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioTest.class);
+
+    // NioServer doesn't release its port on stop so every test gets its own
+    private static final int PIPELINING_PORT = 9291;
+    private static final int UNUSED_PORT = 9292;
+    private static final int COMPARISON_PORT = 9293;
+    private static final int SERVLET_PORT = 9294;
+
+    static {
+        // Link frames the SSL records itself and doesn't expect the TLS 1.3
+        // session tickets newer JVMs send right after the handshake.
+        System.setProperty("jdk.tls.server.protocols", "TLSv1.2");
+    }
+
+    protected static class CountingClusterManager extends DummyClusterManagerImpl {
+        final AtomicInteger _received = new AtomicInteger();
+        volatile ClusterServicePdu _last;
+
+        @Override
+        public void OnReceiveClusterServicePdu(ClusterServicePdu pdu) {
+            _last = pdu;
+            _received.incrementAndGet();
+        }
+    }
+
+    protected ClusterServicePdu createPdu(int i) {
+        ClusterServicePdu pdu = new ClusterServicePdu();
+        pdu.setSourcePeer("1");
+        pdu.setDestPeer("2");
+        pdu.setAgentId(i);
+        pdu.setStopOnError(i % 2 == 0);
+        pdu.setJsonPackage("[{\"com.cloud.agent.api.CheckHealthCommand\":{\"wait\":50}}]");
+        return pdu;
+    }
+
+    public void testProtocol() throws Exception {
+        List<Request> requests = new ArrayList<Request>();
+        ClusterServicePdu pdu = createPdu(42);
+        pdu.setAckSequenceId(7);
+        pdu.setJsonPackage("{\"name\":\"été\"}");
+        requests.add(new Request(1, pdu));
+        requests.add(new Request(2, "peer"));
+
+        List<Request> decoded = ClusterServiceNioProtocol.decodeRequests(ClusterServiceNioProtocol.encodeRequests(requests));
+        assertEquals(2, decoded.size());
+        ClusterServicePdu dpdu = decoded.get(0).getPdu();
+        assertEquals(pdu.getSequenceId(), dpdu.getSequenceId());
+        assertEquals(7, dpdu.getAckSequenceId());
+        assertEquals(42, dpdu.getAgentId());
+        assertTrue(dpdu.isStopOnError());
+        assertEquals("2", dpdu.getDestPeer());
+        assertEquals(pdu.getJsonPackage(), dpdu.getJsonPackage());
+        assertEquals(RemoteMethodConstants.METHOD_PING, decoded.get(1).getMethod());
+        assertEquals("peer", decoded.get(1).getCallingPeer());
+
+        List<Response> responses = new ArrayList<Response>();
+        responses.add(new Response(1, "true"));
+        responses.add(new Response(2, null));
+        List<Response> dresponses = ClusterServiceNioProtocol.decodeResponses(ClusterServiceNioProtocol.encodeResponses(responses));
+        assertEquals("true", dresponses.get(0).getResult());
+        assertNull(dresponses.get(1).getResult());
+        assertEquals(2, dresponses.get(1).getId());
+    }
+
+    public void testPipelining() throws Exception {
+        CountingClusterManager manager = new CountingClusterManager();
+        ClusterServiceNioServer server = new ClusterServiceNioServer(manager, PIPELINING_PORT, 2);
+        assertTrue(server.start());
+        final ClusterServiceNioImpl channel = new ClusterServiceNioImpl("127.0.0.1", PIPELINING_PORT, 30, new FailingClusterService());
+        try {
+            assertTrue(channel.ping("1"));
+            final int threads = 8;
+            final int perThread = 200;
+            final AtomicInteger succeeded = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < perThread; i++) {
+                                if ("true".equals(channel.execute(createPdu(i)))) {
+                                    succeeded.incrementAndGet();
+                                }
+                            }
+                        } catch (RemoteException e) {
+                            s_logger.warn("Failed to execute", e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            done.await();
+
+            assertEquals(threads * perThread, succeeded.get());
+            assertEquals(threads * perThread, manager._received.get());
+            long[] counters = channel.getCounters();
+            assertEquals(threads * perThread + 1, counters[1]);
+            assertTrue(counters[0] <= counters[1]);
+            assertEquals(0, counters[2]);
+            s_logger.info("Sent " + counters[1] + " requests in " + counters[0] + " frames");
+        } finally {
+            channel.close();
+            server.stop();
+        }
+    }
+
+    public void testFallback() throws Exception {
+        FailingClusterService fallback = new FailingClusterService();
+        ClusterServiceNioImpl channel = new ClusterServiceNioImpl("127.0.0.1", UNUSED_PORT, 30, fallback);
+        try {
+            assertEquals("fallback", channel.execute(createPdu(1)));
+            assertEquals("fallback", channel.execute(createPdu(2)));
+            assertEquals(2, fallback._calls.get());
+            assertEquals(2, channel.getCounters()[2]);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Not a proper benchmark but it shows the cost per PDU of the two
+     * transports between two nodes on the loopback interface.
+     */
+    public void testTransportComparison() throws Exception {
+        CountingClusterManager manager = new CountingClusterManager();
+        ClusterServiceNioServer server = new ClusterServiceNioServer(manager, COMPARISON_PORT, 2);
+        assertTrue(server.start());
+        ClusterServiceServletContainer container = new ClusterServiceServletContainer();
+        container.start(new ClusterServiceServletHttpHandler(manager), SERVLET_PORT);
+        Thread.sleep(500);
+
+        ClusterService servlet = new ClusterServiceServletImpl("http://127.0.0.1:" + SERVLET_PORT + "/clusterservice", 30);
+        ClusterServiceNioImpl channel = new ClusterServiceNioImpl("127.0.0.1", COMPARISON_PORT, 30, servlet);
+        try {
+            int iterations = 500;
+            long[] elapsed = new long[2];
+            ClusterService[] services = { servlet, channel };
+            for (int round = 0; round < 2; round++) {
+                for (int s = 0; s < services.length; s++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        assertEquals("true", services[s].execute(createPdu(i)));
+                    }
+                    elapsed[s] = System.nanoTime() - start;
+                }
+            }
+            s_logger.info("servlet " + (elapsed[0] / iterations / 1000) + " us/pdu, nio " + (elapsed[1] / iterations / 1000) + " us/pdu");
+            assertEquals(4 * iterations, manager._received.get());
+        } finally {
+            channel.close();
+            container.stop();
+            server.stop();
+        }
+    }
+
+    protected static class FailingClusterService implements ClusterService {
+        final AtomicInteger _calls = new AtomicInteger();
+
+        @Override
+        public String execute(ClusterServicePdu pdu) throws RemoteException {
+            _calls.incrementAndGet();
+            return "fallback";
+        }
+
+        @Override
+        public boolean ping(String callingPeer) throws RemoteException {
+            _calls.incrementAndGet();
+            return false;
+        }
+    }
+}
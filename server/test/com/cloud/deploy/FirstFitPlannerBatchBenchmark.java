@@ -0,0 +1,70 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.utils.Profiler;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachineProfile;
+
+/**
+ * Times placing vms in the simulated zone of FirstFitPlannerBatchTest one at a time and as a
+ * batch.  Not part of the unit tests, run it with -Dtest=FirstFitPlannerBatchBenchmark.
+ */
+public class FirstFitPlannerBatchBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(FirstFitPlannerBatchBenchmark.class);
+    static final long ZONE = FirstFitPlannerBatchTest.ZONE;
+
+    public void testPlacementThroughput() throws Exception {
+        int vmCount = 2000;
+
+        FirstFitPlannerBatchTest zone = new FirstFitPlannerBatchTest();
+        zone.createZone(20, 25);
+        List<VirtualMachineProfile<VirtualMachine>> vms = zone.createVms(vmCount);
+        Profiler profiler = new Profiler();
+        profiler.start();
+        int placed = 0;
+        for (VirtualMachineProfile<VirtualMachine> vm : vms) {
+            DeployDestination dest = zone._planner.plan(vm, new DataCenterDeployment(ZONE), new ExcludeList());
+            if (dest != null && zone._capacityMgr.holdCapacity(vm.getId(), dest.getHost().getId(), 500, 512L * 1024L * 1024L, 1.0f)) {
+                placed++;
+            }
+        }
+        profiler.stop();
+        assertEquals(vmCount, placed);
+        zone.assertNoHostOverCommitted();
+        int singleSearches = zone._planner.hostSearches;
+        s_logger.info(vmCount + " vms planned one at a time: " + profiler.getDuration() + " ms, " + singleSearches + " host searches");
+
+        zone.createZone(20, 25);
+        vms = zone.createVms(vmCount);
+        profiler = new Profiler();
+        profiler.start();
+        List<DeployDestination> dests = zone._planner.planBatch(vms, new DataCenterDeployment(ZONE), new ExcludeList());
+        profiler.stop();
+        assertFalse(dests.contains(null));
+        zone.assertNoHostOverCommitted();
+        assertTrue(zone._planner.hostSearches < singleSearches);
+        s_logger.info(vmCount + " vms planned as a batch: " + profiler.getDuration() + " ms, " + zone._planner.hostSearches + " host searches");
+    }
+}
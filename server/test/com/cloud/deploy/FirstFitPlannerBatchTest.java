@@ -0,0 +1,302 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityLedger;
+import com.cloud.capacity.CapacityLedger.HostCapacity;
+import com.cloud.capacity.CapacityManagerImpl;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.dc.dao.HostPodDao;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.resource.ResourceState;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.Volume;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachineProfile;
+
+/**
+ * Places vms in a simulated zone, one at a time and as a batch. Hosts, clusters and
+ * capacity live in memory; the storage lookups always succeed.
+ */
+public class FirstFitPlannerBatchTest extends TestCase {
+    static final long ZONE = 1;
+    static final long GB = 1024L * 1024L * 1024L;
+
+    static class SimulatedCapacityManager extends CapacityManagerImpl {
+        final CapacityLedger ledger = new CapacityLedger();
+        final Map<Long, CapacityVO[]> rows = new HashMap<Long, CapacityVO[]>();
+        final Map<Long, long[]> holds = new HashMap<Long, long[]>();
+
+        void addHost(CapacityVO cpu, CapacityVO mem) {
+            rows.put(cpu.getHostOrPoolId(), new CapacityVO[] { cpu, mem });
+            ledger.loadHost(cpu, mem);
+        }
+
+        void addUsed(long hostId, long cpu, long ram) {
+            CapacityVO[] host = rows.get(hostId);
+            host[0].setUsedCapacity(host[0].getUsedCapacity() + cpu);
+            host[1].setUsedCapacity(host[1].getUsedCapacity() + ram);
+            ledger.loadHost(host[0], host[1]);
+        }
+
+        @Override
+        public boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor,
+                boolean considerReservedCapacity) {
+            HostCapacity host = ledger.getHost(hostId);
+            return host != null && host.getTotalCpu() * cpuOverprovisioningFactor - host.getUsedCpu() - host.getReservedCpu() >= cpu
+                    && host.getTotalMem() - host.getUsedMem() - host.getReservedMem() >= ram;
+        }
+
+        @Override
+        public boolean holdCapacity(long vmId, long hostId, int cpu, long ram, float cpuOverprovisioningFactor) {
+            releaseHeldCapacity(vmId);
+            if (!checkIfHostHasCapacity(hostId, cpu, ram, false, cpuOverprovisioningFactor, true)) {
+                return false;
+            }
+            addUsed(hostId, cpu, ram);
+            holds.put(vmId, new long[] { hostId, cpu, ram });
+            return true;
+        }
+
+        @Override
+        public Long releaseHeldCapacity(long vmId) {
+            long[] hold = holds.remove(vmId);
+            if (hold == null) {
+                return null;
+            }
+            addUsed(hold[0], -hold[1], -hold[2]);
+            return hold[0];
+        }
+
+        @Override
+        public boolean checkIfHostReachMaxGuestLimit(HostVO host) {
+            return false;
+        }
+
+        @Override
+        public List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone,
+                float cpuOverprovisioningFactor) {
+            return ledger.listClustersByHostCapacities(id, isZone, requiredCpu, requiredRam, cpuOverprovisioningFactor);
+        }
+
+        @Override
+        public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone, float cpuOverprovisioningFactor) {
+            return ledger.orderClustersByAggregateCapacity(id, isZone, capacityType, cpuOverprovisioningFactor);
+        }
+    }
+
+    static class SimulatedZonePlanner extends FirstFitPlanner {
+        final Map<Long, List<Host>> hostsByCluster = new HashMap<Long, List<Host>>();
+        final Volume rootVolume = mock(Volume.class);
+        final StoragePool pool = mock(StoragePool.class);
+        int hostSearches;
+
+        SimulatedZonePlanner() {
+            when(rootVolume.getVolumeType()).thenReturn(Volume.Type.ROOT);
+        }
+
+        @Override
+        protected List<Host> findSuitableHosts(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, int returnUpTo) {
+            hostSearches++;
+            ServiceOffering offering = vmProfile.getServiceOffering();
+            List<Host> suitableHosts = new ArrayList<Host>();
+            for (Host host : hostsByCluster.get(plan.getClusterId())) {
+                if (_capacityMgr.checkIfHostHasCapacity(host.getId(), offering.getCpu() * offering.getSpeed(), offering.getRamSize() * 1024L * 1024L, false, 1.0f, true)) {
+                    suitableHosts.add(host);
+                }
+            }
+            return suitableHosts;
+        }
+
+        @Override
+        protected Pair<Map<Volume, List<StoragePool>>, List<Volume>> findSuitablePoolsForVolumes(VirtualMachineProfile<? extends VirtualMachine> vmProfile,
+                DeploymentPlan plan, ExcludeList avoid, int returnUpTo) {
+            Map<Volume, List<StoragePool>> pools = new HashMap<Volume, List<StoragePool>>();
+            List<StoragePool> poolList = new ArrayList<StoragePool>();
+            poolList.add(pool);
+            pools.put(rootVolume, poolList);
+            return new Pair<Map<Volume, List<StoragePool>>, List<Volume>>(pools, new ArrayList<Volume>());
+        }
+
+        @Override
+        protected Pair<Host, Map<Volume, StoragePool>> findPotentialDeploymentResources(List<Host> suitableHosts, Map<Volume, List<StoragePool>> suitableVolumeStoragePools) {
+            Map<Volume, StoragePool> storage = new HashMap<Volume, StoragePool>();
+            storage.put(rootVolume, pool);
+            return new Pair<Host, Map<Volume, StoragePool>>(suitableHosts.get(0), storage);
+        }
+    }
+
+    SimulatedCapacityManager _capacityMgr;
+    SimulatedZonePlanner _planner;
+
+    void createZone(int clusters, int hostsPerCluster) {
+        _capacityMgr = new SimulatedCapacityManager();
+        _planner = new SimulatedZonePlanner();
+        _planner._capacityMgr = _capacityMgr;
+        _planner._configDao = mock(ConfigurationDao.class);
+        _planner._capacityDao = mock(CapacityDao.class);
+        _planner._podDao = mock(HostPodDao.class);
+        _planner._dcDao = mock(DataCenterDao.class);
+        _planner._clusterDao = mock(ClusterDao.class);
+        _planner._hostDao = mock(HostDao.class);
+
+        DataCenterVO dc = mock(DataCenterVO.class);
+        when(dc.getId()).thenReturn(ZONE);
+        when(_planner._dcDao.findById(anyLong())).thenReturn(dc);
+
+        final Map<Long, ClusterVO> clusterVOs = new HashMap<Long, ClusterVO>();
+        final Map<Long, HostVO> hostVOs = new HashMap<Long, HostVO>();
+        long hostId = 1;
+        for (long clusterId = 1; clusterId <= clusters; clusterId++) {
+            long podId = clusterId % 2 + 1;
+            ClusterVO cluster = mock(ClusterVO.class);
+            when(cluster.getId()).thenReturn(clusterId);
+            when(cluster.getPodId()).thenReturn(podId);
+            when(cluster.getHypervisorType()).thenReturn(HypervisorType.Simulator);
+            clusterVOs.put(clusterId, cluster);
+
+            List<Host> hosts = new ArrayList<Host>();
+            for (int i = 0; i < hostsPerCluster; i++, hostId++) {
+                HostVO host = mock(HostVO.class);
+                when(host.getId()).thenReturn(hostId);
+                when(host.getClusterId()).thenReturn(clusterId);
+                when(host.getStatus()).thenReturn(Status.Up);
+                when(host.getResourceState()).thenReturn(ResourceState.Enabled);
+                hostVOs.put(hostId, host);
+                hosts.add(host);
+                _capacityMgr.addHost(new CapacityVO(hostId, ZONE, podId, clusterId, 0, 8000, Capacity.CAPACITY_TYPE_CPU),
+                        new CapacityVO(hostId, ZONE, podId, clusterId, 0, 16 * GB, Capacity.CAPACITY_TYPE_MEMORY));
+            }
+            _planner.hostsByCluster.put(clusterId, hosts);
+        }
+
+        when(_planner._clusterDao.findById(anyLong())).thenAnswer(new Answer<ClusterVO>() {
+            @Override
+            public ClusterVO answer(InvocationOnMock invocation) {
+                return clusterVOs.get(invocation.getArguments()[0]);
+            }
+        });
+        when(_planner._hostDao.findById(anyLong())).thenAnswer(new Answer<HostVO>() {
+            @Override
+            public HostVO answer(InvocationOnMock invocation) {
+                return hostVOs.get(invocation.getArguments()[0]);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    List<VirtualMachineProfile<VirtualMachine>> createVms(int count) {
+        ServiceOffering offering = mock(ServiceOffering.class);
+        when(offering.getCpu()).thenReturn(1);
+        when(offering.getSpeed()).thenReturn(500);
+        when(offering.getRamSize()).thenReturn(512);
+
+        List<VirtualMachineProfile<VirtualMachine>> vms = new ArrayList<VirtualMachineProfile<VirtualMachine>>();
+        for (long vmId = 1; vmId <= count; vmId++) {
+            VirtualMachine vm = mock(VirtualMachine.class);
+            when(vm.getId()).thenReturn(vmId);
+            when(vm.getDataCenterIdToDeployIn()).thenReturn(ZONE);
+            when(vm.getLastHostId()).thenReturn(null);
+            when(vm.getServiceOfferingId()).thenReturn(1L);
+            when(vm.getTemplateId()).thenReturn(2L);
+            when(vm.getAccountId()).thenReturn(2L);
+
+            VirtualMachineProfile<VirtualMachine> profile = mock(VirtualMachineProfile.class);
+            when(profile.getId()).thenReturn(vmId);
+            when(profile.getVirtualMachine()).thenReturn(vm);
+            when(profile.getServiceOffering()).thenReturn(offering);
+            when(profile.getHypervisorType()).thenReturn(HypervisorType.Simulator);
+            vms.add(profile);
+        }
+        return vms;
+    }
+
+    void assertNoHostOverCommitted() {
+        for (List<Host> hosts : _planner.hostsByCluster.values()) {
+            for (Host host : hosts) {
+                HostCapacity capacity = _capacityMgr.ledger.getHost(host.getId());
+                assertTrue(capacity.getUsedCpu() <= capacity.getTotalCpu());
+                assertTrue(capacity.getUsedMem() <= capacity.getTotalMem());
+            }
+        }
+    }
+
+    public void testBatchPlacesEveryVmItHasRoomFor() {
+        // 2 hosts of 16 vms each
+        createZone(1, 2);
+        List<VirtualMachineProfile<VirtualMachine>> vms = createVms(40);
+        List<DeployDestination> dests = _planner.planBatch(vms, new DataCenterDeployment(ZONE), new ExcludeList());
+
+        assertEquals(40, dests.size());
+        for (int i = 0; i < 32; i++) {
+            assertNotNull(dests.get(i));
+            assertTrue(_capacityMgr.holds.containsKey(vms.get(i).getId()));
+        }
+        for (int i = 32; i < 40; i++) {
+            assertNull(dests.get(i));
+            assertFalse(_capacityMgr.holds.containsKey(vms.get(i).getId()));
+        }
+        // first fit: the first host is filled before the second is used
+        assertEquals(1L, dests.get(15).getHost().getId());
+        assertEquals(2L, dests.get(16).getHost().getId());
+        assertNoHostOverCommitted();
+    }
+
+    public void testPlanUsesHeldHost() throws Exception {
+        // 2 hosts of 16 vms each, both full once the batch is held
+        createZone(1, 2);
+        List<VirtualMachineProfile<VirtualMachine>> vms = createVms(32);
+        List<DeployDestination> dests = _planner.planBatch(vms, new DataCenterDeployment(ZONE), new ExcludeList());
+        assertFalse(dests.contains(null));
+        assertNull(_planner.plan(createVms(33).get(32), new DataCenterDeployment(ZONE), new ExcludeList()));
+
+        // the vm's own hold is not counted against it when it is planned on start
+        VirtualMachineProfile<VirtualMachine> vm = vms.get(20);
+        DeployDestination dest = _planner.plan(vm, new DataCenterDeployment(ZONE), new ExcludeList());
+        assertNotNull(dest);
+        assertEquals(dests.get(20).getHost().getId(), dest.getHost().getId());
+        assertFalse(_capacityMgr.holds.containsKey(vm.getId()));
+    }
+}
@@ -0,0 +1,91 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.network.security.SecurityGroupRulesetIndexTest.InMemoryIndex;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+import com.cloud.utils.Profiler;
+
+/**
+ * Times the ruleset index against the per vm compile.  Not part of the unit
+ * tests, run it with -Dtest=SecurityGroupRulesetIndexBenchmark.
+ */
+public class SecurityGroupRulesetIndexBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(SecurityGroupRulesetIndexBenchmark.class);
+    static final long DEFAULT_GROUP = SecurityGroupRulesetIndexTest.DEFAULT_GROUP;
+
+    /**
+     * One vm joins a shared default group of the given size. Before, each member's ruleset was
+     * rebuilt on its own, reloading the group's members for every one of them. With the index
+     * the members are loaded and compiled once and every member only checks its signature.
+     */
+    protected void _benchmarkJoin(int groupSize) {
+        InMemoryIndex index = new InMemoryIndex();
+        List<Long> vmIds = new ArrayList<Long>();
+        for (long vmId = 1; vmId <= groupSize; vmId++) {
+            index.start(vmId, DEFAULT_GROUP);
+            vmIds.add(vmId);
+        }
+        index.updateScheduledSignatures(vmIds);
+
+        long newVm = groupSize + 1;
+        index.start(newVm, DEFAULT_GROUP);
+
+        // the per vm compile is quadratic in the group size, so time a sample and scale it
+        int sample = Math.min(groupSize, 100);
+        Profiler perVm = new Profiler();
+        perVm.start();
+        for (long vmId = 1; vmId <= sample; vmId++) {
+            index.compileForVm(vmId, SecurityRuleType.IngressRule);
+            index.compileForVm(vmId, SecurityRuleType.EgressRule);
+        }
+        perVm.stop();
+        double perVmTotal = (double)perVm.getDuration() * (groupSize + 1) / sample;
+
+        long compilesBefore = index.getCompileCount();
+        int loadsBefore = index._memberLoads;
+        Profiler indexed = new Profiler();
+        indexed.start();
+        index.invalidate();
+        vmIds.add(newVm);
+        int changed = index.updateScheduledSignatures(vmIds).size();
+        for (long vmId = 1; vmId <= newVm; vmId++) {
+            index.getRuleset(vmId).getRules(SecurityRuleType.IngressRule);
+        }
+        indexed.stop();
+
+        assertEquals(groupSize + 1, changed);
+        assertEquals(1, index.getCompileCount() - compilesBefore);
+        assertEquals(1, index._memberLoads - loadsBefore);
+        s_logger.info("Group of " + groupSize + ": per vm compile ~" + Math.round(perVmTotal) + " ms (" + (groupSize + 1) + " member loads), indexed "
+                + indexed.getDuration() + " ms (1 member load)");
+    }
+
+    public void testJoin() {
+        _benchmarkJoin(100);
+        _benchmarkJoin(1000);
+        _benchmarkJoin(4000);
+        _benchmarkJoin(10000);
+    }
+}
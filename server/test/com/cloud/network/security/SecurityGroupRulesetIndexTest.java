@@ -0,0 +1,317 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityGroupRulesetIndex.Ruleset;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+
+public class SecurityGroupRulesetIndexTest extends TestCase {
+    static final long DEFAULT_GROUP = 1;
+    static final long WEB_GROUP = 2;
+
+    /**
+     * Stands in for the database: a "default" group that allows itself and ssh from anywhere,
+     * plus a "web" group that allows port 80 from the default group.
+     */
+    static class InMemoryIndex extends SecurityGroupRulesetIndex {
+        Map<Long, List<Long>> _vmGroups = new HashMap<Long, List<Long>>();
+        Map<Long, List<Long>> _runningMembers = new HashMap<Long, List<Long>>();
+        Map<Long, List<SecurityGroupRuleVO>> _ingress = new HashMap<Long, List<SecurityGroupRuleVO>>();
+        Map<Long, List<SecurityGroupRuleVO>> _egress = new HashMap<Long, List<SecurityGroupRuleVO>>();
+        Map<Long, String> _scheduled = new HashMap<Long, String>();
+        int _memberLoads = 0;
+        int _groupLoads = 0;
+        int _stores = 0;
+
+        InMemoryIndex() {
+            List<SecurityGroupRuleVO> defaultIngress = new ArrayList<SecurityGroupRuleVO>();
+            defaultIngress.add(new SecurityGroupRuleVO(SecurityRuleType.IngressRule, DEFAULT_GROUP, 22, 22, "tcp", "0.0.0.0/0"));
+            defaultIngress.add(new SecurityGroupRuleVO(SecurityRuleType.IngressRule, DEFAULT_GROUP, 0, 0, "all", DEFAULT_GROUP));
+            _ingress.put(DEFAULT_GROUP, defaultIngress);
+            List<SecurityGroupRuleVO> defaultEgress = new ArrayList<SecurityGroupRuleVO>();
+            defaultEgress.add(new SecurityGroupRuleVO(SecurityRuleType.EgressRule, DEFAULT_GROUP, 0, 0, "all", "0.0.0.0/0"));
+            _egress.put(DEFAULT_GROUP, defaultEgress);
+            List<SecurityGroupRuleVO> webIngress = new ArrayList<SecurityGroupRuleVO>();
+            webIngress.add(new SecurityGroupRuleVO(SecurityRuleType.IngressRule, WEB_GROUP, 80, 80, "tcp", DEFAULT_GROUP));
+            _ingress.put(WEB_GROUP, webIngress);
+            _runningMembers.put(DEFAULT_GROUP, new ArrayList<Long>());
+            _runningMembers.put(WEB_GROUP, new ArrayList<Long>());
+        }
+
+        /**
+         * The index of another management server using the same database.
+         */
+        InMemoryIndex(InMemoryIndex other) {
+            _vmGroups = other._vmGroups;
+            _runningMembers = other._runningMembers;
+            _ingress = other._ingress;
+            _egress = other._egress;
+            _scheduled = other._scheduled;
+        }
+
+        void start(long vmId, long... groupIds) {
+            List<Long> groups = new ArrayList<Long>();
+            for (long groupId : groupIds) {
+                groups.add(groupId);
+                _runningMembers.get(groupId).add(vmId);
+            }
+            _vmGroups.put(vmId, groups);
+        }
+
+        @Override
+        protected List<Long> loadGroupsForVm(long vmId) {
+            List<Long> groups = _vmGroups.get(vmId);
+            return groups == null ? new ArrayList<Long>() : groups;
+        }
+
+        @Override
+        protected Map<Long, List<Long>> loadGroupsForVms(Collection<Long> vmIds) {
+            _groupLoads++;
+            Map<Long, List<Long>> vmGroups = new HashMap<Long, List<Long>>();
+            for (Long vmId : vmIds) {
+                if (_vmGroups.containsKey(vmId)) {
+                    vmGroups.put(vmId, _vmGroups.get(vmId));
+                }
+            }
+            return vmGroups;
+        }
+
+        @Override
+        protected List<SecurityGroupRuleVO> loadRules(long groupId, SecurityRuleType type) {
+            Map<Long, List<SecurityGroupRuleVO>> rules = type == SecurityRuleType.EgressRule ? _egress : _ingress;
+            List<SecurityGroupRuleVO> result = rules.get(groupId);
+            return result == null ? new ArrayList<SecurityGroupRuleVO>() : result;
+        }
+
+        @Override
+        protected Collection<String> loadRunningMemberCidrs(long groupId) {
+            _memberLoads++;
+            List<String> cidrs = new ArrayList<String>();
+            for (Long vmId : _runningMembers.get(groupId)) {
+                cidrs.add(ip(vmId) + "/32");
+            }
+            return cidrs;
+        }
+
+        @Override
+        protected Set<Long> storeScheduledSignatures(Map<Long, String> signatures) {
+            Set<Long> changed = new TreeSet<Long>();
+            synchronized (_scheduled) {
+                _stores++;
+                for (Map.Entry<Long, String> entry : signatures.entrySet()) {
+                    if (!entry.getValue().equals(_scheduled.put(entry.getKey(), entry.getValue()))) {
+                        changed.add(entry.getKey());
+                    }
+                }
+            }
+            return changed;
+        }
+
+        @Override
+        protected void clearScheduledSignature(long vmId) {
+            synchronized (_scheduled) {
+                _scheduled.remove(vmId);
+            }
+        }
+
+        /**
+         * What generateRulesForVM did for every vm before the index existed.
+         */
+        Map<PortAndProto, Set<String>> compileForVm(long vmId, SecurityRuleType type) {
+            Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
+            for (Long groupId : loadGroupsForVm(vmId)) {
+                for (SecurityGroupRuleVO rule : loadRules(groupId, type)) {
+                    PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
+                    Set<String> cidrs = allowed.get(portAndProto);
+                    if (cidrs == null) {
+                        cidrs = new TreeSet<String>(new CidrComparator());
+                    }
+                    if (rule.getAllowedNetworkId() != null) {
+                        cidrs.addAll(loadRunningMemberCidrs(rule.getAllowedNetworkId()));
+                    } else if (rule.getAllowedSourceIpCidr() != null) {
+                        cidrs.add(rule.getAllowedSourceIpCidr());
+                    }
+                    if (cidrs.size() > 0) {
+                        allowed.put(portAndProto, cidrs);
+                    }
+                }
+            }
+            return allowed;
+        }
+    }
+
+    static String ip(long vmId) {
+        return "10." + ((vmId >> 16) & 0xff) + "." + ((vmId >> 8) & 0xff) + "." + (vmId & 0xff);
+    }
+
+    public void testRulesetMatchesPerVmCompile() {
+        InMemoryIndex index = new InMemoryIndex();
+        for (long vmId = 1; vmId <= 50; vmId++) {
+            if (vmId % 5 == 0) {
+                index.start(vmId, DEFAULT_GROUP, WEB_GROUP);
+            } else {
+                index.start(vmId, DEFAULT_GROUP);
+            }
+        }
+        for (long vmId = 1; vmId <= 50; vmId++) {
+            Ruleset ruleset = index.getRuleset(vmId);
+            assertEquals(index.compileForVm(vmId, SecurityRuleType.IngressRule), ruleset.getRules(SecurityRuleType.IngressRule));
+            assertEquals(index.compileForVm(vmId, SecurityRuleType.EgressRule), ruleset.getRules(SecurityRuleType.EgressRule));
+        }
+        // one ruleset for the default-only vms and one for default+web
+        assertEquals(2, index.getCompileCount());
+    }
+
+    public void testGroupMembersLoadedOncePerGeneration() {
+        InMemoryIndex index = new InMemoryIndex();
+        for (long vmId = 1; vmId <= 100; vmId++) {
+            index.start(vmId, DEFAULT_GROUP);
+        }
+        for (long vmId = 1; vmId <= 100; vmId++) {
+            index.getRuleset(vmId);
+        }
+        assertEquals(1, index._memberLoads);
+
+        index.start(101, DEFAULT_GROUP);
+        index.getRuleset(1);
+        assertEquals("cached until invalidated", 1, index._memberLoads);
+        assertFalse(index.getRuleset(1).getRules(SecurityRuleType.IngressRule).toString().contains(ip(101)));
+
+        index.invalidate();
+        Ruleset ruleset = index.getRuleset(1);
+        assertEquals(2, index._memberLoads);
+        boolean found = false;
+        for (Set<String> cidrs : ruleset.getRules(SecurityRuleType.IngressRule).values()) {
+            found |= cidrs.contains(ip(101) + "/32");
+        }
+        assertTrue(found);
+    }
+
+    public void testUnchangedRulesetNotRescheduled() {
+        InMemoryIndex index = new InMemoryIndex();
+        index.start(1, WEB_GROUP);
+        index.start(2, DEFAULT_GROUP);
+
+        assertTrue(index.updateScheduledSignature(1));
+        assertFalse(index.updateScheduledSignature(1));
+
+        // a new member of a group that vm 1 does not allow changes nothing for vm 1
+        index.start(3, WEB_GROUP);
+        index.invalidate();
+        assertFalse(index.updateScheduledSignature(1));
+
+        // a new member of the default group shows up in vm 1's port 80 rule
+        index.start(4, DEFAULT_GROUP);
+        index.invalidate();
+        assertTrue(index.updateScheduledSignature(1));
+
+        index.forgetVm(1);
+        assertTrue(index.updateScheduledSignature(1));
+        assertEquals(2, index.getSuppressedCount());
+    }
+
+    public void testUnchangedRulesetAcrossServers() {
+        InMemoryIndex first = new InMemoryIndex();
+        InMemoryIndex second = new InMemoryIndex(first);
+        first.start(1, WEB_GROUP);
+        first.start(2, DEFAULT_GROUP);
+        List<SecurityGroupRuleVO> webIngress = first._ingress.get(WEB_GROUP);
+        SecurityGroupRuleVO http = webIngress.get(0);
+        assertTrue(first.updateScheduledSignature(1));
+
+        // revoked through the first server
+        webIngress.remove(http);
+        first.invalidate();
+        assertTrue(first.updateScheduledSignature(1));
+
+        // authorized again through the second
+        webIngress.add(http);
+        second.invalidate();
+        assertTrue(second.updateScheduledSignature(1));
+
+        // revoked again through the first, which has scheduled this ruleset before
+        webIngress.remove(http);
+        first.invalidate();
+        assertTrue("the last update has to be sent", first.updateScheduledSignature(1));
+
+        second.invalidate();
+        assertFalse(second.updateScheduledSignature(1));
+        assertEquals(0, first.getSuppressedCount());
+        assertEquals(1, second.getSuppressedCount());
+    }
+
+    public void testSignaturesStoredOncePerRound() {
+        InMemoryIndex index = new InMemoryIndex();
+        List<Long> vmIds = new ArrayList<Long>();
+        for (long vmId = 1; vmId <= 1000; vmId++) {
+            index.start(vmId, vmId % 10 == 0 ? new long[] { DEFAULT_GROUP, WEB_GROUP } : new long[] { DEFAULT_GROUP });
+            vmIds.add(vmId);
+        }
+        assertEquals(1000, index.updateScheduledSignatures(vmIds).size());
+        assertEquals(1, index._groupLoads);
+        assertEquals(1, index._stores);
+
+        assertTrue(index.updateScheduledSignatures(vmIds).isEmpty());
+        assertEquals(1000, index.getSuppressedCount());
+
+        // every vm allows the default group, so its new member changes them all
+        index.start(1001, DEFAULT_GROUP);
+        index.invalidate();
+        vmIds.add(1001L);
+        assertEquals(1001, index.updateScheduledSignatures(vmIds).size());
+        assertEquals(3, index._groupLoads);
+        assertEquals(3, index._stores);
+        assertEquals(2, index._memberLoads);
+    }
+
+    public void testDisabledVmsAreNotSigned() {
+        final InMemoryIndex index = new InMemoryIndex();
+        index.start(1, DEFAULT_GROUP);
+        index.start(2, DEFAULT_GROUP);
+        index.start(3, DEFAULT_GROUP);
+        SecurityGroupManagerImpl2 mgr = new SecurityGroupManagerImpl2() {
+            @Override
+            protected List<Long> filterUnchangedRulesets(List<Long> affectedVms, boolean updateSeqno) {
+                super.filterUnchangedRulesets(affectedVms, updateSeqno);
+                // stop short of the work queue
+                return new ArrayList<Long>();
+            }
+        };
+        mgr._rulesetIndex = index;
+        mgr.disableSchedulerForVm(2L, true);
+
+        List<Long> affectedVms = new ArrayList<Long>();
+        affectedVms.add(1L);
+        affectedVms.add(2L);
+        affectedVms.add(3L);
+        mgr.scheduleRulesetUpdateToHosts(affectedVms, true, null);
+        assertEquals("[1, 3]", new TreeSet<Long>(index._scheduled.keySet()).toString());
+    }
+}
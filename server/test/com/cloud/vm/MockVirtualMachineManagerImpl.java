@@ -27,6 +27,7 @@ import com.cloud.agent.api.to.NicTO;
 import com.cloud.agent.api.to.VirtualMachineTO;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.deploy.DeploymentPlan;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.exception.InsufficientCapacityException;
@@ -131,6 +132,11 @@ public class MockVirtualMachineManagerImpl implements VirtualMachineManager {
         return false;
     }
 
+    @Override
+    public void planStart(List<? extends VMInstanceVO> vms, Map<VirtualMachineProfile.Param, Object> params, DeploymentPlan plan, ExcludeList avoid) {
+        // TODO Auto-generated method stub
+    }
+
     @Override
     public <T extends VMInstanceVO> T migrate(T vm, long srcHostId, DeployDestination dest) throws ResourceUnavailableException, ConcurrentOperationException, ManagementServerException,
     VirtualMachineMigrationException {
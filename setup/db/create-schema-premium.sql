@@ -121,6 +121,9 @@ CREATE TABLE  `cloud_usage`.`usage_job` (
   `end_date` DATETIME COMMENT 'end date of the aggregation range used by this job',
   `success` int(1),
   `heartbeat` DATETIME NOT NULL,
+  `shard_progress` varchar(4096) COMMENT 'progress of the account shards of a usage job parsing in parallel',
+  `incremental_start_millis` bigint unsigned NOT NULL default '0' COMMENT 'start time in milliseconds of the range the job has to parse again for the usage parsed incrementally',
+  `incremental_end_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds of the usage parsed incrementally since the last job',
   PRIMARY KEY  (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
@@ -1713,6 +1713,7 @@ CREATE TABLE `cloud`.`op_vm_ruleset_log` (
   `instance_id` bigint unsigned NOT NULL COMMENT 'vm instance that needs rules to be synced.',
   `created` datetime NOT NULL COMMENT 'time the entry was requested',
   `logsequence` bigint unsigned  COMMENT 'seq number to be sent to agent, uniquely identifies ruleset update',
+  `ruleset_signature` varchar(32) COMMENT 'signature of the ruleset last scheduled for the vm',
   PRIMARY KEY (`id`),
   UNIQUE `u_op_vm_ruleset_log__instance_id`(`instance_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
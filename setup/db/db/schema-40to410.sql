@@ -74,3 +74,9 @@ ALTER TABLE `sync_queue_item` ADD `queue_proc_time` DATETIME NOT NULL COMMENT 'w
 ALTER TABLE `cloud`.`inline_load_balancer_nic_map` DROP FOREIGN KEY fk_inline_load_balancer_nic_map__load_balancer_id;
 
 ALTER TABLE `cloud`.`inline_load_balancer_nic_map` DROP COLUMN load_balancer_id;
+
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `shard_progress` varchar(4096) COMMENT 'progress of the account shards of a usage job parsing in parallel';
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `incremental_start_millis` bigint unsigned NOT NULL default '0' COMMENT 'start time in milliseconds of the range the job has to parse again for the usage parsed incrementally';
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `incremental_end_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds of the usage parsed incrementally since the last job';
+
+ALTER TABLE `cloud`.`op_vm_ruleset_log` ADD COLUMN `ruleset_signature` varchar(32) COMMENT 'signature of the ruleset last scheduled for the vm';
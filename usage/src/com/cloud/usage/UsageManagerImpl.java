@@ -18,12 +18,17 @@ package com.cloud.usage;
 
 import java.net.InetAddress;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -39,6 +44,7 @@ import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.event.EventTypes;
 import com.cloud.event.UsageEventVO;
 import com.cloud.event.dao.UsageEventDao;
+import com.cloud.exception.UsageServerException;
 import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageIPAddressDao;
 import com.cloud.usage.dao.UsageJobDao;
@@ -66,6 +72,8 @@ import com.cloud.user.AccountVO;
 import com.cloud.user.UserStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -88,6 +96,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
     private static final int DAILY_TIME = 60 * 24;
     private static final int THREE_DAYS_IN_MINUTES = 60 * 24 * 3;
     private static final int USAGE_AGGREGATION_RANGE_MIN = 10;
+    private static final int MAX_PARSE_WORKERS = 64;
+    // accounts a shard parses per transaction
+    private static final int PARSE_BATCH = 10;
 
     private final ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
     private final AccountDao m_accountDao = _locator.getDao(AccountDao.class);
@@ -112,6 +123,8 @@ public class UsageManagerImpl implements UsageManager, Runnable {
     private final Calendar m_jobExecTime = Calendar.getInstance();
     private int m_aggregationDuration = 0;
     private int m_sanityCheckInterval = 0;
+    private int m_parseWorkers = 1;
+    private int m_incrementalInterval = 0;
     String m_hostname = null;
     int m_pid = 0;
     TimeZone m_usageTimezone = TimeZone.getTimeZone("GMT");;
@@ -120,9 +133,11 @@ public class UsageManagerImpl implements UsageManager, Runnable {
     private final ScheduledExecutorService m_executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
     private final ScheduledExecutorService m_heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
     private final ScheduledExecutorService m_sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
+    private ExecutorService m_parseExecutor = null;
     private Future m_scheduledFuture = null;
     private Future m_heartbeat = null;
     private Future m_sanity = null;
+    private Future m_incremental = null;
 
     protected UsageManagerImpl() {
     }
@@ -174,6 +189,13 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             m_sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
 
+        m_parseWorkers = Math.min(NumbersUtil.parseInt(configs.get("usage.parse.workers"), 1), MAX_PARSE_WORKERS);
+        if (m_parseWorkers > 1) {
+            m_parseExecutor = Executors.newFixedThreadPool(m_parseWorkers, new NamedThreadFactory("Usage-Parse"));
+            s_logger.info("Parsing usage with " + m_parseWorkers + " workers");
+        }
+        m_incrementalInterval = NumbersUtil.parseInt(configs.get("usage.incremental.interval"), 0);
+
         if(aggreagationTimeZone != null && !aggreagationTimeZone.isEmpty()){  
             m_usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
         }
@@ -245,6 +267,11 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             m_sanity = m_sanityExecutor.scheduleAtFixedRate(new SanityCheck(), 1, m_sanityCheckInterval, TimeUnit.DAYS);
         }
 
+        // on the job's thread, so the increments and the job never parse at the same time
+        if (m_incrementalInterval > 0) {
+            m_incremental = m_executor.scheduleAtFixedRate(new IncrementalParse(), m_incrementalInterval, m_incrementalInterval, TimeUnit.MINUTES);
+        }
+
         Transaction usageTxn = Transaction.open(Transaction.USAGE_DB);
         try {
             if(m_heartbeatLock.lock(3)) { // 3 second timeout
@@ -273,6 +300,12 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         if(m_sanity != null){
             m_sanity.cancel(true);
         }
+        if (m_incremental != null) {
+            m_incremental.cancel(true);
+        }
+        if (m_parseExecutor != null) {
+            m_parseExecutor.shutdownNow();
+        }
         return true;
     }
 
@@ -351,6 +384,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         // TODO: Shouldn't we also allow parsing by the type of usage?
 
         boolean success = false;
+        boolean resumable = false;
         long timeStart = System.currentTimeMillis();
         long deleteOldStatsTimeMillis = 0L;
         try {
@@ -363,6 +397,18 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 startDateMillis = lastSuccess+1; // 1 millisecond after
             }
 
+            // a job that stopped part way through parsing its shards picks up the range it started with,
+            // whatever the number of workers is now, as some accounts have their usage for it already
+            UsageParseProgress shardProgress = UsageParseProgress.parse(job.getShardProgress());
+            boolean resumed = (shardProgress != null);
+            if (resumed) {
+                startDateMillis = shardProgress.getStartMillis();
+                endDateMillis = shardProgress.getEndMillis();
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("Resuming usage job " + job.getId() + " at " + shardProgress);
+                }
+            }
+
             if (startDateMillis >= endDateMillis) {
                 if (s_logger.isInfoEnabled()) {
                     s_logger.info("not parsing usage records since start time mills (" + startDateMillis + ") is on or after end time millis (" + endDateMillis + ")");
@@ -387,6 +433,16 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             }
             deleteOldStatsTimeMillis = startDateMillis;
 
+            // records after the last job are the provisional ones parsed incrementally, the job parses its whole
+            // range again and replaces them, starting from the oldest event the increments took in as it would have
+            long reconcileStartMillis = 0;
+            if (!resumed && (lastSuccess != 0)) {
+                reconcileStartMillis = startDateMillis;
+                if (job.getIncrementalEndMillis() >= startDateMillis) {
+                    startDateMillis = Math.min(startDateMillis, job.getIncrementalStartMillis());
+                }
+            }
+
             Date startDate = new Date(startDateMillis);
             Date endDate = new Date(endDateMillis);
             if (s_logger.isInfoEnabled()) {
@@ -399,56 +455,45 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             Transaction userTxn = Transaction.open(Transaction.CLOUD_DB);
             try {
                 Long limit = Long.valueOf(500);
-                Long offset = Long.valueOf(0);
+                Long lastSeenId = null;
                 Long lastAccountId = m_usageDao.getLastAccountId();
                 if (lastAccountId == null) {
                     lastAccountId = Long.valueOf(0);
                 }
 
                 do {
-                    Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+                    Filter filter = new Filter(AccountVO.class, "id", true, null, limit);
+                    filter.setSeekAfter(lastSeenId);
 
                     accounts = m_accountDao.findActiveAccounts(lastAccountId, filter);
 
                     if ((accounts != null) && !accounts.isEmpty()) {
                         // now update the accounts in the cloud_usage db
                         m_usageDao.updateAccounts(accounts);
+                        lastSeenId = accounts.get(accounts.size() - 1).getId();
                     }
-                    offset = new Long(offset.longValue() + limit.longValue());
                 } while ((accounts != null) && !accounts.isEmpty());
 
-                // reset offset
-                offset = Long.valueOf(0);
+                // start over from the lowest id
+                lastSeenId = null;
 
                 do {
-                    Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+                    Filter filter = new Filter(AccountVO.class, "id", true, null, limit);
+                    filter.setSeekAfter(lastSeenId);
 
                     accounts = m_accountDao.findRecentlyDeletedAccounts(lastAccountId, startDate, filter);
 
                     if ((accounts != null) && !accounts.isEmpty()) {
                         // now update the accounts in the cloud_usage db
                         m_usageDao.updateAccounts(accounts);
+                        lastSeenId = accounts.get(accounts.size() - 1).getId();
                     }
-                    offset = new Long(offset.longValue() + limit.longValue());
                 } while ((accounts != null) && !accounts.isEmpty());
 
-                // reset offset
-                offset = Long.valueOf(0);
-
-                do {
-                    Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-
-                    accounts = m_accountDao.findNewAccounts(lastAccountId, filter);
-
-                    if ((accounts != null) && !accounts.isEmpty()) {
-                        // now copy the accounts to cloud_usage db
-                        m_usageDao.saveAccounts(accounts);
-                    }
-                    offset = new Long(offset.longValue() + limit.longValue());
-                } while ((accounts != null) && !accounts.isEmpty());
+                saveNewAccounts(lastAccountId);
 
-                // reset offset
-                offset = Long.valueOf(0);
+                // start over from the lowest id
+                lastSeenId = null;
 
                 // get all the user stats to create usage records for the network usage
                 Long lastUserStatsId = m_usageDao.getLastUserStatsId();
@@ -459,32 +504,34 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 SearchCriteria<UserStatisticsVO> sc2 = m_userStatsDao.createSearchCriteria();
                 sc2.addAnd("id", SearchCriteria.Op.LTEQ, lastUserStatsId);
                 do {
-                    Filter filter = new Filter(UserStatisticsVO.class, "id", true, offset, limit);
+                    Filter filter = new Filter(UserStatisticsVO.class, "id", true, null, limit);
+                    filter.setSeekAfter(lastSeenId);
 
                     userStats = m_userStatsDao.search(sc2, filter);
 
                     if ((userStats != null) && !userStats.isEmpty()) {
                         // now copy the accounts to cloud_usage db
                         m_usageDao.updateUserStats(userStats);
+                        lastSeenId = userStats.get(userStats.size() - 1).getId();
                     }
-                    offset = new Long(offset.longValue() + limit.longValue());
                 } while ((userStats != null) && !userStats.isEmpty());
 
-                // reset offset
-                offset = Long.valueOf(0);
+                // start over from the lowest id
+                lastSeenId = null;
 
                 sc2 = m_userStatsDao.createSearchCriteria();
                 sc2.addAnd("id", SearchCriteria.Op.GT, lastUserStatsId);
                 do {
-                    Filter filter = new Filter(UserStatisticsVO.class, "id", true, offset, limit);
+                    Filter filter = new Filter(UserStatisticsVO.class, "id", true, null, limit);
+                    filter.setSeekAfter(lastSeenId);
 
                     userStats = m_userStatsDao.search(sc2, filter);
 
                     if ((userStats != null) && !userStats.isEmpty()) {
                         // now copy the accounts to cloud_usage db
                         m_usageDao.saveUserStats(userStats);
+                        lastSeenId = userStats.get(userStats.size() - 1).getId();
                     }
-                    offset = new Long(offset.longValue() + limit.longValue());
                 } while ((userStats != null) && !userStats.isEmpty());
             } finally {
                 userTxn.close();
@@ -554,9 +601,13 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                     startIndex += 500;
                 } while ((userStats != null) && !userStats.isEmpty());
 
-                // loop over the user stats, create delta entries in the usage_network helper table
+                // loop over the user stats, create delta entries in the usage_network helper table,
+                // a resumed job has them from when it started
                 int numAcctsProcessed = 0;
                 for (String key : aggregatedStats.keySet()) {
+                    if (resumed) {
+                        break;
+                    }
                     UsageNetworkVO currentNetworkStats = null;
                     if (networkStats != null) {
                         currentNetworkStats = networkStats.get(key);
@@ -570,87 +621,32 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                     s_logger.debug("created network stats helper entries for " + numAcctsProcessed + " accts");
                 }
 
+                if (reconcileStartMillis != 0) {
+                    int removed = m_usageDao.deleteRecordsStartingFrom(new Date(reconcileStartMillis));
+                    if ((removed > 0) && s_logger.isDebugEnabled()) {
+                        s_logger.debug("replacing " + removed + " usage records parsed incrementally");
+                    }
+                }
+
+                // the job resumes once the helper records for its range are in
+                if ((m_parseExecutor != null) && !resumed) {
+                    shardProgress = new UsageParseProgress(startDateMillis, endDateMillis, m_parseWorkers);
+                    m_usageJobDao.updateShardProgress(job.getId(), shardProgress.toString());
+                }
+
                 // commit the helper records, then start a new transaction
                 usageTxn.commit();
                 usageTxn.start();
 
                 boolean parsed = false;
-                numAcctsProcessed = 0;
-                
-                Date currentStartDate = startDate;
-                Date currentEndDate = endDate;
-                Date tempDate = endDate;
-                
-                Calendar aggregateCal = Calendar.getInstance(m_usageTimezone);
-                
-                while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)){
-                    currentEndDate = tempDate;
-                    aggregateCal.setTime(tempDate);
-                    aggregateCal.add(Calendar.MINUTE, -m_aggregationDuration);                                        
-                    tempDate = aggregateCal.getTime();
-                }
-                
-                while (!currentEndDate.after(endDate) || (currentEndDate.getTime() -endDate.getTime() < 60000)){
-                    Long offset = Long.valueOf(0);
-                    Long limit = Long.valueOf(500);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = m_accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
-                            }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
-                    // reset offset
-                    offset = Long.valueOf(0);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-
-                        accounts = m_accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
-
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
-                                for(Long templateId : publicTemplates){
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = m_usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() + "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved()); 
-                                        m_usageStorageDao.update(storageVO);
-                                    }
-                                }
-                                numAcctsProcessed++;
-                            }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    currentStartDate = new Date(currentEndDate.getTime() + 1);
-                    aggregateCal.setTime(currentEndDate);
-                    aggregateCal.add(Calendar.MINUTE, m_aggregationDuration);                        
-                    currentEndDate = aggregateCal.getTime();
-                }
-                
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
+                if (shardProgress != null) {
+                    // accounts parsed from here on keep their usage, so unless all of them are done
+                    // the job is left for the next run to go on with the rest
+                    resumable = true;
+                    parsed = parseShards(job, shardProgress, recentlyDeletedDate);
+                    resumable = !parsed;
+                } else {
+                    parsed = parseAccounts(startDate, endDate, recentlyDeletedDate);
                 }
 
                 // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
@@ -664,12 +660,16 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 s_logger.error("Exception in usage manager", ex);
                 usageTxn.rollback();
             } finally {
-                // everything seemed to work...set endDate as the last success date
-                m_usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success);
+                if (resumable) {
+                    s_logger.warn("Usage job " + job.getId() + " did not parse all of its accounts, leaving it open for the next run to resume");
+                } else {
+                    // everything seemed to work...set endDate as the last success date
+                    m_usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success);
 
-                // create a new job if this is a recurring job
-                if (job.getJobType() == UsageJobVO.JOB_TYPE_RECURRING) {
-                    m_usageJobDao.createNewJob(m_hostname, m_pid, UsageJobVO.JOB_TYPE_RECURRING);
+                    // create a new job if this is a recurring job
+                    if (job.getJobType() == UsageJobVO.JOB_TYPE_RECURRING) {
+                        m_usageJobDao.createNewJob(m_hostname, m_pid, UsageJobVO.JOB_TYPE_RECURRING);
+                    }
                 }
                 usageTxn.commit();
                 usageTxn.close();
@@ -689,6 +689,380 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
     }
     
+    /**
+     * Parses the range one aggregation window after the other, active accounts before the
+     * recently deleted ones, all in the transaction the caller has open.
+     *
+     * @return whether the last account parsed
+     */
+    private boolean parseAccounts(Date startDate, Date endDate, Date recentlyDeletedDate) {
+        boolean parsed = false;
+        int numAcctsProcessed = 0;
+        List<AccountVO> accounts = null;
+
+        Date currentStartDate = startDate;
+        Date currentEndDate = endDate;
+        Date tempDate = endDate;
+    
+        Calendar aggregateCal = Calendar.getInstance(m_usageTimezone);
+    
+        while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)){
+            currentEndDate = tempDate;
+            aggregateCal.setTime(tempDate);
+            aggregateCal.add(Calendar.MINUTE, -m_aggregationDuration);                                        
+            tempDate = aggregateCal.getTime();
+        }
+    
+        while (!currentEndDate.after(endDate) || (currentEndDate.getTime() -endDate.getTime() < 60000)){
+            Long lastSeenId = null;
+            Long limit = Long.valueOf(500);
+
+            do {
+                Filter filter = new Filter(AccountVO.class, "id", true, null, limit);
+                filter.setSeekAfter(lastSeenId);
+                accounts = m_accountDao.listAll(filter);
+                if ((accounts != null) && !accounts.isEmpty()) {
+                    for (AccountVO account : accounts) {
+                        parsed = parseHelperTables(account, currentStartDate, currentEndDate);
+                        numAcctsProcessed++;
+                    }
+                    lastSeenId = accounts.get(accounts.size() - 1).getId();
+                }
+            } while ((accounts != null) && !accounts.isEmpty());
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
+            }
+            numAcctsProcessed = 0;
+
+            // start over from the lowest id
+            lastSeenId = null;
+
+            do {
+                Filter filter = new Filter(AccountVO.class, "id", true, null, limit);
+                filter.setSeekAfter(lastSeenId);
+
+                accounts = m_accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
+
+                if ((accounts != null) && !accounts.isEmpty()) {
+                    for (AccountVO account : accounts) {
+                        parsed = parseHelperTables(account, currentStartDate, currentEndDate);
+                        deletePublicTemplates(account);
+                        numAcctsProcessed++;
+                    }
+                    lastSeenId = accounts.get(accounts.size() - 1).getId();
+                }
+            } while ((accounts != null) && !accounts.isEmpty());
+
+            currentStartDate = new Date(currentEndDate.getTime() + 1);
+            aggregateCal.setTime(currentEndDate);
+            aggregateCal.add(Calendar.MINUTE, m_aggregationDuration);                        
+            currentEndDate = aggregateCal.getTime();
+        }
+    
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses the range of the job with the accounts sharded across the parse workers.  A shard
+     * commits its usage records together with its progress every few accounts, so when a shard
+     * fails the job can be left open and the next run parses only what is left.
+     *
+     * @return true if every shard parsed all of its accounts
+     */
+    private boolean parseShards(final UsageJobVO job, final UsageParseProgress progress, Date recentlyDeletedDate) throws Exception {
+        final List<Pair<Date, Date>> windows = getAggregationWindows(new Date(progress.getStartMillis()), new Date(progress.getEndMillis()));
+        final int shards = progress.getShards();
+
+        // an account deleted since the job started moves from the active accounts to the recently deleted ones,
+        // so each shard parses both in the order of their ids and its progress holds whichever it got to
+        final List<List<AccountVO>> shardAccounts = new ArrayList<List<AccountVO>>();
+        for (int i = 0; i < shards; i++) {
+            shardAccounts.add(new ArrayList<AccountVO>());
+        }
+        Long lastSeenId = null;
+        Long limit = Long.valueOf(500);
+        List<AccountVO> accounts = null;
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, null, limit);
+            filter.setSeekAfter(lastSeenId);
+            accounts = m_accountDao.listAll(filter);
+            if ((accounts != null) && !accounts.isEmpty()) {
+                for (AccountVO account : accounts) {
+                    shardAccounts.get(UsageParseProgress.getShard(account.getId(), shards)).add(account);
+                }
+                lastSeenId = accounts.get(accounts.size() - 1).getId();
+            }
+        } while ((accounts != null) && !accounts.isEmpty());
+
+        lastSeenId = null;
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, null, limit);
+            filter.setSeekAfter(lastSeenId);
+            accounts = m_accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
+            if ((accounts != null) && !accounts.isEmpty()) {
+                for (AccountVO account : accounts) {
+                    shardAccounts.get(UsageParseProgress.getShard(account.getId(), shards)).add(account);
+                }
+                lastSeenId = accounts.get(accounts.size() - 1).getId();
+            }
+        } while ((accounts != null) && !accounts.isEmpty());
+
+        for (List<AccountVO> shardList : shardAccounts) {
+            Collections.sort(shardList, new Comparator<AccountVO>() {
+                @Override
+                public int compare(AccountVO a1, AccountVO a2) {
+                    return (a1.getId() < a2.getId()) ? -1 : ((a1.getId() == a2.getId()) ? 0 : 1);
+                }
+            });
+        }
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < shards; i++) {
+            final int shard = i;
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return parseShard(job, progress, shard, windows, shardAccounts.get(shard));
+                }
+            });
+        }
+
+        boolean parsed = true;
+        if (m_parseExecutor != null) {
+            for (Future<Boolean> future : m_parseExecutor.invokeAll(tasks)) {
+                parsed &= future.get();
+            }
+        } else {
+            // a job resumed after the workers were turned off
+            for (Callable<Boolean> task : tasks) {
+                parsed &= task.call();
+            }
+        }
+        return parsed;
+    }
+
+    private boolean parseShard(UsageJobVO job, UsageParseProgress progress, int shard, List<Pair<Date, Date>> windows, List<AccountVO> accounts) {
+        int numAcctsProcessed = 0;
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            for (int window = 0; window < windows.size(); window++) {
+                Date currentStartDate = windows.get(window).first();
+                Date currentEndDate = windows.get(window).second();
+                int batched = 0;
+                AccountVO last = null;
+                for (AccountVO account : accounts) {
+                    if (progress.isParsed(shard, window, account.getId())) {
+                        continue;
+                    }
+                    if (batched == 0) {
+                        txn.start();
+                    }
+                    parseHelperTables(account, currentStartDate, currentEndDate);
+                    if (account.getRemoved() != null) {
+                        deletePublicTemplates(account);
+                    }
+                    last = account;
+                    numAcctsProcessed++;
+                    if (++batched == PARSE_BATCH) {
+                        commitShardProgress(txn, job, shard, window, last.getId());
+                        batched = 0;
+                    }
+                }
+                if (batched > 0) {
+                    commitShardProgress(txn, job, shard, window, last.getId());
+                }
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("processed Usage for " + numAcctsProcessed + " accts in shard " + shard + " of usage job " + job.getId());
+            }
+            return true;
+        } catch (Exception e) {
+            s_logger.error("Unable to parse usage of shard " + shard + " of usage job " + job.getId(), e);
+            txn.rollback();
+            return false;
+        } finally {
+            txn.close();
+        }
+    }
+
+    private void commitShardProgress(Transaction txn, UsageJobVO job, int shard, int window, long accountId) {
+        // the shards share the progress column, the row lock keeps them from overwriting each other
+        UsageJobVO lockedJob = m_usageJobDao.lockRow(job.getId(), Boolean.TRUE);
+        UsageParseProgress progress = UsageParseProgress.parse(lockedJob.getShardProgress());
+        if (progress == null) {
+            throw new CloudRuntimeException("Usage job " + job.getId() + " lost its shard progress");
+        }
+        progress.markParsed(shard, window, accountId);
+        m_usageJobDao.updateShardProgress(job.getId(), progress.toString());
+        txn.commit();
+    }
+
+    /**
+     * @return the aggregation windows the range is parsed in, the same ones parse() walks through
+     */
+    private List<Pair<Date, Date>> getAggregationWindows(Date startDate, Date endDate) {
+        List<Pair<Date, Date>> windows = new ArrayList<Pair<Date, Date>>();
+        Date currentStartDate = startDate;
+        Date currentEndDate = endDate;
+        Date tempDate = endDate;
+
+        Calendar aggregateCal = Calendar.getInstance(m_usageTimezone);
+
+        while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)){
+            currentEndDate = tempDate;
+            aggregateCal.setTime(tempDate);
+            aggregateCal.add(Calendar.MINUTE, -m_aggregationDuration);
+            tempDate = aggregateCal.getTime();
+        }
+
+        while (!currentEndDate.after(endDate) || (currentEndDate.getTime() -endDate.getTime() < 60000)){
+            windows.add(new Pair<Date, Date>(currentStartDate, currentEndDate));
+
+            currentStartDate = new Date(currentEndDate.getTime() + 1);
+            aggregateCal.setTime(currentEndDate);
+            aggregateCal.add(Calendar.MINUTE, m_aggregationDuration);
+            currentEndDate = aggregateCal.getTime();
+        }
+        return windows;
+    }
+
+    private void deletePublicTemplates(AccountVO account) {
+        List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
+        for(Long templateId : publicTemplates){
+            //mark public templates owned by deleted accounts as deleted
+            List<UsageStorageVO> storageVOs = m_usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+            if (storageVOs.size() > 1) {
+                s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() + "; marking them all as deleted...");
+            }
+            for (UsageStorageVO storageVO : storageVOs) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                }
+                storageVO.setDeleted(account.getRemoved()); 
+                m_usageStorageDao.update(storageVO);
+            }
+        }
+    }
+
+    /**
+     * Copies the accounts created since the last copy to the usage db, the caller has the cloud db open.
+     */
+    private void saveNewAccounts(Long lastAccountId) throws UsageServerException {
+        Long limit = Long.valueOf(500);
+        Long lastSeenId = null;
+        List<AccountVO> accounts = null;
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, null, limit);
+            filter.setSeekAfter(lastSeenId);
+
+            accounts = m_accountDao.findNewAccounts(lastAccountId, filter);
+
+            if ((accounts != null) && !accounts.isEmpty()) {
+                // now copy the accounts to cloud_usage db
+                m_usageDao.saveAccounts(accounts);
+                lastSeenId = accounts.get(accounts.size() - 1).getId();
+            }
+        } while ((accounts != null) && !accounts.isEmpty());
+    }
+
+    /**
+     * Takes in the usage events since the last time and parses the usage of the accounts with helper records in
+     * the range, from where the last increment stopped up to the given time.  The open intervals of the events are
+     * in the helper tables, so an increment only reads the part of them in its own range.  The records are
+     * provisional until the job replaces them with the records of its whole range.
+     *
+     * @param endMillis the time to parse up to, now when run on schedule
+     */
+    protected void parseIncremental(long endMillis) throws Exception {
+        UsageJobVO job = m_usageJobDao.isOwner(m_hostname, m_pid);
+        if ((job == null) || (job.getShardProgress() != null)) {
+            // not ours, or a job that stopped part way through that the next run resumes
+            return;
+        }
+
+        long lastSuccess = m_usageJobDao.getLastJobSuccessDateMillis();
+        if (lastSuccess == 0) {
+            // usage starts with the first job
+            return;
+        }
+        long startMillis = lastSuccess + 1;
+        long reparseStartMillis = startMillis;
+        if (job.getIncrementalEndMillis() >= startMillis) {
+            startMillis = job.getIncrementalEndMillis() + 1;
+            reparseStartMillis = Math.min(reparseStartMillis, job.getIncrementalStartMillis());
+        }
+        if (endMillis - startMillis < 60000) {
+            return;
+        }
+        Date startDate = new Date(startMillis);
+        Date endDate = new Date(endMillis);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Parsing usage records incrementally between " + startDate + " and " + endDate);
+        }
+
+        Transaction userTxn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            Long lastAccountId = m_usageDao.getLastAccountId();
+            saveNewAccounts(lastAccountId == null ? Long.valueOf(0) : lastAccountId);
+        } finally {
+            userTxn.close();
+        }
+
+        List<UsageEventVO> events = _usageEventDao.getRecentEvents(endDate);
+
+        Transaction usageTxn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            usageTxn.start();
+
+            for (UsageEventVO event : events) {
+                // an event from before the job's range makes the job parse from there, as it would have had it taken the event in
+                reparseStartMillis = Math.min(reparseStartMillis, event.getCreateDate().getTime());
+                event.setProcessed(true);
+                _usageEventDao.update(event.getId(), event);
+                createHelperRecord(event);
+            }
+
+            Calendar recentlyDeletedCal = Calendar.getInstance(m_usageTimezone);
+            recentlyDeletedCal.setTimeInMillis(startMillis);
+            recentlyDeletedCal.add(Calendar.MINUTE, -1*THREE_DAYS_IN_MINUTES);
+            Date recentlyDeletedDate = recentlyDeletedCal.getTime();
+
+            // only the accounts with something to bill in the range, which takes in the helper records of the new events
+            int numAcctsProcessed = 0;
+            List<Long> accountIds = m_usageDao.listAccountsWithUsage(startDate, endDate);
+            for (int i = 0; i < accountIds.size(); i += 500) {
+                List<Long> ids = accountIds.subList(i, Math.min(i + 500, accountIds.size()));
+                SearchCriteria<AccountVO> sc = m_accountDao.createSearchCriteria();
+                sc.addAnd("id", SearchCriteria.Op.IN, ids.toArray());
+                List<AccountVO> accounts = m_accountDao.searchIncludingRemoved(sc, null, null, false);
+                for (AccountVO account : accounts) {
+                    // active or recently deleted, as the job parses them
+                    if ((account.getRemoved() == null) || !account.getRemoved().before(recentlyDeletedDate)) {
+                        parseHelperTables(account, startDate, endDate);
+                        numAcctsProcessed++;
+                    }
+                }
+            }
+
+            // committed with the records, so an increment is either all there or parsed again by the next one
+            m_usageJobDao.updateIncrementalProgress(job.getId(), reparseStartMillis, endMillis);
+            usageTxn.commit();
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("parsed usage incrementally for " + numAcctsProcessed + " accts with " + events.size() + " new events");
+            }
+        } catch (Exception e) {
+            usageTxn.rollback();
+            throw e;
+        } finally {
+            usageTxn.close();
+        }
+    }
+
     private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate){
         boolean parsed = false;
 
@@ -1510,6 +1884,16 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
     }
     
+    private class IncrementalParse implements Runnable {
+        public void run() {
+            try {
+                parseIncremental(System.currentTimeMillis());
+            } catch (Exception e) {
+                s_logger.error("Error parsing usage incrementally", e);
+            }
+        }
+    }
+
     private class SanityCheck implements Runnable {
         public void run() {
             UsageSanityChecker usc = new UsageSanityChecker();
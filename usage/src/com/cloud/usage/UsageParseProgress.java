@@ -0,0 +1,111 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+/**
+ * Progress of a usage job that parses accounts in shards, kept in the shard_progress column
+ * of the job.  Accounts go to shard id % shards, and each shard parses its accounts window by
+ * window, active and recently deleted ones together in the order of their ids.  So the last
+ * account parsed tells what is done, and a job that failed picks up after it even when some
+ * of its accounts have been deleted in between.
+ *
+ * The aggregation range is part of the progress, a resumed job parses the range it started
+ * with and leaves the rest to the next job.
+ */
+public class UsageParseProgress {
+    private final long startMillis;
+    private final long endMillis;
+    private final int[] windows;
+    private final long[] accountIds;
+
+    public UsageParseProgress(long startMillis, long endMillis, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive: " + shards);
+        }
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        windows = new int[shards];
+        accountIds = new long[shards];
+    }
+
+    /**
+     * @return the progress of a job, null if there is none or it can't be read
+     */
+    public static UsageParseProgress parse(String progress) {
+        if (progress == null || progress.isEmpty()) {
+            return null;
+        }
+        try {
+            // <start millis>-<end millis>:<window>.<account id>,...
+            int colon = progress.indexOf(':');
+            String[] range = progress.substring(0, colon).split("-");
+            String[] shards = progress.substring(colon + 1).split(",");
+            UsageParseProgress parsed = new UsageParseProgress(Long.parseLong(range[0]), Long.parseLong(range[1]), shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                String[] mark = shards[i].split("\\.");
+                parsed.windows[i] = Integer.parseInt(mark[0]);
+                parsed.accountIds[i] = Long.parseLong(mark[1]);
+            }
+            return parsed;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static int getShard(long accountId, int shards) {
+        return (int)(accountId % shards);
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    public int getShards() {
+        return windows.length;
+    }
+
+    public boolean isParsed(int shard, int window, long accountId) {
+        if (window != windows[shard]) {
+            return window < windows[shard];
+        }
+        return accountId <= accountIds[shard];
+    }
+
+    public void markParsed(int shard, int window, long accountId) {
+        if (!isParsed(shard, window, accountId)) {
+            windows[shard] = window;
+            accountIds[shard] = accountId;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(startMillis).append('-').append(endMillis).append(':');
+        for (int i = 0; i < windows.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(windows[i]).append('.').append(accountIds[i]);
+        }
+        return sb.toString();
+    }
+}
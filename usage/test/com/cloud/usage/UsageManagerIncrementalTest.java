@@ -0,0 +1,274 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.alert.AlertManager;
+import com.cloud.event.dao.UsageEventDao;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageJobDao;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.component.Adapter;
+import com.cloud.utils.component.Adapters;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.component.Manager;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.db.SearchCriteria;
+
+/**
+ * Runs the usage manager and its parsers against mocked daos, with the usage records and the
+ * usage job kept in memory.
+ */
+public class UsageManagerIncrementalTest extends TestCase {
+    static final long HOUR = 60 * 60 * 1000L;
+
+    /**
+     * Hands out a mock of every dao asked for, the same one each time.  The search criteria the
+     * mocks create are mocks too.
+     */
+    static class MockDaoLocator extends ComponentLocator {
+        static final Answer<Object> SEARCH_CRITERIA = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if (invocation.getMethod().getReturnType() == SearchCriteria.class) {
+                    return mock(SearchCriteria.class);
+                }
+                return RETURNS_DEFAULTS.answer(invocation);
+            }
+        };
+
+        final Map<Class<?>, Object> _daos = new HashMap<Class<?>, Object>();
+
+        MockDaoLocator() {
+            super(UsageServer.Name);
+            _adapterMap = new HashMap<String, Adapters<? extends Adapter>>();
+            _managerMap = new HashMap<String, ComponentInfo<Manager>>();
+        }
+
+        @Override
+        public synchronized <T extends GenericDao<?, ? extends Serializable>> T getDao(Class<T> clazz) {
+            Object dao = _daos.get(clazz);
+            if (dao == null) {
+                dao = mock(clazz, SEARCH_CRITERIA);
+                _daos.put(clazz, dao);
+            }
+            return clazz.cast(dao);
+        }
+
+        synchronized void resetDaos() {
+            for (Object dao : _daos.values()) {
+                reset(dao);
+            }
+        }
+
+        void makeActive() {
+            synchronized (s_locators) {
+                s_locators.put(UsageServer.Name, this);
+            }
+        }
+    }
+
+    // the parsers look their daos up once, when they are loaded
+    static final MockDaoLocator s_locator = new MockDaoLocator();
+    static {
+        s_locator.makeActive();
+    }
+
+    final List<UsageVO> _records = Collections.synchronizedList(new ArrayList<UsageVO>());
+    UsageJobVO _job;
+    long _lastSuccess;
+    UsageManagerImpl _manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        s_locator.resetDaos();
+
+        // a job that ran ten hours ago, before the time the usage is parsed up to in the test
+        _lastSuccess = System.currentTimeMillis() - 10 * HOUR;
+        _job = new UsageJobVO();
+        _job.setJobType(UsageJobVO.JOB_TYPE_SINGLE);
+
+        UsageJobDao jobDao = s_locator.getDao(UsageJobDao.class);
+        when(jobDao.isOwner(anyString(), anyInt())).thenAnswer(new Answer<UsageJobVO>() {
+            @Override
+            public UsageJobVO answer(InvocationOnMock invocation) {
+                return _job;
+            }
+        });
+        when(jobDao.getLastJobSuccessDateMillis()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return _lastSuccess;
+            }
+        });
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                _job.setIncrementalStartMillis((Long)args[1]);
+                _job.setIncrementalEndMillis((Long)args[2]);
+                return null;
+            }
+        }).when(jobDao).updateIncrementalProgress(anyLong(), anyLong(), anyLong());
+
+        UsageDao usageDao = s_locator.getDao(UsageDao.class);
+        when(usageDao.persist(any(UsageVO.class))).thenAnswer(new Answer<UsageVO>() {
+            @Override
+            public UsageVO answer(InvocationOnMock invocation) {
+                UsageVO record = (UsageVO)invocation.getArguments()[0];
+                _records.add(record);
+                return record;
+            }
+        });
+        when(usageDao.deleteRecordsStartingFrom(any(Date.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                Date startDate = (Date)invocation.getArguments()[0];
+                int removed = 0;
+                synchronized (_records) {
+                    for (Iterator<UsageVO> it = _records.iterator(); it.hasNext();) {
+                        if (!it.next().getStartDate().before(startDate)) {
+                            it.remove();
+                            removed++;
+                        }
+                    }
+                }
+                return removed;
+            }
+        });
+
+        // one account, with a vm running since before the last job
+        final List<AccountVO> accounts = Collections.singletonList(new AccountVO(2L));
+        when(s_locator.getDao(AccountDao.class).listAll(any(Filter.class))).thenAnswer(new Answer<List<AccountVO>>() {
+            @Override
+            public List<AccountVO> answer(InvocationOnMock invocation) {
+                Filter filter = (Filter)invocation.getArguments()[0];
+                return filter.getSeekAfter() == null ? accounts : Collections.<AccountVO> emptyList();
+            }
+        });
+        // the increments look up only the accounts with helper records in their range
+        when(usageDao.listAccountsWithUsage(any(Date.class), any(Date.class))).thenReturn(Collections.singletonList(2L));
+        when(s_locator.getDao(AccountDao.class).searchIncludingRemoved(any(SearchCriteria.class), any(Filter.class), any(Boolean.class), anyBoolean()))
+                .thenReturn(accounts);
+        UsageVMInstanceVO vm = new UsageVMInstanceVO(UsageTypes.RUNNING_VM, 1L, 2L, 3L, "vm", 4L, 5L, "KVM", new Date(_lastSuccess - HOUR), null);
+        when(s_locator.getDao(UsageVMInstanceDao.class).getUsageRecords(anyLong(), any(Date.class), any(Date.class))).thenReturn(
+                Collections.singletonList(vm));
+
+        _manager = new UsageManagerImpl();
+        _manager._usageEventDao = mock(UsageEventDao.class);
+        _manager._alertMgr = mock(AlertManager.class);
+        setField("m_aggregationDuration", 24 * 60);
+    }
+
+    void setField(String name, Object value) throws Exception {
+        Field field = UsageManagerImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(_manager, value);
+    }
+
+    List<UsageVO> getRecords(long startMillis, long endMillis) {
+        List<UsageVO> records = new ArrayList<UsageVO>();
+        synchronized (_records) {
+            for (UsageVO record : _records) {
+                if (record.getStartDate().getTime() <= endMillis && record.getEndDate().getTime() >= startMillis) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    public void testJobReplacesIncrementalRecords() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            _manager.parseIncremental(_lastSuccess + i * HOUR);
+        }
+        assertEquals(3, _records.size());
+        assertEquals(_lastSuccess + 3 * HOUR, _job.getIncrementalEndMillis());
+        double incrementalHours = 0;
+        for (UsageVO record : _records) {
+            incrementalHours += record.getRawUsage();
+        }
+        assertEquals(3.0, incrementalHours, 0.01);
+
+        // too soon after the last increment, nothing to parse
+        _manager.parseIncremental(_lastSuccess + 3 * HOUR + 1000);
+        assertEquals(3, _records.size());
+
+        long jobEndMillis = _lastSuccess + 4 * HOUR;
+        _manager.parse(_job, 0, jobEndMillis);
+
+        List<UsageVO> records = getRecords(_lastSuccess + 1, jobEndMillis);
+        assertEquals("one record for the whole range of the job", 1, records.size());
+        assertEquals(_lastSuccess + 1, records.get(0).getStartDate().getTime());
+        assertEquals(jobEndMillis, records.get(0).getEndDate().getTime());
+        assertEquals(4.0, records.get(0).getRawUsage(), 0.01);
+        assertEquals(1, _records.size());
+    }
+
+    public void testJobWithoutIncrementsKeepsEarlierRecords() throws Exception {
+        // a record of the job before, which the job must not replace
+        _manager.parseIncremental(_lastSuccess - HOUR / 2);
+        assertTrue(_records.isEmpty());
+        _records.add(new UsageVO(1L, 2L, 1L, "earlier", "1 Hrs", UsageTypes.RUNNING_VM, 1.0, 3L, "vm", 4L, 5L, 3L,
+                new Date(_lastSuccess - HOUR), new Date(_lastSuccess), "KVM"));
+
+        _manager.parse(_job, 0, _lastSuccess + 2 * HOUR);
+        assertEquals(2, _records.size());
+        assertEquals(1, getRecords(_lastSuccess + 1, _lastSuccess + 2 * HOUR).size());
+    }
+
+    public void testIncrementSkipsAccountsWithoutUsage() throws Exception {
+        UsageDao usageDao = s_locator.getDao(UsageDao.class);
+        when(usageDao.listAccountsWithUsage(any(Date.class), any(Date.class))).thenReturn(Collections.<Long> emptyList());
+
+        _manager.parseIncremental(_lastSuccess + HOUR);
+        assertTrue(_records.isEmpty());
+        assertEquals(_lastSuccess + HOUR, _job.getIncrementalEndMillis());
+        verify(s_locator.getDao(AccountDao.class), never()).listAll(any(Filter.class));
+        verify(s_locator.getDao(UsageVMInstanceDao.class), never()).getUsageRecords(anyLong(), any(Date.class), any(Date.class));
+    }
+}
@@ -0,0 +1,77 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import junit.framework.TestCase;
+
+public class UsageParseProgressTest extends TestCase {
+
+    public void testRoundTrip() {
+        UsageParseProgress progress = new UsageParseProgress(1000L, 87400999L, 3);
+        progress.markParsed(0, 0, 42);
+        progress.markParsed(2, 1, 7);
+
+        UsageParseProgress parsed = UsageParseProgress.parse(progress.toString());
+        assertEquals(progress.toString(), parsed.toString());
+        assertEquals(1000L, parsed.getStartMillis());
+        assertEquals(87400999L, parsed.getEndMillis());
+        assertEquals(3, parsed.getShards());
+        assertTrue(parsed.isParsed(0, 0, 42));
+        assertFalse(parsed.isParsed(0, 0, 45));
+        assertFalse(parsed.isParsed(1, 0, 1));
+    }
+
+    public void testResumeOrder() {
+        UsageParseProgress progress = new UsageParseProgress(0L, 1L, 1);
+        progress.markParsed(0, 1, 30);
+
+        // earlier windows are done whatever the account
+        assertTrue(progress.isParsed(0, 0, 1000));
+        assertTrue(progress.isParsed(0, 1, 30));
+        assertFalse(progress.isParsed(0, 1, 31));
+        assertFalse(progress.isParsed(0, 2, 2));
+
+        // progress never goes back
+        progress.markParsed(0, 0, 5000);
+        assertFalse(progress.isParsed(0, 1, 31));
+        assertTrue(progress.isParsed(0, 1, 30));
+    }
+
+    public void testAccountDeletedBeforeResume() {
+        // accounts 4 and 8 of the shard were parsed, then 8 was deleted and is now
+        // listed with the recently deleted accounts, it is still done for the window
+        UsageParseProgress progress = new UsageParseProgress(0L, 1L, 4);
+        progress.markParsed(0, 0, 8);
+        UsageParseProgress resumed = UsageParseProgress.parse(progress.toString());
+        assertTrue(resumed.isParsed(0, 0, 8));
+        assertFalse(resumed.isParsed(0, 0, 12));
+        assertFalse(resumed.isParsed(0, 1, 8));
+    }
+
+    public void testShards() {
+        assertEquals(0, UsageParseProgress.getShard(8, 4));
+        assertEquals(3, UsageParseProgress.getShard(7, 4));
+        assertEquals(0, UsageParseProgress.getShard(7, 1));
+    }
+
+    public void testUnreadable() {
+        assertNull(UsageParseProgress.parse(null));
+        assertNull(UsageParseProgress.parse(""));
+        assertNull(UsageParseProgress.parse("garbage"));
+        assertNull(UsageParseProgress.parse("1-2:0"));
+    }
+}
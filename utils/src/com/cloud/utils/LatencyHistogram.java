@@ -0,0 +1,127 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts latencies into fixed buckets so percentiles can be
+ * estimated without keeping the samples.  Recording is lock free and cheap
+ * enough to be done on every request.  Percentiles are reported as the upper
+ * bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+    // upper bounds in milliseconds, the last bucket catches everything else
+    protected static final long[] s_bounds = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(s_bounds.length + 1);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    public void record(long millis) {
+        int index = 0;
+        while (index < s_bounds.length && millis > s_bounds[index]) {
+            index++;
+        }
+        _buckets.incrementAndGet(index);
+        _count.incrementAndGet();
+        _total.addAndGet(millis);
+
+        long max = _max.get();
+        while (millis > max && !_max.compareAndSet(max, millis)) {
+            max = _max.get();
+        }
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getTotal() {
+        return _total.get();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public long getAverage() {
+        long count = _count.get();
+        return count == 0 ? 0 : _total.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return upper bound of the bucket holding the percentile, the max seen
+     * if it is in the overflow bucket or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        long[] buckets = new long[_buckets.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = _buckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < s_bounds.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return s_bounds[i];
+            }
+        }
+        return _max.get();
+    }
+
+    public long[] getBuckets() {
+        long[] buckets = new long[_buckets.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = _buckets.get(i);
+        }
+        return buckets;
+    }
+
+    public void reset() {
+        for (int i = 0; i < _buckets.length(); i++) {
+            _buckets.set(i, 0);
+        }
+        _count.set(0);
+        _total.set(0);
+        _max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("count=").append(getCount()).append(", avg=").append(getAverage()).append("ms, p50=").append(getPercentile(50)).append("ms, p90=")
+                .append(getPercentile(90)).append("ms, p99=").append(getPercentile(99)).append("ms, max=").append(getMax()).append("ms, buckets=[");
+        long[] buckets = getBuckets();
+        for (int i = 0; i < buckets.length; i++) {
+            if (i > 0) {
+                str.append(", ");
+            }
+            str.append(i < s_bounds.length ? "<=" + s_bounds[i] : ">" + s_bounds[s_bounds.length - 1]).append(":").append(buckets[i]);
+        }
+        return str.append("]").toString();
+    }
+}
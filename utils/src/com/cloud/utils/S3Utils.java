@@ -22,6 +22,8 @@ import static com.amazonaws.Protocol.HTTP;
 import static com.amazonaws.Protocol.HTTPS;
 import static com.cloud.utils.StringUtils.join;
 import static java.io.File.createTempFile;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
 import static java.util.Arrays.asList;
@@ -34,14 +36,34 @@ import static org.apache.commons.lang.StringUtils.isNotBlank;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
 
@@ -51,10 +73,23 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 
 public final class S3Utils {
@@ -66,11 +101,31 @@ public final class S3Utils {
     private static final int MIN_BUCKET_NAME_LENGTH = 3;
     private static final int MAX_BUCKET_NAME_LENGTH = 63;
 
+    /**
+     * S3 rejects multipart uploads with parts (other than the last) smaller
+     * than 5 MB or with more than 10000 parts.
+     */
+    public static final long MIN_PART_SIZE = 5L * 1024L * 1024L;
+    private static final int MAX_PARTS = 10000;
+
+    public static final long DEFAULT_PART_SIZE = 64L * 1024L * 1024L;
+    public static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    private static final String PART_FILE_SUFFIX = ".s3part";
+    private static final String STATE_FILE_SUFFIX = ".s3state";
+
     private S3Utils() {
         super();
     }
 
     private static AmazonS3 acquireClient(final ClientOptions clientOptions) {
+        return acquireClient(clientOptions, TransferOptions.DEFAULT);
+    }
+
+    private static AmazonS3 acquireClient(final ClientOptions clientOptions,
+            final TransferOptions transferOptions) {
 
         final AWSCredentials credentials = new BasicAWSCredentials(
                 clientOptions.getAccessKey(), clientOptions.getSecretKey());
@@ -95,6 +150,12 @@ public final class S3Utils {
             configuration.setSocketTimeout(clientOptions.getSocketTimeout());
         }
 
+        if (transferOptions.getMaxConcurrency() > configuration
+                .getMaxConnections()) {
+            configuration.setMaxConnections(transferOptions
+                    .getMaxConcurrency());
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(format(
                     "Creating S3 client with configuration: [protocol: %1$s, connectionTimeOut: "
@@ -123,8 +184,16 @@ public final class S3Utils {
 
     public static void putFile(final ClientOptions clientOptions,
             final File sourceFile, final String bucketName, final String key) {
+        putFile(clientOptions, TransferOptions.DEFAULT, sourceFile,
+                bucketName, key);
+    }
+
+    public static void putFile(final ClientOptions clientOptions,
+            final TransferOptions transferOptions, final File sourceFile,
+            final String bucketName, final String key) {
 
         assert clientOptions != null;
+        assert transferOptions != null;
         assert sourceFile != null;
         assert !isBlank(bucketName);
         assert !isBlank(key);
@@ -134,22 +203,299 @@ public final class S3Utils {
                     + "bucket %3$s", sourceFile.getName(), key, bucketName));
         }
 
-        acquireClient(clientOptions).putObject(bucketName, key, sourceFile);
+        putObject(acquireClient(clientOptions, transferOptions),
+                transferOptions, bucketName, key, sourceFile);
 
     }
 
-    @SuppressWarnings("unchecked")
+    private static void putObject(final AmazonS3 client,
+            final TransferOptions transferOptions, final String bucketName,
+            final String key, final File sourceFile) {
+
+        if (sourceFile.length() <= transferOptions.getPartSize()) {
+            client.putObject(bucketName, key, sourceFile);
+        } else {
+            putMultipartObject(client, transferOptions, bucketName, key,
+                    sourceFile);
+        }
+
+    }
+
+    /**
+     * Sends the file in parts, several at a time. An upload that fails is
+     * aborted, so its parts don't linger in the bucket. An upload cut short
+     * by the process going away leaves the parts sent so far in S3, and the
+     * next upload of the same file to the same key picks up from there.
+     */
+    private static void putMultipartObject(final AmazonS3 client,
+            final TransferOptions transferOptions, final String bucketName,
+            final String key, final File sourceFile) {
+
+        final long length = sourceFile.length();
+        final long partSize = determinePartSize(length,
+                transferOptions.getPartSize());
+        final int partCount = (int) ((length + partSize - 1) / partSize);
+
+        final Map<Integer, PartETag> partETags = new TreeMap<Integer, PartETag>();
+        String uploadId = findResumableUpload(client, bucketName, key,
+                sourceFile);
+        if (uploadId != null) {
+            partETags.putAll(listUploadedParts(client, bucketName, key,
+                    uploadId, length, partSize));
+            LOGGER.info(format(
+                    "Resuming upload %1$s of file %2$s to S3 object %3$s in bucket %4$s "
+                            + "with %5$s of %6$s parts already sent",
+                    uploadId, sourceFile.getName(), key, bucketName,
+                    partETags.size(), partCount));
+        } else {
+            uploadId = client.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucketName, key))
+                    .getUploadId();
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(format(
+                    "Sending file %1$s as S3 object %2$s in bucket %3$s in %4$s parts "
+                            + "of %5$s bytes using upload %6$s",
+                    sourceFile.getName(), key, bucketName, partCount,
+                    partSize, uploadId));
+        }
+
+        final List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+        final ExecutorService executor = createTransferExecutor(
+                transferOptions, partCount - partETags.size(), "S3-Upload");
+        boolean completed = false;
+        try {
+
+            for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                if (partETags.containsKey(partNumber)) {
+                    continue;
+                }
+                final long offset = (partNumber - 1) * partSize;
+                final UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucketName).withKey(key)
+                        .withUploadId(uploadId).withPartNumber(partNumber)
+                        .withFile(sourceFile).withFileOffset(offset)
+                        .withPartSize(min(partSize, length - offset));
+                futures.add(executor.submit(new Callable<PartETag>() {
+                    @Override
+                    public PartETag call() {
+                        return client.uploadPart(request).getPartETag();
+                    }
+                }));
+            }
+
+            for (final Future<PartETag> future : futures) {
+                final PartETag partETag = future.get();
+                partETags.put(partETag.getPartNumber(), partETag);
+            }
+
+            final String eTag = client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, key,
+                            uploadId, new ArrayList<PartETag>(partETags
+                                    .values()))).getETag();
+            completed = true;
+            verifyObject(client, bucketName, key, sourceFile, eTag,
+                    partETags.values());
+
+        } catch (ExecutionException e) {
+
+            throw new CloudRuntimeException(format(
+                    "Failed to send file %1$s as S3 object %2$s in bucket %3$s.",
+                    sourceFile.getName(), key, bucketName), e.getCause());
+
+        } catch (InterruptedException e) {
+
+            throw new CloudRuntimeException(format(
+                    "Interrupted sending file %1$s as S3 object %2$s in bucket %3$s.",
+                    sourceFile.getName(), key, bucketName), e);
+
+        } finally {
+
+            executor.shutdownNow();
+            if (!completed) {
+                abortUpload(client, bucketName, key, uploadId);
+            }
+
+        }
+
+    }
+
+    private static void abortUpload(final AmazonS3 client,
+            final String bucketName, final String key, final String uploadId) {
+
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(
+                    bucketName, key, uploadId));
+        } catch (AmazonClientException e) {
+            LOGGER.warn(format(
+                    "Unable to abort upload %1$s of S3 object %2$s in bucket %3$s.",
+                    uploadId, key, bucketName), e);
+        }
+
+    }
+
+    /**
+     * Checks that the object S3 put together from the parts has the length
+     * of the file and the ETag S3 gives an object made of these parts, which
+     * is the MD5 of the MD5s of the parts followed by the number of parts.
+     * An object that does not check out is deleted.
+     */
+    private static void verifyObject(final AmazonS3 client,
+            final String bucketName, final String key, final File sourceFile,
+            final String eTag, final Collection<PartETag> partETags) {
+
+        final long length = client.getObjectMetadata(bucketName, key)
+                .getContentLength();
+        final String expectedETag = multipartETag(partETags);
+        if (length == sourceFile.length()
+                && expectedETag.equals(unquote(eTag))) {
+            return;
+        }
+
+        client.deleteObject(bucketName, key);
+        throw new CloudRuntimeException(format(
+                "S3 object %1$s in bucket %2$s has %3$s bytes and ETag %4$s, "
+                        + "expected %5$s bytes and ETag %6$s from file %7$s.",
+                key, bucketName, length, eTag, sourceFile.length(),
+                expectedETag, sourceFile.getName()));
+
+    }
+
+    static String multipartETag(final Collection<PartETag> partETags) {
+
+        final byte[] digests = new byte[partETags.size() * 16];
+        int offset = 0;
+        for (final PartETag partETag : partETags) {
+            try {
+                final byte[] digest = Hex.decodeHex(unquote(
+                        partETag.getETag()).toCharArray());
+                System.arraycopy(digest, 0, digests, offset, digest.length);
+                offset += digest.length;
+            } catch (DecoderException e) {
+                throw new CloudRuntimeException(format(
+                        "Part %1$s has ETag %2$s, which is not an MD5.",
+                        partETag.getPartNumber(), partETag.getETag()), e);
+            }
+        }
+        return DigestUtils.md5Hex(digests) + "-" + partETags.size();
+
+    }
+
+    private static String unquote(final String eTag) {
+        return eTag != null ? eTag.replace("\"", "") : null;
+    }
+
+    /**
+     * @return the id of the most recent unfinished upload to the key that
+     *         was started after the file was last changed, null if there is
+     *         none
+     */
+    private static String findResumableUpload(final AmazonS3 client,
+            final String bucketName, final String key, final File sourceFile) {
+
+        final Date lastModified = new Date(sourceFile.lastModified());
+        final ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(
+                bucketName).withPrefix(key);
+
+        MultipartUpload latest = null;
+        while (true) {
+            final MultipartUploadListing listing = client
+                    .listMultipartUploads(request);
+            for (final MultipartUpload upload : listing.getMultipartUploads()) {
+                if (upload.getKey().equals(key)
+                        && upload.getInitiated().after(lastModified)
+                        && (latest == null || upload.getInitiated().after(
+                                latest.getInitiated()))) {
+                    latest = upload;
+                }
+            }
+            if (!listing.isTruncated()) {
+                break;
+            }
+            request.setKeyMarker(listing.getNextKeyMarker());
+            request.setUploadIdMarker(listing.getNextUploadIdMarker());
+        }
+
+        return latest != null ? latest.getUploadId() : null;
+
+    }
+
+    /**
+     * @return the parts of the upload that were sent complete with the
+     *         current part size
+     */
+    private static Map<Integer, PartETag> listUploadedParts(
+            final AmazonS3 client, final String bucketName, final String key,
+            final String uploadId, final long length, final long partSize) {
+
+        final Map<Integer, PartETag> partETags = new TreeMap<Integer, PartETag>();
+        final ListPartsRequest request = new ListPartsRequest(bucketName, key,
+                uploadId);
+
+        while (true) {
+            final PartListing listing = client.listParts(request);
+            for (final PartSummary part : listing.getParts()) {
+                final long offset = (part.getPartNumber() - 1) * partSize;
+                if (offset < length
+                        && part.getSize() == min(partSize, length - offset)) {
+                    partETags.put(part.getPartNumber(),
+                            new PartETag(part.getPartNumber(), part.getETag()));
+                }
+            }
+            if (!listing.isTruncated()) {
+                break;
+            }
+            request.setPartNumberMarker(listing.getNextPartNumberMarker());
+        }
+
+        return partETags;
+
+    }
+
+    static long determinePartSize(final long length, final long partSize) {
+        return max(max(partSize, MIN_PART_SIZE), (length + MAX_PARTS - 1)
+                / MAX_PARTS);
+    }
+
+    private static ExecutorService createTransferExecutor(
+            final TransferOptions transferOptions, final int taskCount,
+            final String name) {
+        return Executors.newFixedThreadPool(
+                max(1, min(transferOptions.getMaxConcurrency(), taskCount)),
+                new NamedThreadFactory(name));
+    }
+
     public static File getFile(final ClientOptions clientOptions,
             final String bucketName, final String key,
             final File targetDirectory, final FileNamingStrategy namingStrategy) {
+        return getFile(clientOptions, TransferOptions.DEFAULT, bucketName,
+                key, targetDirectory, namingStrategy);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static File getFile(final ClientOptions clientOptions,
+            final TransferOptions transferOptions, final String bucketName,
+            final String key, final File targetDirectory,
+            final FileNamingStrategy namingStrategy) {
 
         assert clientOptions != null;
+        assert transferOptions != null;
         assert isNotBlank(bucketName);
         assert isNotBlank(key);
         assert targetDirectory != null && targetDirectory.isDirectory();
         assert namingStrategy != null;
 
-        final AmazonS3 connection = acquireClient(clientOptions);
+        final AmazonS3 connection = acquireClient(clientOptions,
+                transferOptions);
+
+        final ObjectMetadata metadata = connection.getObjectMetadata(
+                bucketName, key);
+        if (metadata.getContentLength() > transferOptions.getPartSize()) {
+            return getMultipartObject(connection, transferOptions,
+                    bucketName, key, metadata, new File(targetDirectory,
+                            namingStrategy.determineFileName(key)));
+        }
 
         File tempFile = null;
         try {
@@ -198,16 +544,220 @@ public final class S3Utils {
 
     }
 
+    /**
+     * Gets the object in ranges, several at a time, into a part file next to
+     * the target file. The ranges received are recorded in a state file, so
+     * a download that fails is picked up from there by the next download of
+     * the same object.
+     */
+    private static File getMultipartObject(final AmazonS3 client,
+            final TransferOptions transferOptions, final String bucketName,
+            final String key, final ObjectMetadata metadata,
+            final File targetFile) {
+
+        final long length = metadata.getContentLength();
+        final long partSize = determinePartSize(length,
+                transferOptions.getPartSize());
+        final int partCount = (int) ((length + partSize - 1) / partSize);
+
+        final File partFile = new File(targetFile.getParentFile(),
+                targetFile.getName() + PART_FILE_SUFFIX);
+        final DownloadState state = new DownloadState(new File(
+                targetFile.getParentFile(), targetFile.getName()
+                        + STATE_FILE_SUFFIX), metadata.getETag(), length,
+                partSize);
+        if (!state.load() || !partFile.exists()) {
+            state.reset();
+        } else if (state.size() > 0) {
+            LOGGER.info(format(
+                    "Resuming download of S3 object %1$s from bucket %2$s to %3$s "
+                            + "with %4$s of %5$s parts already received",
+                    key, bucketName, targetFile.getName(), state.size(),
+                    partCount));
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(format(
+                    "Downloading object %1$s from bucket %2$s to %3$s in %4$s parts of %5$s bytes",
+                    key, bucketName, partFile.getName(), partCount, partSize));
+        }
+
+        RandomAccessFile file = null;
+        final ExecutorService executor = createTransferExecutor(
+                transferOptions, partCount - state.size(), "S3-Download");
+        try {
+
+            file = new RandomAccessFile(partFile, "rw");
+            file.setLength(length);
+            final FileChannel channel = file.getChannel();
+
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                if (state.isReceived(partNumber)) {
+                    continue;
+                }
+                final int part = partNumber;
+                final long offset = (partNumber - 1) * partSize;
+                final long size = min(partSize, length - offset);
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        getObjectRange(client, bucketName, key,
+                                metadata.getETag(), channel, offset, size);
+                        // the part has to be on disk before the state says so
+                        channel.force(false);
+                        state.received(part);
+                        return part;
+                    }
+                }));
+            }
+
+            for (final Future<Integer> future : futures) {
+                future.get();
+            }
+
+            file.close();
+            file = null;
+
+            verifyFile(bucketName, key, metadata, partFile, state);
+            if (!partFile.renameTo(targetFile)) {
+                throw new CloudRuntimeException(format(
+                        "Unable to rename %1$s to %2$s.",
+                        partFile.getAbsolutePath(), targetFile.getName()));
+            }
+            state.delete();
+
+            return targetFile;
+
+        } catch (ExecutionException e) {
+
+            throw new CloudRuntimeException(
+                    format("Failed to get object %1$s from bucket %2$s, "
+                            + "the download will be resumed by the next attempt.",
+                            key, bucketName), e.getCause());
+
+        } catch (InterruptedException e) {
+
+            throw new CloudRuntimeException(format(
+                    "Interrupted getting object %1$s from bucket %2$s.", key,
+                    bucketName), e);
+
+        } catch (IOException e) {
+
+            throw new CloudRuntimeException(format(
+                    "Unable to write %1$s to get object %2$s from bucket %3$s.",
+                    partFile.getAbsolutePath(), key, bucketName), e);
+
+        } finally {
+
+            executor.shutdownNow();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Ignored Exception while closing " + partFile, e);
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Checks that the file put together from the ranges has the length of
+     * the object and, when the ETag of the object is the MD5 of its content
+     * as it is for objects not sent in parts, the same MD5. A file that does
+     * not check out is downloaded again from scratch by the next attempt.
+     */
+    private static void verifyFile(final String bucketName, final String key,
+            final ObjectMetadata metadata, final File partFile,
+            final DownloadState state) throws IOException {
+
+        final String eTag = unquote(metadata.getETag());
+        String checksum = null;
+        if (partFile.length() == metadata.getContentLength()) {
+            if (eTag == null || eTag.length() != 32 || eTag.contains("-")) {
+                return;
+            }
+            final InputStream in = new FileInputStream(partFile);
+            try {
+                checksum = DigestUtils.md5Hex(in);
+            } finally {
+                in.close();
+            }
+            if (checksum.equalsIgnoreCase(eTag)) {
+                return;
+            }
+        }
+
+        state.reset();
+        throw new CloudRuntimeException(format(
+                "Received %1$s bytes with MD5 %2$s for S3 object %3$s in bucket %4$s, "
+                        + "expected %5$s bytes with ETag %6$s.",
+                partFile.length(), checksum, key, bucketName,
+                metadata.getContentLength(), metadata.getETag()));
+
+    }
+
+    private static void getObjectRange(final AmazonS3 client,
+            final String bucketName, final String key, final String eTag,
+            final FileChannel channel, final long offset, final long size)
+            throws IOException {
+
+        final GetObjectRequest request = new GetObjectRequest(bucketName, key);
+        request.setRange(offset, offset + size - 1);
+        request.setMatchingETagConstraints(singletonList(eTag));
+
+        final S3Object object = client.getObject(request);
+        if (object == null) {
+            throw new IOException(format(
+                    "Object %1$s in bucket %2$s changed during the download.",
+                    key, bucketName));
+        }
+
+        final InputStream in = object.getObjectContent();
+        try {
+            final byte[] buffer = new byte[(int) min(COPY_BUFFER_SIZE, size)];
+            long position = offset;
+            int read;
+            while (position < offset + size && (read = in.read(buffer)) != -1) {
+                final ByteBuffer block = ByteBuffer.wrap(buffer, 0,
+                        (int) min(read, offset + size - position));
+                while (block.hasRemaining()) {
+                    position += channel.write(block, position);
+                }
+            }
+            if (position != offset + size) {
+                throw new IOException(format(
+                        "Received %1$s of the %2$s bytes at offset %3$s of object %4$s in bucket %5$s.",
+                        position - offset, size, offset, key, bucketName));
+            }
+        } finally {
+            in.close();
+        }
+
+    }
+
     public static List<File> getDirectory(final ClientOptions clientOptions,
             final String bucketName, final String sourcePath,
             final File targetDirectory, final FileNamingStrategy namingStrategy) {
+        return getDirectory(clientOptions, TransferOptions.DEFAULT,
+                bucketName, sourcePath, targetDirectory, namingStrategy);
+    }
+
+    public static List<File> getDirectory(final ClientOptions clientOptions,
+            final TransferOptions transferOptions, final String bucketName,
+            final String sourcePath, final File targetDirectory,
+            final FileNamingStrategy namingStrategy) {
 
         assert clientOptions != null;
+        assert transferOptions != null;
         assert isNotBlank(bucketName);
         assert isNotBlank(sourcePath);
         assert targetDirectory != null;
 
-        final AmazonS3 connection = acquireClient(clientOptions);
+        final AmazonS3 connection = acquireClient(clientOptions,
+                transferOptions);
 
         // List the objects in the source directory on S3
         final List<S3ObjectSummary> objectSummaries = listDirectory(bucketName,
@@ -216,7 +766,7 @@ public final class S3Utils {
 
         for (final S3ObjectSummary objectSummary : objectSummaries) {
 
-            files.add(getFile(clientOptions, bucketName,
+            files.add(getFile(clientOptions, transferOptions, bucketName,
                     objectSummary.getKey(), targetDirectory, namingStrategy));
 
         }
@@ -243,8 +793,17 @@ public final class S3Utils {
             final String bucketName, final File directory,
             final FilenameFilter fileNameFilter,
             final ObjectNamingStrategy namingStrategy) {
+        putDirectory(clientOptions, TransferOptions.DEFAULT, bucketName,
+                directory, fileNameFilter, namingStrategy);
+    }
+
+    public static void putDirectory(final ClientOptions clientOptions,
+            final TransferOptions transferOptions, final String bucketName,
+            final File directory, final FilenameFilter fileNameFilter,
+            final ObjectNamingStrategy namingStrategy) {
 
         assert clientOptions != null;
+        assert transferOptions != null;
         assert isNotBlank(bucketName);
         assert directory != null && directory.isDirectory();
         assert fileNameFilter != null;
@@ -268,7 +827,7 @@ public final class S3Utils {
             return;
         }
 
-        final AmazonS3 client = acquireClient(clientOptions);
+        final AmazonS3 client = acquireClient(clientOptions, transferOptions);
 
         // Send the files to S3 using the passed ObjectNaming strategy to
         // determine the key ...
@@ -279,7 +838,7 @@ public final class S3Utils {
                         "Putting file %1$s into bucket %2$s with key %3$s.",
                         file.getAbsolutePath(), bucketName, key));
             }
-            client.putObject(bucketName, key, file);
+            putObject(client, transferOptions, bucketName, key, file);
         }
 
     }
@@ -492,4 +1051,135 @@ public final class S3Utils {
 
     }
 
+    /**
+     * How files larger than a part are sent to and received from S3.
+     */
+    public static final class TransferOptions {
+
+        public static final TransferOptions DEFAULT = new TransferOptions(
+                DEFAULT_PART_SIZE, DEFAULT_MAX_CONCURRENCY);
+
+        private final long partSize;
+        private final int maxConcurrency;
+
+        /**
+         * @param partSize
+         *            size of the parts files are sent and received in, at
+         *            least {@link S3Utils#MIN_PART_SIZE}
+         * @param maxConcurrency
+         *            number of parts of a file sent or received at a time
+         */
+        public TransferOptions(final long partSize, final int maxConcurrency) {
+            this.partSize = max(partSize, MIN_PART_SIZE);
+            this.maxConcurrency = max(maxConcurrency, 1);
+        }
+
+        public long getPartSize() {
+            return partSize;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+    }
+
+    /**
+     * The parts of an object received so far, kept in a properties file so
+     * an interrupted download can be resumed.
+     */
+    private static final class DownloadState {
+
+        private final File file;
+        private final String eTag;
+        private final long length;
+        private final long partSize;
+        private final Set<Integer> received = new TreeSet<Integer>();
+
+        DownloadState(final File file, final String eTag, final long length,
+                final long partSize) {
+            this.file = file;
+            this.eTag = eTag;
+            this.length = length;
+            this.partSize = partSize;
+        }
+
+        /**
+         * @return true if the state on disk is for this version of the object
+         */
+        synchronized boolean load() {
+            if (!file.exists()) {
+                return false;
+            }
+            final Properties properties = new Properties();
+            try {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Ignored unreadable download state " + file, e);
+                return false;
+            }
+            if (!String.valueOf(eTag).equals(properties.getProperty("etag"))
+                    || length != NumbersUtil.parseLong(
+                            properties.getProperty("length"), -1)
+                    || partSize != NumbersUtil.parseLong(
+                            properties.getProperty("partsize"), -1)) {
+                return false;
+            }
+            for (final String part : properties.getProperty("parts", "")
+                    .split(",")) {
+                if (isNotBlank(part)) {
+                    received.add(Integer.valueOf(part.trim()));
+                }
+            }
+            return true;
+        }
+
+        synchronized void reset() {
+            received.clear();
+            save();
+        }
+
+        synchronized int size() {
+            return received.size();
+        }
+
+        synchronized boolean isReceived(final int partNumber) {
+            return received.contains(partNumber);
+        }
+
+        synchronized void received(final int partNumber) {
+            received.add(partNumber);
+            save();
+        }
+
+        synchronized void delete() {
+            file.delete();
+        }
+
+        private void save() {
+            final Properties properties = new Properties();
+            properties.setProperty("etag", String.valueOf(eTag));
+            properties.setProperty("length", Long.toString(length));
+            properties.setProperty("partsize", Long.toString(partSize));
+            properties.setProperty("parts", join(received, ","));
+            try {
+                final FileOutputStream out = new FileOutputStream(file);
+                try {
+                    properties.store(out, null);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                // the download goes on, it just can't be resumed from here
+                LOGGER.warn("Unable to save download state " + file, e);
+            }
+        }
+
+    }
+
 }
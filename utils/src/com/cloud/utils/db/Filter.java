@@ -32,11 +32,23 @@ import com.cloud.utils.ReflectUtil;
  * 
  *  Filter nameFilter = new Filter(s_nameFilter);
  *
+ *  A filter pages either by offset, which the database has to count its way up to, or by
+ *  seeking past the last row of the previous page on the first order by field, which it
+ *  finds in the index of that field however deep the page is:
+ *
+ *  Filter filter = new Filter(EventVO.class, "id", true, null, 500L);
+ *  filter.setSeekAfter(lastEventId);
+ *
  */
 public class Filter {
     Long _offset;
     Long _limit;
     String _orderBy;
+    String _seekField;
+    boolean _seekAscending;
+    boolean _seek;
+    Object _seekAfter;
+    boolean _seekApplied;
     
     /**
      * @param clazz the VO object type
@@ -61,6 +73,8 @@ public class Filter {
      */
     public Filter(Filter that) {
         this._orderBy = that._orderBy;
+        this._seekField = that._seekField;
+        this._seekAscending = that._seekAscending;
         this._limit = null;
         that._limit = null;
     }
@@ -87,6 +101,8 @@ public class Filter {
         order.append(".").append(name).append(ascending ? " ASC " : " DESC ");
         
         if (_orderBy == null) {
+            _seekField = field;
+            _seekAscending = ascending;
             _orderBy = order.insert(0, " ORDER BY ").toString();
         } else {
             _orderBy = order.insert(0, _orderBy).toString();
@@ -112,4 +128,39 @@ public class Filter {
     public void setLimit(Long limit) {
         _limit = limit;
     }
+
+    /**
+     * Pages by seeking instead of by offset.  The first order by field has to be unique.
+     * @param seekAfter value of the first order by field in the last row of the previous page, null for the first page.
+     */
+    public void setSeekAfter(Object seekAfter) {
+        assert (_seekField != null) : "Seeking needs a field to order by";
+        _seek = true;
+        _seekAfter = seekAfter;
+        _offset = null;
+    }
+
+    public boolean isSeek() {
+        return _seek;
+    }
+
+    public Object getSeekAfter() {
+        return _seekAfter;
+    }
+
+    public String getSeekField() {
+        return _seekField;
+    }
+
+    public boolean isSeekAscending() {
+        return _seekAscending;
+    }
+
+    void setSeekApplied(boolean seekApplied) {
+        _seekApplied = seekApplied;
+    }
+
+    boolean isSeekApplied() {
+        return _seekApplied;
+    }
 }
@@ -127,6 +127,15 @@ public interface GenericDao<T, ID extends Serializable> {
     boolean releaseFromLockTable(final ID id);
     
     boolean update(ID id, T entity);
+
+    /**
+     * Updates a list of entity beans retrieved via createForUpdate() or the
+     * find methods.  Entities that changed the same set of columns share one
+     * batched statement so the whole list costs a handful of round trips.
+     * @param entities entity beans to update.
+     * @return number of rows updated.
+     */
+    int updateBatch(List<T> entities);
     
     /**
      * Look for all active rows.
@@ -196,6 +205,16 @@ public interface GenericDao<T, ID extends Serializable> {
      * there's no primary key specified in the VO object.
      **/
     T persist(T entity);
+
+    /**
+     * Persists a list of new entity beans using multi-row inserts.  The id
+     * field of each entity is set to the new id but, unlike persist(), the
+     * beans are not reloaded so columns defaulted by the database are not
+     * reflected in the returned objects.
+     * @param entities beans to persist.
+     * @return the same entities with their ids filled in.
+     **/
+    List<T> persistBatch(List<T> entities);
     
     /**
      * remove the entity bean.  This will call delete automatically if
@@ -37,8 +37,11 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -121,6 +124,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected String _table;
 
     protected String _tables;
+    protected List<String> _tableNames;
 
     protected Field[] _embeddedFields;
 
@@ -147,6 +151,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected Factory _factory;
     protected Enhancer _searchEnhancer;
     protected int _timeoutSeconds;
+    protected int _batchSize = 500;                // rows per multi-row insert or jdbc batch
 
     protected final static CallbackFilter s_callbackFilter = new UpdateFilter();
 
@@ -214,6 +219,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         _idField = _idAttributes.get(_table).length > 0 ? _idAttributes.get(_table)[0].field : null;
 
         _tables = generator.buildTableReferences();
+        _tableNames = new ArrayList<String>(_idAttributes.keySet());
 
         _allAttributes = generator.getAllAttributes();
         _allColumns = generator.getAllColumns();
@@ -347,6 +353,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     @Override
     public List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock, 
             final boolean cache, final boolean enable_query_cache) {
+        if (sc == null && filter != null && filter.getSeekAfter() != null) {
+            sc = createSearchCriteria();
+        }
+        addSeek(sc, filter);
         String clause = sc != null ? sc.getWhereClause() : null;
         if (clause != null && clause.length() == 0) {
             clause = null;
@@ -376,6 +386,20 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         final String sql = str.toString();
 
+        // Results read inside a transaction may include its own uncommitted changes so they're not cached.
+        QueryCache.Key queryKey = null;
+        String[] queryTables = null;
+        long[] queryVersions = null;
+        if (_queryCache != null && lock == null && !txn.dbTxnStarted()) {
+            queryKey = new QueryCache.Key(sql, getQueryValues(clause != null ? sc : null, joins, groupByValues));
+            List<Object[]> rows = _queryCache.get(queryKey);
+            if (rows != null) {
+                return fromQueryCacheRows(rows);
+            }
+            queryTables = getQueryTables(joins);
+            queryVersions = QueryCache.getVersions(queryTables);
+        }
+
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
@@ -404,6 +428,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             while (rs.next()) {
                 result.add(toEntityBean(rs, cache));
             }
+            if (queryKey != null) {
+                _queryCache.put(queryKey, queryTables, queryVersions, toQueryCacheRows(result));
+            }
             return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -414,6 +441,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @Override @SuppressWarnings("unchecked")
     public <M> List<M> customSearchIncludingRemoved(SearchCriteria<M> sc, final Filter filter) {
+        addSeek(sc, filter);
         String clause = sc != null ? sc.getWhereClause() : null;
         if (clause != null && clause.length() == 0) {
             clause = null;
@@ -749,6 +777,100 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return count;
     }
 
+    @DB(txn=false)
+    protected Object[] getQueryValues(SearchCriteria<?> sc, Collection<JoinBuilder<SearchCriteria<?>>> joins, List<Object> groupByValues) {
+        List<Object> values = new ArrayList<Object>();
+        if (sc != null) {
+            for (Pair<Attribute, Object> value : sc.getValues()) {
+                values.add(value.second());
+            }
+        }
+        if (joins != null) {
+            addJoinValues(values, joins);
+        }
+        if (groupByValues != null) {
+            values.addAll(groupByValues);
+        }
+        return values.toArray();
+    }
+
+    // Same order as addJoinAttributes()
+    @DB(txn=false)
+    protected void addJoinValues(List<Object> values, Collection<JoinBuilder<SearchCriteria<?>>> joins) {
+        for (JoinBuilder<SearchCriteria<?>> join : joins) {
+            for (Pair<Attribute, Object> value : join.getT().getValues()) {
+                values.add(value.second());
+            }
+        }
+
+        for (JoinBuilder<SearchCriteria<?>> join : joins) {
+            if (join.getT().getJoins() != null) {
+                addJoinValues(values, join.getT().getJoins());
+            }
+        }
+    }
+
+    @DB(txn=false)
+    protected String[] getQueryTables(Collection<JoinBuilder<SearchCriteria<?>>> joins) {
+        if (joins == null || joins.isEmpty()) {
+            return _tableNames.toArray(new String[_tableNames.size()]);
+        }
+        Set<String> tables = new HashSet<String>(_tableNames);
+        addJoinTables(tables, joins);
+        return tables.toArray(new String[tables.size()]);
+    }
+
+    @DB(txn=false)
+    protected void addJoinTables(Set<String> tables, Collection<JoinBuilder<SearchCriteria<?>>> joins) {
+        for (JoinBuilder<SearchCriteria<?>> join : joins) {
+            tables.add(join.getFirstAttribute().table);
+            tables.add(join.getSecondAttribute().table);
+            if (join.getT().getJoins() != null) {
+                addJoinTables(tables, join.getT().getJoins());
+            }
+        }
+    }
+
+    /**
+     * The query cache keeps the field values rather than the entities so
+     * every caller gets its own entities to change.
+     */
+    @DB(txn=false)
+    protected List<Object[]> toQueryCacheRows(List<T> entities) throws IllegalAccessException {
+        List<Object[]> rows = new ArrayList<Object[]>(entities.size());
+        for (T entity : entities) {
+            Object[] row = new Object[_queryCacheFields.length];
+            for (int i = 0; i < _queryCacheFields.length; i++) {
+                row[i] = _queryCacheFields[i].get(entity);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected List<T> fromQueryCacheRows(List<Object[]> rows) {
+        List<T> entities = new ArrayList<T>(rows.size());
+        try {
+            for (Object[] row : rows) {
+                T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+                for (int i = 0; i < _queryCacheFields.length; i++) {
+                    Object value = row[i];
+                    if (value instanceof List) {
+                        value = new ArrayList<Object>((List<Object>)value);
+                    } else if (value instanceof Set) {
+                        value = new HashSet<Object>((Set<Object>)value);
+                    }
+                    _queryCacheFields[i].set(entity, value);
+                }
+                entities.add(entity);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to copy the cached fields", e);
+        }
+        return entities;
+    }
+
     protected int update(ID id, UpdateBuilder ub, T entity) {
         if (_cache != null) {
             _cache.remove(id);
@@ -806,6 +928,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             int result = pstmt.executeUpdate();
+            txn.invalidateOnCommit(_tableNames);
             txn.commit();
             ub.clear();
             return result;
@@ -1022,13 +1145,34 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    /**
+     * Adds the condition that starts a seeking filter after the last row of the previous page.
+     */
+    @DB(txn=false)
+    protected void addSeek(final SearchCriteria<?> sc, final Filter filter) {
+        if (filter == null || filter.getSeekAfter() == null || sc == null) {
+            return;
+        }
+        sc.setSeek(filter.getSeekField(), filter.isSeekAscending() ? SearchCriteria.Op.GT : SearchCriteria.Op.LT, filter.getSeekAfter());
+        filter.setSeekApplied(true);
+    }
+
     @DB(txn=false)
     protected void addFilter(final StringBuilder sql, final Filter filter) {
         if (filter != null) {
             if (filter.getOrderBy() != null) {
                 sql.append(filter.getOrderBy());
             }
-            if (filter.getOffset() != null) {
+            if (filter.isSeek()) {
+                // a query that never went through addSeek() would return the first page over and over
+                if (filter.getSeekAfter() != null && !filter.isSeekApplied()) {
+                    throw new CloudRuntimeException("Seeking is not supported by this query: " + sql);
+                }
+                filter.setSeekApplied(false);
+                if (filter.getLimit() != null) {
+                    sql.append(" LIMIT ").append(filter.getLimit());
+                }
+            } else if (filter.getOffset() != null) {
                 sql.append(" LIMIT ");
                 sql.append(filter.getOffset());
                 if (filter.getLimit() != null) {
@@ -1040,6 +1184,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @Override @DB(txn=false)
     public List<T> listAllIncludingRemoved(final Filter filter) {
+        if (filter != null && filter.isSeek()) {
+            return searchIncludingRemoved(null, filter, null, true);
+        }
         final StringBuilder sql = createPartialSelectSql(null, false);
         addFilter(sql, filter);
 
@@ -1079,6 +1226,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         if (_removed == null) {
             return listAllIncludingRemoved(filter);
         }
+        if (filter != null && filter.isSeek()) {
+            return search(null, filter, null, true);
+        }
 
         final StringBuilder sql = createPartialSelectSql(null, true);
         sql.append(_removed.first());
@@ -1106,6 +1256,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 pstmt.executeUpdate();
             }
 
+            txn.invalidateOnCommit(_tableNames);
             txn.commit();
             if (_cache != null) {
                 _cache.remove(id);
@@ -1137,7 +1288,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            int result = pstmt.executeUpdate();
+            txn.invalidateOnCommit(_tableNames);
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1312,6 +1465,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
                 insertElementCollection(entity, _idAttributes.get(_table)[0], id, ecAttributes);
             }
+            txn.invalidateOnCommit(_tableNames);
             txn.commit();
         } catch (final SQLException e) {
             if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
@@ -1328,6 +1482,206 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> persistBatch(final List<T> entities) {
+        List<T> fresh = new ArrayList<T>(entities.size());
+        List<T> enhanced = new ArrayList<T>();
+        for (T entity : entities) {
+            if (Enhancer.isEnhanced(entity.getClass())) {
+                enhanced.add(entity);
+            } else {
+                fresh.add(entity);
+            }
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        txn.start();
+        if (enhanced.size() > 0) {
+            updateBatch(enhanced);
+        }
+
+        if (_ecAttributes != null && _ecAttributes.size() > 0) {
+            // Element collections are written row by row anyways.
+            for (T entity : fresh) {
+                persist(entity);
+            }
+            txn.commit();
+            return entities;
+        }
+
+        String sql = null;
+        try {
+            for (int start = 0; start < fresh.size(); start += _batchSize) {
+                List<T> chunk = fresh.subList(start, Math.min(start + _batchSize, fresh.size()));
+                for (T entity : chunk) {
+                    generateValues(entity);
+                }
+
+                boolean first = true;
+                for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                    sql = buildMultiRowInsertSql(pair.first(), chunk.size());
+                    final Attribute[] attrs = pair.second();
+
+                    PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                    int index = 1;
+                    for (T entity : chunk) {
+                        index = prepareAttributes(pstmt, entity, attrs, index) + 1;
+                    }
+                    pstmt.executeUpdate();
+
+                    if (first && _idField != null) {
+                        final ResultSet rs = pstmt.getGeneratedKeys();
+                        for (T entity : chunk) {
+                            if (rs == null || !rs.next()) {
+                                break;
+                            }
+                            Object id = rs.getObject(1);
+                            if (_idField.getType() == Long.class || _idField.getType() == long.class) {
+                                id = ((Number)id).longValue();
+                            }
+                            _idField.set(entity, id);
+                        }
+                    }
+                    first = false;
+                }
+            }
+            txn.invalidateOnCommit(_tableNames);
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + sql, e);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to set the generated id", e);
+        }
+
+        return entities;
+    }
+
+    /**
+     * Fills in the dao generated values on the entity itself so the caller
+     * sees them without the entity being reloaded.  Ids coming from a table
+     * generator are taken from the SequenceFetcher the same way
+     * getNextInSequence() does.
+     */
+    @DB(txn=false)
+    protected void generateValues(final T entity) throws IllegalAccessException {
+        for (final Pair<String, Attribute[]> pair : _insertSqls) {
+            for (Attribute attr : pair.second()) {
+                if (!attr.is(Attribute.Flag.DaoGenerated) || attr.field == null || attr.is(Attribute.Flag.DC)) {
+                    continue;
+                }
+                Object value = attr.field.get(entity);
+                if (value != null && !(attr.is(Attribute.Flag.TableGV) && value instanceof Number && ((Number)value).longValue() == 0)) {
+                    continue;
+                }
+                if (attr.is(Attribute.Flag.TableGV)) {
+                    TableGenerator tg = _tgs.get(attr.field.getName());
+                    assert (tg != null) : "Couldn't find Table generator for " + attr.field.getName();
+                    Class<?> type = attr.field.getType() == long.class ? Long.class : attr.field.getType();
+                    value = s_seqFetcher.getNextSequence(type, tg);
+                } else {
+                    value = generateValue(attr);
+                }
+                if (value != null) {
+                    attr.field.set(entity, value);
+                }
+            }
+        }
+    }
+
+    protected static String buildMultiRowInsertSql(final String sql, final int rows) {
+        int values = sql.lastIndexOf(" VALUES ");
+        assert (values > 0) : "Not an insert statement: " + sql;
+        String row = sql.substring(values + " VALUES ".length());
+        StringBuilder multi = new StringBuilder(sql.length() + (row.length() + 2) * rows);
+        multi.append(sql);
+        for (int i = 1; i < rows; i++) {
+            multi.append(", ").append(row);
+        }
+        return multi.toString();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int updateBatch(final List<T> entities) {
+        // Entities that changed the same columns can share a statement.
+        Map<String, List<Pair<UpdateBuilder, ID>>> batches = new LinkedHashMap<String, List<Pair<UpdateBuilder, ID>>>();
+        String whereClause = null;
+        int result = 0;
+
+        final Transaction txn = Transaction.currentTxn();
+        txn.start();
+        try {
+            for (T entity : entities) {
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+                UpdateBuilder ub = getUpdateBuilder(entity);
+                ID id = (ID)_idField.get(entity);
+                if (ub.getCollectionChanges() != null) {
+                    result += update(id, ub, entity);
+                    continue;
+                }
+                if (!ub.hasChanges()) {
+                    continue;
+                }
+                if (whereClause == null) {
+                    SearchCriteria<T> sc = createSearchCriteria();
+                    sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
+                    whereClause = sc.getWhereClause();
+                }
+                String sql = ub.toSql(_tables).append(whereClause).toString();
+                List<Pair<UpdateBuilder, ID>> batch = batches.get(sql);
+                if (batch == null) {
+                    batch = new ArrayList<Pair<UpdateBuilder, ID>>();
+                    batches.put(sql, batch);
+                }
+                batch.add(new Pair<UpdateBuilder, ID>(ub, id));
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the id", e);
+        }
+
+        String sql = null;
+        try {
+            for (Map.Entry<String, List<Pair<UpdateBuilder, ID>>> entry : batches.entrySet()) {
+                sql = entry.getKey();
+                List<Pair<UpdateBuilder, ID>> batch = entry.getValue();
+                PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+                for (int start = 0; start < batch.size(); start += _batchSize) {
+                    List<Pair<UpdateBuilder, ID>> chunk = batch.subList(start, Math.min(start + _batchSize, batch.size()));
+                    for (Pair<UpdateBuilder, ID> update : chunk) {
+                        int i = 1;
+                        for (final Ternary<Attribute, Boolean, Object> value : update.first().getChanges()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.third());
+                        }
+                        prepareAttribute(i, pstmt, _idAttributes.get(_table)[0], update.second());
+                        pstmt.addBatch();
+                    }
+                    for (int count : pstmt.executeBatch()) {
+                        result += count > 0 ? count : 0;
+                    }
+                }
+                for (Pair<UpdateBuilder, ID> update : batch) {
+                    update.first().clear();
+                    if (_cache != null) {
+                        _cache.remove(update.second());
+                    }
+                }
+            }
+            txn.invalidateOnCommit(_tableNames);
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+        return result;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -1644,6 +1998,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
 
             pstmt.executeUpdate();
+            txn.invalidateOnCommit(_tableNames);
             txn.commit();
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on " + pstmt, e);
@@ -1676,6 +2031,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             final int result = pstmt.executeUpdate();
+            txn.invalidateOnCommit(_tableNames);
             txn.commit();
             if (_cache != null) {
                 _cache.remove(id);
@@ -1700,6 +2056,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected Cache _cache;
+    protected QueryCache _queryCache;
+    protected Field[] _queryCacheFields;
+
     @DB(txn=false)
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
@@ -1715,6 +2074,27 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         } else {
             _cache = null;
         }
+
+        final String querySize = (String)params.get("query.cache.size");
+        if (querySize != null && _embeddedFields.length == 0) {
+            Set<Field> fields = new HashSet<Field>();
+            for (Attribute attr : _partialSelectSql.second()) {
+                if (attr.field != null) {
+                    fields.add(attr.field);
+                }
+            }
+            for (Attribute attr : _ecAttributes) {
+                fields.add(attr.field);
+            }
+            _queryCacheFields = fields.toArray(new Field[fields.size()]);
+
+            final int live = NumbersUtil.parseInt((String)params.get("query.cache.time.to.live"), 60);
+            final int idle = NumbersUtil.parseInt((String)params.get("query.cache.time.to.idle"), 60);
+            _queryCache = new QueryCache(getName(), _tableNames, NumbersUtil.parseInt(querySize, 0), live, idle);
+            s_logger.info("Query cache created for " + getName() + " on " + _tableNames);
+        } else {
+            _queryCache = null;
+        }
     }
 
     @Override @DB(txn=false)
@@ -1723,6 +2103,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         final String value = (String)params.get("lock.timeout");
         _timeoutSeconds = NumbersUtil.parseInt(value, 300);
+        _batchSize = NumbersUtil.parseInt((String)params.get("batch.size"), 500);
 
         createCache(params);
         final boolean load = Boolean.parseBoolean((String)params.get("cache.preload"));
@@ -0,0 +1,276 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * QueryCache keeps the results of the searches a DAO runs, keyed on the
+ * generated SQL and the bound parameters.  Each result remembers the version
+ * of every table it was read from, including the tables pulled in by joins.
+ * Committing a write to one of those tables bumps the table version, and the
+ * result is dropped the next time someone looks it up.
+ *
+ * Table versions are global to the process so a write through one DAO
+ * invalidates what other DAOs cached on the same table.  Writes are also
+ * handed to the registered Listener so other management servers can
+ * invalidate their copies.  Writes that don't go through GenericDaoBase,
+ * such as hand written UPDATE statements, are not seen, so only turn the
+ * query cache on for DAOs whose tables are written through GenericDaoBase.
+ */
+public class QueryCache extends StandardMBean implements QueryCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(QueryCache.class);
+
+    private static final ConcurrentHashMap<String, AtomicLong> s_versions = new ConcurrentHashMap<String, AtomicLong>();
+    private static volatile boolean s_enabled = false;
+    private static volatile Listener s_listener;
+
+    private final String _name;
+    private final Cache _cache;
+    private final Set<String> _tables;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+    private long _evictionsAtReset = 0;
+
+    /**
+     * Listener is told about every table whose cached results were
+     * invalidated by a local write.
+     */
+    public interface Listener {
+        void invalidated(Set<String> tables);
+    }
+
+    public static void setListener(Listener listener) {
+        s_listener = listener;
+    }
+
+    public static boolean isEnabled() {
+        return s_enabled;
+    }
+
+    /**
+     * Invalidates everything cached from the tables.
+     * @param tables tables that were written to.
+     * @param propagate true to pass the invalidation on to the listener, false if it came from a peer.
+     */
+    public static void invalidate(Collection<String> tables, boolean propagate) {
+        if (!s_enabled || tables == null || tables.isEmpty()) {
+            return;
+        }
+        for (String table : tables) {
+            AtomicLong version = s_versions.get(table);
+            if (version != null) {
+                version.incrementAndGet();
+            }
+        }
+
+        Listener listener = s_listener;
+        if (propagate && listener != null) {
+            try {
+                listener.invalidated(new HashSet<String>(tables));
+            } catch (Exception e) {
+                s_logger.warn("Unable to propagate the invalidation of " + tables, e);
+            }
+        }
+    }
+
+    protected static long[] getVersions(String[] tables) {
+        long[] versions = new long[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            versions[i] = getVersion(tables[i]).get();
+        }
+        return versions;
+    }
+
+    protected static AtomicLong getVersion(String table) {
+        AtomicLong version = s_versions.get(table);
+        if (version == null) {
+            version = new AtomicLong();
+            AtomicLong existing = s_versions.putIfAbsent(table, version);
+            if (existing != null) {
+                version = existing;
+            }
+        }
+        return version;
+    }
+
+    public QueryCache(String name, Collection<String> tables, int maxElements, int live, int idle) {
+        super(QueryCacheMBean.class, false);
+        _name = name;
+        _tables = new TreeSet<String>(tables);
+        for (String table : _tables) {
+            getVersion(table);
+        }
+        _cache = new Cache(name + "-QueryCache", maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
+        CacheManager.create().addCache(_cache);
+        s_enabled = true;
+
+        try {
+            JmxUtil.registerMBean("QueryCache", name, this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the query cache mbean for " + name, e);
+        }
+    }
+
+    /**
+     * @return the cached rows for the query or null if there's nothing
+     *         cached or what was cached is out of date.
+     */
+    public List<Object[]> get(Key key) {
+        Element element = _cache.get(key);
+        if (element == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+
+        Entry entry = (Entry)element.getObjectValue();
+        for (int i = 0; i < entry.tables.length; i++) {
+            if (getVersion(entry.tables[i]).get() != entry.versions[i]) {
+                _cache.remove(key);
+                _invalidations.incrementAndGet();
+                _misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        _hits.incrementAndGet();
+        return entry.rows;
+    }
+
+    /**
+     * Caches the rows of a query.
+     * @param versions table versions taken with getVersions() before the query was run.
+     */
+    public void put(Key key, String[] tables, long[] versions, List<Object[]> rows) {
+        _cache.put(new Element(key, new Entry(tables, versions, rows)));
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return _cache.getStatistics().getEvictionCount() - _evictionsAtReset;
+    }
+
+    @Override
+    public int getSize() {
+        return _cache.getSize();
+    }
+
+    @Override
+    public String getTables() {
+        return _tables.toString();
+    }
+
+    @Override
+    public String clear() {
+        _cache.removeAll();
+        return "Cleared";
+    }
+
+    @Override
+    public String resetCounters() {
+        _hits.set(0);
+        _misses.set(0);
+        _invalidations.set(0);
+        _evictionsAtReset = _cache.getStatistics().getEvictionCount();
+        return "Reset";
+    }
+
+    /**
+     * Key is the SQL statement together with the values bound to it.
+     */
+    public static class Key {
+        private final String _sql;
+        private final Object[] _params;
+        private final int _hashCode;
+
+        public Key(String sql, Object[] params) {
+            _sql = sql;
+            _params = params;
+            _hashCode = 31 * sql.hashCode() + Arrays.deepHashCode(params);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key)obj;
+            return _hashCode == that._hashCode && _sql.equals(that._sql) && Arrays.deepEquals(_params, that._params);
+        }
+
+        @Override
+        public String toString() {
+            return _sql + " " + Arrays.deepToString(_params);
+        }
+    }
+
+    protected static class Entry {
+        final String[] tables;
+        final long[] versions;
+        final List<Object[]> rows;
+
+        Entry(String[] tables, long[] versions, List<Object[]> rows) {
+            this.tables = tables;
+            this.versions = versions;
+            this.rows = rows;
+        }
+    }
+}
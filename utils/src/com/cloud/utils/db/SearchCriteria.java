@@ -106,6 +106,8 @@ public class SearchCriteria<K> {
         Result
     }
 
+    private static final String SEEK_CONDITION = "_seek";
+
     private final Map<String, Attribute> _attrs;
     private final ArrayList<Condition> _conditions;
     private ArrayList<Condition> _additionals = null;
@@ -297,6 +299,17 @@ public class SearchCriteria<K> {
         setParameters(name, values);
     }
     
+    /**
+     * Sets where a seeking filter starts, a criteria searched page after page keeps a single
+     * seek condition whose value moves on with each page.
+     */
+    void setSeek(String fieldName, Op op, Object value) {
+        Condition condition = new Condition(SEEK_CONDITION);
+        _additionals.remove(condition);
+        addCondition(SEEK_CONDITION, " AND ", fieldName, op);
+        setParameters(SEEK_CONDITION, value);
+    }
+
     protected void addCondition(String conditionName, String cond, String fieldName, Op op) {
     	Attribute attr = _attrs.get(fieldName);
     	assert attr != null : "Unable to find field: " + fieldName;
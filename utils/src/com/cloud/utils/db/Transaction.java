@@ -24,10 +24,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
@@ -105,6 +108,7 @@ public class Transaction {
     private long _txnTime;
     private Statement _stmt;
     private String _creator;
+    private Set<String> _dirtyTables;
 
     private Transaction _prev = null;
 
@@ -196,6 +200,33 @@ public class Transaction {
         return _txn;
     }
 
+    /**
+     * Records tables written in this transaction.  The query cache entries
+     * for them are invalidated once the changes are committed, or right away
+     * if there's no transaction.
+     */
+    public void invalidateOnCommit(Collection<String> tables) {
+        if (!QueryCache.isEnabled()) {
+            return;
+        }
+        if (!_txn) {
+            QueryCache.invalidate(tables, true);
+            return;
+        }
+        if (_dirtyTables == null) {
+            _dirtyTables = new HashSet<String>();
+        }
+        _dirtyTables.addAll(tables);
+    }
+
+    protected void invalidateDirtyTables(boolean committed) {
+        Set<String> tables = _dirtyTables;
+        _dirtyTables = null;
+        if (committed && tables != null) {
+            QueryCache.invalidate(tables, true);
+        }
+    }
+
     public static Connection getStandaloneConnectionWithException() throws SQLException {
         Connection conn = s_ds.getConnection();
         if (s_connLogger.isTraceEnabled()) {
@@ -727,6 +758,7 @@ public class Transaction {
                 clearLockTimes();
                 closeConnection();
             }
+            invalidateDirtyTables(true);
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -836,6 +868,7 @@ public class Transaction {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        invalidateDirtyTables(false);
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -861,6 +894,7 @@ public class Transaction {
 
         if (!hasTxnInStack()) {
             _txn = false;
+            invalidateDirtyTables(false);
             closeConnection();
         }
     }
@@ -913,6 +947,7 @@ public class Transaction {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            invalidateDirtyTables(true);
         }
     }
 
@@ -28,6 +28,9 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Formatter;
 import java.util.List;
 import java.util.Random;
@@ -824,6 +827,76 @@ public class NetUtils {
 
     }
 
+    /**
+     * Coalesces a list of IPv4 cidrs into the smallest list of cidrs that covers exactly the
+     * same addresses, e.g. 10.1.1.0/32 .. 10.1.1.255/32 becomes 10.1.1.0/24. Entries that
+     * are not valid IPv4 cidrs are passed through unchanged at the end of the result.
+     */
+    public static List<String> aggregateCidrs(Collection<String> cidrs) {
+        List<long[]> ranges = new ArrayList<long[]>(cidrs.size());
+        List<String> result = new ArrayList<String>();
+        List<String> unparsed = new ArrayList<String>();
+        for (String cidr : cidrs) {
+            String[] tokens = cidr.split("/");
+            int size = -1;
+            if (tokens.length == 2 && isValidIp(tokens[0])) {
+                try {
+                    size = Integer.parseInt(tokens[1]);
+                } catch (NumberFormatException e) {
+                    size = -1;
+                }
+            }
+            if (size < 0 || size > 32) {
+                unparsed.add(cidr);
+                continue;
+            }
+            long blockSize = 1L << (32 - size);
+            long start = ip2Long(tokens[0]) & ~(blockSize - 1);
+            ranges.add(new long[] { start, start + blockSize - 1 });
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] r1, long[] r2) {
+                return r1[0] < r2[0] ? -1 : (r1[0] > r2[0] ? 1 : 0);
+            }
+        });
+
+        long start = -1;
+        long end = -1;
+        for (long[] range : ranges) {
+            if (start >= 0 && range[0] <= end + 1) {
+                end = Math.max(end, range[1]);
+                continue;
+            }
+            if (start >= 0) {
+                rangeToCidrs(start, end, result);
+            }
+            start = range[0];
+            end = range[1];
+        }
+        if (start >= 0) {
+            rangeToCidrs(start, end, result);
+        }
+        result.addAll(unparsed);
+        return result;
+    }
+
+    private static void rangeToCidrs(long start, long end, List<String> result) {
+        while (start <= end) {
+            // the largest block that starts at start and does not go past end
+            int size = 32;
+            while (size > 0) {
+                long blockSize = 1L << (32 - size + 1);
+                if ((start & (blockSize - 1)) != 0 || start + blockSize - 1 > end) {
+                    break;
+                }
+                size--;
+            }
+            result.add(long2Ip(start) + "/" + size);
+            start += 1L << (32 - size);
+        }
+    }
+
     public static String getCidrSubNet(String cidr) {
         if (cidr == null || cidr.isEmpty()) {
             return null;
@@ -0,0 +1,208 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * BufferPool hands out direct ByteBuffers in power of two size classes so the
+ * SSL framing in Link doesn't create garbage for every packet.  Buffers larger
+ * than the largest size class are allocated on the heap and never pooled.
+ * Every size class keeps at most a fixed number of idle buffers; anything
+ * released beyond that is left to the garbage collector.
+ */
+public class BufferPool extends StandardMBean implements BufferPoolMBean {
+    private static final Logger s_logger = Logger.getLogger(BufferPool.class);
+
+    protected static final int MIN_SIZE_SHIFT = 10;      // 1k
+    protected static final int MAX_SIZE_SHIFT = 17;      // 128k
+    protected static final int DEFAULT_MAX_PER_CLASS = 256;
+
+    private static final BufferPool s_instance = new BufferPool(DEFAULT_MAX_PER_CLASS, true);
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _classes;
+    private final AtomicInteger[] _counts;
+    private final int _maxPerClass;
+
+    private final AtomicLong _acquired = new AtomicLong();
+    private final AtomicLong _reused = new AtomicLong();
+    private final AtomicLong _allocated = new AtomicLong();
+    private final AtomicLong _allocatedBytes = new AtomicLong();
+    private final AtomicLong _oversized = new AtomicLong();
+    private final AtomicLong _released = new AtomicLong();
+    private final AtomicLong _discarded = new AtomicLong();
+
+    public static BufferPool getInstance() {
+        return s_instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected BufferPool(int maxPerClass, boolean register) {
+        super(BufferPoolMBean.class, false);
+        _maxPerClass = maxPerClass;
+        int classes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        _classes = new ConcurrentLinkedQueue[classes];
+        _counts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            _classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _counts[i] = new AtomicInteger();
+        }
+        if (register) {
+            try {
+                JmxUtil.registerMBean("BufferPool", "Nio", this);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register the buffer pool mbean", e);
+            }
+        }
+    }
+
+    /**
+     * @return index of the smallest size class that can hold size bytes, -1 if none.
+     */
+    protected static int sizeClass(int size) {
+        int shift = MIN_SIZE_SHIFT;
+        while (shift <= MAX_SIZE_SHIFT) {
+            if (size <= (1 << shift)) {
+                return shift - MIN_SIZE_SHIFT;
+            }
+            shift++;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets a cleared buffer with at least size bytes of capacity.  The buffer
+     * should be handed back with release() once it is no longer used.
+     */
+    public ByteBuffer acquire(int size) {
+        _acquired.incrementAndGet();
+        int index = sizeClass(size);
+        if (index < 0) {
+            _oversized.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = _classes[index].poll();
+        if (buffer != null) {
+            _counts[index].decrementAndGet();
+            _reused.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        int capacity = 1 << (index + MIN_SIZE_SHIFT);
+        _allocated.incrementAndGet();
+        _allocatedBytes.addAndGet(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Hands a buffer back to the pool.  Buffers that did not come from
+     * acquire() are ignored so it's always safe to call.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int index = sizeClass(buffer.capacity());
+        if (index < 0 || buffer.capacity() != (1 << (index + MIN_SIZE_SHIFT))) {
+            return;
+        }
+        _released.incrementAndGet();
+        if (_counts[index].incrementAndGet() > _maxPerClass) {
+            _counts[index].decrementAndGet();
+            _discarded.incrementAndGet();
+            return;
+        }
+        buffer.clear();
+        _classes[index].offer(buffer);
+    }
+
+    @Override
+    public long getAcquired() {
+        return _acquired.get();
+    }
+
+    @Override
+    public long getReused() {
+        return _reused.get();
+    }
+
+    @Override
+    public long getAllocated() {
+        return _allocated.get();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return _allocatedBytes.get();
+    }
+
+    @Override
+    public long getOversized() {
+        return _oversized.get();
+    }
+
+    @Override
+    public long getReleased() {
+        return _released.get();
+    }
+
+    @Override
+    public long getDiscarded() {
+        return _discarded.get();
+    }
+
+    @Override
+    public int getPooledBuffers() {
+        int count = 0;
+        for (AtomicInteger classCount : _counts) {
+            count += classCount.get();
+        }
+        return count;
+    }
+
+    @Override
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < _counts.length; i++) {
+            bytes += (long)_counts[i].get() << (i + MIN_SIZE_SHIFT);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String resetCounters() {
+        _acquired.set(0);
+        _reused.set(0);
+        _allocated.set(0);
+        _allocatedBytes.set(0);
+        _oversized.set(0);
+        _released.set(0);
+        _discarded.set(0);
+        return "Reset";
+    }
+}
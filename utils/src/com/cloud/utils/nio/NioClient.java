@@ -62,6 +62,7 @@ public class NioClient extends NioConnection {
 
             addr = new InetSocketAddress(_host, _port);
             sch.connect(addr);
+            sch.socket().setTcpNoDelay(true);
         } catch (IOException e) {
         	_selector.close();
         	throw e;
@@ -26,10 +26,10 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -54,7 +54,7 @@ public abstract class NioConnection implements Runnable {
     protected boolean _isRunning;
     protected boolean _isStartup;
     protected int _port;
-    protected List<ChangeRequest> _todos;
+    protected Queue<ChangeRequest> _todos;
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
@@ -69,16 +69,33 @@ public abstract class NioConnection implements Runnable {
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
     }
 
+    /**
+     * Creates a connection that hands its tasks to an executor owned by
+     * someone else, such as the selector loops of a NioServer.
+     */
+    protected NioConnection(String name, HandlerFactory factory, ExecutorService executor) {
+        _name = name;
+        _isRunning = false;
+        _thread = null;
+        _selector = null;
+        _port = 0;
+        _factory = factory;
+        _executor = executor;
+    }
+
     public void start() {
-        _todos = new ArrayList<ChangeRequest>();
-        
+        _todos = new ConcurrentLinkedQueue<ChangeRequest>();
+
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
         _thread.start();
-        // Wait until we got init() done
+        // Wait until we got init() done.  The selector thread may have finished
+        // init() before we get here, or died trying, so don't wait blindly.
         synchronized(_thread) {
             try {
-                _thread.wait();
+                while (!_isStartup && _thread.isAlive()) {
+                    _thread.wait();
+                }
             } catch (InterruptedException e) {
                 s_logger.warn("Interrupted start thread ", e);
             }
@@ -283,21 +300,16 @@ public abstract class NioConnection implements Runnable {
     }
     
     protected void processTodos() {
-        List<ChangeRequest> todos;
-        if (_todos.size() == 0) {
+        if (_todos.isEmpty()) {
             return;             // Nothing to do.
         }
-        
-        synchronized (this) {
-            todos = _todos;
-            _todos = new ArrayList<ChangeRequest>();
-        }
 
         if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Todos Processing: " + todos.size());
+            s_logger.trace("Todos Processing: " + _todos.size());
         }
         SelectionKey key;
-        for (ChangeRequest todo : todos) {
+        ChangeRequest todo;
+        while ((todo = _todos.poll()) != null) {
             switch (todo.type) {
                 case ChangeRequest.CHANGEOPS :
                     try {
@@ -332,6 +344,18 @@ public abstract class NioConnection implements Runnable {
                         }
                     }
                     break;
+                case ChangeRequest.ACCEPT :
+                    Link newLink = (Link)todo.att;
+                    try {
+                        key = ((SocketChannel)(todo.key)).register(_selector, todo.ops, newLink);
+                        newLink.setKey(key);
+                        registerLink(newLink.getSocketAddress(), newLink);
+                        _executor.execute(_factory.create(Task.Type.CONNECT, newLink, null));
+                    } catch (ClosedChannelException e) {
+                        s_logger.warn("Couldn't register accepted socket: " + todo.key);
+                        newLink.terminated();
+                    }
+                    break;
                 case ChangeRequest.CLOSE :
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Trying to close " + todo.key);
@@ -417,26 +441,27 @@ public abstract class NioConnection implements Runnable {
     }
 
     public void register(int ops, SocketChannel key, Object att) {
-        ChangeRequest todo = new ChangeRequest(key, ChangeRequest.REGISTER, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
+        _todos.add(new ChangeRequest(key, ChangeRequest.REGISTER, ops, att));
+        _selector.wakeup();
+    }
+
+    /**
+     * Hands over a channel that has already finished its SSL handshake.  The
+     * channel is registered for reads on this connection's selector and the
+     * CONNECT task is scheduled once the link has its key.
+     */
+    public void accepted(SocketChannel channel, Link link) {
+        _todos.add(new ChangeRequest(channel, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link));
         _selector.wakeup();
     }
 
     public void change(int ops, SelectionKey key, Object att) {
-        ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
+        _todos.add(new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att));
         _selector.wakeup();
     }
 
     public void close(SelectionKey key) {
-        ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
-        synchronized (this) {
-            _todos.add(todo);
-        }
+        _todos.add(new ChangeRequest(key, ChangeRequest.CLOSE, 0, null));
         _selector.wakeup();
     }
 
@@ -451,6 +476,7 @@ public abstract class NioConnection implements Runnable {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;
 
         public Object key;
         public int type;
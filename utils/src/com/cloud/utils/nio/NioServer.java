@@ -18,25 +18,93 @@ package com.cloud.utils.nio;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * NioServer accepts connections on its own selector thread and spreads the
+ * accepted channels across a number of selector loops, each running its own
+ * selector, so reads and writes for many agents can use more than one core.
+ * The blocking SSL handshake is done on a separate thread pool so a slow
+ * client can't hold up the accept loop or the other connections.  A
+ * handshake that takes longer than the handshake timeout is cut off, so
+ * stalled peers give their threads back.  Connections wait for a handshake
+ * thread in a bounded queue, one that arrives when the queue is full is
+ * closed and the agent reconnects later.
+ */
 public class NioServer extends NioConnection {
     private final static Logger s_logger = Logger.getLogger(NioServer.class);
+
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT = 30000;
+    public static final int HANDSHAKE_BACKLOG = 1024;
     
     protected InetSocketAddress _localAddr;
     
-    protected WeakHashMap<InetSocketAddress, Link> _links;
+    protected Map<InetSocketAddress, Link> _links;
+
+    protected final SelectorLoop[] _loops;
+    protected final AtomicInteger _nextLoop = new AtomicInteger();
+    protected final ExecutorService _handshakeExecutor;
+    protected final ScheduledExecutorService _handshakeTimer;
+    protected volatile int _handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
     
     public NioServer(String name, int port, int workers, HandlerFactory factory) {
+        this(name, port, workers, 0, factory);
+    }
+
+    /**
+     * @param selectors number of selector loops serving the accepted connections.  0 means one per core.
+     */
+    public NioServer(String name, int port, int workers, int selectors, HandlerFactory factory) {
         super(name, port, workers, factory);
         _localAddr = null;
-        _links = new WeakHashMap<InetSocketAddress, Link>(1024);
+        _links = Collections.synchronizedMap(new WeakHashMap<InetSocketAddress, Link>(1024));
+        if (selectors <= 0) {
+            selectors = Runtime.getRuntime().availableProcessors();
+        }
+        _loops = new SelectorLoop[selectors];
+        for (int i = 0; i < selectors; i++) {
+            _loops[i] = new SelectorLoop(name + "-" + i);
+        }
+        ThreadPoolExecutor handshakeExecutor = new ThreadPoolExecutor(4 * selectors, 4 * selectors, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(HANDSHAKE_BACKLOG),
+                new NamedThreadFactory(name + "-Handshake"));
+        handshakeExecutor.allowCoreThreadTimeOut(true);
+        _handshakeExecutor = handshakeExecutor;
+        _handshakeTimer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + "-HandshakeTimer"));
+    }
+
+    /**
+     * @param timeout milliseconds a peer has to finish the SSL handshake before it is disconnected
+     */
+    public void setHandshakeTimeout(int timeout) {
+        _handshakeTimeout = timeout;
+    }
+
+    public int getHandshakeTimeout() {
+        return _handshakeTimeout;
     }
     
     @Override
@@ -50,8 +118,122 @@ public class NioServer extends NioConnection {
         ssc.socket().bind(_localAddr);
 
         ssc.register(_selector, SelectionKey.OP_ACCEPT, null);
+
+        for (SelectorLoop loop : _loops) {
+            loop.start();
+            if (!loop.isStartup()) {
+                throw new IOException("Unable to start selector loop " + loop._name);
+            }
+        }
         
-        s_logger.info("NioConnection started and listening on " + _localAddr.toString());
+        s_logger.info("NioConnection started and listening on " + _localAddr.toString() + " with " + _loops.length + " selector loops");
+    }
+
+    @Override
+    public void stop() {
+        _handshakeExecutor.shutdownNow();
+        _handshakeTimer.shutdownNow();
+        for (SelectorLoop loop : _loops) {
+            loop.stop();
+        }
+        super.stop();
+    }
+
+    @Override
+    public void cleanUp() throws IOException {
+        for (SelectorLoop loop : _loops) {
+            loop.cleanUp();
+        }
+        super.cleanUp();
+    }
+
+    public int getSelectorCount() {
+        return _loops.length;
+    }
+
+    @Override
+    protected void accept(SelectionKey key) throws IOException {
+        ServerSocketChannel serverSocketChannel = (ServerSocketChannel)key.channel();
+
+        final SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
+        socketChannel.socket().setKeepAlive(true);
+        socketChannel.socket().setTcpNoDelay(true);
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Connection accepted for " + socketChannel.socket());
+        }
+
+        try {
+            _handshakeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handshake(socketChannel);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            s_logger.warn("Too many connections waiting for the SSL handshake, closing the connection from " + socketChannel.socket().getRemoteSocketAddress());
+            closeChannel(socketChannel);
+        }
+    }
+
+    protected void handshake(final SocketChannel socketChannel) {
+        Socket socket = socketChannel.socket();
+        SSLEngine sslEngine = null;
+        // a blocking channel doesn't time out its reads, closing it is what gets the handshake thread back
+        ScheduledFuture<?> deadline = _handshakeTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                s_logger.warn("SSL handshake with " + socketChannel.socket().getRemoteSocketAddress() + " timed out");
+                closeChannel(socketChannel);
+            }
+        }, _handshakeTimeout, TimeUnit.MILLISECONDS);
+        try {
+            // Begin SSL handshake in BLOCKING mode
+            socketChannel.configureBlocking(true);
+
+            SSLContext sslContext = Link.initSSLContext(false);
+            sslEngine = sslContext.createSSLEngine();
+            sslEngine.setUseClientMode(false);
+            sslEngine.setNeedClientAuth(false);
+
+            Link.doHandshake(socketChannel, sslEngine, false);
+
+            if (!deadline.cancel(false)) {
+                throw new IOException("Handshake timed out");
+            }
+            socketChannel.configureBlocking(false);
+        } catch (Exception e) {
+            deadline.cancel(false);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Socket " + socket + " closed on read.  Probably -1 returned: " + e.getMessage());
+            }
+            closeChannel(socketChannel);
+            return;
+        }
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("SSL: Handshake done");
+        }
+
+        SelectorLoop loop = nextLoop();
+        Link link = new Link((InetSocketAddress)socket.getRemoteSocketAddress(), loop);
+        link.setSSLEngine(sslEngine);
+        loop.accepted(socketChannel, link);
+    }
+
+    private static void closeChannel(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+            socketChannel.socket().close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    protected SelectorLoop nextLoop() {
+        return _loops[(_nextLoop.getAndIncrement() & Integer.MAX_VALUE) % _loops.length];
     }
     
     @Override
@@ -81,4 +263,39 @@ public class NioServer extends NioConnection {
         link.send(data);
         return link.attachment();
     }
+
+    /**
+     * SelectorLoop serves the reads and writes of the connections it was
+     * handed.  It shares the handler executor and the link registry with
+     * the server that owns it.
+     */
+    protected class SelectorLoop extends NioConnection {
+        public SelectorLoop(String name) {
+            super(name, NioServer.this._factory, NioServer.this._executor);
+        }
+
+        @Override
+        protected void init() throws IOException {
+            _selector = SelectorProvider.provider().openSelector();
+        }
+
+        @Override
+        public void stop() {
+            _isRunning = false;
+            if (_thread != null) {
+                _thread.interrupt();
+                _selector.wakeup();
+            }
+        }
+
+        @Override
+        protected void registerLink(InetSocketAddress saddr, Link link) {
+            NioServer.this.registerLink(saddr, link);
+        }
+
+        @Override
+        protected void unregisterLink(InetSocketAddress saddr) {
+            NioServer.this.unregisterLink(saddr);
+        }
+    }
 }
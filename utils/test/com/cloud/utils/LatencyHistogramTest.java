@@ -0,0 +1,51 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(150);
+        }
+        histogram.record(90000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(90000, histogram.getMax());
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(5, histogram.getPercentile(90));
+        assertEquals(200, histogram.getPercentile(99));
+        assertEquals(90000, histogram.getPercentile(100));
+        assertEquals((90 * 3 + 9 * 150 + 90000) / 100, histogram.getAverage());
+    }
+
+    public void testReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        assertEquals(2, histogram.getBuckets()[0]);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getBuckets()[0]);
+    }
+}
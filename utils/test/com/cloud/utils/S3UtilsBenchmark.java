@@ -0,0 +1,74 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.S3Utils.TransferOptions;
+import com.cloud.utils.S3UtilsTest.StandInClientOptions;
+import com.cloud.utils.S3UtilsTest.StandInS3;
+
+/**
+ * Times a 64 MB put and get against the in-memory stand-in for S3, sent
+ * whole and in parts.  Not part of the unit tests, run it with
+ * -Dtest=S3UtilsBenchmark.
+ */
+public class S3UtilsBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(S3UtilsBenchmark.class);
+
+    public void testThroughput() throws Exception {
+        StandInS3 s3 = new StandInS3();
+        s3.start();
+        File dir = File.createTempFile("s3utils", "");
+        dir.delete();
+        dir.mkdir();
+        File target = new File(dir, "target");
+        target.mkdir();
+        try {
+            StandInClientOptions options = new StandInClientOptions(s3.getEndPoint());
+            File file = S3UtilsTest.createFile(dir, "throughput.vhd", 64 * S3UtilsTest.MB);
+
+            for (TransferOptions transferOptions : new TransferOptions[] { new TransferOptions(128 * S3UtilsTest.MB, 1),
+                    new TransferOptions(8 * S3UtilsTest.MB, 8) }) {
+                Profiler put = new Profiler();
+                put.start();
+                S3Utils.putFile(options, transferOptions, file, S3UtilsTest.BUCKET, "throughput.vhd");
+                put.stop();
+
+                Profiler get = new Profiler();
+                get.start();
+                File received = S3Utils.getFile(options, transferOptions, S3UtilsTest.BUCKET, "throughput.vhd", target, S3UtilsTest.BASE_NAME);
+                get.stop();
+                assertEquals(file.length(), received.length());
+                received.delete();
+
+                s_logger.info("64 MB in parts of " + transferOptions.getPartSize() / S3UtilsTest.MB + " MB, "
+                        + transferOptions.getMaxConcurrency() + " at a time: put " + 64 * 1000 / Math.max(1, put.getDuration())
+                        + " MB/s, get " + 64 * 1000 / Math.max(1, get.getDuration()) + " MB/s");
+            }
+            file.delete();
+        } finally {
+            s3.stop();
+            target.delete();
+            dir.delete();
+        }
+    }
+}
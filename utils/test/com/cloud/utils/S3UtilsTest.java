@@ -0,0 +1,762 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.S3Utils.ClientOptions;
+import com.cloud.utils.S3Utils.FileNamingStrategy;
+import com.cloud.utils.S3Utils.TransferOptions;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class S3UtilsTest extends TestCase {
+    static final String BUCKET = "templates";
+    static final int MB = 1024 * 1024;
+
+    /**
+     * Headers that keep the case they are set with, as S3 sends them; the
+     * sdk looks some of them up by their exact name.
+     */
+    static class Headers extends LinkedHashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+
+        String getFirst(String name) {
+            for (Map.Entry<String, String> header : entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        void set(String name, String value) {
+            for (Iterator<String> it = keySet().iterator(); it.hasNext();) {
+                if (it.next().equalsIgnoreCase(name)) {
+                    it.remove();
+                }
+            }
+            put(name, value);
+        }
+    }
+
+    /**
+     * One request to the stand-in and its response, written straight to
+     * the connection.
+     */
+    static class Exchange {
+        final String _method;
+        final URI _uri;
+        final Headers _requestHeaders;
+        final byte[] _requestBody;
+        final Headers _responseHeaders = new Headers();
+        final OutputStream _out;
+        long _declared = -1;
+        long _written;
+
+        Exchange(String method, URI uri, Headers requestHeaders, byte[] requestBody, OutputStream out) {
+            _method = method;
+            _uri = uri;
+            _requestHeaders = requestHeaders;
+            _requestBody = requestBody;
+            _out = out;
+        }
+
+        String getRequestMethod() {
+            return _method;
+        }
+
+        URI getRequestURI() {
+            return _uri;
+        }
+
+        Headers getRequestHeaders() {
+            return _requestHeaders;
+        }
+
+        InputStream getRequestBody() {
+            return new ByteArrayInputStream(_requestBody);
+        }
+
+        Headers getResponseHeaders() {
+            return _responseHeaders;
+        }
+
+        /**
+         * @param length length of the body, -1 for none
+         */
+        void sendResponseHeaders(int status, long length) throws IOException {
+            _declared = Math.max(0, length);
+            if (_responseHeaders.getFirst("Content-Length") == null) {
+                _responseHeaders.set("Content-Length", Long.toString(_declared));
+            }
+            StringBuilder sb = new StringBuilder("HTTP/1.1 " + status + " Status\r\n");
+            for (Map.Entry<String, String> header : _responseHeaders.entrySet()) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            sb.append("\r\n");
+            _out.write(sb.toString().getBytes("US-ASCII"));
+        }
+
+        OutputStream getResponseBody() {
+            return new FilterOutputStream(_out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    _out.write(b, off, len);
+                    _written += len;
+                }
+            };
+        }
+
+        /**
+         * @return true if the response was sent whole and the connection can take another request
+         */
+        boolean isComplete() {
+            return _declared >= 0 && _written == _declared && !"close".equalsIgnoreCase(_responseHeaders.getFirst("Connection"));
+        }
+
+        void close() throws IOException {
+            _out.flush();
+        }
+    }
+
+    /**
+     * Just enough of the S3 REST api, kept in memory, to stand in for S3 on
+     * the loopback interface.
+     */
+    static class StandInS3 implements Runnable {
+        final Map<String, byte[]> _objects = new ConcurrentHashMap<String, byte[]>();
+        final Map<String, Upload> _uploads = new ConcurrentHashMap<String, Upload>();
+        final AtomicInteger _nextUploadId = new AtomicInteger(1);
+        final AtomicInteger _putParts = new AtomicInteger();
+        final AtomicInteger _rangedGets = new AtomicInteger();
+        volatile int _failPart = -1;
+        volatile long _failRangeAt = -1;
+        volatile boolean _dropLastPart;
+        volatile boolean _corruptRange;
+        ServerSocket _serverSocket;
+        ExecutorService _executor;
+
+        static class Upload {
+            final String _key;
+            final Date _initiated = new Date();
+            final Map<Integer, byte[]> _parts = new ConcurrentHashMap<Integer, byte[]>();
+
+            Upload(String key) {
+                _key = key;
+            }
+        }
+
+        void start() throws IOException {
+            _serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            _executor = Executors.newCachedThreadPool();
+            _executor.execute(this);
+        }
+
+        void stop() throws IOException {
+            _serverSocket.close();
+            _executor.shutdownNow();
+        }
+
+        String getEndPoint() {
+            return "127.0.0.1:" + _serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = _serverSocket.accept();
+                } catch (IOException e) {
+                    // stopped
+                    return;
+                }
+                _executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // the client went away
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // already closed
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        void serve(Socket socket) throws IOException {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            String requestLine;
+            while ((requestLine = readLine(in)) != null && requestLine.length() > 0) {
+                String[] request = requestLine.split(" ");
+                Headers headers = new Headers();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+                if ("100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                    out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+                    out.flush();
+                }
+                byte[] body;
+                if ("chunked".equalsIgnoreCase(headers.getFirst("Transfer-Encoding"))) {
+                    ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+                    int size;
+                    while ((size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                        chunks.write(readFully(in, size));
+                        readLine(in);
+                    }
+                    while ((line = readLine(in)) != null && line.length() > 0) {
+                        // trailers
+                    }
+                    body = chunks.toByteArray();
+                } else {
+                    String contentLength = headers.getFirst("Content-Length");
+                    body = readFully(in, contentLength != null ? Integer.parseInt(contentLength) : 0);
+                }
+
+                Exchange exchange = new Exchange(request[0], URI.create(request[1]), headers, body, out);
+                handle(exchange);
+                if (!exchange.isComplete()) {
+                    return;
+                }
+            }
+        }
+
+        static byte[] readFully(InputStream in, int length) throws IOException {
+            byte[] data = new byte[length];
+            for (int pos = 0; pos < length;) {
+                int read = in.read(data, pos, length - pos);
+                if (read < 0) {
+                    throw new IOException("the connection closed after " + pos + " of " + length + " bytes");
+                }
+                pos += read;
+            }
+            return data;
+        }
+
+        static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    return sb.length() > 0 ? sb.toString() : null;
+                }
+                if (c != '\r') {
+                    sb.append((char)c);
+                }
+            }
+            return sb.toString();
+        }
+
+        void handle(Exchange exchange) throws IOException {
+            try {
+                dispatch(exchange);
+            } catch (RuntimeException e) {
+                respond(exchange, 500, error("InternalError", e.toString()));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        void dispatch(Exchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8");
+            String key = path.substring(BUCKET.length() + 2);
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            if (method.equals("POST") && query.containsKey("uploads")) {
+                String uploadId = "upload-" + _nextUploadId.getAndIncrement();
+                _uploads.put(uploadId, new Upload(key));
+                respond(exchange, 200, xml("InitiateMultipartUploadResult", "<Bucket>" + BUCKET + "</Bucket><Key>" + key + "</Key><UploadId>"
+                        + uploadId + "</UploadId>"));
+            } else if (method.equals("PUT") && query.containsKey("uploadId")) {
+                Upload upload = _uploads.get(query.get("uploadId"));
+                int partNumber = Integer.parseInt(query.get("partNumber"));
+                byte[] data = readBody(exchange);
+                if (partNumber == _failPart) {
+                    _failPart = -1;
+                    respond(exchange, 400, error("BadDigest", "injected failure"));
+                    return;
+                }
+                upload._parts.put(partNumber, data);
+                _putParts.incrementAndGet();
+                exchange.getResponseHeaders().set("ETag", "\"" + md5(data) + "\"");
+                respond(exchange, 200, new byte[0]);
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                Upload upload = _uploads.remove(query.get("uploadId"));
+                ByteArrayOutputStream object = new ByteArrayOutputStream();
+                ByteArrayOutputStream digests = new ByteArrayOutputStream();
+                List<Integer> partNumbers = new ArrayList<Integer>();
+                Matcher m = Pattern.compile("<PartNumber>(\\d+)</PartNumber>").matcher(new String(readBody(exchange), "UTF-8"));
+                while (m.find()) {
+                    partNumbers.add(Integer.parseInt(m.group(1)));
+                }
+                if (_dropLastPart) {
+                    _dropLastPart = false;
+                    partNumbers.remove(partNumbers.size() - 1);
+                }
+                for (int partNumber : partNumbers) {
+                    object.write(upload._parts.get(partNumber));
+                    digests.write(digest(upload._parts.get(partNumber)));
+                }
+                int parts = partNumbers.size();
+                _objects.put(key, object.toByteArray());
+                // like S3, the etag of a multipart object is the md5 of the md5s of its parts
+                respond(exchange, 200, xml("CompleteMultipartUploadResult", "<Location>http://" + getEndPoint() + "/" + BUCKET + "/" + key
+                        + "</Location><Bucket>" + BUCKET + "</Bucket><Key>" + key + "</Key><ETag>\"" + md5(digests.toByteArray()) + "-"
+                        + parts + "\"</ETag>"));
+            } else if (method.equals("GET") && query.containsKey("uploads")) {
+                StringBuilder sb = new StringBuilder("<Bucket>" + BUCKET + "</Bucket><KeyMarker></KeyMarker><UploadIdMarker></UploadIdMarker>"
+                        + "<NextKeyMarker></NextKeyMarker><NextUploadIdMarker></NextUploadIdMarker><MaxUploads>1000</MaxUploads>"
+                        + "<IsTruncated>false</IsTruncated>");
+                for (Map.Entry<String, Upload> entry : _uploads.entrySet()) {
+                    sb.append("<Upload><Key>").append(entry.getValue()._key).append("</Key><UploadId>").append(entry.getKey())
+                            .append("</UploadId><StorageClass>STANDARD</StorageClass><Initiated>").append(iso8601(entry.getValue()._initiated))
+                            .append("</Initiated></Upload>");
+                }
+                respond(exchange, 200, xml("ListMultipartUploadsResult", sb.toString()));
+            } else if (method.equals("GET") && query.containsKey("uploadId")) {
+                String uploadId = query.get("uploadId");
+                Upload upload = _uploads.get(uploadId);
+                StringBuilder sb = new StringBuilder("<Bucket>" + BUCKET + "</Bucket><Key>" + key + "</Key><UploadId>" + uploadId
+                        + "</UploadId><StorageClass>STANDARD</StorageClass><PartNumberMarker>0</PartNumberMarker>"
+                        + "<NextPartNumberMarker>0</NextPartNumberMarker><MaxParts>1000</MaxParts><IsTruncated>false</IsTruncated>");
+                for (Map.Entry<Integer, byte[]> part : new TreeMap<Integer, byte[]>(upload._parts).entrySet()) {
+                    sb.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><LastModified>").append(iso8601(upload._initiated))
+                            .append("</LastModified><ETag>\"").append(md5(part.getValue())).append("\"</ETag><Size>")
+                            .append(part.getValue().length).append("</Size></Part>");
+                }
+                respond(exchange, 200, xml("ListPartsResult", sb.toString()));
+            } else if (method.equals("PUT")) {
+                byte[] data = readBody(exchange);
+                _objects.put(key, data);
+                exchange.getResponseHeaders().set("ETag", "\"" + md5(data) + "\"");
+                respond(exchange, 200, new byte[0]);
+            } else if (method.equals("HEAD") || method.equals("GET")) {
+                byte[] data = _objects.get(key);
+                if (data == null) {
+                    exchange.getResponseHeaders().set("Connection", "close");
+                    respond(exchange, 404, method.equals("HEAD") ? null : error("NoSuchKey", key));
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", "\"" + md5(data) + "\"");
+                exchange.getResponseHeaders().set("Last-Modified", "Mon, 01 Oct 2012 00:00:00 GMT");
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                if (method.equals("HEAD")) {
+                    // the server drops the connection after a HEAD, say so rather than let the client reuse it
+                    exchange.getResponseHeaders().set("Connection", "close");
+                    exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range == null) {
+                    respond(exchange, 200, data);
+                    return;
+                }
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                int start = Integer.parseInt(bounds[0]);
+                int end = Math.min(Integer.parseInt(bounds[1]), data.length - 1);
+                _rangedGets.incrementAndGet();
+                if (start == _failRangeAt) {
+                    _failRangeAt = -1;
+                    // send half of the range and drop the connection
+                    exchange.sendResponseHeaders(206, end - start + 1);
+                    exchange.getResponseBody().write(data, start, (end - start + 1) / 2);
+                    exchange.getResponseBody().flush();
+                    return;
+                }
+                byte[] body = Arrays.copyOfRange(data, start, end + 1);
+                if (_corruptRange) {
+                    _corruptRange = false;
+                    body[0] ^= 1;
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+                respond(exchange, 206, body);
+            } else if (method.equals("DELETE")) {
+                if (query.containsKey("uploadId")) {
+                    _uploads.remove(query.get("uploadId"));
+                } else {
+                    _objects.remove(key);
+                }
+                respond(exchange, 204, null);
+            } else {
+                respond(exchange, 405, error("MethodNotAllowed", method));
+            }
+        }
+
+        static Map<String, String> parseQuery(String query) throws IOException {
+            Map<String, String> params = new HashMap<String, String>();
+            if (query != null) {
+                for (String param : query.split("&")) {
+                    int eq = param.indexOf('=');
+                    if (eq < 0) {
+                        params.put(param, "");
+                    } else {
+                        params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                    }
+                }
+            }
+            return params;
+        }
+
+        /**
+         * Reads the request body, undoing the signed chunk encoding newer sdks use.
+         */
+        static byte[] readBody(Exchange exchange) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            byte[] body = out.toByteArray();
+            String sha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+            if (sha256 == null || !sha256.startsWith("STREAMING-")) {
+                return body;
+            }
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            int pos = 0;
+            while (true) {
+                int eol = pos;
+                while (body[eol] != '\r') {
+                    eol++;
+                }
+                String header = new String(body, pos, eol - pos, "US-ASCII");
+                int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+                if (size == 0) {
+                    break;
+                }
+                decoded.write(body, eol + 2, size);
+                pos = eol + 2 + size + 2;
+            }
+            return decoded.toByteArray();
+        }
+
+        static void respond(Exchange exchange, int status, byte[] body) throws IOException {
+            if (body == null || body.length == 0) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.flush();
+        }
+
+        static byte[] xml(String element, String content) throws IOException {
+            return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><" + element + " xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" + content
+                    + "</" + element + ">").getBytes("UTF-8");
+        }
+
+        static byte[] error(String code, String message) throws IOException {
+            return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>" + message
+                    + "</Message><RequestId>0</RequestId></Error>").getBytes("UTF-8");
+        }
+
+        static String iso8601(Date date) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.format(date);
+        }
+    }
+
+    static class StandInClientOptions implements ClientOptions {
+        final String _endPoint;
+
+        StandInClientOptions(String endPoint) {
+            _endPoint = endPoint;
+        }
+
+        @Override
+        public String getAccessKey() {
+            return "access";
+        }
+
+        @Override
+        public String getSecretKey() {
+            return "secret";
+        }
+
+        @Override
+        public String getEndPoint() {
+            return _endPoint;
+        }
+
+        @Override
+        public Boolean isHttps() {
+            return false;
+        }
+
+        @Override
+        public Integer getConnectionTimeout() {
+            return null;
+        }
+
+        @Override
+        public Integer getMaxErrorRetry() {
+            // failures are injected, let them through
+            return 0;
+        }
+
+        @Override
+        public Integer getSocketTimeout() {
+            return null;
+        }
+    }
+
+    static final FileNamingStrategy BASE_NAME = new FileNamingStrategy() {
+        @Override
+        public String determineFileName(String key) {
+            return key.substring(key.lastIndexOf(S3Utils.SEPARATOR) + 1);
+        }
+    };
+
+    StandInS3 _s3;
+    ClientOptions _options;
+    File _dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.start();
+        _options = new StandInClientOptions(_s3.getEndPoint());
+        _dir = File.createTempFile("s3utils", "");
+        _dir.delete();
+        _dir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _s3.stop();
+        for (File file : _dir.listFiles()) {
+            file.delete();
+        }
+        _dir.delete();
+    }
+
+    static File createFile(File dir, String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String md5(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest(data)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                pos += in.read(data, pos, data.length - pos);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    public void testDeterminePartSize() {
+        assertEquals(S3Utils.MIN_PART_SIZE, S3Utils.determinePartSize(100, 1));
+        assertEquals(64L * MB, S3Utils.determinePartSize(1000L * MB, 64L * MB));
+        // no more than 10000 parts
+        long length = 1000L * 1024 * MB;
+        assertTrue(S3Utils.determinePartSize(length, 5L * MB) * 10000 >= length);
+    }
+
+    public void testSmallFileIsSentWhole() throws Exception {
+        File file = createFile(_dir, "small.vhd", 3 * MB);
+        S3Utils.putFile(_options, new TransferOptions(5 * MB, 4), file, BUCKET, "template/tmpl/1/small.vhd");
+        assertEquals(0, _s3._putParts.get());
+        assertTrue(Arrays.equals(read(file), _s3._objects.get("template/tmpl/1/small.vhd")));
+
+        File target = new File(_dir, "target");
+        target.mkdir();
+        File received = S3Utils.getFile(_options, new TransferOptions(5 * MB, 4), BUCKET, "template/tmpl/1/small.vhd", target, BASE_NAME);
+        assertEquals(0, _s3._rangedGets.get());
+        assertTrue(Arrays.equals(read(file), read(received)));
+        received.delete();
+        target.delete();
+    }
+
+    public void testFailedMultipartUploadIsAborted() throws Exception {
+        File file = createFile(_dir, "snapshot.vhd", 23 * MB);
+        TransferOptions transferOptions = new TransferOptions(5 * MB, 1);
+
+        _s3._failPart = 4;
+        try {
+            S3Utils.putFile(_options, transferOptions, file, BUCKET, "snapshots/2/3/snapshot.vhd");
+            fail("the upload of part 4 should have failed");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+        assertNull(_s3._objects.get("snapshots/2/3/snapshot.vhd"));
+        assertTrue("the parts already sent are not left behind", _s3._uploads.isEmpty());
+
+        S3Utils.putFile(_options, transferOptions, file, BUCKET, "snapshots/2/3/snapshot.vhd");
+        assertTrue(Arrays.equals(read(file), _s3._objects.get("snapshots/2/3/snapshot.vhd")));
+    }
+
+    public void testMultipartUploadResumes() throws Exception {
+        File file = createFile(_dir, "snapshot.vhd", 23 * MB);
+        byte[] data = read(file);
+        file.setLastModified(System.currentTimeMillis() - 60 * 1000);
+
+        // an upload left behind by a management server that went away after two parts
+        StandInS3.Upload upload = new StandInS3.Upload("snapshots/2/3/snapshot.vhd");
+        upload._parts.put(1, Arrays.copyOfRange(data, 0, 5 * MB));
+        upload._parts.put(2, Arrays.copyOfRange(data, 5 * MB, 10 * MB));
+        _s3._uploads.put("upload-left-behind", upload);
+
+        S3Utils.putFile(_options, new TransferOptions(5 * MB, 2), file, BUCKET, "snapshots/2/3/snapshot.vhd");
+        assertEquals("only the missing parts are sent", 3, _s3._putParts.get());
+        assertTrue(_s3._uploads.isEmpty());
+        assertTrue(Arrays.equals(data, _s3._objects.get("snapshots/2/3/snapshot.vhd")));
+    }
+
+    public void testShortMultipartObjectIsRejected() throws Exception {
+        File file = createFile(_dir, "snapshot.vhd", 23 * MB);
+
+        _s3._dropLastPart = true;
+        try {
+            S3Utils.putFile(_options, new TransferOptions(5 * MB, 2), file, BUCKET, "snapshots/2/3/snapshot.vhd");
+            fail("the object is missing its last part");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+        assertNull("the short object is deleted", _s3._objects.get("snapshots/2/3/snapshot.vhd"));
+    }
+
+    public void testCorruptDownloadIsRejected() throws Exception {
+        byte[] data = read(createFile(_dir, "source", 13 * MB));
+        _s3._objects.put("template/tmpl/1/template.vhd", data);
+        TransferOptions transferOptions = new TransferOptions(5 * MB, 2);
+        File target = new File(_dir, "target");
+        target.mkdir();
+
+        _s3._corruptRange = true;
+        try {
+            S3Utils.getFile(_options, transferOptions, BUCKET, "template/tmpl/1/template.vhd", target, BASE_NAME);
+            fail("the md5 of the download does not match the etag");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+        assertFalse(new File(target, "template.vhd").exists());
+
+        int rangesBefore = _s3._rangedGets.get();
+        File received = S3Utils.getFile(_options, transferOptions, BUCKET, "template/tmpl/1/template.vhd", target, BASE_NAME);
+        assertEquals("the next attempt starts from scratch", 3, _s3._rangedGets.get() - rangesBefore);
+        assertTrue(Arrays.equals(data, read(received)));
+        received.delete();
+        target.delete();
+    }
+
+    public void testRangedDownloadResumes() throws Exception {
+        byte[] data = read(createFile(_dir, "source", 23 * MB));
+        _s3._objects.put("snapshots/2/3/snapshot.vhd", data);
+        TransferOptions transferOptions = new TransferOptions(5 * MB, 2);
+        File target = new File(_dir, "target");
+        target.mkdir();
+
+        _s3._failRangeAt = 10 * MB;
+        try {
+            S3Utils.getFile(_options, transferOptions, BUCKET, "snapshots/2/3/snapshot.vhd", target, BASE_NAME);
+            fail("the download of the third part should have failed");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+        assertTrue(new File(target, "snapshot.vhd.s3state").exists());
+        assertFalse(new File(target, "snapshot.vhd").exists());
+        int rangesBefore = _s3._rangedGets.get();
+
+        File received = S3Utils.getFile(_options, transferOptions, BUCKET, "snapshots/2/3/snapshot.vhd", target, BASE_NAME);
+        assertTrue("only the missing parts are fetched again", _s3._rangedGets.get() - rangesBefore < 5);
+        assertTrue(Arrays.equals(data, read(received)));
+        assertFalse(new File(target, "snapshot.vhd.s3state").exists());
+        assertFalse(new File(target, "snapshot.vhd.s3part").exists());
+        received.delete();
+        target.delete();
+    }
+}
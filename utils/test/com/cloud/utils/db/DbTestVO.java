@@ -43,6 +43,14 @@ public class DbTestVO {
         return fieldString;
     }
 
+    public void setFieldString(String fieldString) {
+        this.fieldString = fieldString;
+    }
+
+    public void setFieldInt(int fieldInt) {
+        this.fieldInt = fieldInt;
+    }
+
     public int getFieldInt() {
         return fieldInt;
     }
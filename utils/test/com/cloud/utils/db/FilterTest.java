@@ -0,0 +1,76 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class FilterTest extends TestCase {
+    private final DbTestDao _dao = new DbTestDao();
+
+    public void testOffset() {
+        Filter filter = new Filter(DbTestVO.class, "fieldLong", true, 20L, 10L);
+        StringBuilder sql = new StringBuilder();
+        _dao.addFilter(sql, filter);
+        assertEquals(" ORDER BY test.fld_long ASC  LIMIT 20, 10", sql.toString());
+        assertFalse(filter.isSeek());
+    }
+
+    public void testSeek() {
+        Filter filter = new Filter(DbTestVO.class, "fieldLong", true, 20L, 10L);
+        filter.setSeekAfter(null);
+        assertTrue(filter.isSeek());
+        assertNull(filter.getOffset());
+        assertEquals("fieldLong", filter.getSeekField());
+
+        // the first page only needs the limit
+        StringBuilder sql = new StringBuilder();
+        _dao.addFilter(sql, filter);
+        assertEquals(" ORDER BY test.fld_long ASC  LIMIT 10", sql.toString());
+
+        // the criteria of a query searched page after page keeps one seek condition
+        SearchCriteria<DbTestVO> sc = _dao.createSearchCriteria();
+        filter.setSeekAfter(5L);
+        _dao.addSeek(sc, filter);
+        filter.setSeekAfter(15L);
+        _dao.addSeek(sc, filter);
+        String clause = sc.getWhereClause();
+        assertEquals(clause.indexOf("test.fld_long > ?"), clause.lastIndexOf("test.fld_long"));
+
+        sql = new StringBuilder();
+        _dao.addFilter(sql, filter);
+        assertEquals(" ORDER BY test.fld_long ASC  LIMIT 10", sql.toString());
+
+        filter = new Filter(DbTestVO.class, "fieldLong", false, null, 10L);
+        filter.setSeekAfter(15L);
+        sc = _dao.createSearchCriteria();
+        _dao.addSeek(sc, filter);
+        assertTrue(sc.getWhereClause().contains("test.fld_long < ?"));
+    }
+
+    public void testSeekNotApplied() {
+        Filter filter = new Filter(DbTestVO.class, "fieldLong", true, null, 10L);
+        filter.setSeekAfter(5L);
+        try {
+            // a query that ignores the seek value would list the same page forever
+            _dao.addFilter(new StringBuilder(), filter);
+            fail("Seeking without a seek condition");
+        } catch (CloudRuntimeException e) {
+        }
+    }
+}
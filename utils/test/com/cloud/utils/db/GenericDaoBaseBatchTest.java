@@ -0,0 +1,234 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs persistBatch() and updateBatch() against a connection that records the statements
+ * instead of a database.
+ */
+public class GenericDaoBaseBatchTest extends TestCase {
+    private final DbTestDao _dao = new DbTestDao();
+
+    /**
+     * A prepared statement as the connection saw it.
+     */
+    static class RecordedStatement {
+        final String sql;
+        int batches;
+        int executions;
+        int pending;
+
+        RecordedStatement(String sql) {
+            this.sql = sql;
+        }
+
+        int getRows() {
+            return sql.split("\\), \\(").length;
+        }
+    }
+
+    static class RecordingConnection implements InvocationHandler {
+        final List<RecordedStatement> statements = new ArrayList<RecordedStatement>();
+        long nextId = 1;
+        int commits;
+
+        Connection create() {
+            return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("prepareStatement")) {
+                final RecordedStatement stmt = new RecordedStatement((String)args[0]);
+                statements.add(stmt);
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("addBatch")) {
+                            stmt.batches++;
+                            stmt.pending++;
+                        } else if (name.equals("executeBatch")) {
+                            stmt.executions++;
+                            int[] counts = new int[stmt.pending];
+                            Arrays.fill(counts, 1);
+                            stmt.pending = 0;
+                            return counts;
+                        } else if (name.equals("executeUpdate")) {
+                            stmt.executions++;
+                            return stmt.getRows();
+                        } else if (name.equals("getGeneratedKeys")) {
+                            List<Long> ids = new ArrayList<Long>();
+                            for (int i = 0; i < stmt.getRows(); i++) {
+                                ids.add(nextId++);
+                            }
+                            return keys(ids);
+                        }
+                        return defaultValue(method);
+                    }
+                });
+            } else if (method.getName().equals("commit")) {
+                commits++;
+            }
+            return defaultValue(method);
+        }
+
+        ResultSet keys(final List<Long> ids) {
+            return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                int row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("next")) {
+                        return ++row < ids.size();
+                    } else if (method.getName().equals("getObject")) {
+                        return ids.get(row);
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        static Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    protected Transaction open(String name, RecordingConnection recorder) {
+        Transaction txn = Transaction.open(name);
+        txn.transitToUserManagedConnection(recorder.create());
+        return txn;
+    }
+
+    protected void close(Transaction txn) {
+        txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+        txn.close();
+    }
+
+    protected List<DbTestVO> entities(int count) {
+        List<DbTestVO> entities = new ArrayList<DbTestVO>();
+        for (int i = 0; i < count; i++) {
+            DbTestVO vo = new DbTestVO();
+            vo.fieldInt = i;
+            vo.fieldLong = (long)i;
+            vo.fieldString = "vo" + i;
+            entities.add(vo);
+        }
+        return entities;
+    }
+
+    public void testBuildMultiRowInsertSql() {
+        String sql = "INSERT INTO test (test.fld_int, test.fld_string) VALUES (?, ?)";
+        assertEquals(sql, GenericDaoBase.buildMultiRowInsertSql(sql, 1));
+        assertEquals(sql + ", (?, ?), (?, ?)", GenericDaoBase.buildMultiRowInsertSql(sql, 3));
+    }
+
+    public void testPersistBatch() {
+        RecordingConnection recorder = new RecordingConnection();
+        Transaction txn = open("testPersistBatch", recorder);
+        try {
+            List<DbTestVO> entities = entities(5);
+            _dao._batchSize = 2;
+            assertSame(entities, _dao.persistBatch(entities));
+
+            // one multi-row insert per chunk
+            assertEquals(3, recorder.statements.size());
+            assertEquals(2, recorder.statements.get(0).getRows());
+            assertEquals(2, recorder.statements.get(1).getRows());
+            assertEquals(1, recorder.statements.get(2).getRows());
+            for (RecordedStatement stmt : recorder.statements) {
+                assertTrue(stmt.sql.startsWith("INSERT INTO test "));
+                assertEquals(1, stmt.executions);
+            }
+            assertEquals(1, recorder.commits);
+
+            // the generated keys go back to the entities in order
+            for (int i = 0; i < entities.size(); i++) {
+                assertEquals(i + 1, entities.get(i).id);
+            }
+        } finally {
+            close(txn);
+        }
+    }
+
+    public void testPersistBatchInOneStatement() {
+        RecordingConnection recorder = new RecordingConnection();
+        Transaction txn = open("testPersistBatchInOneStatement", recorder);
+        try {
+            _dao._batchSize = 500;
+            _dao.persistBatch(entities(5));
+            assertEquals(1, recorder.statements.size());
+            assertEquals(5, recorder.statements.get(0).getRows());
+        } finally {
+            close(txn);
+        }
+    }
+
+    public void testUpdateBatch() {
+        RecordingConnection recorder = new RecordingConnection();
+        Transaction txn = open("testUpdateBatch", recorder);
+        try {
+            List<DbTestVO> entities = new ArrayList<DbTestVO>();
+            for (long id = 1; id <= 3; id++) {
+                DbTestVO vo = _dao.createForUpdate(id);
+                vo.setFieldInt((int)id);
+                entities.add(vo);
+            }
+            // a different set of changed columns needs a statement of its own
+            entities.get(2).setFieldString("changed");
+            entities.add(_dao.createForUpdate(4L));
+
+            _dao._batchSize = 1;
+            assertEquals(3, _dao.updateBatch(entities));
+            assertEquals(2, recorder.statements.size());
+            RecordedStatement fieldInt = recorder.statements.get(0);
+            assertTrue(fieldInt.sql.startsWith("UPDATE test SET "));
+            assertEquals(2, fieldInt.batches);
+            assertEquals(2, fieldInt.executions);
+            RecordedStatement both = recorder.statements.get(1);
+            assertTrue(both.sql.contains("fld_string"));
+            assertEquals(1, both.batches);
+
+            // the changes are cleared once written
+            recorder.statements.clear();
+            assertEquals(0, _dao.updateBatch(entities));
+            assertTrue(recorder.statements.isEmpty());
+        } finally {
+            close(txn);
+        }
+    }
+}
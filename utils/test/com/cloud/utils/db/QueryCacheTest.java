@@ -0,0 +1,116 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class QueryCacheTest extends TestCase {
+    private static final String SQL = "SELECT host.id FROM host WHERE host.name = ?";
+
+    protected List<Object[]> rows(Object... values) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Object value : values) {
+            rows.add(new Object[] { value });
+        }
+        return rows;
+    }
+
+    public void testKey() {
+        QueryCache.Key key = new QueryCache.Key(SQL, new Object[] { "host1", new Object[] { 1L, 2L } });
+        assertEquals(key, new QueryCache.Key(SQL, new Object[] { "host1", new Object[] { 1L, 2L } }));
+        assertEquals(key.hashCode(), new QueryCache.Key(SQL, new Object[] { "host1", new Object[] { 1L, 2L } }).hashCode());
+        assertFalse(key.equals(new QueryCache.Key(SQL, new Object[] { "host1", new Object[] { 1L, 3L } })));
+        assertFalse(key.equals(new QueryCache.Key(SQL + " LIMIT 1", new Object[] { "host1", new Object[] { 1L, 2L } })));
+    }
+
+    public void testInvalidation() {
+        QueryCache cache = new QueryCache("QueryCacheTestInvalidation", Arrays.asList("qc_host"), 100, 60, 60);
+        QueryCache.Key key = new QueryCache.Key(SQL, new Object[] { "host1" });
+        assertNull(cache.get(key));
+
+        String[] tables = new String[] { "qc_host", "qc_cluster" };
+        cache.put(key, tables, QueryCache.getVersions(tables), rows(1L, 2L));
+        assertEquals(2, cache.get(key).size());
+        assertEquals(1, cache.getHits());
+
+        // a write to a joined table throws the result away as well
+        QueryCache.invalidate(Arrays.asList("qc_cluster"), false);
+        assertNull(cache.get(key));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getSize());
+
+        // unrelated tables don't matter
+        cache.put(key, tables, QueryCache.getVersions(tables), rows(1L));
+        QueryCache.invalidate(Arrays.asList("qc_vm_instance"), false);
+        assertNotNull(cache.get(key));
+    }
+
+    public void testWriteDuringQuery() {
+        QueryCache cache = new QueryCache("QueryCacheTestWriteDuringQuery", Arrays.asList("qc_volumes"), 100, 60, 60);
+        QueryCache.Key key = new QueryCache.Key(SQL, new Object[] { "vol" });
+        String[] tables = new String[] { "qc_volumes" };
+
+        // the versions are taken before the query runs so a commit that
+        // lands in between keeps the result from being served.
+        long[] versions = QueryCache.getVersions(tables);
+        QueryCache.invalidate(Arrays.asList(tables), false);
+        cache.put(key, tables, versions, rows(1L));
+        assertNull(cache.get(key));
+    }
+
+    public void testEviction() {
+        QueryCache cache = new QueryCache("QueryCacheTestEviction", Arrays.asList("qc_nics"), 2, 60, 60);
+        String[] tables = new String[] { "qc_nics" };
+        for (int i = 0; i < 5; i++) {
+            cache.put(new QueryCache.Key(SQL, new Object[] { i }), tables, QueryCache.getVersions(tables), rows(i));
+        }
+        assertEquals(2, cache.getSize());
+        assertEquals(3, cache.getEvictions());
+    }
+
+    public void testPropagation() {
+        final List<String> propagated = new ArrayList<String>();
+        new QueryCache("QueryCacheTestPropagation", Arrays.asList("qc_networks"), 100, 60, 60);
+        QueryCache.setListener(new QueryCache.Listener() {
+            @Override
+            public void invalidated(Set<String> tables) {
+                propagated.addAll(tables);
+            }
+        });
+        try {
+            QueryCache.invalidate(Arrays.asList("qc_networks"), false);
+            assertTrue(propagated.isEmpty());
+
+            // outside of a transaction the write is committed already
+            Transaction txn = Transaction.open("QueryCacheTest");
+            try {
+                txn.invalidateOnCommit(Arrays.asList("qc_networks"));
+            } finally {
+                txn.close();
+            }
+            assertEquals(Arrays.asList("qc_networks"), propagated);
+        } finally {
+            QueryCache.setListener(null);
+        }
+    }
+}
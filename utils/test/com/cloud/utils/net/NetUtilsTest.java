@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.utils.net;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -69,4 +72,24 @@ public class NetUtilsTest extends TestCase {
         assertFalse(NetUtils.isValidS2SVpnPolicy(";modp1536"));
         assertFalse(NetUtils.isValidS2SVpnPolicy(",aes;modp1536,,,"));
     }
+
+    public void testAggregateCidrs() {
+        List<String> cidrs = new ArrayList<String>();
+        for (int i = 0; i < 256; i++) {
+            cidrs.add("10.1.1." + i + "/32");
+        }
+        cidrs.add("10.1.2.0/32");
+        cidrs.add("10.1.2.1/32");
+        cidrs.add("10.1.2.3/32");
+        cidrs.add("10.1.1.128/25");
+        cidrs.add("192.168.0.0/16");
+        cidrs.add("192.168.10.5/32");
+        cidrs.add("not-a-cidr");
+        assertEquals(Arrays.asList("10.1.1.0/24", "10.1.2.0/31", "10.1.2.3/32", "192.168.0.0/16", "not-a-cidr"), NetUtils.aggregateCidrs(cidrs));
+
+        assertEquals(Arrays.asList("0.0.0.0/0"), NetUtils.aggregateCidrs(Arrays.asList("0.0.0.0/0", "10.1.1.1/32")));
+        assertEquals(Arrays.asList("10.0.0.1/32", "10.0.0.2/31", "10.0.0.4/30", "10.0.0.8/32"),
+                NetUtils.aggregateCidrs(Arrays.asList("10.0.0.1/32", "10.0.0.2/32", "10.0.0.3/32", "10.0.0.4/32", "10.0.0.5/32", "10.0.0.6/32", "10.0.0.7/32", "10.0.0.8/32")));
+        assertEquals(Arrays.asList("255.255.255.254/31"), NetUtils.aggregateCidrs(Arrays.asList("255.255.255.255/32", "255.255.255.254/32")));
+    }
 }
@@ -0,0 +1,80 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(2, false);
+        ByteBuffer buffer = pool.acquire(1000);
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+        assertEquals(32768, pool.acquire(16749).capacity());
+        assertEquals(2, pool.getAllocated());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(2, false);
+        ByteBuffer buffer = pool.acquire(5000);
+        buffer.putInt(10);
+        pool.release(buffer);
+        assertEquals(1, pool.getPooledBuffers());
+
+        ByteBuffer reused = pool.acquire(6000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertEquals(1, pool.getReused());
+        assertEquals(0, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void testBounded() {
+        BufferPool pool = new BufferPool(2, false);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(2048);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(2, pool.getPooledBuffers());
+        assertEquals(4096, pool.getPooledBytes());
+        assertEquals(1, pool.getDiscarded());
+    }
+
+    @Test
+    public void testOversized() {
+        BufferPool pool = new BufferPool(2, false);
+        ByteBuffer buffer = pool.acquire(1024 * 1024);
+        assertFalse(buffer.isDirect());
+        pool.release(buffer);
+        pool.release(ByteBuffer.allocate(1024));
+        assertEquals(1, pool.getOversized());
+        assertEquals(0, pool.getPooledBuffers());
+    }
+}
@@ -0,0 +1,96 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.testcase;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.nio.NioServer;
+
+/**
+ * Connect storm benchmark for the agent listener.  A number of simulated
+ * agents connect at the same time, do the SSL handshake and send their first
+ * packet, the way agents do after a management server restart.  The run is
+ * timed once with a single selector loop and once with one per core.
+ *
+ * It is not part of the build, run it with -Dtest=ConnectStormBenchmark and
+ * -Dconnect.storm.agents=5000 for a full storm.
+ */
+public class ConnectStormBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ConnectStormBenchmark.class);
+
+    protected int getAgentCount() {
+        return Integer.getInteger("connect.storm.agents", 500);
+    }
+
+    public void testConnectStorm() throws Exception {
+        int agents = getAgentCount();
+        int cores = Runtime.getRuntime().availableProcessors();
+        double single = runStorm(agents, 1);
+        double multi = runStorm(agents, cores);
+        s_logger.info("Connect storm of " + agents + " agents: " + String.format("%.1f", single) + " connects/s with 1 selector, " + String.format("%.1f", multi)
+                + " connects/s with " + cores + " selectors");
+    }
+
+    protected double runStorm(int agents, int selectors) throws Exception {
+        final int port = ConnectStormTest.getFreePort();
+        CountDownLatch connected = new CountDownLatch(agents);
+        CountDownLatch received = new CountDownLatch(agents);
+        NioServer server = ConnectStormTest.startServer(port, selectors, connected, received);
+        assertTrue(server.isStartup());
+
+        final List<SocketChannel> channels = new ArrayList<SocketChannel>(agents);
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService simulator = Executors.newFixedThreadPool(64, new NamedThreadFactory("SimulatedAgent"));
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < agents; i++) {
+                simulator.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ConnectStormTest.connectAgent(port, channels);
+                        } catch (Exception e) {
+                            s_logger.warn("Simulated agent failed to connect", e);
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            assertTrue(received.await(10, TimeUnit.MINUTES));
+            long elapsed = System.nanoTime() - start;
+            assertEquals(0, failures.get());
+            assertEquals(0, connected.getCount());
+            return agents * 1000000000.0d / elapsed;
+        } finally {
+            simulator.shutdown();
+            simulator.awaitTermination(1, TimeUnit.MINUTES);
+            ConnectStormTest.close(server, channels);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.testcase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+
+public class ConnectStormTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ConnectStormTest.class);
+
+    static int getFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A server that greets each agent and counts the connects and the packets it gets.
+     */
+    static NioServer startServer(int port, int selectors, final CountDownLatch connected, final CountDownLatch received) {
+        NioServer server = new NioServer("ConnectStorm", port, 10, selectors, new HandlerFactory() {
+            @Override
+            public Task create(Task.Type type, Link link, byte[] data) {
+                if (type == Task.Type.CONNECT) {
+                    connected.countDown();
+                    try {
+                        link.send(new byte[64]);
+                    } catch (ClosedChannelException e) {
+                        s_logger.warn("Simulated agent disconnected", e);
+                    }
+                } else if (type == Task.Type.DATA) {
+                    received.countDown();
+                }
+                return new Task(type, link, data) {
+                    @Override
+                    protected void doTask(Task task) {
+                    }
+                };
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Connects the way an agent does and sends its first packet.
+     */
+    static SocketChannel connectAgent(int port, List<SocketChannel> channels) throws Exception {
+        SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        ch.socket().setTcpNoDelay(true);
+        synchronized (channels) {
+            channels.add(ch);
+        }
+        SSLContext sslContext = Link.initSSLContext(true);
+        SSLEngine sslEngine = sslContext.createSSLEngine("127.0.0.1", port);
+        sslEngine.setUseClientMode(true);
+        Link.doHandshake(ch, sslEngine, true);
+        // Wait for the server to say hello before sending anything.  Whatever the
+        // server reads during its handshake is dropped, so talking first can lose
+        // the packet.
+        if (ch.read(ByteBuffer.allocate(1024)) < 0) {
+            throw new IOException("Server closed the connection");
+        }
+        Link.write(ch, new ByteBuffer[] { ByteBuffer.wrap(new byte[512]) }, sslEngine);
+        return ch;
+    }
+
+    static void close(NioServer server, List<SocketChannel> channels) throws IOException {
+        synchronized (channels) {
+            for (SocketChannel ch : channels) {
+                ch.close();
+            }
+        }
+        server.stop();
+        server.cleanUp();
+    }
+
+    public void testConnectOnSelectorLoops() throws Exception {
+        int agents = 8;
+        CountDownLatch connected = new CountDownLatch(agents);
+        CountDownLatch received = new CountDownLatch(agents);
+        int port = getFreePort();
+        NioServer server = startServer(port, 2, connected, received);
+        List<SocketChannel> channels = new ArrayList<SocketChannel>();
+        try {
+            assertTrue(server.isStartup());
+            assertEquals(2, server.getSelectorCount());
+            for (int i = 0; i < agents; i++) {
+                connectAgent(port, channels);
+            }
+            assertTrue(received.await(1, TimeUnit.MINUTES));
+            assertEquals(0, connected.getCount());
+        } finally {
+            close(server, channels);
+        }
+    }
+
+    public void testStalledPeers() throws Exception {
+        CountDownLatch connected = new CountDownLatch(1);
+        CountDownLatch received = new CountDownLatch(1);
+        // one selector loop has 4 handshake threads
+        int port = getFreePort();
+        NioServer server = startServer(port, 1, connected, received);
+        server.setHandshakeTimeout(1000);
+        List<SocketChannel> channels = new ArrayList<SocketChannel>();
+        try {
+            assertTrue(server.isStartup());
+            List<SocketChannel> stalled = new ArrayList<SocketChannel>();
+            for (int i = 0; i < 4; i++) {
+                stalled.add(SocketChannel.open(new InetSocketAddress("127.0.0.1", port)));
+            }
+            channels.addAll(stalled);
+
+            // peers that never finish the handshake are cut off and the agent gets in
+            long deadline = System.currentTimeMillis() + 30000;
+            while (true) {
+                try {
+                    connectAgent(port, channels);
+                    break;
+                } catch (IOException e) {
+                    assertTrue("Agent couldn't connect past stalled peers", System.currentTimeMillis() < deadline);
+                    Thread.sleep(200);
+                }
+            }
+            assertTrue(received.await(1, TimeUnit.MINUTES));
+
+            for (SocketChannel ch : stalled) {
+                ch.socket().setSoTimeout(10000);
+                assertEquals(-1, ch.socket().getInputStream().read());
+            }
+        } finally {
+            close(server, channels);
+        }
+    }
+}